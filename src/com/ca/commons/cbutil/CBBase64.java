@@ -1,45 +1,58 @@
 package com.ca.commons.cbutil;
 
-import java.io.UnsupportedEncodingException;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
 /**
  * Converts back and forth between binary and base 64 (rfc 1521). There are
  * almost certainly java classes that already do this, but it will
  * take longer to find them than to write this :-) <p>
  * <p/>
- * Not fully optimised for speed - might be made faster if necessary... <p>
- * <p/>
- * Maybe should rewrite sometime as a stream?
+ * Both directions are table driven.  As well as the static methods, which work on
+ * whole arrays and strings, there is an {@link EncoderStream} that base64 encodes the
+ * bytes written to it straight into a Writer or StringBuffer (folding the lines LDIF
+ * style as it goes), and a {@link DecoderWriter} that decodes the characters written to
+ * it straight into an OutputStream - so large values (jpegPhotos, certificates...) need
+ * not be held in memory two or three times over. <p>
  *
  * @author Chris Betts
  */
 
 public class CBBase64
 {
+    /**
+     * The line length used for LDIF (and the default for binaryToString).  Continuation
+     * lines start with a single space, which counts toward the line length.
+     */
+    public static final int LDIF_LINE_LENGTH = 76;
 
+    private static final char[] ENCODE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
 
-/*  if speeding up by using array, maybe mess around with this array...
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;    // skipped; e.g. the '\n ' of folded lines
+    private static final byte PAD = -3;           // '='
 
-    static int binToChar[] = 
+    /**
+     * The six bit value of each (seven bit ascii) base64 character, or one of INVALID, WHITESPACE or PAD.
+     */
+    private static final byte[] DECODE = new byte[128];
+
+    static
     {
-        0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
-        0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
-        0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
-        0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
-        0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
-        0xff, 0xff, 0xff, 0x3e, 0xff, 0xff, 0xff, 0x3f,
-        0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x3b,
-        0x3c, 0x3d, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff,
-        0xff, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
-        0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e,
-        0x0f, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16,
-        0x17, 0x18, 0x19, 0xff, 0xff, 0xff, 0xff, 0xff,
-        0xff, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x20,
-        0x21, 0x22, 0x23, 0x24, 0x25, 0x26, 0x27, 0x28,
-        0x29, 0x2a, 0x2b, 0x2c, 0x2d, 0x2e, 0x2f, 0x30,
-        0x31, 0x32, 0x33, 0xff, 0xff, 0xff, 0xff, 0xff
-    };
-*/
+        Arrays.fill(DECODE, INVALID);
+        for (int i = 0; i < ENCODE.length; i++)
+            DECODE[ENCODE[i]] = (byte) i;
+        DECODE['='] = PAD;
+        for (char c : " \r\n\t\f".toCharArray())
+            DECODE[c] = WHITESPACE;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
 
     /**
      * Purely static class; hence no one should be able to instantiate it...
@@ -77,12 +90,7 @@ public class CBBase64
     {
         if (byteArray == null) return null;  // XXX correct behaviour?
 
-        byte[] base64Data = encode(byteArray);
-
-        if (base64Data == null) return null;  // Exception occurred.
-
-        return format(base64Data, offset);
-
+        return encode(byteArray, new StringBuffer(0), LDIF_LINE_LENGTH, offset).toString();
     }
 
     /**
@@ -95,11 +103,50 @@ public class CBBase64
     {
         if (byteArray == null) return null;  // XXX correct behaviour?
 
-        byte[] base64Data = encode(byteArray);
+        return encode(byteArray, new StringBuffer(0), 0, 0).toString();
+    }
 
-        if (base64Data == null) return null;  // Exception occurred.
+    /**
+     * Base64 encodes a byte array straight on to the end of a string buffer, without any
+     * intermediate arrays or strings.
+     *
+     * @param byteArray  the raw data to encode
+     * @param buffer     the buffer to append the base64 characters to
+     * @param lineLength the column to fold lines at (with a new line and a single space, as
+     *                   in LDIF), or 0 for no folding.
+     * @param offset     the column the first character is written at (e.g. the length of
+     *                   'jpegPhoto:: ' in an LDIF file).
+     * @return the buffer
+     */
 
-        return new String(base64Data);
+    public static StringBuffer encode(byte[] byteArray, StringBuffer buffer, int lineLength, int offset)
+    {
+        buffer.ensureCapacity(buffer.length() + encodedLength(byteArray.length, lineLength, offset));
+        try
+        {
+            EncoderStream encoder = new EncoderStream(buffer, lineLength, offset);
+            encoder.write(byteArray);
+            encoder.finish();
+        }
+        catch (IOException e)   // can't happen writing to a string buffer
+        {
+            throw new RuntimeException("unexpected error base64 encoding to string buffer", e);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the number of characters (including line folds) byteCount bytes encode to.
+     */
+    private static int encodedLength(int byteCount, int lineLength, int offset)
+    {
+        int chars = ((byteCount + 2) / 3) * 4;
+        int firstLine = Math.max(lineLength - offset, 0);
+        if (lineLength == 0 || chars <= firstLine)
+            return chars;
+
+        int folds = (chars - firstLine + lineLength - 2) / (lineLength - 1);   // continuation lines hold lineLength-1 characters
+        return chars + 2 * folds;
     }
 
 
@@ -113,31 +160,23 @@ public class CBBase64
      *                   files).
      */
 
-// XXX this is unusually sucky, even for me.  Better would be to format on the fly...
-
     public static String format(byte[] base64Data, int offset)
     {
-
-        String data;
-        try
-        {
-            data = new String(base64Data, "US-ASCII");
-        }
-        catch (Exception e)
-        {
-            data = new String(base64Data);  // should be equivalent to above
-        }
-        
         // some magic to make the columns line up nicely, and everythin,
         // including leading space, to fit under column 76...
-        
-        StringBuffer buffer = new StringBuffer(data);
 
-        int i = 76 - offset;
-        while (i < base64Data.length)
+        StringBuffer buffer = new StringBuffer(base64Data.length + 2 * (base64Data.length / (LDIF_LINE_LENGTH - 1) + 1));
+
+        int column = offset;
+        for (byte b : base64Data)
         {
-            buffer.insert(i, "\n ");
-            i += 77;
+            if (column >= LDIF_LINE_LENGTH)
+            {
+                buffer.append("\n ");
+                column = 1;
+            }
+            buffer.append((char) (b & 0xFF));
+            column++;
         }
 
         return buffer.toString();
@@ -155,44 +194,35 @@ public class CBBase64
 
     public static byte[] encode(byte[] byteArray)
     {
-        try
-        {
-            int arraySize = byteArray.length;
+        int arraySize = byteArray.length;
 
-            int outputSize = (arraySize % 3 == 0) ? (arraySize / 3) * 4 : ((arraySize / 3) + 1) * 4;
+        byte[] output = new byte[((arraySize + 2) / 3) * 4];
 
-            byte[] output = new byte[outputSize];
-            
-            // iterate through array, reading off byte triplets and converting to base64
-    
-            int bufferLength = 0;
+        // iterate through array, reading off byte triplets and converting to base64
 
-            for (int i = 0; i <= (arraySize - 3); i += 3)
-            {
-                convertTriplet(byteArray[i], byteArray[i + 1], byteArray[i + 2], 3, output, bufferLength);
-                bufferLength += 4;
-            }
+        int bufferLength = 0;
 
-            switch (arraySize % 3)
-            {
-                case 0:
-                    break;
+        for (int i = 0; i <= (arraySize - 3); i += 3)
+        {
+            convertTriplet(byteArray[i], byteArray[i + 1], byteArray[i + 2], 3, output, bufferLength);
+            bufferLength += 4;
+        }
 
-                case 1:
-                    convertTriplet(byteArray[arraySize - 1], (byte) 0, (byte) 0, 1, output, bufferLength);
-                    break;
+        switch (arraySize % 3)
+        {
+            case 0:
+                break;
 
-                case 2:
-                    convertTriplet(byteArray[arraySize - 2], byteArray[arraySize - 1], (byte) 0, 2, output, bufferLength);
-                    break;
-            }
+            case 1:
+                convertTriplet(byteArray[arraySize - 1], (byte) 0, (byte) 0, 1, output, bufferLength);
+                break;
 
-            return output;
-        }
-        catch (CBBase64EncodingException e)
-        {
-            return null;
+            case 2:
+                convertTriplet(byteArray[arraySize - 2], byteArray[arraySize - 1], (byte) 0, 2, output, bufferLength);
+                break;
         }
+
+        return output;
     }
 
     /**
@@ -230,9 +260,9 @@ public class CBBase64
             outputSize += (outputSize / colSize) + 1;  // allow for new lines!
 
             byte[] output = new byte[outputSize];
-            
+
             // iterate through array, reading off byte triplets and converting to base64
-        
+
             for (int i = 0; i < start; i++)
                 output[i] = (byte) ' ';   // pad to 'start' with spaces.
 
@@ -264,7 +294,7 @@ public class CBBase64
                     bufferLength += 4;
                     break;
             }
-        
+
             // final '\n'
             if (bufferLength < outputSize) // it should be exactly one less!
             {
@@ -303,18 +333,7 @@ public class CBBase64
     {
         if (chars == null) return null;
 
-        byte charArray[];
-
-        try
-        {
-            charArray = chars.getBytes("US-ASCII");
-        }
-        catch (UnsupportedEncodingException e)
-        {
-            charArray = chars.getBytes();
-        }
-
-        return decode(charArray);
+        return decode(chars, 0, chars.length());
     }
 
 
@@ -328,89 +347,50 @@ public class CBBase64
 
     public static byte[] decode(byte[] rawData)
     {
+        if (rawData == null) return null;
+
         try
         {
+            byte result[] = new byte[(rawData.length / 4) * 3]; // upper limit for binary array
 
-            int resultLength = (int) (rawData.length * .75); // set upper limit for binary array
-
-            byte result[] = new byte[resultLength];
-
+            Decoder decoder = new Decoder();
             int noBytesWritten = 0;
-            int validCharacters = 0;
-
-            byte c;
-            byte quad[] = new byte[4]; // temp store for a quad of base64 byte characters
-            int bytes;                // temp store for a triplet of bytes
-            int numfound = 0;          // number of chars found for quad
-             
-             
-            // iterate through, finding valid quads, and converting to byte triplets 
-    
-            for (int i = 0; i < rawData.length; i++)
-            {
-                c = rawData[i];
-                if ((c >= (byte) 'A' && c <= (byte) 'Z') || (c >= (byte) 'a' && c <= (byte) 'z') || (c >= '0' && c <= '9') || (c == '+') || (c == (byte) '/') || (c == (byte) '='))
-                {
-                    quad[numfound++] = c;
-                    validCharacters++;
-                }
-                else if (" \r\n\t\f".indexOf((char) c) == -1)
-                {
-                    //CBUtility.log("error... bad character (" + (char)c + ") read from base64 encoded string", 6);
-                    return null;
-                }
 
-                // write the quad; paying special attention to possible 'filler'
-                // characters '=' or '==' at the end of the string (see rfc).
-                 
-                if (numfound == 4)
-                {
-                    bytes = convertQuad(quad);
-                    result[noBytesWritten++] = (byte) ((bytes & 0xFF0000) >> 16);
-                    if (c != '=')
-                    {
-                        result[noBytesWritten++] = (byte) ((bytes & 0xFF00) >> 8);
-                        result[noBytesWritten++] = (byte) (bytes & 0xFF);
-                    }
-                    else if (rawData[i - 1] != '=')
-                    {
-                        result[noBytesWritten++] = (byte) ((bytes & 0xFF00) >> 8);
-                        if ((bytes & 0xFF) > 0)
-                        {
-                            //CBUtility.log("Warning: Corrupt base64 Encoded File - contains trailing bits after file end.", 6);
-                            return null;
-                        }
-                    }
-                    else if ((bytes & 0xFF00) > 0)
-                    {
-                        //CBUtility.log("Warning: Corrupt base64 Encoded File  - contains trailing bits after file end.", 6);
-                        return null;
-                    }
-
-                    numfound = 0;
-                }
-            }
-             
-            // check that the number of real characters is correct - must be cleanly
-            // divisible by 4...
-             
-            if (validCharacters % 4 != 0)
-            {
-                //CBUtility.log("Warning: Corrupt base64 Encoded File - Length (" + validCharacters + ") of valid characters not divisible by 4.", 6);
-                return null;
-            }
+            for (int i = 0; i < rawData.length; i++)
+                noBytesWritten = decoder.decode(rawData[i] & 0xFF, result, noBytesWritten);
 
+            decoder.finish();
 
-            byte finalResult[] = new byte[noBytesWritten];
-            System.arraycopy(result, 0, finalResult, 0, noBytesWritten);
-            return finalResult;
+            return trim(result, noBytesWritten);
         }
-        catch (Exception e)
+        catch (CBBase64EncodingException e)
         {
-            //CBUtility.log("unable to create final decoded byte array from base64 bytes: " + e, 6);
+            //CBUtility.log("unable to decode base64 bytes: " + e, 6);
             return null;
         }
+    }
 
+    /**
+     * Decodes base64 encoded data from part of a character sequence (e.g. a line of an LDIF
+     * file), without first copying it to a String or byte array.
+     *
+     * @param chars the characters, each of which should be a seven-bit ASCII value.
+     * @param start the index of the first base64 character
+     * @param end   the index after the last base64 character
+     * @return the raw binary data, each byte of which may have any value from
+     *         0 - 255.  This value will be null if a decoding error occurred.
+     */
+
+    public static byte[] decode(CharSequence chars, int start, int end)
+    {
+        try
+        {
+            return decodeChars(chars, start, end);
+        }
+        catch (CBBase64EncodingException e)
+        {
+            return null;
+        }
     }
 
     /**
@@ -424,218 +404,461 @@ public class CBBase64
     public static byte[] decode(String chars)
             throws CBBase64EncodingException
     {
-
         if (chars == null) return null;
 
-        byte rawData[];
+        return decodeChars(chars, 0, chars.length());
+    }
 
-        try
-        {
-            rawData = chars.getBytes("US-ASCII");
-        }
-        catch (UnsupportedEncodingException e)
-        {
-            throw new CBBase64EncodingException("unable to convert base64 encoded data to bytes using US-ASCII encoding", e);
-        }
+    private static byte[] decodeChars(CharSequence chars, int start, int end)
+            throws CBBase64EncodingException
+    {
+        byte result[] = new byte[((end - start) / 4) * 3]; // upper limit for binary array
 
-        int resultLength = (int) (rawData.length * .75); // set upper limit for binary array
+        Decoder decoder = new Decoder();
+        int noBytesWritten = 0;
 
-        byte result[] = new byte[resultLength];
+        for (int i = start; i < end; i++)
+            noBytesWritten = decoder.decode(chars.charAt(i), result, noBytesWritten);
 
-        int noBytesWritten = 0;
-        int validCharacters = 0;
+        decoder.finish();
+
+        return trim(result, noBytesWritten);
+    }
+
+    private static byte[] trim(byte[] result, int length)
+    {
+        if (length == result.length)   // the usual case for unpadded, unbroken data
+            return result;
+
+        byte finalResult[] = new byte[length];
+        System.arraycopy(result, 0, finalResult, 0, length);
+        return finalResult;
+    }
+
+
+    /**
+     * Converts three bytes to 4 base 64 values...
+     *
+     * @param a       the first byte to convert
+     * @param b       the second byte to convert
+     * @param c       the third byte to convert
+     * @param Num     the Number of 'real' bytes to convert - i.e. 1 (just a),
+     *                2 (a and b), or 3 (a,b and c).
+     * @param buff    the result buffer to put the final values in.
+     * @param buffpos the position to start filling the result buffer from.
+     */
 
-        byte c;
-        byte quad[] = new byte[4]; // temp store for a quad of base64 byte characters
-        int bytes;                // temp store for a triplet of bytes
-        int numfound = 0;          // number of chars found for quad
+    private static void convertTriplet(byte a, byte b, byte c, int Num, byte[] buff, int buffpos)
+    {
+        int trip = ((a & 0xFF) << 16) | ((b & 0xFF) << 8) | (c & 0xFF);
 
+        buff[buffpos] = (byte) ENCODE[trip >> 18];
+        buff[buffpos + 1] = (byte) ENCODE[(trip >> 12) & 0x3F];
+        buff[buffpos + 2] = (Num == 1) ? (byte) '=' : (byte) ENCODE[(trip >> 6) & 0x3F];
+        buff[buffpos + 3] = (Num < 3) ? (byte) '=' : (byte) ENCODE[trip & 0x3F];
+    }
 
-        // iterate through, finding valid quads, and converting to byte triplets
+    /**
+     * The state of a decode: the quad of base64 characters read so far.  Kept in an
+     * object so that a quad may be split across lines, or across DecoderWriter writes.
+     */
 
-        for (int i = 0; i < rawData.length; i++)
+    private static final class Decoder
+    {
+        private int quad = 0;       // the six bit values of the quad so far, first in the high bits
+        private int count = 0;      // the number of characters of the quad read (including padding)
+        private int padding = 0;    // the number of '=' padding characters read
+
+        /**
+         * Reads the next character, writing the bytes of the quad to the result when it is complete.
+         *
+         * @param c      the character (or the unsigned value of an ascii byte)
+         * @param result the buffer for the decoded bytes, which must have room for three more
+         * @param pos    the position to write decoded bytes at
+         * @return the position after any bytes written
+         * @throws CBBase64EncodingException if the character isn't base64 or whitespace, or is misplaced padding.
+         */
+        int decode(int c, byte[] result, int pos)
+                throws CBBase64EncodingException
         {
-            c = rawData[i];
-            if ((c >= (byte) 'A' && c <= (byte) 'Z') || (c >= (byte) 'a' && c <= (byte) 'z') || (c >= '0' && c <= '9') || (c == '+') || (c == (byte) '/') || (c == (byte) '='))
-            {
-                quad[numfound++] = c;
-                validCharacters++;
-            }
-            else if (" \r\n\t\f".indexOf((char) c) == -1)
+            int value = (c < 128) ? DECODE[c] : INVALID;
+
+            if (value >= 0 && padding == 0)
             {
-                throw new CBBase64EncodingException("error... bad character (" + (char) c + ") read from base64 encoded string");
+                quad = (quad << 6) | value;
+                if (++count == 4)
+                {
+                    result[pos++] = (byte) (quad >> 16);
+                    result[pos++] = (byte) (quad >> 8);
+                    result[pos++] = (byte) quad;
+                    quad = 0;
+                    count = 0;
+                }
+                return pos;
             }
 
+            if (value == WHITESPACE)
+                return pos;
+
             // write the quad; paying special attention to possible 'filler'
             // characters '=' or '==' at the end of the string (see rfc).
 
-            if (numfound == 4)
+            if (value == PAD && count >= 2)
             {
-                bytes = convertQuad(quad);
-                result[noBytesWritten++] = (byte) ((bytes & 0xFF0000) >> 16);
-                if (c != '=')
+                quad <<= 6;
+                padding++;
+                if (++count == 4)
                 {
-                    result[noBytesWritten++] = (byte) ((bytes & 0xFF00) >> 8);
-                    result[noBytesWritten++] = (byte) (bytes & 0xFF);
-                }
-                else if (rawData[i - 1] != '=')
-                {
-                    result[noBytesWritten++] = (byte) ((bytes & 0xFF00) >> 8);
-                    if ((bytes & 0xFF) > 0)
-                    {
+                    if ((quad & ((padding == 1) ? 0xFF : 0xFFFF)) != 0)
                         throw new CBBase64EncodingException("Warning: Corrupt base64 Encoded Data - contains trailing bits after end of base 64 data.");
-                    }
-                }
-                else if ((bytes & 0xFF00) > 0)
-                {
-                    throw new CBBase64EncodingException("Warning: Corrupt base64 Encoded File  - contains trailing bits after end of base64 data.");
-                }
 
-                numfound = 0;
+                    result[pos++] = (byte) (quad >> 16);
+                    if (padding == 1)
+                        result[pos++] = (byte) (quad >> 8);
+                    quad = 0;
+                    count = 0;
+                    padding = 0;
+                }
+                return pos;
             }
-        }
 
-        // check that the number of real characters is correct - must be cleanly
-        // divisible by 4...
+            if (value >= 0 || value == PAD)
+                throw new CBBase64EncodingException("Warning: Corrupt base64 Encoded Data - misplaced '=' padding character.");
 
-        if (validCharacters % 4 != 0)
-        {
-            throw new CBBase64EncodingException("Warning: Corrupt base64 Encoded Data - Length (" + validCharacters + ") of valid characters not divisible by 4.");
+            throw new CBBase64EncodingException("error... bad character (" + (char) c + ") read from base64 encoded string");
         }
 
+        /**
+         * Checks that the data ended with a complete quad.
+         */
+        void finish()
+                throws CBBase64EncodingException
+        {
+            // check that the number of real characters is correct - must be cleanly
+            // divisible by 4...
 
-        byte finalResult[] = new byte[noBytesWritten];
-        System.arraycopy(result, 0, finalResult, 0, noBytesWritten);
-        return finalResult;
-
+            if (count != 0)
+                throw new CBBase64EncodingException("Warning: Corrupt base64 Encoded Data - Length of valid characters not divisible by 4.");
+        }
     }
 
-
     /**
-     * Converts three bytes to 4 base 64 values...
-     * a half hearted attempt has been made to make it go fast...
-     *
-     * @param a       the first byte to convert
-     * @param b       the second byte to convert
-     * @param c       the third byte to convert
-     * @param Num     the Number of 'real' bytes to convert - i.e. 1 (just a),
-     *                2 (a and b), or 3 (a,b and c).
-     * @param buff    the result buffer to put the final values in.
-     * @param buffpos the position to start filling the result buffer from.
+     * <p>An output stream that base64 encodes the bytes written to it, writing the characters
+     * to a Writer or StringBuffer (or any other Appendable).  Lines may be folded as they are
+     * written, as in LDIF, with the first line starting part way across the page:</p>
+     * <pre>
+     * jpegPhoto:: /9j/4AAQSkZJRgABAQEASABIAAD/2wBDAAYEBQYFBAYGBQYHBwYIChAKCgkJChQODw
+     *  wMEBgVGRgWGBUXGx8lHhwdIx4VFx4sIR4wKikpKREeLjIuJzI...
+     * </pre>
+     * <p>{@link #finish()} (or close()) must be called once all the data has been written, to
+     * write the final, padded, quad.</p>
      */
 
-    private static void convertTriplet(byte a, byte b, byte c, int Num, byte[] buff, int buffpos)
-            throws CBBase64EncodingException
+    public static class EncoderStream extends OutputStream
     {
-        byte w, x, y, z;  // the four 6 bit values extracted.
-        int trip = (a << 16) | ((b << 8) & 0xFF00) | (c & 0xFF);
+        private final Appendable out;
+
+        private final int lineLength;
+
+        private int column;
+
+        private final byte[] pending = new byte[3];    // the bytes of an incomplete triplet
+
+        private int pendingCount = 0;
+
+        private final char[] chars = new char[BUFFER_SIZE];
 
-        w = (byte) ((trip & 0xFC0000) >> 18);
-        x = (byte) ((trip & 0x03F000) >> 12);
-        y = (byte) ((trip & 0x000FC0) >> 6);
-        z = (byte) (trip & 0x00003F);
+        private int charCount = 0;
 
-        buff[buffpos] = convertFrom6Bit(w);
-        buff[buffpos + 1] = convertFrom6Bit(x);
+        private boolean finished = false;
 
-        if (Num == 1)
+        /**
+         * An encoder that writes a single unbroken line of base64 characters.
+         *
+         * @param out the Writer, StringBuffer etc. to write the characters to.
+         */
+        public EncoderStream(Appendable out)
         {
-            buff[buffpos + 2] = (byte) '=';
-            buff[buffpos + 3] = (byte) '=';
+            this(out, 0, 0);
         }
-        else
+
+        /**
+         * @param out        the Writer, StringBuffer etc. to write the characters to.
+         * @param lineLength the column to fold lines at, or 0 for no folding.  Lines are folded
+         *                   with a new line ('\n') and a single space, which counts toward the
+         *                   length of the next line.
+         * @param offset     the column the first character is written at (e.g. the length of
+         *                   'jpegPhoto:: ' for an LDIF attribute).
+         */
+        public EncoderStream(Appendable out, int lineLength, int offset)
         {
-            buff[buffpos + 2] = convertFrom6Bit(y);
+            if (lineLength < 0 || lineLength == 1)
+                throw new IllegalArgumentException("base64 line length must be 0 (unfolded) or at least 2: " + lineLength);
+
+            this.out = out;
+            this.lineLength = lineLength;
+            this.column = offset;
+        }
 
-            if (Num == 2)
+        public void write(int b)
+                throws IOException
+        {
+            checkFinished();
+            pending[pendingCount++] = (byte) b;
+            if (pendingCount == 3)
             {
-                buff[buffpos + 3] = (byte) '=';
+                writeQuad(((pending[0] & 0xFF) << 16) | ((pending[1] & 0xFF) << 8) | (pending[2] & 0xFF), 4);
+                pendingCount = 0;
+            }
+        }
+
+        public void write(byte[] data, int off, int len)
+                throws IOException
+        {
+            checkFinished();
+            int end = off + len;
+
+            while (pendingCount > 0 && off < end)     // complete a triplet left over from the last write
+                write(data[off++]);
+
+            for (int last = end - 3; off <= last; off += 3)
+                writeQuad(((data[off] & 0xFF) << 16) | ((data[off + 1] & 0xFF) << 8) | (data[off + 2] & 0xFF), 4);
+
+            while (off < end)
+                pending[pendingCount++] = data[off++];
+        }
+
+        /**
+         * Writes the characters for a triplet (only the first 'valid' of which are real data;
+         * the rest are written as '=' padding).
+         */
+        private void writeQuad(int trip, int valid)
+                throws IOException
+        {
+            if (charCount > chars.length - 12)    // room for four characters and four line folds
+                writeChars();
+
+            if (lineLength == 0 || column + 4 <= lineLength)   // the usual case
+            {
+                chars[charCount++] = ENCODE[trip >> 18];
+                chars[charCount++] = ENCODE[(trip >> 12) & 0x3F];
+                chars[charCount++] = (valid > 2) ? ENCODE[(trip >> 6) & 0x3F] : '=';
+                chars[charCount++] = (valid > 3) ? ENCODE[trip & 0x3F] : '=';
+                column += 4;
             }
             else
             {
-                buff[buffpos + 3] = convertFrom6Bit(z);
+                writeChar(ENCODE[trip >> 18]);
+                writeChar(ENCODE[(trip >> 12) & 0x3F]);
+                writeChar((valid > 2) ? ENCODE[(trip >> 6) & 0x3F] : '=');
+                writeChar((valid > 3) ? ENCODE[trip & 0x3F] : '=');
             }
         }
-    }
 
-    /**
-     * Use rfc 1521 specified character conversions
-     * (I wonder if a preset array would be faster?)
-     *
-     * @param b the 6 significant bit byte to be converted
-     * @return the converted base64 character
-     */
+        private void writeChar(char c)
+        {
+            if (column >= lineLength)
+            {
+                chars[charCount++] = '\n';
+                chars[charCount++] = ' ';
+                column = 1;
+            }
+            chars[charCount++] = c;
+            column++;
+        }
 
-    // this might be sped up using an array index as provided above...
+        /**
+         * Passes the encoded characters on to the output.
+         */
+        private void writeChars()
+                throws IOException
+        {
+            if (charCount == 0)
+                return;
 
-    private static byte convertFrom6Bit(byte b)
-            throws CBBase64EncodingException
-    {
-        byte c;
-
-        if (b < 26)
-            return (byte) ('A' + b);           // 'A' -> 'Z'
-        else if (b < 52)
-            return (byte) (('a' - 26) + b);  // 'a' -> 'z'
-        else if (b < 62)
-            return (byte) (('0' - 52) + b);  // '0' -> '9'
-        else if (b == 62)
-            return ((byte) '+');
-        else if (b == 63)
-            return ((byte) '/');
-        else                // error - should never happen
-        {
-            throw new CBBase64EncodingException("erroroneous value " + (char) b + " passed in convertFrom6bit");
+            if (out instanceof StringBuffer)
+                ((StringBuffer) out).append(chars, 0, charCount);
+            else if (out instanceof Writer)
+                ((Writer) out).write(chars, 0, charCount);
+            else
+                out.append(CharBuffer.wrap(chars, 0, charCount));
+
+            charCount = 0;
         }
-    }
 
-    /**
-     * Use rfc 1521 specified character conversions
-     * (I wonder if a preset array would be faster?)
-     *
-     * @param c a byte representing a single base64 encoded character
-     * @return the corresponding raw 6 bit 'true' value.
-     */
+        private void checkFinished()
+                throws IOException
+        {
+            if (finished)
+                throw new IOException("base64 encoder stream has already been finished");
+        }
 
-    private static byte convertTo6Bit(byte c)
-            throws CBBase64EncodingException
-    {
-        if (c == (byte) '+')
-            return 62;
-        else if (c == (byte) '/')
-            return 63;
-        else if (c == (byte) '=')  // this result not actually used by calling program...
-            return 0;
-        else if (c <= (byte) '9')
-            return (byte) (c - (byte) '0' + 52);
-        else if (c <= (byte) 'Z')
-            return (byte) (c - (byte) 'A');
-        else if (c <= (byte) 'z')
-            return (byte) (c - (byte) 'a' + 26);
-        else                // error - should never happen
+        /**
+         * Writes any characters waiting in the encoder's buffer, and flushes the output, if it
+         * can be.  (A byte or two of an incomplete triplet may still be held back.)
+         */
+        public void flush()
+                throws IOException
         {
-            throw new CBBase64EncodingException("erroroneous value " + (char) c + " passed in convertTo6bit");
+            writeChars();
+            if (out instanceof Flushable)
+                ((Flushable) out).flush();
+        }
+
+        /**
+         * Writes the final quad, padded if necessary, without closing the output.  Nothing
+         * more may be written afterwards.
+         */
+        public void finish()
+                throws IOException
+        {
+            if (finished)
+                return;
+
+            if (pendingCount > 0)
+            {
+                byte b = (pendingCount > 1) ? pending[1] : 0;
+                writeQuad(((pending[0] & 0xFF) << 16) | ((b & 0xFF) << 8), pendingCount + 1);
+                pendingCount = 0;
+            }
+            writeChars();
+            finished = true;
+        }
+
+        /**
+         * Finishes the encoding, and closes the output if it is closeable.
+         */
+        public void close()
+                throws IOException
+        {
+            finish();
+            if (out instanceof Closeable)
+                ((Closeable) out).close();
+        }
+
+        /**
+         * @return the column the next character will be written at.
+         */
+        public int getColumn()
+        {
+            return column;
         }
     }
 
     /**
-     * Takes a triplet of base64 encoded characters, and returns
-     * a triplet of appropriate bytes
-     *
-     * @param quad four base 64 encoded characters
-     * @return the corresponding 'true' 24 bit value, as an int.
+     * A writer that decodes the base64 characters written to it, writing the bytes to an
+     * output stream.  Whitespace - such as the new line and space of folded LDIF lines - is
+     * skipped, and quads may be split across writes.  {@link #finish()} (or close()) checks
+     * that the data ended with a complete quad.
      */
 
-    private static int convertQuad(byte[] quad)
-            throws CBBase64EncodingException
+    public static class DecoderWriter extends Writer
     {
-        byte a = convertTo6Bit(quad[0]);
-        byte b = convertTo6Bit(quad[1]);
-        byte c = convertTo6Bit(quad[2]);
-        byte d = convertTo6Bit(quad[3]);
+        private final OutputStream out;
+
+        private final Decoder decoder = new Decoder();
+
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+
+        /**
+         * @param out the stream to write the decoded bytes to.
+         */
+        public DecoderWriter(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        public void write(int c)
+                throws IOException
+        {
+            writeBytes(decode(c, 0));
+        }
+
+        public void write(char[] cbuf, int off, int len)
+                throws IOException
+        {
+            int pos = 0;
+            for (int end = off + len; off < end; off++)
+            {
+                pos = decode(cbuf[off], pos);
+                if (pos > bytes.length - 3)
+                    pos = writeBytes(pos);
+            }
+            writeBytes(pos);
+        }
+
+        public void write(String str, int off, int len)
+                throws IOException
+        {
+            int pos = 0;
+            for (int end = off + len; off < end; off++)
+            {
+                pos = decode(str.charAt(off), pos);
+                if (pos > bytes.length - 3)
+                    pos = writeBytes(pos);
+            }
+            writeBytes(pos);
+        }
 
-        int ret = (a << 18) + (b << 12) + (c << 6) + d;
+        private int decode(int c, int pos)
+                throws IOException
+        {
+            try
+            {
+                return decoder.decode(c, bytes, pos);
+            }
+            catch (CBBase64EncodingException e)
+            {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
 
-        return ret;
+        private int writeBytes(int length)
+                throws IOException
+        {
+            if (length > 0)
+                out.write(bytes, 0, length);
+            return 0;
+        }
+
+        public void flush()
+                throws IOException
+        {
+            out.flush();
+        }
+
+        /**
+         * Checks that the data written ended with a complete quad, without closing the output.
+         *
+         * @throws IOException if it didn't.
+         */
+        public void finish()
+                throws IOException
+        {
+            try
+            {
+                decoder.finish();
+            }
+            catch (CBBase64EncodingException e)
+            {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Checks the data is complete, and closes the output.
+         */
+        public void close()
+                throws IOException
+        {
+            try
+            {
+                finish();
+            }
+            finally
+            {
+                out.close();
+            }
+        }
     }
-}
\ No newline at end of file
+}
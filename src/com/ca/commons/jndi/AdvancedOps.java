@@ -2,11 +2,23 @@ package com.ca.commons.jndi;
 
 import javax.naming.*;
 import javax.naming.directory.*;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -21,6 +33,19 @@ import java.util.logging.Logger;
  *   that may be over-ridden by
  *   classes derived from this that with to track progress.
  *
+ *   If the tree concurrency is set above one, tree operations are run
+ *   level by level, with the entries of each level handled by a number of
+ *   worker threads (each with its own context instance sharing the
+ *   connection).  Parents are always created before their children, and
+ *   children deleted before their parents.  Progress is still reported
+ *   (on the calling thread) with a push() for each level, an inc() for each
+ *   entry, and a pop() when the level is done.
+ *
+ *   If the tree operation can't use worker threads, but the context can send
+ *   operations in batches (a BatchContext, e.g. DSML), trees are copied and
+ *   deleted a level at a time, with each level sent as a parallel batch -
+ *   so a level takes a few requests, rather than one per entry.
+ *
  */
 public class AdvancedOps extends BasicOps
 {
@@ -28,6 +53,12 @@ public class AdvancedOps extends BasicOps
 
     protected NameParser parser;
 
+    protected int treeConcurrency = 1;   // the number of threads used for tree operations (1 = walk the tree recursively)
+
+    protected boolean batchTreeOperations = true;   // whether to batch tree operations, if the context supports it
+
+    private static final int MAX_BATCH = 1000;   // the most operations held in a tree batch before it is sent
+
     private final static Logger log = Logger.getLogger(AdvancedOps.class.getName());
 
     /**
@@ -79,6 +110,49 @@ public class AdvancedOps extends BasicOps
         return newObject;
     }
 
+    /**
+     * Sets the number of threads used to copy, move and delete trees.  With a single
+     * thread (the default) trees are walked recursively, one entry at a time.
+     *
+     * @param threads the number of worker threads for tree operations.
+     */
+
+    public void setTreeConcurrency(int threads)
+    {
+        treeConcurrency = Math.max(1, threads);
+    }
+
+    /**
+     * Returns the number of threads used to copy, move and delete trees.
+     */
+
+    public int getTreeConcurrency()
+    {
+        return treeConcurrency;
+    }
+
+    /**
+     * Sets whether tree copies and deletes are sent in batches, when the context supports it
+     * (see BatchContext).  This is the default; turn it off to have trees copied and deleted
+     * one entry at a time.
+     *
+     * @param batch whether to use batches for tree operations.
+     */
+
+    public void setBatchTreeOperations(boolean batch)
+    {
+        batchTreeOperations = batch;
+    }
+
+    /**
+     * Returns whether tree copies and deletes are sent in batches, when the context supports it.
+     */
+
+    public boolean getBatchTreeOperations()
+    {
+        return batchTreeOperations;
+    }
+
     /**
      * overload this method for progress tracker.
      */
@@ -150,7 +224,7 @@ public class AdvancedOps extends BasicOps
             log.finer("recursively delete Tree " + nodeDN.toString());
 
             startOperation("Deleting " + nodeDN.toString(), "deleted ");
-            recDeleteTree(nodeDN);
+            deleteSubtree(nodeDN);
         }
         finally
         {
@@ -286,19 +360,19 @@ public class AdvancedOps extends BasicOps
 
         try
         {
-            recCopyTree(from, to, replaceRDNValue);
+            copySubtree(from, to, replaceRDNValue);
         }
         catch (NamingException e)
         {
             try
             {
-                recDeleteTree(to);  // Try to clean up
+                deleteSubtree(to);  // Try to clean up
             }
             catch (Exception e2) {} // meh... we're interested in the exception that triggered this, not this in itself
             throw e;            // then rethrow exception
         }
 
-        recDeleteTree(from);
+        deleteSubtree(from);
     }
 
     /*
@@ -331,7 +405,7 @@ public class AdvancedOps extends BasicOps
             log.finer("recursively copy tree from " + oldNodeDN.toString() + " to " + newNodeDN.toString());
 
             startOperation("Copying " + oldNodeDN.toString(), "copying");
-            recCopyTree(oldNodeDN, newNodeDN, resetNamingAttribute);
+            copySubtree(oldNodeDN, newNodeDN, resetNamingAttribute);
         }
         finally
         {
@@ -383,6 +457,583 @@ public class AdvancedOps extends BasicOps
         pop();
     }
 
+    /*
+     *
+     *    PARALLEL TREE FUNCTIONS
+     *
+     */
+
+    /**
+     *    Counts the entries in a subtree (including the apex), without changing
+     *    anything.  This can be used to size a copy, move or delete in advance.
+     *
+     *    @param dn the apex of the subtree to count.
+     *    @return the number of entries in the subtree.
+     */
+
+    public int countTree(Name dn)
+            throws NamingException
+    {
+        TreeWorkers workers = openTreeWorkers();
+        try
+        {
+            int count = 0;
+            ArrayList level = new ArrayList();
+            level.add(dn);
+            while (!level.isEmpty())
+            {
+                count += level.size();
+                level = listLevel(workers, level);
+            }
+            return count;
+        }
+        finally
+        {
+            if (workers != null) workers.close();
+        }
+    }
+
+    /**
+     *    Deletes a subtree.  If the server supports the Tree Delete control, the whole
+     *    subtree is deleted with a single request; otherwise (or if the server refuses)
+     *    the entries are deleted one at a time - in parallel if the tree concurrency is
+     *    greater than one.
+     *
+     *    @param dn the distinguished name of the sub-tree apex to delete.
+     */
+
+    protected void deleteSubtree(Name dn)
+            throws NamingException
+    {
+        if (isControlSupported(TREE_DELETE_CONTROL) && deleteTreeOnServer(dn))
+            return;
+
+        TreeWorkers workers = openTreeWorkers();
+        if (workers == null)
+        {
+            BatchContext.Batch batch = createTreeBatch();
+            if (batch != null)
+                deleteSubtree(dn, batch);
+            else
+                recDeleteTree(dn);
+            return;
+        }
+
+        try
+        {
+            ArrayList levels = new ArrayList();    // the entries at each depth of the tree, apex first
+            ArrayList level = new ArrayList();
+            level.add(dn);
+            while (!level.isEmpty())
+            {
+                levels.add(level);
+                level = listLevel(workers, level);
+            }
+
+            log.info("deleting " + dn + " (" + levels.size() + " levels)");
+
+            for (int i = levels.size() - 1; i >= 0; i--)   // deepest first, so each entry's children are gone before it is deleted
+            {
+                ArrayList entries = (ArrayList) levels.get(i);
+                levels.set(i, null);
+                push(entries);
+                workers.forEach(entries, new TreeTask()
+                {
+                    public Object run(AdvancedOps ops, Object entry) throws NamingException
+                    {
+                        ops.deleteEntry((Name) entry);
+                        return null;
+                    }
+                });
+                pop();
+            }
+        }
+        finally
+        {
+            workers.close();
+        }
+    }
+
+    /**
+     *    Asks the server to delete a subtree in one operation, using the Tree Delete control.
+     *
+     *    @param dn the apex of the subtree.
+     *    @return true if the subtree was deleted, false if it must be deleted entry by entry
+     *    (some servers refuse, e.g. for very large trees, or may have deleted only part of it).
+     *    @throws NameNotFoundException if the subtree doesn't exist.
+     */
+
+    protected boolean deleteTreeOnServer(Name dn)
+            throws NamingException
+    {
+        LdapContext treeDeleteCtx = getContext().newInstance(new Control[]{new BasicControl(TREE_DELETE_CONTROL, true, null)});
+        if (treeDeleteCtx == null)
+            return false;   // can't set controls separately on this provider.
+
+        try
+        {
+            log.info("deleting " + dn + " with tree delete control");
+            treeDeleteCtx.destroySubcontext(dn);
+            inc();
+            return true;
+        }
+        catch (NameNotFoundException e)
+        {
+            throw e;
+        }
+        catch (NamingException e)
+        {
+            log.warning("tree delete of " + dn + " failed (" + e.getMessage() + ") - deleting entries individually");
+            return false;
+        }
+        finally
+        {
+            treeDeleteCtx.close();
+        }
+    }
+
+    /**
+     *    Copies a subtree, in parallel if the tree concurrency is greater than one.
+     *
+     *    @param from the ldap Name dn to copy the tree from
+     *    @param to the ldap Name dn to copy the tree to
+     *    @param resetNamingAttribute - whether we need to change the copied entries naming attribute value
+     */
+
+    protected void copySubtree(Name from, Name to, boolean resetNamingAttribute)
+            throws NamingException
+    {
+        TreeWorkers workers = openTreeWorkers();
+        if (workers == null)
+        {
+            BatchContext.Batch batch = createTreeBatch();
+            if (batch != null)
+                copySubtree(from, to, resetNamingAttribute, batch);
+            else
+                recCopyTree(from, to, resetNamingAttribute);
+            return;
+        }
+
+        try
+        {
+            if (resetNamingAttribute)
+                copyEntryResettingNamingAttribute(from, to);
+            else
+                copyEntry(from, to);
+            inc();
+
+            ArrayList level = new ArrayList();    // [from, to] pairs of the entries copied at the current depth
+            level.add(new Name[]{from, to});
+
+            while (!level.isEmpty())
+            {
+                ArrayList children = new ArrayList();
+                List childLists = workers.forEach(level, new TreeTask()
+                {
+                    public Object run(AdvancedOps ops, Object pair) throws NamingException
+                    {
+                        Name[] fromTo = (Name[]) pair;
+                        ArrayList childPairs = new ArrayList();
+                        ListIterator childDNs = ops.getChildren(fromTo[0]).listIterator();
+                        while (childDNs.hasNext())
+                        {
+                            Name childDN = (Name) childDNs.next();
+                            Name destinationDN = (Name) fromTo[1].clone();
+                            destinationDN.add(childDN.get(childDN.size() - 1));
+                            childPairs.add(new Name[]{childDN, destinationDN});
+                        }
+                        return childPairs;
+                    }
+                }, false);
+                for (int i = 0; i < childLists.size(); i++)
+                    children.addAll((ArrayList) childLists.get(i));
+
+                if (children.isEmpty())
+                    break;
+
+                push(children);          // the parents are all in place; copy the whole next level
+                workers.forEach(children, new TreeTask()
+                {
+                    public Object run(AdvancedOps ops, Object pair) throws NamingException
+                    {
+                        Name[] fromTo = (Name[]) pair;
+                        ops.copyEntry(fromTo[0], fromTo[1]);
+                        return null;
+                    }
+                });
+                pop();
+
+                level = children;
+            }
+        }
+        finally
+        {
+            workers.close();
+        }
+    }
+
+    /*
+     *
+     *    BATCHED TREE FUNCTIONS
+     *
+     */
+
+    /**
+     *    Deletes a subtree a level at a time, deepest first, sending each level as a batch.
+     *
+     *    @param dn the distinguished name of the sub-tree apex to delete.
+     *    @param batch an empty, parallel, batch to send the deletes in.
+     */
+
+    protected void deleteSubtree(Name dn, BatchContext.Batch batch)
+            throws NamingException
+    {
+        ArrayList levels = new ArrayList();    // the entries at each depth of the tree, apex first
+        ArrayList level = new ArrayList();
+        level.add(dn);
+        while (!level.isEmpty())
+        {
+            levels.add(level);
+            level = listLevel(null, level);
+        }
+
+        log.info("deleting " + dn + " in batches (" + levels.size() + " levels)");
+
+        for (int i = levels.size() - 1; i >= 0; i--)
+        {
+            ArrayList entries = (ArrayList) levels.get(i);
+            levels.set(i, null);
+            push(entries);
+            for (int j = 0; j < entries.size(); j++)
+            {
+                batch.delete(entries.get(j).toString());
+                if (batch.size() == MAX_BATCH)
+                    executeTreeBatch(batch);
+            }
+            executeTreeBatch(batch);
+            pop();
+        }
+    }
+
+    /**
+     *    Copies a subtree a level at a time, sending each level as a batch.  The entries of
+     *    each level are read with a single search of each parent, rather than an entry at a time.
+     *
+     *    @param from the ldap Name dn to copy the tree from
+     *    @param to the ldap Name dn to copy the tree to
+     *    @param resetNamingAttribute - whether we need to change the copied entries naming attribute value
+     *    @param batch an empty, parallel, batch to send the adds in.
+     */
+
+    protected void copySubtree(Name from, Name to, boolean resetNamingAttribute, BatchContext.Batch batch)
+            throws NamingException
+    {
+        if (resetNamingAttribute)
+            copyEntryResettingNamingAttribute(from, to);
+        else
+            copyEntry(from, to);
+        inc();
+
+        ArrayList level = new ArrayList();    // [from, to] pairs of the entries copied at the current depth
+        level.add(new Name[]{from, to});
+
+        while (!level.isEmpty())
+        {
+            ArrayList children = new ArrayList();
+            ArrayList childAtts = new ArrayList();
+            for (int i = 0; i < level.size(); i++)
+            {
+                Name[] fromTo = (Name[]) level.get(i);
+                NamingEnumeration childEntries = searchOneLevel(fromTo[0], "(objectclass=*)", 0, 0, null);
+                while (childEntries.hasMore())
+                {
+                    SearchResult child = (SearchResult) childEntries.next();
+                    Name childDN = getChildName(fromTo[0], child.getName());
+                    Name destinationDN = (Name) fromTo[1].clone();
+                    destinationDN.add(childDN.get(childDN.size() - 1));
+                    children.add(new Name[]{childDN, destinationDN});
+                    childAtts.add(child.getAttributes());
+                }
+            }
+
+            if (children.isEmpty())
+                break;
+
+            push(children);          // the parents are all in place; copy the whole next level
+            for (int i = 0; i < children.size(); i++)
+            {
+                batch.add(((Name[]) children.get(i))[1].toString(), (Attributes) childAtts.get(i));
+                childAtts.set(i, null);
+                if (batch.size() == MAX_BATCH)
+                    executeTreeBatch(batch);
+            }
+            executeTreeBatch(batch);
+            pop();
+
+            level = children;
+        }
+    }
+
+    /**
+     *    Sends a batch of tree operations, reporting progress for each one that succeeded.
+     *
+     *    @param batch the operations
+     *    @throws NamingException the first error, if any of the operations failed.
+     */
+
+    private void executeTreeBatch(BatchContext.Batch batch)
+            throws NamingException
+    {
+        if (batch.size() == 0)
+            return;
+
+        NamingException[] results = batch.execute();
+        NamingException error = null;
+        for (int i = 0; i < results.length; i++)
+        {
+            if (results[i] == null)
+                inc();
+            else if (error == null)
+                error = results[i];
+            else
+                log.warning("batched tree operation failed: " + results[i].getMessage());
+        }
+
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     *    Creates the batch used for a tree operation that has no worker threads.
+     *
+     *    @return a new parallel batch, or null if tree operations should be done recursively
+     *    (the context can't batch operations, or batching is turned off).
+     */
+
+    protected BatchContext.Batch createTreeBatch()
+            throws NamingException
+    {
+        if (!batchTreeOperations || !(getContext() instanceof BatchContext))
+            return null;
+
+        return ((BatchContext) getContext()).createBatch(false);
+    }
+
+    /**
+     *    Lists the children of all the entries in one level of a tree.
+     *
+     *    @param workers the workers to list with (null to list them one at a time).
+     *    @param level a list of Names.
+     *    @return the children of all the entries in the level, in order.
+     */
+
+    private ArrayList listLevel(TreeWorkers workers, ArrayList level)
+            throws NamingException
+    {
+        ArrayList next = new ArrayList();
+
+        if (workers == null)
+        {
+            for (int i = 0; i < level.size(); i++)
+                next.addAll(getChildren((Name) level.get(i)));
+            return next;
+        }
+
+        List childLists = workers.forEach(level, new TreeTask()
+        {
+            public Object run(AdvancedOps ops, Object entry) throws NamingException
+            {
+                return ops.getChildren((Name) entry);
+            }
+        }, false);
+
+        for (int i = 0; i < childLists.size(); i++)
+            next.addAll((ArrayList) childLists.get(i));
+        return next;
+    }
+
+    /**
+     *    Creates the AdvancedOps object used by a tree worker thread.  Subclasses that
+     *    change how names or entries are handled should return an object of their own
+     *    type.  (Workers do no progress tracking or error reporting of their own.)
+     *
+     *    @param workerCtx a new context instance for the worker.
+     *    @return the worker's operations object.
+     */
+
+    protected AdvancedOps createTreeWorker(LdapContext workerCtx)
+            throws NamingException
+    {
+        return new AdvancedOps(workerCtx);
+    }
+
+    /**
+     *    Starts the worker threads for a parallel tree operation.
+     *
+     *    @return the workers, or null if tree operations should be done recursively on
+     *    this thread (concurrency of one, or a provider that can't create new context instances).
+     */
+
+    protected TreeWorkers openTreeWorkers()
+            throws NamingException
+    {
+        if (treeConcurrency < 2 || getContext() == null)
+            return null;
+
+        ArrayList workerOps = new ArrayList();
+        for (int i = 0; i < treeConcurrency; i++)
+        {
+            LdapContext workerCtx = getContext().newInstance(null);
+            if (workerCtx == null)
+                return null;     // e.g. DSML; fall back to the recursive operations.
+            workerOps.add(createTreeWorker(workerCtx));
+        }
+        return new TreeWorkers(workerOps);
+    }
+
+    /**
+     *    A single step of a tree operation, run on one entry by a worker.
+     */
+
+    protected interface TreeTask
+    {
+        public Object run(AdvancedOps ops, Object entry) throws NamingException;
+    }
+
+    /**
+     *    A set of worker threads, each using its own AdvancedOps object, that run tree tasks
+     *    on all the entries of a list in parallel.  Results, progress and errors are handled
+     *    on the calling thread.
+     */
+
+    protected class TreeWorkers
+    {
+        private final ExecutorService executor;
+        private final BlockingQueue idleOps;
+        private volatile boolean failed = false;
+
+        TreeWorkers(List workerOps)
+        {
+            idleOps = new LinkedBlockingQueue(workerOps);
+            executor = Executors.newFixedThreadPool(workerOps.size());
+        }
+
+        /**
+         *    Runs a task on every entry, calling inc() as each entry is finished.
+         */
+
+        public List forEach(List entries, TreeTask task)
+                throws NamingException
+        {
+            return forEach(entries, task, true);
+        }
+
+        /**
+         *    Runs a task on every entry, and waits for them all to finish.  If a task
+         *    fails the remaining entries are skipped, and the first error is thrown.
+         *
+         *    @param entries the entries to run the task on.
+         *    @param task the task to run.
+         *    @param progress whether to call inc() as each entry is finished.
+         *    @return the results of the task for each entry, in the order of the entries.
+         */
+
+        public List forEach(List entries, final TreeTask task, boolean progress)
+                throws NamingException
+        {
+            CompletionService completion = new ExecutorCompletionService(executor);
+            for (int i = 0; i < entries.size(); i++)
+            {
+                final int index = i;
+                final Object entry = entries.get(i);
+                completion.submit(new Callable()
+                {
+                    public Object call() throws Exception
+                    {
+                        if (failed)
+                            return null;     // an earlier entry failed; skip the rest
+
+                        AdvancedOps ops = (AdvancedOps) idleOps.take();
+                        try
+                        {
+                            return new Object[]{new Integer(index), task.run(ops, entry)};
+                        }
+                        finally
+                        {
+                            idleOps.put(ops);
+                        }
+                    }
+                });
+            }
+
+            Object[] results = new Object[entries.size()];
+            NamingException error = null;
+            for (int i = 0; i < entries.size(); i++)
+            {
+                try
+                {
+                    Object[] result = (Object[]) completion.take().get();
+                    if (result == null)
+                        continue;
+                    results[((Integer) result[0]).intValue()] = result[1];
+                    if (progress)
+                        inc();
+                }
+                catch (ExecutionException e)
+                {
+                    failed = true;
+                    if (error == null)
+                        error = asNamingException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    failed = true;
+                    if (error == null)
+                        error = new InterruptedNamingException("interrupted while waiting for tree operation");
+                }
+            }
+
+            if (error != null)
+                throw error;
+
+            ArrayList ordered = new ArrayList(results.length);
+            for (int i = 0; i < results.length; i++)
+                ordered.add(results[i]);
+            return ordered;
+        }
+
+        /**
+         *    Stops the worker threads, and closes their context instances.
+         */
+
+        public void close()
+        {
+            executor.shutdownNow();
+            AdvancedOps ops;
+            while ((ops = (AdvancedOps) idleOps.poll()) != null)
+            {
+                try
+                {
+                    ops.close();
+                }
+                catch (NamingException e)
+                {
+                    log.log(Level.FINE, "error closing tree worker context", e);
+                }
+            }
+        }
+
+        private NamingException asNamingException(Throwable e)
+        {
+            if (e instanceof NamingException)
+                return (NamingException) e;
+
+            NamingException ne = new NamingException("unexpected error in tree operation: " + e);
+            ne.setRootCause(e);
+            return ne;
+        }
+    }
+
     /**
      * Copies an object to a new DN by the simple expedient of adding
      * an object with the new DN, and the attributes of the old object.
@@ -453,16 +1104,27 @@ public class AdvancedOps extends BasicOps
 // tell whether a DN is relative to the search base or not.  This is particularly bad when it comes
 // to dealing with aliases...!  So we check its size instead :-/
 //
-                Name childDN = parser.parse(child.getName());
-
-                if (childDN.size() == 1)
-                {
-                     childDN = ((Name)base.clone()).add(child.getName());
-                }
-
-                children.add(childDN);
+                children.add(getChildName(base, child.getName()));
               }
           }
         return children;
     }
+
+    /**
+     * @param base the entry that was listed or searched
+     * @param name the name of a child, as returned by the list or search
+     * @return the full DN of the child.
+     */
+    protected Name getChildName(Name base, String name)
+        throws NamingException
+    {
+        Name childDN = parser.parse(name);
+
+        if (childDN.size() == 1)
+        {
+             childDN = ((Name)base.clone()).add(name);
+        }
+
+        return childDN;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,325 @@
+package com.ca.commons.jndi;
+
+import com.pegacat.testprovider.TestLdapContextData;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests the parallel tree operations in AdvancedOps against the test provider.  (The test
+ * provider can't create context instances, so the workers share the test context, and take
+ * turns using it.)
+ */
+public class AdvancedOpsTest extends TestCase
+{
+    private static final Object lock = new Object();   // the test provider isn't thread safe
+
+    private LdapContext ctx;
+    private CountingOps ops;
+
+    /**
+     * AdvancedOps whose tree workers share its context, and which counts progress calls.
+     */
+    private static class CountingOps extends AdvancedOps
+    {
+        int incs = 0;
+        int depth = 0;
+        String failOn = null;      // workers fail to add entries whose DN starts with this
+        RecordingBatch batch = null;
+
+        CountingOps(LdapContext c) throws NamingException
+        {
+            super(c);
+        }
+
+        protected BatchContext.Batch createTreeBatch() throws NamingException
+        {
+            return batchTreeOperations ? batch : null;
+        }
+
+        protected TreeWorkers openTreeWorkers() throws NamingException
+        {
+            if (treeConcurrency < 2)
+                return null;
+
+            ArrayList workers = new ArrayList();
+            for (int i = 0; i < treeConcurrency; i++)
+                workers.add(new LockedOps(getContext(), failOn));
+            return new TreeWorkers(workers);
+        }
+
+        public void inc() { incs++; }
+        public void push(ArrayList elements) { depth++; }
+        public void pop() { depth--; }
+    }
+
+    /**
+     * A worker that serialises its calls to the shared test context.
+     */
+    private static class LockedOps extends AdvancedOps
+    {
+        private final String failOn;
+
+        LockedOps(LdapContext c, String failOn) throws NamingException
+        {
+            super(c);
+            this.failOn = failOn;
+        }
+
+        public NamingEnumeration list(Name base) throws NamingException
+        {
+            synchronized (lock) { return super.list(base); }
+        }
+
+        public Attributes read(Name dn, String[] returnAttributes) throws NamingException
+        {
+            synchronized (lock) { return super.read(dn, returnAttributes); }
+        }
+
+        public void addEntry(Name dn, Attributes atts) throws NamingException
+        {
+            if (failOn != null && dn.toString().startsWith(failOn))
+                throw new NamingException("test failure adding " + dn);
+            synchronized (lock) { super.addEntry(dn, atts); }
+        }
+
+        public void deleteEntry(Name dn) throws NamingException
+        {
+            synchronized (lock) { super.deleteEntry(dn); }
+        }
+
+        public void close() {}   // the context is shared
+    }
+
+    /**
+     * A batch that carries out its operations on the test context when it is executed,
+     * recording the size of each batch sent.
+     */
+    private static class RecordingBatch implements BatchContext.Batch
+    {
+        private final LdapContext ctx;
+        private final ArrayList operations = new ArrayList();     // [name, attributes (or null to delete)]
+        final ArrayList sizes = new ArrayList();
+        String failOn = null;
+
+        RecordingBatch(LdapContext ctx)
+        {
+            this.ctx = ctx;
+        }
+
+        public void add(String name, Attributes atts) { operations.add(new Object[]{name, atts}); }
+        public void delete(String name) { operations.add(new Object[]{name, null}); }
+        public void modify(String name, ModificationItem[] mods) { throw new UnsupportedOperationException(); }
+        public int size() { return operations.size(); }
+
+        public NamingException[] execute()
+        {
+            NamingException[] results = new NamingException[operations.size()];
+            for (int i = 0; i < results.length; i++)
+            {
+                Object[] op = (Object[]) operations.get(i);
+                String name = (String) op[0];
+                try
+                {
+                    if (failOn != null && name.startsWith(failOn))
+                        throw new NamingException("test failure on " + name);
+                    if (op[1] == null)
+                        ctx.destroySubcontext(name);
+                    else
+                        ctx.createSubcontext(name, (Attributes) op[1]);
+                }
+                catch (NamingException e)
+                {
+                    results[i] = e;
+                }
+            }
+            sizes.add(new Integer(results.length));
+            operations.clear();
+            return results;
+        }
+    }
+
+    public AdvancedOpsTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(AdvancedOpsTest.class);
+    }
+
+    public static void main(String args[])
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp() throws Exception
+    {
+        ctx = new TestLdapContextData().setupTestContext();
+        ops = new CountingOps(ctx);
+    }
+
+    public void testCountTree() throws NamingException
+    {
+        Name users = new LdapName("ou=users,o=groupmind,c=au");
+        int serialCount = ops.countTree(users);
+        assertTrue(serialCount > 5);
+
+        ops.setTreeConcurrency(3);
+        assertEquals(serialCount, ops.countTree(users));
+        assertEquals(0, ops.incs);                      // a dry run, not an operation
+        assertTrue(ops.exists(users));
+    }
+
+    public void testParallelCopyTree() throws NamingException
+    {
+        Name from = new LdapName("ou=users,o=groupmind,c=au");
+        Name to = new LdapName("ou=copy,o=groupmind,c=au");
+        int size = ops.countTree(from);
+
+        ops.setTreeConcurrency(3);
+        ops.copyTree(from, to, true);
+
+        assertEquals(size, ops.countTree(to));
+        assertEquals(size, ops.incs);
+        assertEquals(0, ops.depth);
+        assertTrue(ops.exists(new LdapName("cn=family,cn=Chris,ou=copy,o=groupmind,c=au")));
+    }
+
+    public void testParallelDeleteTree() throws NamingException
+    {
+        Name users = new LdapName("ou=users,o=groupmind,c=au");
+        int size = ops.countTree(users);
+
+        ops.setTreeConcurrency(3);
+        ops.deleteTree(users);
+
+        assertFalse(ops.exists(users));
+        assertFalse(ops.exists(new LdapName("cn=family,cn=Chris,ou=users,o=groupmind,c=au")));
+        assertEquals(size, ops.incs);
+        assertEquals(0, ops.depth);
+        assertTrue(ops.exists(new LdapName("o=groupmind,c=au")));
+    }
+
+    public void testSerialDeleteTree() throws NamingException
+    {
+        Name users = new LdapName("ou=users,o=groupmind,c=au");
+        int size = ops.countTree(users);
+
+        ops.deleteTree(users);          // concurrency 1: the original recursive delete
+        assertFalse(ops.exists(users));
+        assertEquals(size, ops.incs);
+    }
+
+    public void testTreeDeleteControlProbedOnce() throws NamingException
+    {
+        final int[] reads = new int[1];
+        AdvancedOps probing = new AdvancedOps(ctx)
+        {
+            protected Set readSupportedControls()
+            {
+                reads[0]++;
+                Set oids = new HashSet();
+                oids.add(TREE_DELETE_CONTROL);
+                return oids;
+            }
+        };
+        JNDIOps.clearSupportedControls();
+
+        Name users = new LdapName("ou=users,o=groupmind,c=au");
+        probing.deleteTree(new LdapName("cn=family,cn=Chris,ou=users,o=groupmind,c=au"));
+        probing.deleteTree(users);     // the test provider can't take controls, so this falls back to a normal delete
+
+        assertFalse(probing.exists(users));
+        assertEquals(1, reads[0]);
+        assertTrue(probing.isControlSupported(JNDIOps.TREE_DELETE_CONTROL));
+        JNDIOps.clearSupportedControls();
+    }
+
+    public void testBatchedCopyTree() throws NamingException
+    {
+        Name from = new LdapName("ou=users,o=groupmind,c=au");
+        Name to = new LdapName("ou=copy,o=groupmind,c=au");
+        int size = ops.countTree(from);
+
+        ops.batch = new RecordingBatch(ctx);
+        ops.copyTree(from, to, true);
+
+        assertEquals(size, ops.countTree(to));
+        assertEquals(size, ops.incs);
+        assertEquals(0, ops.depth);
+        assertEquals(ops.read(new LdapName("cn=family,cn=Chris,ou=users,o=groupmind,c=au")).size(),
+                     ops.read(new LdapName("cn=family,cn=Chris,ou=copy,o=groupmind,c=au")).size());
+
+        int sent = 1;       // (the apex is copied on its own)
+        for (int i = 0; i < ops.batch.sizes.size(); i++)
+            sent += ((Integer) ops.batch.sizes.get(i)).intValue();
+        assertEquals(size, sent);
+        assertTrue(ops.batch.sizes.size() < size - 1);   // a batch a level, not an entry
+    }
+
+    public void testBatchedDeleteTree() throws NamingException
+    {
+        Name users = new LdapName("ou=users,o=groupmind,c=au");
+        int size = ops.countTree(users);
+
+        ops.batch = new RecordingBatch(ctx);
+        ops.batch.failOn = "cn=family,cn=Chris";
+        try
+        {
+            ops.deleteTree(users);
+            fail("delete should stop when a batched delete fails");
+        }
+        catch (NamingException e)
+        {
+            assertTrue(e.getMessage().indexOf("cn=family,cn=Chris") > -1);
+        }
+        assertTrue(ops.exists(users));
+
+        ops.batch.failOn = null;
+        ops.incs = 0;
+        ops.depth = 0;
+        int remaining = ops.countTree(users);
+        ops.deleteTree(users);
+        assertFalse(ops.exists(users));
+        assertEquals(remaining, ops.incs);
+        assertTrue(remaining < size);
+
+        ops.setBatchTreeOperations(false);
+        int batches = ops.batch.sizes.size();
+        ops.deleteTree(new LdapName("cn=test1,cn=topics,o=groupmind,c=au"));
+        assertEquals(batches, ops.batch.sizes.size());
+    }
+
+    public void testParallelErrorStopsOperation() throws NamingException
+    {
+        Name from = new LdapName("ou=users,o=groupmind,c=au");
+        int size = ops.countTree(from);
+
+        ops.setTreeConcurrency(2);
+        ops.failOn = "cn=Chris";
+        try
+        {
+            ops.copyTree(from, new LdapName("ou=copy,o=groupmind,c=au"), false);
+            fail("copy should fail when a worker fails");
+        }
+        catch (NamingException e)
+        {
+            assertTrue(e.getMessage().indexOf("cn=Chris") > -1);
+        }
+        assertTrue(ops.incs < size);
+        assertFalse(ops.exists(new LdapName("cn=family,cn=Chris,ou=copy,o=groupmind,c=au")));  // the level below never started
+    }
+}
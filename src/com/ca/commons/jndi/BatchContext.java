@@ -0,0 +1,75 @@
+package com.ca.commons.jndi;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+
+/**
+ * <p>A context that can send many directory operations to the server together, rather than one
+ * request per operation (e.g. a DSML batchRequest).  For providers where every request is a round
+ * trip of its own (such as DSML over HTTP) this is much quicker for bulk work such as tree copies
+ * and deletes, or LDIF imports.</p>
+ *
+ * <p>Operations are collected in a {@link Batch}, and sent when it is executed.  An operation that
+ * fails does not stop the others; the caller is given the result of each operation, in the order
+ * the operations were added.</p>
+ */
+public interface BatchContext
+{
+    /**
+     * Creates a new, empty, batch of operations.
+     *
+     * @param sequential true if the operations must be carried out in the order they are added
+     *                   (e.g. a parent before its children); false if the server may carry them
+     *                   out in any order, or in parallel.
+     * @return a batch to add operations to.
+     * @throws NamingException if the provider's batch settings are not valid.
+     */
+    public Batch createBatch(boolean sequential) throws NamingException;
+
+    /**
+     * A list of operations to be sent to the server together.
+     */
+    public interface Batch
+    {
+        /**
+         * Adds a new entry.
+         *
+         * @param name the full DN of the new entry.
+         * @param atts the attributes of the new entry.
+         * @throws NamingException if the attributes can't be written in a request.
+         */
+        public void add(String name, Attributes atts) throws NamingException;
+
+        /**
+         * Deletes a (leaf) entry.
+         *
+         * @param name the full DN of the entry.
+         */
+        public void delete(String name) throws NamingException;
+
+        /**
+         * Modifies an entry's attributes.
+         *
+         * @param name the full DN of the entry.
+         * @param mods the modifications, in order.
+         * @throws NamingException if the modifications can't be written in a request.
+         */
+        public void modify(String name, ModificationItem[] mods) throws NamingException;
+
+        /**
+         * @return the number of operations waiting to be sent.
+         */
+        public int size();
+
+        /**
+         * Sends all the waiting operations to the server (in as many requests as the provider
+         * needs), and empties the batch ready for reuse.
+         *
+         * @return the results of the operations, in the order they were added: null for an operation
+         *         that succeeded, or the exception it failed with.  (If a request can't be sent, or no
+         *         result is returned for an operation, the operation is given that error.)
+         */
+        public NamingException[] execute();
+    }
+}
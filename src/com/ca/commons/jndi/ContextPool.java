@@ -0,0 +1,516 @@
+package com.ca.commons.jndi;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A bounded pool of directory contexts (and hence sockets) to the same directory, opened
+ * with the same credentials.  Threads borrow a context for the duration of an operation, and
+ * give it back when they are done, so that several operations can run in parallel without each
+ * opening its own connection.</p>
+ *
+ * <p>Pools are shared: getPool() returns the existing pool for a given connection (url, bind DN,
+ * credentials and SSL/GSSAPI settings) if there is one.  Each call to getPool() should be matched
+ * by a call to release(); the pool is closed when the last user releases it.</p>
+ *
+ * <p>Contexts that have been idle for a while are checked with a cheap root DSE read before they
+ * are handed out, and contexts idle for longer than the idle timeout are closed (down to the
+ * minimum pool size) by a background timer.</p>
+ */
+
+public class ContextPool
+{
+    private static final Hashtable pools = new Hashtable();   // shared pools, keyed by connection details
+
+    private static Timer evictionTimer = null;                // shared (daemon) timer used to close idle contexts
+
+    private static final long DEFAULT_PROBE_INTERVAL = 30000; // check contexts that have been idle longer than this (ms)
+
+    private final String key;
+    private final Hashtable env;                  // the environment used to open new contexts
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeout;
+    private long probeInterval = DEFAULT_PROBE_INTERVAL;
+
+    private final LinkedList idle = new LinkedList();  // IdleContexts, most recently returned first
+    private final HashSet active = new HashSet();      // contexts currently borrowed
+    private int opening = 0;                           // contexts being opened (counted towards maxSize)
+    private int references = 0;
+    private boolean closed = false;
+    private TimerTask evictionTask = null;
+
+    // statistics
+    private long borrowCount = 0;
+    private long createdCount = 0;
+    private long evictedCount = 0;
+    private long failedProbeCount = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+
+    private final static Logger log = Logger.getLogger(ContextPool.class.getName());
+
+    /**
+     * A context sitting in the pool, and when it was put there.
+     */
+    private static class IdleContext
+    {
+        final LdapContext ctx;
+        final long since;
+
+        IdleContext(LdapContext ctx, long since)
+        {
+            this.ctx = ctx;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Creates a (non shared) pool.  Most code should use getPool() instead.
+     *
+     * @param env         the jndi environment used to open new contexts (it is copied).
+     * @param minSize     the number of idle contexts to keep open, even if unused.
+     * @param maxSize     the maximum number of contexts open at once.
+     * @param idleTimeout the time (in ms) after which unused contexts are closed - 0 to never close them.
+     */
+    public ContextPool(Hashtable env, int minSize, int maxSize, long idleTimeout)
+    {
+        this(null, env, minSize, maxSize, idleTimeout);
+    }
+
+    private ContextPool(String key, Hashtable env, int minSize, int maxSize, long idleTimeout)
+    {
+        this.key = key;
+        this.env = (Hashtable) env.clone();
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.idleTimeout = idleTimeout;
+
+        if (idleTimeout > 0)
+            startEviction();
+    }
+
+    /**
+     * Returns the shared pool for the given connection, creating it if necessary.  The
+     * ConnectionData must still contain the passwords (they are copied into the pool's
+     * environment, so the ConnectionData passwords may be cleared afterwards).
+     *
+     * @param cData       the directory to connect to.
+     * @param minSize     the number of idle contexts to keep open, even if unused.
+     * @param maxSize     the maximum number of contexts open at once.
+     * @param idleTimeout the time (in ms) after which unused contexts are closed - 0 to never close them.
+     * @return the (possibly existing) pool for that connection; call release() when finished with it.
+     * @throws NamingException if the connection data is invalid.
+     */
+    public static ContextPool getPool(ConnectionData cData, int minSize, int maxSize, long idleTimeout)
+            throws NamingException
+    {
+        String key = makeKey(cData);
+        synchronized (pools)
+        {
+            ContextPool pool = (ContextPool) pools.get(key);
+            if (pool == null)
+            {
+                pool = new ContextPool(key, cData.getJNDIEnvironment(), minSize, maxSize, idleTimeout);
+                pools.put(key, pool);
+            }
+            pool.references++;
+            return pool;
+        }
+    }
+
+    /**
+     * Makes the key used to share pools: everything that affects which directory is
+     * connected to, and who as.
+     */
+    static String makeKey(ConnectionData cData)
+    {
+        return cData.protocol + "|" + cData.url + "|" + cData.version + "|" + cData.userDN + "|" +
+                ((cData.pwd == null) ? 0 : Arrays.hashCode(cData.pwd)) + "|" +
+                cData.useSSL + "|" + cData.cacerts + "|" + cData.clientcerts + "|" + cData.sslSocketFactory + "|" +
+                cData.useGSSAPI + "|" + cData.referralType + "|" + cData.aliasType;
+    }
+
+    /**
+     * Signals that a user of a shared pool has finished with it.  When the last
+     * user releases the pool, all its contexts are closed.
+     */
+    public void release()
+    {
+        synchronized (pools)
+        {
+            if (--references > 0)
+                return;
+
+            if (key != null && pools.get(key) == this)
+                pools.remove(key);
+        }
+        close();
+    }
+
+    /**
+     * Borrows a context from the pool, opening a new one if none are idle and the pool
+     * is not full, or waiting for one to be given back otherwise.  The context must be
+     * returned with giveBack() (or invalidate(), if it turns out to be broken).
+     *
+     * @param maxWait the maximum time to wait (in ms) for a context to become free - 0 to wait indefinitely.
+     * @return a context for the exclusive use of the caller.
+     * @throws NamingException if no context could be opened, or none became free in time.
+     */
+    public LdapContext borrow(long maxWait)
+            throws NamingException
+    {
+        long start = System.currentTimeMillis();
+        IdleContext reuse = null;
+
+        synchronized (this)
+        {
+            while (true)
+            {
+                if (closed)
+                    throw new NamingException("connection pool has been closed");
+
+                if (!idle.isEmpty())
+                {
+                    reuse = (IdleContext) idle.removeFirst();
+                    active.add(reuse.ctx);
+                    break;
+                }
+
+                if (active.size() + opening < maxSize)
+                {
+                    opening++;
+                    break;
+                }
+
+                long remaining = (maxWait > 0) ? maxWait - (System.currentTimeMillis() - start) : 0;
+                if (maxWait > 0 && remaining <= 0)
+                    throw new NamingException("timed out after " + maxWait + " ms waiting for a free connection (" + maxSize + " in use)");
+
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new NamingException("interrupted while waiting for a free connection");
+                }
+            }
+
+            long waited = System.currentTimeMillis() - start;
+            borrowCount++;
+            totalWaitMillis += waited;
+            if (waited > maxWaitMillis) maxWaitMillis = waited;
+        }
+
+        if (reuse != null)
+        {
+            if (System.currentTimeMillis() - reuse.since < probeInterval || isAlive(reuse.ctx))
+                return reuse.ctx;
+
+            log.info("discarding dead pooled connection to " + env.get(Context.PROVIDER_URL));
+            synchronized (this)
+            {
+                active.remove(reuse.ctx);
+                failedProbeCount++;
+                opening++;       // keep our place in the pool while we open a replacement
+            }
+            closeQuietly(reuse.ctx);
+        }
+
+        return open();
+    }
+
+    /**
+     * Opens a new context for a borrower whose place has already been reserved
+     * (by incrementing 'opening').
+     */
+    private LdapContext open()
+            throws NamingException
+    {
+        LdapContext ctx = null;
+        try
+        {
+            ctx = openContext();
+            return ctx;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                opening--;
+                if (ctx != null)
+                {
+                    active.add(ctx);
+                    createdCount++;
+                }
+                else
+                {
+                    notifyAll();     // the reserved place is free again
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a new directory context.  May be overridden (e.g. for testing).
+     */
+    protected LdapContext openContext()
+            throws NamingException
+    {
+        return JNDIOps.openContext((Hashtable) env.clone());
+    }
+
+    /**
+     * Returns a borrowed context to the pool.  Any request controls set by the
+     * borrower are cleared.
+     *
+     * @param ctx a context obtained from borrow().
+     */
+    public void giveBack(LdapContext ctx)
+    {
+        if (ctx == null)
+            return;
+
+        try
+        {
+            ctx.setRequestControls(null);
+        }
+        catch (NamingException e)
+        {
+            invalidate(ctx);
+            return;
+        }
+
+        boolean close = false;
+        synchronized (this)
+        {
+            if (!active.remove(ctx))
+                return;             // not ours, or already returned.
+
+            if (closed)
+                close = true;
+            else
+                idle.addFirst(new IdleContext(ctx, System.currentTimeMillis()));
+            notifyAll();
+        }
+        if (close)
+            closeQuietly(ctx);
+    }
+
+    /**
+     * Removes a broken borrowed context from the pool, and closes it.
+     *
+     * @param ctx a context obtained from borrow().
+     */
+    public void invalidate(LdapContext ctx)
+    {
+        if (ctx == null)
+            return;
+
+        synchronized (this)
+        {
+            active.remove(ctx);
+            notifyAll();
+        }
+        closeQuietly(ctx);
+    }
+
+    /**
+     * Sets an environment property for all contexts in the pool, including those
+     * opened later.  (Contexts currently borrowed are not changed.)
+     */
+    public void addToEnvironment(String propName, Object propVal)
+            throws NamingException
+    {
+        synchronized (this)
+        {
+            env.put(propName, propVal);
+            for (Iterator i = idle.iterator(); i.hasNext(); )
+                ((IdleContext) i.next()).ctx.addToEnvironment(propName, propVal);
+        }
+    }
+
+    /**
+     * Does a cheap root DSE read to check that a context is still connected.  Errors other
+     * than communication failures (e.g. a server that doesn't allow root DSE reads) still
+     * show that the server is answering, so the context is considered alive.
+     */
+    protected boolean isAlive(LdapContext ctx)
+    {
+        try
+        {
+            ctx.getAttributes("", new String[]{"supportedLDAPVersion"});
+            return true;
+        }
+        catch (CommunicationException e)
+        {
+            return false;
+        }
+        catch (ServiceUnavailableException e)
+        {
+            return false;
+        }
+        catch (NamingException e)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Closes contexts that have been idle for longer than the idle timeout, while
+     * keeping at least minSize contexts open.  Called periodically by a background timer.
+     */
+    public void evictIdle()
+    {
+        LinkedList expired = new LinkedList();
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+
+        synchronized (this)
+        {
+            while (!idle.isEmpty() && idle.size() + active.size() > minSize)
+            {
+                IdleContext oldest = (IdleContext) idle.getLast();
+                if (oldest.since > cutoff)
+                    break;
+                idle.removeLast();
+                expired.add(oldest.ctx);
+                evictedCount++;
+            }
+        }
+
+        for (Iterator i = expired.iterator(); i.hasNext(); )
+            closeQuietly((LdapContext) i.next());
+    }
+
+    /**
+     * Closes all idle contexts, and stops handing out new ones.  Borrowed contexts are
+     * closed when they are given back.
+     */
+    public void close()
+    {
+        LinkedList toClose = new LinkedList();
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+            for (Iterator i = idle.iterator(); i.hasNext(); )
+                toClose.add(((IdleContext) i.next()).ctx);
+            idle.clear();
+            if (evictionTask != null)
+                evictionTask.cancel();
+            notifyAll();
+        }
+
+        for (Iterator i = toClose.iterator(); i.hasNext(); )
+            closeQuietly((LdapContext) i.next());
+    }
+
+    private void startEviction()
+    {
+        evictionTask = new TimerTask()
+        {
+            public void run()
+            {
+                evictIdle();
+            }
+        };
+
+        long period = Math.max(idleTimeout / 2, 1000);
+        synchronized (ContextPool.class)
+        {
+            if (evictionTimer == null)
+                evictionTimer = new Timer(true);
+            evictionTimer.schedule(evictionTask, period, period);
+        }
+    }
+
+    private static void closeQuietly(LdapContext ctx)
+    {
+        try
+        {
+            ctx.close();
+        }
+        catch (NamingException e)
+        {
+            log.log(Level.FINE, "error closing pooled context", e);
+        }
+    }
+
+    /**
+     * Sets how long a context may sit idle before it is checked with a root DSE read when
+     * it is next borrowed.
+     *
+     * @param millis the idle time in ms - 0 to check every context as it is borrowed.
+     */
+    public void setProbeInterval(long millis) { probeInterval = millis; }
+
+    /**
+     * @return the number of contexts currently borrowed.
+     */
+    public synchronized int getActiveCount() { return active.size(); }
+
+    /**
+     * @return the number of open contexts waiting in the pool.
+     */
+    public synchronized int getIdleCount() { return idle.size(); }
+
+    /**
+     * @return the total number of successful borrow() calls.
+     */
+    public synchronized long getBorrowCount() { return borrowCount; }
+
+    /**
+     * @return the total number of contexts opened by the pool.
+     */
+    public synchronized long getCreatedCount() { return createdCount; }
+
+    /**
+     * @return the number of contexts closed because they were idle too long.
+     */
+    public synchronized long getEvictedCount() { return evictedCount; }
+
+    /**
+     * @return the number of pooled contexts found dead when borrowed.
+     */
+    public synchronized long getFailedProbeCount() { return failedProbeCount; }
+
+    /**
+     * @return the average time borrowers had to wait for a free context, in ms.
+     */
+    public synchronized double getAverageBorrowWaitMillis()
+    {
+        return (borrowCount == 0) ? 0 : (double) totalWaitMillis / borrowCount;
+    }
+
+    /**
+     * @return the longest time a borrower had to wait for a free context, in ms.
+     */
+    public synchronized long getMaxBorrowWaitMillis() { return maxWaitMillis; }
+
+    /**
+     * @return the maximum number of contexts this pool will open at once.
+     */
+    public int getMaxSize() { return maxSize; }
+
+    public synchronized String toString()
+    {
+        return "ContextPool " + env.get(Context.PROVIDER_URL) + ": active " + active.size() +
+                ", idle " + idle.size() + " (min " + minSize + ", max " + maxSize + "), borrowed " + borrowCount +
+                ", opened " + createdCount + ", evicted " + evictedCount + ", dead " + failedProbeCount +
+                ", wait avg " + getAverageBorrowWaitMillis() + " ms max " + maxWaitMillis + " ms";
+    }
+}
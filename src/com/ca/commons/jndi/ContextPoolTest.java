@@ -0,0 +1,190 @@
+package com.ca.commons.jndi;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+import java.util.Hashtable;
+
+/**
+ * Tests the borrow/return, sizing and eviction behaviour of the ContextPool, using
+ * the test provider in place of a real directory.
+ */
+public class ContextPoolTest extends TestCase
+{
+    private Hashtable env;
+
+    public ContextPoolTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(ContextPoolTest.class);
+    }
+
+    public static void main(String args[])
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp()
+    {
+        env = new Hashtable();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.pegacat.testprovider.TestProviderContextFactory");
+        env.put(Context.PROVIDER_URL, "ldap://pooltest:389");
+    }
+
+    public void testBorrowAndReuse()
+            throws NamingException
+    {
+        ContextPool pool = new ContextPool(env, 0, 2, 0);
+
+        LdapContext first = pool.borrow(0);
+        LdapContext second = pool.borrow(0);
+        assertNotSame(first, second);
+        assertEquals(2, pool.getActiveCount());
+
+        pool.giveBack(first);
+        assertEquals(1, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+
+        assertSame(first, pool.borrow(0));   // idle contexts are reused, not reopened
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(3, pool.getBorrowCount());
+        pool.close();
+    }
+
+    public void testMaxSizeWaits()
+            throws NamingException
+    {
+        final ContextPool pool = new ContextPool(env, 0, 1, 0);
+        final LdapContext only = pool.borrow(0);
+
+        try
+        {
+            pool.borrow(50);
+            fail("borrow from a full pool should time out");
+        }
+        catch (NamingException e)
+        {
+            // expected
+        }
+
+        new Thread()
+        {
+            public void run()
+            {
+                try { Thread.sleep(50); } catch (InterruptedException e) {}
+                pool.giveBack(only);
+            }
+        }.start();
+
+        assertSame(only, pool.borrow(5000));   // waits for the other thread to give it back
+        assertTrue(pool.getMaxBorrowWaitMillis() > 0);
+        pool.close();
+    }
+
+    public void testDeadContextsReplaced()
+            throws NamingException
+    {
+        ContextPool pool = new ContextPool(env, 0, 1, 0)
+        {
+            protected boolean isAlive(LdapContext ctx)
+            {
+                return false;
+            }
+        };
+        pool.setProbeInterval(0);
+
+        LdapContext dead = pool.borrow(0);
+        pool.giveBack(dead);
+
+        assertNotSame(dead, pool.borrow(0));
+        assertEquals(1, pool.getFailedProbeCount());
+        assertEquals(1, pool.getActiveCount());
+        pool.close();
+    }
+
+    public void testInvalidateFreesPlace()
+            throws NamingException
+    {
+        ContextPool pool = new ContextPool(env, 0, 1, 0);
+
+        pool.invalidate(pool.borrow(0));
+        assertEquals(0, pool.getActiveCount());
+        assertNotNull(pool.borrow(50));
+        pool.close();
+    }
+
+    public void testEvictIdle()
+            throws NamingException, InterruptedException
+    {
+        ContextPool pool = new ContextPool(env, 1, 3, 1);   // (the background timer won't fire during the test)
+
+        LdapContext a = pool.borrow(0);
+        LdapContext b = pool.borrow(0);
+        LdapContext c = pool.borrow(0);
+        pool.giveBack(a);
+        pool.giveBack(b);
+        pool.giveBack(c);
+        Thread.sleep(10);
+
+        pool.evictIdle();
+        assertEquals(1, pool.getIdleCount());          // keeps the minimum
+        assertEquals(2, pool.getEvictedCount());
+        pool.close();
+    }
+
+    public void testProbe()
+            throws NamingException
+    {
+        ContextPool pool = new ContextPool(env, 0, 1, 0);
+        LdapContext ctx = pool.borrow(0);
+        assertTrue(pool.isAlive(ctx));     // the test provider has no root DSE, but it answers.
+        pool.close();
+
+        ContextPool down = new ContextPool(env, 0, 1, 0)
+        {
+            protected LdapContext openContext() throws NamingException
+            {
+                throw new CommunicationException("server down");
+            }
+        };
+        try
+        {
+            down.borrow(0);
+            fail("expected communication exception");
+        }
+        catch (CommunicationException e)
+        {
+            assertEquals(0, down.getActiveCount());
+        }
+    }
+
+    public void testSharedPools()
+            throws NamingException
+    {
+        ConnectionData cData = new ConnectionData();
+        cData.setURL("ldap://pooltest:389");
+        cData.userDN = "cn=admin";
+        cData.pwd = "secret".toCharArray();
+
+        ContextPool one = ContextPool.getPool(cData, 0, 2, 0);
+        ContextPool two = ContextPool.getPool(cData, 0, 2, 0);
+        assertSame(one, two);
+
+        cData.userDN = "cn=someone else";
+        ContextPool other = ContextPool.getPool(cData, 0, 2, 0);
+        assertNotSame(one, other);
+
+        other.release();
+        one.release();
+        two.release();
+    }
+}
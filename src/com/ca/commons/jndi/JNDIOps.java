@@ -39,6 +39,30 @@ public class JNDIOps
 
     private static final String DEFAULT_CTX = "com.sun.jndi.ldap.LdapCtxFactory";
 
+    /**
+     * The OID of the Tree Delete (a.k.a. Subtree Delete) request control, which asks
+     * the server to delete an entry along with all its subordinates.
+     */
+    public static final String TREE_DELETE_CONTROL = "1.2.840.113556.1.4.805";
+
+    /**
+     * The OID of the Server Side Sort request control (RFC 2891), which asks the server
+     * to sort search results before returning them.
+     */
+    public static final String SERVER_SIDE_SORT_CONTROL = "1.2.840.113556.1.4.473";
+
+    /**
+     * The OID of the Virtual List View request control, which asks the server for a
+     * 'window' of a sorted search result.
+     */
+    public static final String VIRTUAL_LIST_VIEW_CONTROL = VirtualListViewControl.OID;
+
+    /**
+     * The supportedControl OIDs read from each server's root DSE, keyed by server url and
+     * bind DN, so the root DSE is only read once per connection.
+     */
+    private static final Hashtable supportedControls = new Hashtable();
+
 
     /**
      * To speed up existance checks, we use a single static constraints object that
@@ -85,6 +109,114 @@ public class JNDIOps
      */
     public static void setPageSize(int newSize) {pageSize = newSize;}
 
+    /**
+     * @return the page size for paged results, or NO_PAGING.
+     */
+    public static int getPageSize() {return pageSize;}
+
+    /**
+     * Returns whether the server advertises support for a particular request control
+     * in the 'supportedControl' attribute of its root DSE.  The root DSE is only read the
+     * first time this is called for a connection; after that the cached list is used.
+     *
+     * @param oid the OID of the control, e.g. TREE_DELETE_CONTROL.
+     * @return true if the server lists the control as supported.
+     */
+    public boolean isControlSupported(String oid)
+    {
+        return getSupportedControls().contains(oid);
+    }
+
+    /**
+     * @return whether the server can sort search results (by advertising the server side sort control).
+     */
+    public boolean isServerSortSupported()
+    {
+        return isControlSupported(SERVER_SIDE_SORT_CONTROL);
+    }
+
+    /**
+     * @return whether the server can return windows of sorted search results (it must advertise
+     *         both the server side sort and virtual list view controls).
+     */
+    public boolean isVirtualListSupported()
+    {
+        return isControlSupported(SERVER_SIDE_SORT_CONTROL) && isControlSupported(VIRTUAL_LIST_VIEW_CONTROL);
+    }
+
+    /**
+     * Returns the (cached) set of control OIDs the server supports.
+     *
+     * @return a set of OID strings - may be empty, but never null.
+     */
+    protected Set getSupportedControls()
+    {
+        String key = getConnectionKey();
+        synchronized (supportedControls)
+        {
+            Set oids = (Set) supportedControls.get(key);
+            if (oids == null)
+            {
+                oids = readSupportedControls();
+                supportedControls.put(key, oids);
+                log.fine("server " + key + " supports controls " + oids);
+            }
+            return oids;
+        }
+    }
+
+    /**
+     * Reads the supportedControl values from the root DSE.  Any error (e.g. a server
+     * that won't show its root DSE) is taken to mean that no controls are supported.
+     *
+     * @return a set of OID strings.
+     */
+    protected Set readSupportedControls()
+    {
+        HashSet oids = new HashSet();
+        try
+        {
+            Attributes rootDSE = ctx.getAttributes("", new String[]{"supportedControl"});
+            Attribute controls = (rootDSE == null) ? null : rootDSE.get("supportedControl");
+            if (controls != null)
+            {
+                NamingEnumeration values = controls.getAll();
+                while (values.hasMore())
+                    oids.add(values.next().toString().trim());
+            }
+        }
+        catch (NamingException e)
+        {
+            log.fine("unable to read supported controls from root DSE: " + e.getMessage());
+        }
+        return oids;
+    }
+
+    /**
+     * Forgets the cached server capabilities, so that they are read again the next
+     * time they are needed (e.g. when a new connection is opened).
+     */
+    public static void clearSupportedControls()
+    {
+        supportedControls.clear();
+    }
+
+    /**
+     * Identifies the server connection (url and bind DN) that this object's context uses.
+     */
+    private String getConnectionKey()
+    {
+        try
+        {
+            Hashtable env = ctx.getEnvironment();
+            return env.get(Context.PROVIDER_URL) + "|" + env.get(Context.SECURITY_PRINCIPAL);
+        }
+        catch (NamingException e)
+        {
+            return String.valueOf(ctx);
+        }
+    }
+
     /**
      * Initialise a Basic Operation object with a context.
      */
@@ -1072,6 +1204,85 @@ public class JNDIOps
         return rawSearchSubTree(searchbase, filter, limit, timeout, returnAttributes);
     }
 
+    /**
+     * Reads a whole sub tree (including the search base) in pages, without size or time
+     * limits; used for bulk operations such as exporting a subtree.  Only one page of
+     * results is held at a time.  The paging control is not critical, so servers that
+     * don't support paging return all the results at once.
+     *
+     * @param searchbase       the domain name (relative to initial context in ldap) to seach from.
+     * @param filter           the non-null filter to use for the search
+     * @param returnAttributes an array of strings containing the names of attributes to search. (null = all, empty array = none)
+     * @param pageSize         the number of entries per page, or NO_PAGING to read the results unpaged.
+     * @return list of search results ('SearchResult's). WARNING - these may be RELATIVE to the seachbase.
+     */
+
+    public NamingEnumeration pagedSearchSubTree(Name searchbase, String filter, String[] returnAttributes, int pageSize)
+            throws NamingException
+    {
+        return rawSearch(searchbase, filter, 0, 0, returnAttributes, SearchControls.SUBTREE_SCOPE, pageSize);
+    }
+
+    /**
+     * As list(), but reads the next level of the tree in pages, without size or time limits;
+     * used to browse very large flat containers a page at a time.  The paging control is not
+     * critical, so servers that don't support paging return all the children at once (although
+     * they are still only read as the enumeration is consumed).
+     *
+     * @param searchbase the node in the tree to expand
+     * @param pageSize   the number of entries per page, or NO_PAGING to read the children unpaged.
+     * @return list of results (SearchResults with their object classes). WARNING - these may be RELATIVE to the seachbase.
+     */
+
+    public NamingEnumeration pagedList(Name searchbase, int pageSize)
+            throws NamingException
+    {
+        return rawSearch(searchbase, "(objectclass=*)", 0, 0, new String[]{"objectclass"}, SearchControls.ONELEVEL_SCOPE, pageSize);
+    }
+
+    /**
+     * As pagedList(), but has the server sort the children by an attribute, so that each
+     * page follows on (in order) from the last.  Where the server supports virtual list views,
+     * each page is read as a separate 'window' of the sorted list (see VirtualListEnumeration);
+     * otherwise, where it supports server side sorting, the sort control is sent with the paged
+     * results control.  If the server supports neither, this is just pagedList().
+     *
+     * @param searchbase    the node in the tree to expand
+     * @param sortAttribute the attribute to sort the children by (usually their naming attribute).
+     * @param pageSize      the number of entries per page (or window).
+     * @return list of results (SearchResults with their object classes), in order where the server
+     *         supports it. WARNING - these may be RELATIVE to the seachbase.
+     * @throws NamingException if the list can't be started (e.g. the server can't sort by the attribute).
+     */
+
+    public NamingEnumeration sortedList(Name searchbase, String sortAttribute, int pageSize)
+            throws NamingException
+    {
+        SortKey[] keys = new SortKey[]{new SortKey(sortAttribute)};
+
+        SearchControls constraints = new SearchControls();
+        constraints.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        constraints.setReturningAttributes(new String[]{"objectclass"});
+
+        if (isVirtualListSupported())
+            return new VirtualListEnumeration(ctx, searchbase, "(objectclass=*)", constraints, keys, pageSize);
+
+        if (isServerSortSupported())
+        {
+            try
+            {
+                Control[] sort = new Control[]{new SortControl(keys, Control.NONCRITICAL)};
+                return new PagedSearchEnumeration(ctx, searchbase, "(objectclass=*)", constraints, pageSize, sort);
+            }
+            catch (IOException e)
+            {
+                throw new NamingException("unexpected error creating sort request control: " + e.getMessage());
+            }
+        }
+
+        return pagedList(searchbase, pageSize);
+    }
+
     protected NamingEnumeration rawSearchSubTree(Name searchbase, String filter, int limit,
                                                  int timeout, String[] returnAttributes) throws NamingException
     {
@@ -1178,12 +1389,26 @@ public class JNDIOps
      * @param timeout          the maximum time to wait before abandoning the search
      * @param returnAttributes an array of strings containing the names of attributes to search. (null = all, empty array = none)
      * @param scope
-     * @return list of search results ('SearchResult's); entries matching the search filter.
+     * @return list of search results ('SearchResult's); entries matching the search filter.  If paging is
+     *         on, this is a PagedSearchEnumeration that requests each page as the previous one is read.
      */
     protected NamingEnumeration rawSearch(Name searchbase, String filter, int limit, int timeout,
                                           String[] returnAttributes, int scope)
             throws NamingException
     {
+        return rawSearch(searchbase, filter, limit, timeout, returnAttributes, scope, pageSize);
+    }
+
+    /**
+     * As rawSearch() above, but with a page size for this search only, rather than the
+     * global page size.
+     *
+     * @param pageSize the number of entries per page, or NO_PAGING.
+     */
+    protected NamingEnumeration rawSearch(Name searchbase, String filter, int limit, int timeout,
+                                          String[] returnAttributes, int scope, int pageSize)
+            throws NamingException
+    {
 
         SearchControls constraints = new SearchControls();
 
@@ -1195,39 +1420,9 @@ public class JNDIOps
 
         try
         {
-            if (pageSize>=0) // do stuff...
+            if (pageSize>=0) // use paged results; pages are fetched lazily as the enumeration is read.
             {
-                byte[] cookie;
-                try
-                {
-                    ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, Control.NONCRITICAL)});
-                    // do paged requests loop
-                    DXNamingEnumeration result = new DXNamingEnumeration();
-                    do
-                    {   //TODO: consider adding type safety througout API; e.g. insert <SearchResult> here...
-                        NamingEnumeration pageResult = ctx.search(searchbase, filter, constraints);
-
-                        while (pageResult.hasMoreElements())
-                        {
-                            result.add(pageResult.next());
-                        }
-
-                        // Examine the paged results control response
-                        cookie = getPagingCookie(ctx.getResponseControls());
-                        // Re-activate paged results
-                        ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
-                        log.fine ("*** PAGING TOTAL SO FAR: " + result.size());
-                    }
-                    while (cookie != null);
-
-                    ctx.setRequestControls(null); // clear the context
-                    return result;
-                }
-                catch (IOException e)
-                {
-                    ctx.setRequestControls(null); // clear the context
-                    throw new NamingException("unexpected error creating page request controls: " + e.getMessage());
-                }
+                return new PagedSearchEnumeration(ctx, searchbase, filter, constraints, pageSize);
             }
             else
             {
@@ -1243,52 +1438,6 @@ public class JNDIOps
     }
 
 
-    /**
-     * This checks to see if the response controls include a paged response control.  If
-     * it does, we set a cookie to allow us to continue searching to the next page.
-     *
-     * @param controls
-     * @return
-     */
-    private byte[] getPagingCookie(Control[] controls)
-    {
-        if (controls != null)
-        {
-            byte[] cookie;
-            for (int i = 0; i < controls.length; i++)
-            {
-                if (controls[i] instanceof PagedResultsResponseControl)
-                {
-                    PagedResultsResponseControl pagedResponse = (PagedResultsResponseControl) controls[i];
-
-                    //TODO Remove debug code
-                    int total = pagedResponse.getResultSize();
-                    if (total != 0)
-                    {
-                            log.fine("***************** END-OF-PAGE (read : " + total + ") *****************\n");
-                    }
-                    else
-                    {
-                            log.fine("***************** END-OF-PAGE (total: unknown) ***************\n");
-                    }
-
-                    cookie = pagedResponse.getCookie();
-                    return cookie;
-                }
-            }
-        }
-        else
-        {
-            log.fine("No paged result control was sent from the server");
-        }
-        return null;
-    }
-
-
-
-
-
-
     /**
      * Performs a base object search (i.e. just a search of the current entry, nothing below it),
      * returning no attributes (i.e. just DNs);
@@ -2,6 +2,13 @@ package com.ca.commons.jndi;
 
 import junit.framework.*;
 
+import com.ca.commons.naming.DXNamingEnumeration;
+import com.pegacat.testprovider.TestLdapContextData;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.ldap.LdapName;
+import java.util.HashSet;
+import java.util.Set;
 
 
 
@@ -56,4 +63,74 @@ public class JNDIOpsTest extends TestCase
         assertEquals("ldap:///o=%20%3c%3e%3f%23%25%7b%7d%7c%5c%5e%7e%5b%5d%27", JNDIOps.makeServerURL("ldap:///", "o= <>\"#%{}|\\^~[]'"));
     }
 
-}
\ No newline at end of file
+    /**
+     * Check that a paged search returns the same results as an unpaged one, and
+     * that a streaming DXNamingEnumeration only reads its source as it is used.
+     */
+    public void testPagedSearch()
+            throws Exception
+    {
+        JNDIOps ops = new JNDIOps(new TestLdapContextData().setupTestContext());
+        LdapName base = new LdapName("o=groupmind,c=au");
+
+        try
+        {
+            JNDIOps.setPageSize(JNDIOps.NO_PAGING);
+            int unpaged = new DXNamingEnumeration(ops.searchSubTree(base, "(objectClass=*)", 0, 0)).size();
+
+            JNDIOps.setPageSize(2);
+            NamingEnumeration paged = ops.searchSubTree(base, "(objectClass=*)", 0, 0);
+            assertTrue(paged instanceof PagedSearchEnumeration);
+
+            DXNamingEnumeration streaming = new DXNamingEnumeration(paged, true);
+            assertTrue(streaming.isStreaming());
+            assertTrue(streaming.hasMore());
+            streaming.next();
+            assertEquals(1, ((PagedSearchEnumeration)paged).getResultCount());
+
+            assertEquals(unpaged - 1, streaming.size());   // size() reads the remainder...
+            assertFalse(streaming.isStreaming());           // ... after which it is an ordinary enumeration
+            assertTrue(unpaged > 1);
+        }
+        finally
+        {
+            JNDIOps.setPageSize(JNDIOps.NO_PAGING);
+        }
+    }
+
+    /**
+     * Check that a sorted list of a server that claims to support virtual list views still
+     * returns every child when the server (here, the test provider) ignores the controls.
+     */
+    public void testSortedListFallback()
+            throws Exception
+    {
+        JNDIOps ops = new JNDIOps(new TestLdapContextData().setupTestContext())
+        {
+            protected Set readSupportedControls()
+            {
+                Set oids = new HashSet();
+                oids.add(SERVER_SIDE_SORT_CONTROL);
+                oids.add(VIRTUAL_LIST_VIEW_CONTROL);
+                return oids;
+            }
+        };
+        JNDIOps.clearSupportedControls();
+        try
+        {
+            LdapName base = new LdapName("ou=users,o=groupmind,c=au");
+            assertTrue(ops.isVirtualListSupported());
+
+            int unsorted = new DXNamingEnumeration(ops.list(base)).size();
+            NamingEnumeration sorted = ops.sortedList(base, "cn", 2);
+            assertTrue(sorted instanceof VirtualListEnumeration);
+            assertEquals(unsorted, new DXNamingEnumeration(sorted).size());
+            assertEquals(1, ((VirtualListEnumeration) sorted).getWindowCount());
+            assertEquals(-1, ((VirtualListEnumeration) sorted).getContentCount());
+        }
+        finally
+        {
+            JNDIOps.clearSupportedControls();
+        }
+    }
+}
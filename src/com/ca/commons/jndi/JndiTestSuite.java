@@ -35,6 +35,9 @@ public class JndiTestSuite extends TestCase {
         suite.addTest(SchemaOpsTest.suite());
         suite.addTest(ConnectionDataTest.suite());
         suite.addTest(JNDIOpsTest.suite());
+        suite.addTest(ContextPoolTest.suite());
+        suite.addTest(AdvancedOpsTest.suite());
+        suite.addTest(VirtualListViewControlTest.suite());
         return suite;
     }
 
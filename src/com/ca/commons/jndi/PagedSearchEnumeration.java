@@ -0,0 +1,307 @@
+package com.ca.commons.jndi;
+
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * <p>A NamingEnumeration that runs an LDAP paged results search (RFC 2696) lazily.  Only
+ * the first page is requested when the enumeration is created; each following page is
+ * requested when the consumer has drained the previous one.  This means the first results
+ * are available as soon as the first page arrives, and at most one page is held in memory
+ * at a time (unless the consumer chooses to keep the results).</p>
+ *
+ * <p>The paging controls are set on a separate context instance obtained from
+ * LdapContext.newInstance(), so other operations on the original context are not affected
+ * by the paging cookie while the enumeration is being read.  Providers that do not support
+ * newInstance() (e.g. the DSML and test providers) fall back to using the original context.</p>
+ */
+
+public class PagedSearchEnumeration implements NamingEnumeration
+{
+    private LdapContext pageCtx;          // the context instance carrying the paging controls
+    private final boolean ownContext;     // whether pageCtx was created by us (and should be closed by us)
+
+    private final Name searchbase;
+    private final String filter;
+    private final SearchControls constraints;
+    private final int pageSize;
+    private final Control[] extraControls;  // other request controls sent with every page (e.g. a sort control), or null
+
+    private NamingEnumeration currentPage = null;
+    private boolean finished = false;
+    private NamingException failure = null;  // the error that ended the enumeration early, if any
+
+    private int pageCount = 0;           // number of pages requested so far
+    private int resultCount = 0;         // number of results handed out so far
+
+    private static Logger log = Logger.getLogger(PagedSearchEnumeration.class.getName());
+
+    /**
+     * Creates the enumeration and requests the first page of results.
+     *
+     * @param ctx         the context to search with.
+     * @param searchbase  the DN to search from.
+     * @param filter      the non-null filter to use for the search.
+     * @param constraints the search controls (scope, limits, returning attributes).
+     * @param pageSize    the number of entries per page.
+     * @throws NamingException if the first page cannot be read.
+     */
+    public PagedSearchEnumeration(LdapContext ctx, Name searchbase, String filter, SearchControls constraints, int pageSize)
+            throws NamingException
+    {
+        this(ctx, searchbase, filter, constraints, pageSize, null);
+    }
+
+    /**
+     * As above, but sending other request controls (such as a server side sort control)
+     * along with the paging control for each page.
+     *
+     * @param extraControls the other request controls, or null.
+     */
+    public PagedSearchEnumeration(LdapContext ctx, Name searchbase, String filter, SearchControls constraints, int pageSize, Control[] extraControls)
+            throws NamingException
+    {
+        this.searchbase = searchbase;
+        this.filter = filter;
+        this.constraints = constraints;
+        this.pageSize = pageSize;
+        this.extraControls = extraControls;
+
+        Control[] firstPage = withExtraControls(makePageControl(null, Control.NONCRITICAL));
+
+        LdapContext instance = ctx.newInstance(firstPage);
+        if (instance != null)
+        {
+            pageCtx = instance;
+            ownContext = true;
+        }
+        else
+        {
+            pageCtx = ctx;
+            ownContext = false;
+            pageCtx.setRequestControls(firstPage);
+        }
+
+        try
+        {
+            currentPage = pageCtx.search(searchbase, filter, constraints);
+            pageCount++;
+        }
+        catch (NamingException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether there are more results, requesting the next page
+     * from the server if the current page has been used up.
+     * @throws NamingException if a page could not be read; the enumeration is closed, and
+     * the same exception is thrown by any later call, so it cannot be mistaken for the end of the results.
+     */
+    public boolean hasMore()
+            throws NamingException
+    {
+        if (failure != null)
+            throw failure;
+
+        try
+        {
+            while (!finished)
+            {
+                if (currentPage.hasMore())
+                    return true;
+
+                nextPage();
+            }
+            return false;
+        }
+        catch (NamingException e)
+        {
+            failure = e;
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the next SearchResult, requesting the next page if necessary.
+     */
+    public Object next()
+            throws NamingException
+    {
+        if (!hasMore())
+            throw new NoSuchElementException("no more paged search results");
+
+        resultCount++;
+        return currentPage.next();
+    }
+
+    /**
+     * Enumeration cannot throw the NamingException; this returns false on an error, which
+     * remains available from hasMore() / next() and getFailure().
+     */
+    public boolean hasMoreElements()
+    {
+        try
+        {
+            return hasMore();
+        }
+        catch (NamingException e)
+        {
+            log.warning("error reading paged search results from " + searchbase + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public Object nextElement()
+    {
+        try
+        {
+            return next();
+        }
+        catch (NamingException e)
+        {
+            NoSuchElementException nse = new NoSuchElementException(e.getMessage());
+            nse.initCause(e);
+            throw nse;
+        }
+    }
+
+    /**
+     * Abandons any remaining pages, and releases the paged context.
+     * It is not an error to call this multiple times.
+     */
+    public void close()
+    {
+        if (finished && pageCtx == null)
+            return;
+
+        finished = true;
+        try
+        {
+            if (currentPage != null)
+                currentPage.close();
+
+            if (pageCtx != null)
+            {
+                if (ownContext)
+                    pageCtx.close();
+                else
+                    pageCtx.setRequestControls(null);  // clear the shared context
+            }
+        }
+        catch (NamingException e)
+        {
+            log.fine("error closing paged search: " + e.getMessage());
+        }
+        currentPage = null;
+        pageCtx = null;
+    }
+
+    /**
+     * @return the number of pages requested from the server so far.
+     */
+    public int getPageCount() { return pageCount; }
+
+    /**
+     * @return the number of results returned by this enumeration so far.
+     */
+    public int getResultCount() { return resultCount; }
+
+    /**
+     * @return the error reading a page that ended this enumeration early, or null if there was none.
+     */
+    public NamingException getFailure() { return failure; }
+
+    /**
+     * Called when the current page is drained; reads the paging cookie and
+     * either requests the next page, or marks the enumeration finished.
+     */
+    private void nextPage()
+            throws NamingException
+    {
+        byte[] cookie = getPagingCookie(pageCtx.getResponseControls());
+
+        log.fine("*** PAGING TOTAL SO FAR: " + resultCount);
+
+        if (cookie == null || cookie.length == 0)
+        {
+            close();
+            return;
+        }
+
+        currentPage.close();
+        pageCtx.setRequestControls(withExtraControls(makePageControl(cookie, Control.CRITICAL)));
+        currentPage = pageCtx.search(searchbase, filter, constraints);
+        pageCount++;
+    }
+
+    private Control[] withExtraControls(Control pageControl)
+    {
+        if (extraControls == null)
+            return new Control[]{pageControl};
+
+        Control[] controls = new Control[extraControls.length + 1];
+        controls[0] = pageControl;
+        System.arraycopy(extraControls, 0, controls, 1, extraControls.length);
+        return controls;
+    }
+
+    private Control makePageControl(byte[] cookie, boolean criticality)
+            throws NamingException
+    {
+        try
+        {
+            return new PagedResultsControl(pageSize, cookie, criticality);
+        }
+        catch (IOException e)
+        {
+            throw new NamingException("unexpected error creating page request controls: " + e.getMessage());
+        }
+    }
+
+    /**
+     * This checks to see if the response controls include a paged response control.  If
+     * it does, we return its cookie to allow us to continue searching to the next page.
+     *
+     * @param controls the response controls from the last search (may be null).
+     * @return the paging cookie, or null if there are no more pages.
+     */
+    static byte[] getPagingCookie(Control[] controls)
+    {
+        if (controls != null)
+        {
+            for (int i = 0; i < controls.length; i++)
+            {
+                if (controls[i] instanceof PagedResultsResponseControl)
+                {
+                    PagedResultsResponseControl pagedResponse = (PagedResultsResponseControl) controls[i];
+
+                    int total = pagedResponse.getResultSize();
+                    if (total != 0)
+                        log.fine("***************** END-OF-PAGE (read : " + total + ") *****************\n");
+                    else
+                        log.fine("***************** END-OF-PAGE (total: unknown) ***************\n");
+
+                    return pagedResponse.getCookie();
+                }
+            }
+        }
+        else
+        {
+            log.fine("No paged result control was sent from the server");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,356 @@
+package com.ca.commons.jndi;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A parsed, indexed copy of the raw subschema entry read by SchemaOps.  Every schema
+ * definition (attribute type, object class, syntax, matching rule...) is parsed once, and
+ * filed under each of its names and its OID, ignoring case, so that looking up a definition
+ * doesn't mean re-reading and re-parsing the raw schema strings each time.</p>
+ *
+ * <p>Attribute types and object classes are also compiled into AttributeType and ObjectClass
+ * objects, holding the fields JXplorer most often needs (syntax, single valued, superior classes,
+ * MUST and MAY lists etc.).</p>
+ *
+ * <p>The index is read only once it has been built.  SchemaOps throws it away and builds
+ * a new one when the schema is reloaded.</p>
+ */
+public class SchemaIndex
+{
+    private final static Logger log = Logger.getLogger(SchemaIndex.class.getName());
+
+    private static final String[] NO_VALUES = new String[0];
+
+    /**
+     * The schema groups ('attributeTypes', 'objectClasses' etc.) keyed by lower case name, each holding
+     * its definitions keyed by lower case name and OID.
+     */
+    private final HashMap<String, HashMap<String, Definition>> groups = new HashMap<String, HashMap<String, Definition>>();
+
+    /**
+     * The names of the definitions in each group, in the order they appear in the schema, keyed as above.
+     */
+    private final HashMap<String, LinkedHashSet<String>> groupNames = new HashMap<String, LinkedHashSet<String>>();
+
+    /**
+     * A single parsed schema definition - e.g. a single value of the 'attributeTypes' schema attribute.
+     */
+    public static class Definition
+    {
+        private final String oid;
+        private final String[] names;
+        private final String value;
+        private final BasicAttributes attributes;
+
+        Definition(String oid, String[] names, String value, BasicAttributes attributes)
+        {
+            this.oid = oid;
+            this.names = names;
+            this.value = value;
+            this.attributes = attributes;
+        }
+
+        /**
+         * @return the OID of the definition, e.g. '2.5.4.3'
+         */
+        public String getOID() { return oid; }
+
+        /**
+         * @return the names of the definition, e.g. {'cn', 'commonName'}.  (For ldapSyntaxes, this is the description.)
+         */
+        public String[] getNames() { return names; }
+
+        /**
+         * @return the first name of the definition.
+         */
+        public String getName() { return (names.length > 0) ? names[0] : oid; }
+
+        /**
+         * @return the raw schema string, e.g. "( 2.5.4.3 NAME ( 'cn' 'commonName' ) SUP name )"
+         */
+        public String getValue() { return value; }
+
+        /**
+         * The schema string broken up into pseudo attributes (as per SchemaOps.getAttributes()).  This is shared,
+         * and must not be modified; copy it first if necessary.
+         * @return the parsed schema string - e.g. 'NAME' -> 'cn', 'commonName'.
+         */
+        public Attributes getAttributes() { return attributes; }
+
+        /**
+         * @param keyword a schema keyword, such as 'SYNTAX' or 'DESC'
+         * @return the first value of the keyword in the definition, or null if it isn't present.
+         */
+        public String getFirst(String keyword)
+        {
+            Attribute att = attributes.get(keyword);
+            try
+            {
+                return (att == null || att.size() == 0) ? null : (String) att.get();
+            }
+            catch (NamingException e)   // can't happen with BasicAttribute
+            {
+                return null;
+            }
+        }
+
+        /**
+         * @param keyword a schema keyword, such as 'MUST' or 'SUP'
+         * @return all the values of the keyword in the definition (possibly none).
+         */
+        public String[] getAll(String keyword)
+        {
+            Attribute att = attributes.get(keyword);
+            if (att == null || att.size() == 0)
+                return NO_VALUES;
+
+            String[] values = new String[att.size()];
+            for (int i = 0; i < values.length; i++)
+            {
+                try
+                {
+                    values[i] = (String) att.get(i);
+                }
+                catch (NamingException e)
+                {
+                    values[i] = "";
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @param keyword a schema flag, such as 'SINGLE-VALUE' or 'AUXILIARY'
+         * @return whether the flag is present in the definition.
+         */
+        public boolean has(String keyword)
+        {
+            return attributes.get(keyword) != null;
+        }
+    }
+
+    /**
+     * A compiled attribute type definition.
+     */
+    public static class AttributeType extends Definition
+    {
+        private final String syntax;
+        private final boolean singleValued;
+        private final String superior;
+        private final String equality;
+        private final String ordering;
+        private final String substring;
+
+        AttributeType(String oid, String[] names, String value, BasicAttributes attributes)
+        {
+            super(oid, names, value, attributes);
+            syntax = getFirst("SYNTAX");
+            singleValued = has("SINGLE-VALUE");
+            superior = getFirst("SUP");
+            equality = getFirst("EQUALITY");
+            ordering = getFirst("ORDERING");
+            substring = getFirst("SUBSTR");
+        }
+
+        /**
+         * @return the syntax OID, possibly with a length suffix (e.g. '1.3.6.1.4.1.1466.115.121.1.15{32768}'),
+         * or null if the attribute type inherits its syntax from its superior.
+         */
+        public String getSyntax() { return syntax; }
+        public boolean isSingleValued() { return singleValued; }
+        public String getSuperior() { return superior; }
+        public String getEquality() { return equality; }
+        public String getOrdering() { return ordering; }
+        public String getSubstring() { return substring; }
+    }
+
+    /**
+     * A compiled object class definition.
+     */
+    public static class ObjectClass extends Definition
+    {
+        public static final String STRUCTURAL = "STRUCTURAL";
+        public static final String AUXILIARY = "AUXILIARY";
+        public static final String ABSTRACT = "ABSTRACT";
+
+        private final String[] superiors;
+        private final String kind;
+        private final String[] must;
+        private final String[] may;
+
+        ObjectClass(String oid, String[] names, String value, BasicAttributes attributes)
+        {
+            super(oid, names, value, attributes);
+            superiors = getAll("SUP");
+            must = getAll("MUST");
+            may = getAll("MAY");
+
+            if (has(ABSTRACT))
+                kind = ABSTRACT;
+            else if (has(AUXILIARY))
+                kind = AUXILIARY;
+            else
+                kind = STRUCTURAL;      // the rfc 4512 default
+        }
+
+        public String[] getSuperiors() { return superiors; }
+        public String[] getMust() { return must; }
+        public String[] getMay() { return may; }
+
+        /**
+         * @return one of STRUCTURAL, AUXILIARY or ABSTRACT
+         */
+        public String getKind() { return kind; }
+    }
+
+    /**
+     * Parses and indexes a raw subschema entry.
+     * @param rawSchema the subschema attributes, as read by SchemaOps.getRawSchema()
+     * @param parser the SchemaOps doing the parsing
+     */
+    SchemaIndex(Attributes rawSchema, SchemaOps parser)
+    {
+        if (rawSchema == null)
+            return;
+
+        try
+        {
+            NamingEnumeration rawSchemaAtts = rawSchema.getAll();
+            while (rawSchemaAtts.hasMoreElements())
+            {
+                Attribute rawSchemaAtt = (Attribute) rawSchemaAtts.nextElement();
+                String group = rawSchemaAtt.getID();
+                String groupKey = group.toLowerCase();
+
+                HashMap<String, Definition> definitions = groups.get(groupKey);
+                LinkedHashSet<String> names = groupNames.get(groupKey);
+                if (definitions == null)
+                {
+                    groups.put(groupKey, definitions = new HashMap<String, Definition>(rawSchemaAtt.size() * 3));
+                    groupNames.put(groupKey, names = new LinkedHashSet<String>(rawSchemaAtt.size() * 2));
+                }
+
+                NamingEnumeration values = rawSchemaAtt.getAll();
+                while (values.hasMoreElements())
+                {
+                    Object rawValue = values.nextElement();
+                    if (rawValue instanceof String == false)
+                        continue;
+                    String value = (String) rawValue;
+                    if (value.indexOf('(') == -1)
+                        continue;   // not a schema definition
+
+                    Definition definition = parse(groupKey, value, parser);
+                    add(definitions, definition.getOID(), definition);
+                    for (String name : definition.getNames())
+                    {
+                        names.add(name);
+                        add(definitions, name, definition);
+                    }
+                }
+            }
+        }
+        catch (NamingException e)
+        {
+            log.log(Level.WARNING, "Unable to index schema: ", e);
+        }
+    }
+
+    /**
+     * Adds a definition under a name, unless that name is already taken (the first definition
+     * in the schema wins, as it did when the schema was searched in order).
+     */
+    private static void add(HashMap<String, Definition> definitions, String name, Definition definition)
+    {
+        String key = name.toLowerCase();
+        if (!definitions.containsKey(key))
+            definitions.put(key, definition);
+    }
+
+    private static Definition parse(String groupKey, String value, SchemaOps parser)
+    {
+        String oid = parser.getOID(value);
+        String[] names = parser.getNames(value);
+        BasicAttributes attributes = parser.getAttributesFromSchemaValue(value);
+
+        if ("attributetypes".equals(groupKey))
+            return new AttributeType(oid, names, value, attributes);
+        else if ("objectclasses".equals(groupKey))
+            return new ObjectClass(oid, names, value, attributes);
+        else
+            return new Definition(oid, names, value, attributes);
+    }
+
+    /**
+     * @param group the schema group, e.g. 'attributeTypes' or 'ldapSyntaxes' (ignoring case)
+     * @return whether the schema has any such group.
+     */
+    public boolean hasGroup(String group)
+    {
+        return groups.containsKey(group.toLowerCase());
+    }
+
+    /**
+     * Looks up a definition by name or OID, ignoring case.
+     * @param group the schema group, e.g. 'attributeTypes' or 'ldapSyntaxes' (ignoring case)
+     * @param name the name or OID of the definition, e.g. 'cn' or '2.5.4.3'
+     * @return the definition, or null if there is no such definition.
+     * @throws NamingException if there is no such group in the schema.
+     */
+    public Definition get(String group, String name)
+            throws NamingException
+    {
+        HashMap<String, Definition> definitions = groups.get(group.toLowerCase());
+        if (definitions == null)
+            throw new NamingException("Unable to find schema entry for schema type '" + group + "'");
+
+        return definitions.get(name.toLowerCase());
+    }
+
+    /**
+     * @param name the name or OID of an attribute type, ignoring case (and any ';binary' style options).
+     * @return the attribute type, or null if it isn't in the schema.
+     */
+    public AttributeType getAttributeType(String name)
+    {
+        HashMap<String, Definition> definitions = groups.get("attributetypes");
+        if (definitions == null || name == null)
+            return null;
+
+        int pos = name.indexOf(';');
+        if (pos > 0)
+            name = name.substring(0, pos);
+
+        return (AttributeType) definitions.get(name.toLowerCase());
+    }
+
+    /**
+     * @param name the name or OID of an object class, ignoring case.
+     * @return the object class, or null if it isn't in the schema.
+     */
+    public ObjectClass getObjectClass(String name)
+    {
+        HashMap<String, Definition> definitions = groups.get("objectclasses");
+        if (definitions == null || name == null)
+            return null;
+
+        return (ObjectClass) definitions.get(name.toLowerCase());
+    }
+
+    /**
+     * @param group the schema group, e.g. 'attributeTypes' (ignoring case)
+     * @return the names of all the definitions in the group, in schema order, or null if there is no such group.
+     */
+    public ArrayList<String> getNames(String group)
+    {
+        LinkedHashSet<String> names = groupNames.get(group.toLowerCase());
+        return (names == null) ? null : new ArrayList<String>(names);
+    }
+}
@@ -11,6 +11,7 @@ import javax.naming.NamingException;
 import javax.naming.NamingEnumeration;
 import javax.naming.ldap.LdapContext;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.util.logging.*;
 import java.util.regex.Matcher;
@@ -42,6 +43,11 @@ public class SchemaOps
 
     private ArrayList fullAttributeNameArray = null; // cache the complete list of attribute names; it gets used a bit.
 
+    private volatile SchemaIndex schemaIndex = null;  // the parsed schema, built when first needed; discarded when the schema is reloaded.
+
+    private static final AtomicLong schemaVersions = new AtomicLong(0);
+    private volatile long schemaVersion = schemaVersions.incrementAndGet();  // changes whenever a schema is (re)loaded, by any SchemaOps
+
     static
     {
         schemaObjectClassAttribute.add("top");
@@ -122,6 +128,54 @@ public class SchemaOps
         return oids.containsKey(oid);
     }
 
+    /**
+     * Re-reads the schema from the directory, throwing away everything cached from the
+     * previous read (including the schema index).
+     * @throws NamingException
+     */
+    public synchronized void reloadSchema()
+            throws NamingException
+    {
+        if (ctx != null)
+            rawSchemaAttributes = getRawSchema();
+
+        oids.clear();
+        loadOIDs();
+
+        fullObjectClassArray = null;
+        fullAttributeNameArray = null;
+        schemaIndex = null;
+        schemaVersion = schemaVersions.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever a schema is loaded or reloaded, and that differs between
+     * SchemaOps objects, so that things derived from the schema can be cached against it.
+     * @return the schema version
+     */
+    public long getSchemaVersion()
+    {
+        return schemaVersion;
+    }
+
+    /**
+     * Returns the parsed and indexed schema, parsing it the first time it is asked for.
+     * @return the schema index (empty if no schema has been read)
+     */
+    public SchemaIndex getSchemaIndex()
+    {
+        SchemaIndex index = schemaIndex;
+        if (index == null)
+        {
+            synchronized (this)
+            {
+                if ((index = schemaIndex) == null)
+                    schemaIndex = index = new SchemaIndex(rawSchemaAttributes, this);
+            }
+        }
+        return index;
+    }
+
     /**
      * setup the global list of oids vs readable strings, by loading the schema and using the rfc defaults
      */
@@ -460,12 +514,9 @@ public class SchemaOps
      */
     protected String mangleEntryName(String entryName)
     {
-        if (entryName.indexOf("ClassDefinition") > -1)
-            entryName = entryName.replaceAll("(ClassDefinition)", "objectClasses");
-        if (entryName.indexOf("SyntaxDefinition") > -1)
-            entryName = entryName.replaceAll("(SyntaxDefinition)", "ldapSyntaxes");
-        if (entryName.indexOf("AttributeDefinition") > -1)
-            entryName = entryName.replaceAll("(AttributeDefinition)", "attributeTypes");
+        entryName = replace(entryName, "ClassDefinition", "objectClasses");
+        entryName = replace(entryName, "SyntaxDefinition", "ldapSyntaxes");
+        entryName = replace(entryName, "AttributeDefinition", "attributeTypes");
 
         // if it is an ldap name, restructure it to the schema=..., schema=... used in JX.
         if (entryName.indexOf('/') > 0)
@@ -499,6 +550,26 @@ public class SchemaOps
         return entryName;
     }
 
+    /**
+     * Replaces every occurrence of a piece of text (without the regexp overhead of String.replaceAll()).
+     */
+    private static String replace(String text, String oldText, String newText)
+    {
+        int pos = text.indexOf(oldText);
+        if (pos == -1)
+            return text;
+
+        StringBuilder replaced = new StringBuilder(text.length() + 16);
+        int start = 0;
+        while (pos != -1)
+        {
+            replaced.append(text, start, pos).append(newText);
+            start = pos + oldText.length();
+            pos = text.indexOf(oldText, start);
+        }
+        return replaced.append(text, start, text.length()).toString();
+    }
+
     /**
      * returns the specific schema entry name - eg 'cn' in 'schema=cn,schema=attributeTypes'
      *
@@ -549,38 +620,35 @@ public class SchemaOps
         if (rawSchemaAttributes == null)
             return null;
 
-        entryName = mangleEntryName(entryName);
-
-        // do all this the slow way for now...
-        String schemaTypeName = getTypeName(entryName);
-        String specificName = getSpecificName(entryName);
+        SchemaIndex.Definition definition = getDefinition(entryName);
 
-        Attribute schemaGroup = rawSchemaAttributes.get(schemaTypeName);
+        // (the index's copy is shared, so hand out a copy of our own)
+        return (definition == null) ? null : (BasicAttributes) definition.getAttributes().clone();
+    }
 
-        if (schemaGroup == null)
+    /**
+     * Looks up the parsed schema definition for a full schema entry name in the schema index.
+     * Names are matched ignoring case, to cope with weirdo directories that muddle case.
+     *
+     * @param entryName the name of a schema entry, either 'AttributeDefinition/cn' or 'schema=cn,schema=attributeTypes' style.
+     * @return the definition, or null if there is no such definition (or the entry name isn't a specific definition).
+     * @throws NamingException if the schema has no such type of definition.
+     */
+    protected SchemaIndex.Definition getDefinition(String entryName)
+            throws NamingException
+    {
+        int slashpos = entryName.indexOf('/');
+        if (slashpos > 0)           // jndi style name; quicker to pick apart directly than to mangle
         {
-            // some wierdo directories manage to get their cases muddled.  This is a last-gasp attempt
-            // to read them by using an all-lower case version of the name.
-            schemaGroup = rawSchemaAttributes.get(schemaTypeName.toLowerCase());
-            throw new NamingException("Unable to find schema entry for schema type '" + schemaTypeName + "'");
+            int end = entryName.indexOf(";binary", slashpos);
+            return getSchemaIndex().get(mangleEntryName(entryName.substring(0, slashpos)), entryName.substring(slashpos + 1, end == -1 ? entryName.length() : end));
         }
 
-        NamingEnumeration schemaValues = schemaGroup.getAll();
-        String schemaValue;
-        while (schemaValues.hasMore())
-        {
-            schemaValue = (String) schemaValues.next();
-            String[] names = getNames(schemaValue);
-            for (int i = 0; i < names.length; i++)
-            {
-                // use case-insensitive match to cope with weirdo directories that muddle case
-                if (specificName.equalsIgnoreCase(names[i]))
-                {
-                    return getAttributesFromSchemaValue(schemaValue);
-                }
-            }
-        }
-        return null;
+        entryName = mangleEntryName(entryName);
+        if (entryName.indexOf(',') == -1)
+            return null;            // a synthetic entry such as 'schema=attributeTypes'
+
+        return getSchemaIndex().get(getTypeName(entryName), getSpecificName(entryName));
     }
 
     /**
@@ -876,24 +944,11 @@ public class SchemaOps
         }
         else if (entryName.indexOf(',') == -1 && entryName.indexOf('/') == -1) // the first layer - returns things like
         {                                                                    // 'person', 'orgunit', 'newPilotPerson' etc...
-            schemaNames = new ArrayList<String>(1000);
             if (entryName.indexOf('=') > 0)
                 entryName = entryName.substring(entryName.indexOf('=') + 1);
-            Attribute rawSyntaxAttribute = rawSchemaAttributes.get(entryName);   // entryName might be 'attributeTypes'
-            if (rawSyntaxAttribute == null)
+            schemaNames = getSchemaIndex().getNames(entryName);   // entryName might be 'attributeTypes'
+            if (schemaNames == null)
                 throw new NamingException("unable to list syntaxes of type '" + entryName + "'");
-
-            Enumeration values = rawSyntaxAttribute.getAll();
-            String[] names;
-            while (values.hasMoreElements())
-            {
-                names = getNames((String) values.nextElement());
-                for (String name : names)
-                {
-                    if (!schemaNames.contains(name))     //TE: don't add duplicates
-                        schemaNames.add(name);
-                }
-            }
         }
         else // double element, e.g. objectClass/person -> never has children.
         {
@@ -1335,10 +1390,13 @@ public class SchemaOps
         if(attID == null)
             return null;
 
-        if (attID.indexOf(';') > 0)
-            attID = attID.substring(0, attID.indexOf(';'));		//TE: for example: userCertificate;binary.
-
-        return schemaLookup("schema=" + attID + ",schema=attributeTypes", "SYNTAX");
+        SchemaIndex.AttributeType attributeType = getSchemaIndex().getAttributeType(attID);		//TE: (ignores ;binary etc. - for example: userCertificate;binary.)
+        if (attributeType == null || attributeType.getSyntax() == null)
+        {
+            log.log(Level.WARNING, "unable to read any schema syntax for " + attID);
+            return null;
+        }
+        return attributeType.getSyntax();
     }
 
     /**
@@ -1351,11 +1409,10 @@ public class SchemaOps
 
     public String schemaLookup(String entryName, String schemaAttribute)
     {
-        entryName = mangleEntryName(entryName);
-
         try
         {
-            Attributes schemaAtts = getAttributes(entryName);
+            SchemaIndex.Definition definition = getDefinition(entryName);
+            Attributes schemaAtts = (definition != null) ? definition.getAttributes() : getAttributes(entryName);
             Attribute schemaAtt = schemaAtts.get(schemaAttribute);
             String att = (String) schemaAtt.get();
             return att;
@@ -1391,9 +1448,8 @@ public class SchemaOps
      * <br><br>
      * ( 1.3.6.1.4.1.3327.77.4.1.2 NAME 'uNSPSCTitle' SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )
      * <br><br>
-     * This method gets each value (see above string) in the attribute, then each of their names in turn
-     * until the name of the attribute we are seeking is found.  Then checks if 'SINGLE-VALUE'
-     * is present in that value.
+     * The attribute type is looked up (ignoring case) in the schema index, which records whether
+     * 'SINGLE-VALUE' is present in its definition.
      *
      * @param name the name of the attribute, for example uNSPCSTitle.
      * @return true if the attribute is a SINGLE-VALUE attribute, false otherwise.
@@ -1402,30 +1458,11 @@ public class SchemaOps
     public boolean isAttributeSingleValued(String name)
     {/* TE */
 
-        //TODO: there has got to be a more efficient way of doing this check... this is very long winded...
         if (rawSchemaAttributes == null)
             return false;
 
-        try
-        {
-            Attribute attributeTypes = getAttributeTypes();
-            NamingEnumeration en = attributeTypes.getAll();
-
-            while (en.hasMore())
-            {
-                String attr = (String) en.next();
-                String[] attrName = getNames(attr);
-
-                for (int i = 0; i < attrName.length; i++)
-                    if (attrName[i].equals(name) && (attr.indexOf("SINGLE-VALUE") >= 0))
-                        return true;
-            }
-        }
-        catch (NamingException e)
-        {
-            log.log(Level.WARNING, "Unable to determine if attribute '" + name + "' is SINGLE-VALUE." + e);
-        }
-        return false;
+        SchemaIndex.AttributeType attributeType = getSchemaIndex().getAttributeType(name);
+        return (attributeType != null && attributeType.isSingleValued());
     }
 
     /**
@@ -447,5 +447,56 @@ public class SchemaOpsTest extends TestCase
         assertTrue("Testing if uNSPSCTitle is a SINGLE-VALUE attribute.", virtualOps.isAttributeSingleValued("uNSPSCTitle"));
         assertTrue("Testing if countryName is a SINGLE-VALUE attribute.", (!virtualOps.isAttributeSingleValued("countryName")));
     }
-}
 
+    public void testSchemaIndex()
+        throws NamingException
+    {
+        SchemaIndex index = virtualOps.getSchemaIndex();
+        assertSame(index, virtualOps.getSchemaIndex());
+
+        SchemaIndex.AttributeType title = index.getAttributeType("unspsctitle");
+        assertNotNull(title);
+        assertEquals("1.3.6.1.4.1.3327.77.4.1.2", title.getOID());
+        assertEquals("1.3.6.1.4.1.1466.115.121.1.15", title.getSyntax());
+        assertTrue(title.isSingleValued());
+        assertTrue(virtualOps.isAttributeSingleValued("UNSPSCTITLE"));
+
+        assertSame(index.getAttributeType("cn"), index.getAttributeType("2.5.4.3"));
+        assertSame(index.getAttributeType("cn"), index.getAttributeType("CommonName;binary"));
+        assertFalse(index.getAttributeType("cn").isSingleValued());
+        assertNull(index.getAttributeType("noSuchAttribute"));
+
+        SchemaIndex.ObjectClass country = index.getObjectClass("Country");
+        assertEquals(SchemaIndex.ObjectClass.STRUCTURAL, country.getKind());
+        assertEquals("top", country.getSuperiors()[0]);
+        assertEquals("c", country.getMust()[0]);
+        assertEquals(2, country.getMay().length);
+        assertEquals(SchemaIndex.ObjectClass.ABSTRACT, index.getObjectClass("top").getKind());
+        assertEquals(SchemaIndex.ObjectClass.AUXILIARY, index.getObjectClass("xxxPerson").getKind());
+
+        assertEquals("Certificate", index.get("LDAPSYNTAXES", "1.3.6.1.4.1.1466.115.121.1.8").getName());
+        try
+        {
+            index.get("noSuchGroup", "cn");
+            fail("expected an exception for an unknown schema type");
+        }
+        catch (NamingException e) {}
+    }
+
+    public void testReloadSchema()
+        throws NamingException
+    {
+        long version = virtualOps.getSchemaVersion();
+        SchemaIndex index = virtualOps.getSchemaIndex();
+        assertNull(index.getAttributeType("newAttribute"));
+
+        virtualSchema.get("attributeTypes").add("( 9.9.9.9 NAME 'newAttribute' SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )");
+        virtualOps.reloadSchema();
+
+        assertTrue(version != virtualOps.getSchemaVersion());
+        assertNotSame(index, virtualOps.getSchemaIndex());
+        assertTrue(virtualOps.isAttributeSingleValued("newAttribute"));
+        assertEquals("newAttribute", virtualOps.translateOID("9.9.9.9"));
+        assertTrue(virtualOps.attributeNames().contains("newAttribute"));
+    }
+}
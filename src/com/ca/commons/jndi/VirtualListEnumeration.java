@@ -0,0 +1,279 @@
+package com.ca.commons.jndi;
+
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * <p>A NamingEnumeration that reads a server sorted search result a window at a time, using
+ * the server side sort (RFC 2891) and virtual list view controls.  Each window is a separate
+ * request for the entries at a given offset in the sorted result, so (unlike paged results)
+ * the server doesn't have to hold the search open between windows, and the size of the whole
+ * result is known after the first window (see getContentCount()).</p>
+ *
+ * <p>If the server ignores the virtual list view control (it is not sent critical), the first
+ * 'window' is simply the whole result, which is then read as an ordinary search.  As with
+ * PagedSearchEnumeration, the controls are set on a separate context instance where the
+ * provider allows it.</p>
+ */
+
+public class VirtualListEnumeration implements NamingEnumeration
+{
+    private LdapContext windowCtx;        // the context instance carrying the sort and view controls
+    private final boolean ownContext;     // whether windowCtx was created by us (and should be closed by us)
+
+    private final Name searchbase;
+    private final String filter;
+    private final SearchControls constraints;
+    private final Control sortControl;
+    private final int windowSize;
+
+    private NamingEnumeration currentWindow = null;
+    private boolean finished = false;
+    private NamingException failure = null;  // the error that ended the enumeration early, if any
+
+    private int offset = 1;              // the (1 based) offset of the current window in the sorted result
+    private int readFromWindow = 0;      // the number of results read from the current window
+    private int contentCount = -1;       // the size of the sorted result, as reported by the server (-1 = unknown)
+    private byte[] contextID = null;
+
+    private int windowCount = 0;         // number of windows requested so far
+    private int resultCount = 0;         // number of results handed out so far
+
+    private static Logger log = Logger.getLogger(VirtualListEnumeration.class.getName());
+
+    /**
+     * Creates the enumeration and requests the first window of results.
+     *
+     * @param ctx         the context to search with.
+     * @param searchbase  the DN to search from.
+     * @param filter      the non-null filter to use for the search.
+     * @param constraints the search controls (scope, limits, returning attributes).
+     * @param sortKeys    the attributes to sort the results by.
+     * @param windowSize  the number of entries per window.
+     * @throws NamingException if the first window cannot be read.
+     */
+    public VirtualListEnumeration(LdapContext ctx, Name searchbase, String filter, SearchControls constraints, SortKey[] sortKeys, int windowSize)
+            throws NamingException
+    {
+        this.searchbase = searchbase;
+        this.filter = filter;
+        this.constraints = constraints;
+        this.windowSize = Math.max(1, windowSize);
+
+        try
+        {
+            sortControl = new SortControl(sortKeys, Control.CRITICAL);
+        }
+        catch (IOException e)
+        {
+            throw new NamingException("unexpected error creating sort request control: " + e.getMessage());
+        }
+
+        Control[] firstWindow = makeControls();
+
+        LdapContext instance = ctx.newInstance(firstWindow);
+        if (instance != null)
+        {
+            windowCtx = instance;
+            ownContext = true;
+        }
+        else
+        {
+            windowCtx = ctx;
+            ownContext = false;
+            windowCtx.setRequestControls(firstWindow);
+        }
+
+        try
+        {
+            currentWindow = windowCtx.search(searchbase, filter, constraints);
+            windowCount++;
+        }
+        catch (NamingException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether there are more results, requesting the next window
+     * from the server if the current window has been used up.
+     * @throws NamingException if a window could not be read; the enumeration is closed, and
+     * the same exception is thrown by any later call, so it cannot be mistaken for the end of the results.
+     */
+    public boolean hasMore()
+            throws NamingException
+    {
+        if (failure != null)
+            throw failure;
+
+        try
+        {
+            while (!finished)
+            {
+                if (currentWindow.hasMore())
+                    return true;
+
+                nextWindow();
+            }
+            return false;
+        }
+        catch (NamingException e)
+        {
+            failure = e;
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the next SearchResult, requesting the next window if necessary.
+     */
+    public Object next()
+            throws NamingException
+    {
+        if (!hasMore())
+            throw new NoSuchElementException("no more virtual list view results");
+
+        resultCount++;
+        readFromWindow++;
+        return currentWindow.next();
+    }
+
+    /**
+     * Enumeration cannot throw the NamingException; this returns false on an error, which
+     * remains available from hasMore() / next() and getFailure().
+     */
+    public boolean hasMoreElements()
+    {
+        try
+        {
+            return hasMore();
+        }
+        catch (NamingException e)
+        {
+            log.warning("error reading virtual list view results from " + searchbase + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public Object nextElement()
+    {
+        try
+        {
+            return next();
+        }
+        catch (NamingException e)
+        {
+            NoSuchElementException nse = new NoSuchElementException(e.getMessage());
+            nse.initCause(e);
+            throw nse;
+        }
+    }
+
+    /**
+     * Releases the window context.  It is not an error to call this multiple times.
+     */
+    public void close()
+    {
+        if (finished && windowCtx == null)
+            return;
+
+        finished = true;
+        try
+        {
+            if (currentWindow != null)
+                currentWindow.close();
+
+            if (windowCtx != null)
+            {
+                if (ownContext)
+                    windowCtx.close();
+                else
+                    windowCtx.setRequestControls(null);  // clear the shared context
+            }
+        }
+        catch (NamingException e)
+        {
+            log.fine("error closing virtual list view search: " + e.getMessage());
+        }
+        currentWindow = null;
+        windowCtx = null;
+    }
+
+    /**
+     * @return the size of the whole sorted result as reported by the server with the last window read,
+     *         or -1 if the server hasn't said (e.g. because it ignored the virtual list view control).
+     */
+    public int getContentCount() { return contentCount; }
+
+    /**
+     * @return the number of windows requested from the server so far.
+     */
+    public int getWindowCount() { return windowCount; }
+
+    /**
+     * @return the number of results returned by this enumeration so far.
+     */
+    public int getResultCount() { return resultCount; }
+
+    /**
+     * @return the error reading a window that ended this enumeration early, or null if there was none.
+     */
+    public NamingException getFailure() { return failure; }
+
+    private Control[] makeControls()
+    {
+        return new Control[]{sortControl, new VirtualListViewControl(offset, windowSize, Math.max(0, contentCount), contextID, Control.NONCRITICAL)};
+    }
+
+    /**
+     * Called when the current window is drained; reads the view response and either
+     * requests the window after it, or marks the enumeration finished.
+     * @throws NamingException if the server stopped the view with an error result code, so
+     *         the results can't be cut short without anyone knowing.
+     */
+    private void nextWindow()
+            throws NamingException
+    {
+        VirtualListViewControl.Response response = VirtualListViewControl.getResponse(windowCtx.getResponseControls());
+
+        if (response != null && response.result != 0)
+            throw new NamingException("virtual list view of " + searchbase + " stopped by server: result code " + response.result);
+
+        if (response == null || readFromWindow == 0)
+        {
+            if (response == null)
+                log.fine("No virtual list view control was sent from the server");   // so we've had everything
+            close();
+            return;
+        }
+
+        contentCount = response.contentCount;
+        contextID = response.contextID;
+        int start = (response.targetPosition > 0) ? response.targetPosition : offset;   // (the server may have moved the window)
+        offset = start + readFromWindow;
+        readFromWindow = 0;
+
+        if (offset > contentCount)
+        {
+            close();
+            return;
+        }
+
+        currentWindow.close();
+        windowCtx.setRequestControls(makeControls());
+        currentWindow = windowCtx.search(searchbase, filter, constraints);
+        windowCount++;
+    }
+}
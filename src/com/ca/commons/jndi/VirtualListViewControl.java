@@ -0,0 +1,208 @@
+package com.ca.commons.jndi;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * <p>The LDAP Virtual List View request control (draft-ietf-ldapext-ldapv3-vlv), which asks
+ * the server for a 'window' of a sorted search result, by offset, so that a client can show
+ * any part of a very large result without reading the rest.  It must be sent with a server
+ * side sort control (RFC 2891).  The JDK has no class for this control, so the (small) BER
+ * encoding of the request, and decoding of the response control, is done here.</p>
+ *
+ * <pre>
+ * VirtualListViewRequest ::= SEQUENCE {
+ *         beforeCount    INTEGER (0..maxInt),
+ *         afterCount     INTEGER (0..maxInt),
+ *         target       CHOICE {
+ *                        byOffset        [0] SEQUENCE {
+ *                             offset          INTEGER (1 .. maxInt),
+ *                             contentCount    INTEGER (0 .. maxInt) },
+ *                        greaterThanOrEqual [1] AssertionValue },
+ *         contextID     OCTET STRING OPTIONAL }
+ *
+ * VirtualListViewResponse ::= SEQUENCE {
+ *         targetPosition    INTEGER (0 .. maxInt),
+ *         contentCount     INTEGER (0 .. maxInt),
+ *         virtualListViewResult ENUMERATED { ... },
+ *         contextID     OCTET STRING OPTIONAL }
+ * </pre>
+ */
+
+public class VirtualListViewControl extends BasicControl
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The OID of the Virtual List View request control.
+     */
+    public static final String OID = "2.16.840.1.113730.3.4.9";
+
+    /**
+     * The OID of the Virtual List View response control.
+     */
+    public static final String RESPONSE_OID = "2.16.840.1.113730.3.4.10";
+
+    private static final int INTEGER = 0x02;
+    private static final int OCTET_STRING = 0x04;
+    private static final int ENUMERATED = 0x0A;
+    private static final int SEQUENCE = 0x30;
+    private static final int BY_OFFSET = 0xA0;
+
+    /**
+     * Asks for the window of entries starting at a particular (1 based) offset in the sorted result.
+     *
+     * @param offset       the position of the first entry of the window (1 = the first entry).
+     * @param windowSize   the number of entries in the window.
+     * @param contentCount the size of the result as last reported by the server, or 0 if not known.
+     * @param contextID    the context id from the last response from the server, or null.
+     * @param criticality  whether the server must support the control.
+     */
+    public VirtualListViewControl(int offset, int windowSize, int contentCount, byte[] contextID, boolean criticality)
+    {
+        super(OID, criticality, encode(0, Math.max(0, windowSize - 1), Math.max(1, offset), Math.max(0, contentCount), contextID));
+    }
+
+    static byte[] encode(int beforeCount, int afterCount, int offset, int contentCount, byte[] contextID)
+    {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        writeInteger(target, INTEGER, offset);
+        writeInteger(target, INTEGER, contentCount);
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeInteger(request, INTEGER, beforeCount);
+        writeInteger(request, INTEGER, afterCount);
+        write(request, BY_OFFSET, target.toByteArray());
+        if (contextID != null)
+            write(request, OCTET_STRING, contextID);
+
+        ByteArrayOutputStream control = new ByteArrayOutputStream();
+        write(control, SEQUENCE, request.toByteArray());
+        return control.toByteArray();
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int tag, int value)
+    {
+        int size = 4;     // minimal two's complement encoding; our values are never negative.
+        while (size > 1 && (value >> ((size - 1) * 8 - 1)) == 0)
+            size--;
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++)
+            bytes[i] = (byte) (value >> ((size - 1 - i) * 8));
+        write(out, tag, bytes);
+    }
+
+    private static void write(ByteArrayOutputStream out, int tag, byte[] value)
+    {
+        out.write(tag);
+        int length = value.length;
+        if (length < 0x80)
+        {
+            out.write(length);
+        }
+        else
+        {
+            int size = (length > 0xFFFFFF) ? 4 : (length > 0xFFFF) ? 3 : (length > 0xFF) ? 2 : 1;
+            out.write(0x80 | size);
+            for (int i = size - 1; i >= 0; i--)
+                out.write(length >> (i * 8));
+        }
+        out.write(value, 0, length);
+    }
+
+    /**
+     * The server's answer to a virtual list view request: where the window was in the
+     * sorted result, and how big the whole result is (as far as the server knows).
+     */
+    public static class Response
+    {
+        public final int targetPosition;
+        public final int contentCount;
+        public final int result;           // an LDAP result code; 0 = success
+        public final byte[] contextID;
+
+        Response(int targetPosition, int contentCount, int result, byte[] contextID)
+        {
+            this.targetPosition = targetPosition;
+            this.contentCount = contentCount;
+            this.result = result;
+            this.contextID = contextID;
+        }
+    }
+
+    /**
+     * Finds and decodes the virtual list view response control.
+     *
+     * @param controls the response controls from the last search (may be null).
+     * @return the response, or null if the server didn't send one (or it couldn't be read).
+     */
+    public static Response getResponse(Control[] controls)
+    {
+        if (controls == null)
+            return null;
+
+        for (int i = 0; i < controls.length; i++)
+            if (controls[i] != null && RESPONSE_OID.equals(controls[i].getID()))
+                return decode(controls[i].getEncodedValue());
+
+        return null;
+    }
+
+    static Response decode(byte[] ber)
+    {
+        if (ber == null)
+            return null;
+        try
+        {
+            int[] pos = new int[]{0};
+            expect(ber, pos, SEQUENCE);
+            readLength(ber, pos);
+            int targetPosition = readInteger(ber, pos, INTEGER);
+            int contentCount = readInteger(ber, pos, INTEGER);
+            int result = readInteger(ber, pos, ENUMERATED);
+            byte[] contextID = null;
+            if (pos[0] < ber.length && (ber[pos[0]] & 0xFF) == OCTET_STRING)
+            {
+                pos[0]++;
+                int length = readLength(ber, pos);
+                contextID = new byte[length];
+                System.arraycopy(ber, pos[0], contextID, 0, length);
+            }
+            return new Response(targetPosition, contentCount, result, contextID);
+        }
+        catch (RuntimeException e)     // (i.e. a badly formed control runs off the end of the array)
+        {
+            return null;
+        }
+    }
+
+    private static void expect(byte[] ber, int[] pos, int tag)
+    {
+        if ((ber[pos[0]++] & 0xFF) != tag)
+            throw new IllegalArgumentException("unexpected tag in virtual list view response");
+    }
+
+    private static int readLength(byte[] ber, int[] pos)
+    {
+        int length = ber[pos[0]++] & 0xFF;
+        if (length < 0x80)
+            return length;
+
+        int size = length & 0x7F;
+        length = 0;
+        for (int i = 0; i < size; i++)
+            length = (length << 8) | (ber[pos[0]++] & 0xFF);
+        return length;
+    }
+
+    private static int readInteger(byte[] ber, int[] pos, int tag)
+    {
+        expect(ber, pos, tag);
+        int length = readLength(ber, pos);
+        int value = (length > 0 && ber[pos[0]] < 0) ? -1 : 0;
+        for (int i = 0; i < length; i++)
+            value = (value << 8) | (ber[pos[0]++] & 0xFF);
+        return value;
+    }
+}
@@ -0,0 +1,67 @@
+package com.ca.commons.jndi;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import java.util.Arrays;
+
+/**
+ * Checks the BER encoding of the virtual list view request control, and the decoding of the response.
+ */
+public class VirtualListViewControlTest extends TestCase
+{
+    public VirtualListViewControlTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(VirtualListViewControlTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private static byte[] bytes(int[] values)
+    {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        return bytes;
+    }
+
+    public void testEncodeRequest()
+    {
+        // before 0, after 99, offset 1, content count 0, no context id
+        assertTrue(Arrays.equals(bytes(new int[]{0x30, 0x0E, 0x02, 0x01, 0x00, 0x02, 0x01, 0x63, 0xA0, 0x06, 0x02, 0x01, 0x01, 0x02, 0x01, 0x00}),
+                new VirtualListViewControl(1, 100, 0, null, Control.NONCRITICAL).getEncodedValue()));
+
+        // integers that need a leading zero byte, and a context id
+        assertTrue(Arrays.equals(bytes(new int[]{0x30, 0x14, 0x02, 0x01, 0x00, 0x02, 0x02, 0x00, 0xC7, 0xA0, 0x08, 0x02, 0x02, 0x00, 0xC9, 0x02, 0x02, 0x01, 0x2C, 0x04, 0x01, 0x07}),
+                new VirtualListViewControl(201, 200, 300, new byte[]{7}, Control.CRITICAL).getEncodedValue()));
+
+        assertEquals(JNDIOps.VIRTUAL_LIST_VIEW_CONTROL, new VirtualListViewControl(1, 1, 0, null, true).getID());
+    }
+
+    public void testDecodeResponse()
+    {
+        byte[] ber = bytes(new int[]{0x30, 0x0E, 0x02, 0x01, 0x65, 0x02, 0x03, 0x04, 0x93, 0xE0, 0x0A, 0x01, 0x00, 0x04, 0x01, 0x2A});
+        VirtualListViewControl.Response response = VirtualListViewControl.getResponse(new Control[]{
+                new BasicControl("1.2.3"), new BasicControl(VirtualListViewControl.RESPONSE_OID, false, ber)});
+
+        assertNotNull(response);
+        assertEquals(101, response.targetPosition);
+        assertEquals(300000, response.contentCount);
+        assertEquals(0, response.result);
+        assertTrue(Arrays.equals(new byte[]{42}, response.contextID));
+
+        assertNull(VirtualListViewControl.getResponse(null));
+        assertNull(VirtualListViewControl.getResponse(new Control[]{new BasicControl(VirtualListViewControl.RESPONSE_OID, false, new byte[]{0x30, 0x05, 0x02})}));
+    }
+}
@@ -1,7 +1,6 @@
 package com.ca.commons.naming;
 
 import java.lang.String;
-import java.util.Vector;
 import java.util.Enumeration;
 
 import javax.naming.*;
@@ -41,13 +40,25 @@ import javax.naming.*;
 
 public class DN implements Name
 {
-    // these variables are all there is!  Basically the magic is in the vector of
+    // these variables are all there is!  Basically the magic is in the array of
     // rdns - all the code below is simply utility stuff for parsing and manipulating
     // those rdns.
 
-    private Vector RDNs;  // a list of segment RDNs, as strings, e.g. 'ou=frog farmers'
+    private RDN[] RDNs;   // a list of segment RDNs, e.g. 'ou=frog farmers'
                           // element 0 is the 'root' RDN (i.e. 'c=au')
-                          // element (RDNs.size()-1) is the lowest RDN (i.e. 'cn=fred').
+                          // element (size-1) is the lowest RDN (i.e. 'cn=fred').
+                          // (the array may be longer than the DN.)
+
+    private int size = 0; // the number of RDNs in the DN
+
+    // whether the RDNs array (and the RDNs in it) may be shared with another DN - e.g.
+    // a copy, or a parent made by getParent().  A shared DN copies the array before
+    // changing it, so copies and parents are cheap, and can't affect each other.  (The
+    // RDNs themselves are never changed: RDNs are copied as they are added, and copies
+    // are handed out by getRDN(), so no one else can change them either.)
+    private boolean shared = false;
+
+    private static final RDN[] NO_RDNS = new RDN[0];
 
     boolean binary = false; // whether the dn contains isNonString data, and should
                             // be base64 encoded before being written out...
@@ -63,6 +74,7 @@ public class DN implements Name
 
     String stringVersion = null;  // cache string version
     String reversedVersion = null; // cache reversed string version (for quick sorts)
+    int hash = 0;                  // cached hash code (0 = not yet calculated)
 
     /**
      *    Default constructor creates a DN with no value set.
@@ -72,79 +84,68 @@ public class DN implements Name
 
     public DN()
     {
-        RDNs = new Vector();
+        RDNs = NO_RDNS;
     }
 
     /**
-     *    Copy constructor creates a new DN with an item by item
-     *    <i>copy</i> of the parameter DN.
+     *    Copy constructor creates a new DN with the same RDNs as the
+     *    parameter DN.  The copy is independent of the original (changing
+     *    one doesn't change the other) but, since the RDNs are only copied
+     *    when one of them is changed, it is cheap to make.
      *
      *    @param copyMe the DN to be copied
      */
 
     public DN(DN copyMe)
     {
-        try
-        {
-            RDNs = new Vector();
+        this(copyMe, (copyMe == null) ? 0 : copyMe.size);
+    }
 
-            if (copyMe != null)
-            {
-                for (int i=0; i<copyMe.size(); i++)
-                {
-                    add(new String(copyMe.get(i)));
-                }
-            }
+    /**
+     *    Makes a DN from the first (i.e. root-most) RDNs of another DN, sharing
+     *    its array of RDNs.
+     */
+
+    private DN(DN copyMe, int size)
+    {
+        if (copyMe == null || size == 0)
+        {
+            RDNs = NO_RDNS;
+            return;
         }
-        catch (InvalidNameException e) // 'impossible' error - if copyMe is DN, how can this fail?
+
+        RDNs = copyMe.RDNs;
+        this.size = size;
+        shared = copyMe.shared = true;
+        binary = copyMe.binary;
+        if (size == copyMe.size)
         {
-            setError("error cloningDN " + copyMe.toString(), e);
-            clear();
+            stringVersion = copyMe.stringVersion;
+            reversedVersion = copyMe.reversedVersion;
+            hash = copyMe.hash;
         }
     }
 
     /**
      *    Main Constructor takes an ldap Distinguished Name string
      *    (e.g. 'ou=wombat botherers,o=nutters inc,c=au') and
-     *    breaks it up into a vector of RDNs
+     *    breaks it up into an array of RDNs
      *
      *    @param ldapDN the ldap distinguished name to be parsed.
      */
 
     public DN(String ldapDN)
     {
-        try
-        {
-            RDNs = new Vector();
+        RDNs = NO_RDNS;
 
-            if ("".equals(ldapDN) || BLANKBASEDN.equals(ldapDN))
-            {
-                return;
-            }
-
-            int start = 0;
-            int end = NameUtility.next(ldapDN, 0, ',');
-
-            // get the RDNs in the form xxx=xxx,xxx=xxx,xxx=xxx
-            while (end!=-1)
-            {
-                String rdn = ldapDN.substring(start,end);
-
-                add(0,rdn);
-                start = end+1;
-                end   = NameUtility.next(ldapDN, start, ',');
-            }
-
-            // ... and the last bit...
-            add(0,ldapDN.substring(start).trim());
-
-        }
-        catch (InvalidNameException e)
+        if ("".equals(ldapDN) || BLANKBASEDN.equals(ldapDN))
         {
-            setError("unable to make DN from " + ldapDN ,e);
-            clear();
+            return;
         }
 
+        // get the RDNs in the form xxx=xxx,xxx=xxx,xxx=xxx in a single pass
+        RDNs = DNLexer.parseDN(ldapDN);
+        size = RDNs.length;
     }
 
 
@@ -161,10 +162,12 @@ public class DN implements Name
 
     public DN(Name name)
     {
+        this((name instanceof DN) ? (DN) name : null);
+
+        if (name instanceof DN) return;
+
         try
         {
-            RDNs = new Vector();
-
             if (name.isEmpty()) return;
 
             for (int i=0; i<name.size(); i++)
@@ -197,9 +200,14 @@ public class DN implements Name
         if (stringVersion != null)
             return stringVersion;
 
-        String ldapDN = "";
-        for (int i=0; i<RDNs.size(); i++)
-            ldapDN =  get(i) + (i!=0?",":"") + ldapDN;
+        StringBuffer buffer = new StringBuffer();
+        for (int i=size-1; i>=0; i--)
+        {
+            buffer.append(RDNs[i].toString());
+            if (i!=0)
+                buffer.append(',');
+        }
+        String ldapDN = buffer.toString();
 
         //TODO: is this code ever executed???
         if (ldapDN.endsWith(","))
@@ -220,11 +228,17 @@ public class DN implements Name
      */
     public String reversedString()
     {
-        if (stringVersion == null || reversedVersion == null)
+        if (reversedVersion == null)
         {
-            reversedVersion = "";
-            for (int i=RDNs.size()-1; i>=0; i--)
-                reversedVersion =  get(i) + (i!=0?",":"") + reversedVersion;
+            // n.b. no comma after the root rdn, and one after each of the others - sort orders depend on it.
+            StringBuffer buffer = new StringBuffer();
+            for (int i=0; i<size; i++)
+            {
+                buffer.append(RDNs[i].toString());
+                if (i!=0)
+                    buffer.append(',');
+            }
+            reversedVersion = buffer.toString();
         }
         return reversedVersion;
     }
@@ -239,7 +253,7 @@ public class DN implements Name
     public String toFormattedString()
     {
         String ldapDN = "";
-        for (int i=0; i<RDNs.size(); i++)
+        for (int i=0; i<size; i++)
             ldapDN += get(i) + "\n";
         return ldapDN;
     }
@@ -266,7 +280,7 @@ public class DN implements Name
         if (i >= size()) return "";
         if (i < 0) return "";
 
-        return getRDN(i).getAttID();
+        return RDNs[i].getAttID();
     }
 
     /**
@@ -284,7 +298,7 @@ public class DN implements Name
         if (i >= size()) return "";
         if (i < 0) return "";
 
-        return getRDN(i).getRawVal();
+        return RDNs[i].getRawVal();
     }
 
     /**
@@ -297,7 +311,7 @@ public class DN implements Name
         for (int i=0; i<size(); i++)
         {
             System.out.print("element [" + i + "]  = " + get(i).toString() + "\n");
-            getRDN(i).dump();
+            RDNs[i].dump();
 
         }
     }
@@ -313,14 +327,17 @@ public class DN implements Name
     public void setRDN(RDN rdn, int i)
     {
         if (i<size() && i>= 0)
-            RDNs.setElementAt(rdn, i);
-        stringVersion = null;
+        {
+            makeWritable(size);
+            RDNs[i] = new RDN(rdn);     // (so the caller can't change it afterwards)
+        }
+        changed();
     }
 
 
     /**
      *    gets the full RDN  (e.g. 'c=au' or 'cn=Englebert Humperdink') for a particular
-     *    indexed RDN.
+     *    indexed RDN.  This is a copy; changing it doesn't change the DN (use setRDN()).
      *
      *    @param i the index of the RDN to return.
      *    @return the ldap RDN string name for the specified index
@@ -331,9 +348,8 @@ public class DN implements Name
         if (i==0 && isEmpty()) return new RDN();  // return empty RDN for empty DN
 
         if (i<0) return new RDN();
-        if (i >= size()) new RDN();
 
-        return (RDN) RDNs.elementAt(i);
+        return new RDN(RDNs[checkIndex(i)]);
     }
 
     /**
@@ -421,8 +437,9 @@ public class DN implements Name
     {
         try
         {
-            RDN rdn = getRDN(size()-1);
+            RDN rdn = getRDN(size()-1);   // (a copy)
             rdn.setRawVal(value);
+            setRDN(rdn, size()-1);
         }
         catch (InvalidNameException e)
         {
@@ -452,16 +469,40 @@ public class DN implements Name
        //XXX return (toString().equals(testDN.toString()));
         if (testDN == null) return false;
 
-        if (testDN.size()!= size()) return false;
+        if (testDN == this) return true;
 
-        for (int i=0; i<size(); i++)
+        if (testDN.size!= size) return false;
+
+        if (hash != 0 && testDN.hash != 0 && hash != testDN.hash) return false;
+
+        // compare from the bottom up - DNs that differ usually differ in their lowest RDN
+        for (int i=size-1; i>=0; i--)
         {
-            if (getRDN(i).equals(testDN.getRDN(i)) == false)
+            if (RDNs[i] != testDN.RDNs[i] && RDNs[i].equals(testDN.RDNs[i]) == false)
                 return false;
         }
         return true;
     }
 
+    /**
+     *  A hash code consistent with equals(DN) (i.e. case insensitive), so that DNs
+     *  can be used as hash keys.  It is calculated from the normalised RDNs (see
+     *  RDN.getNormalised()) and cached until the DN is changed.  (As with any
+     *  key, a DN should not be changed while it is in a map.)
+     */
+    public int hashCode()
+    {
+        int h = hash;
+        if (h == 0)
+        {
+            h = 1;
+            for (int i=0; i<size; i++)
+                h = 31 * h + RDNs[i].hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
     /**
      *  implement the object.equals(object) method for genericity and unit testing.
      *  Note that this is slower than DN.equals(DN), since it requires instanceof checks.
@@ -487,7 +528,15 @@ public class DN implements Name
 
     public boolean startsWith(DN testDN)
     {
-        return startsWith((Name)testDN);
+        if (testDN == null || testDN.size>size)
+            return false;
+
+        for (int i=testDN.size-1; i>=0; i--)
+        {
+            if (RDNs[i] != testDN.RDNs[i] && RDNs[i].equals(testDN.RDNs[i]) == false)
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -504,7 +553,7 @@ public class DN implements Name
 
         for (int i=0; i<size()-1; i++)
         {
-            if ((testDN.getRDN(i).equals(getRDN(i)))==false)
+            if (RDNs[i] != testDN.RDNs[i] && RDNs[i].equals(testDN.RDNs[i]) == false)
                 return false;
         }
         return true;
@@ -523,10 +572,7 @@ public class DN implements Name
 
         if (size()<=1) return new DN();  // return empty DN for top level DNs
 
-           DN newDN = new DN(this);
-            newDN.RDNs.removeElementAt(size()-1);
-        stringVersion = null;  // reset cached string version
-            return newDN;
+        return new DN(this, size-1);     // shares our RDNs, so doesn't need to copy them
     }
 
     /**
@@ -535,11 +581,12 @@ public class DN implements Name
 
     public void reverse()
     {
-        Vector rev = new Vector();
-        for (int i=RDNs.size()-1; i>=0; i--)
-            rev.add(RDNs.elementAt(i));
+        RDN[] rev = new RDN[size];
+        for (int i=0; i<size; i++)
+            rev[i] = RDNs[size-1-i];
         RDNs = rev;
-        stringVersion = null;  // reset cached string version
+        shared = false;
+        changed();
     }
 
     /**
@@ -547,10 +594,47 @@ public class DN implements Name
      */
     public void clear()
     {
-        RDNs.clear();
+        RDNs = NO_RDNS;
+        size = 0;
+        shared = false;
         errorString = null;
+        changed();
+    }
+
+    /**
+     *    Resets the cached string versions and hash code after a change.
+     */
+    private void changed()
+    {
         stringVersion = null;  // reset cached string version
+        reversedVersion = null;
+        hash = 0;
+    }
+
+    /**
+     *    Makes sure the RDNs array is our own (i.e. not shared with a copy or parent
+     *    of this DN) and can hold the given number of RDNs, before it is changed.
+     */
+    private void makeWritable(int capacity)
+    {
+        if (shared || capacity > RDNs.length)
+        {
+            RDN[] copy = new RDN[Math.max(capacity, (capacity > RDNs.length) ? Math.max(4, size*2) : size)];
+            System.arraycopy(RDNs, 0, copy, 0, size);
+            RDNs = copy;
+            shared = false;
+        }
+    }
 
+    /**
+     *    Checks an index is within the DN, throwing the same exception the
+     *    Vector that used to hold the RDNs would have.
+     */
+    private int checkIndex(int i)
+    {
+        if (i < 0 || i >= size)
+            throw new ArrayIndexOutOfBoundsException(i + " >= " + size);
+        return i;
     }
 
     /**
@@ -600,16 +684,34 @@ public class DN implements Name
     }
 
     /**
-     *    The core method for adding RDN objects to the name.
-     *    Called by all add methods.
+     *    Adds a copy of an RDN to the name (so the caller can go on to change
+     *    the RDN without changing the DN).
      *    @param posn the position in the DN to add the RDN at (0 = root)
      *    @param rdn the RDN to add (may be multi-valued).
      */
 
     public Name add(int posn, RDN rdn)
     {
-        RDNs.insertElementAt(rdn,posn);
-        stringVersion = null;  // reset cached string version
+        return addRDN(posn, new RDN(rdn));
+    }
+
+    /**
+     *    The core method for adding RDN objects to the name.
+     *    Called by all add methods.
+     *    @param posn the position in the DN to add the RDN at (0 = root)
+     *    @param rdn the RDN to add (may be multi-valued), which is kept.
+     */
+
+    private Name addRDN(int posn, RDN rdn)
+    {
+        if (posn < 0 || posn > size)
+            throw new ArrayIndexOutOfBoundsException(posn + " > " + size);
+
+        makeWritable(size+1);
+        System.arraycopy(RDNs, posn, RDNs, posn+1, size-posn);
+        RDNs[posn] = rdn;
+        size++;
+        changed();
         return this;
     }
 
@@ -632,7 +734,7 @@ public class DN implements Name
         throws InvalidNameException
     {
         RDN r = new RDN(rdn);             // may throw invalidName Exception
-        add(posn, r);
+        addRDN(posn, r);
         return this;
     }
 
@@ -644,7 +746,7 @@ public class DN implements Name
         throws InvalidNameException
     {
         RDN r = new RDN(rdn);             // may throw invalidName Exception
-        add(size(), r);
+        addRDN(size(), r);
         return this;
     }
 
@@ -761,7 +863,7 @@ public class DN implements Name
     {
         if (posn==0 && isEmpty()) return "";  // return empty string for empty DN
 
-        return RDNs.elementAt(posn).toString();
+        return RDNs[checkIndex(posn)].toString();
     }
 
     /*
@@ -782,18 +884,10 @@ public class DN implements Name
 
     public Name getPrefix(int posn)
     {
-        DN returnMe = new DN();
-        try
-        {
-            for (int i=0; i<posn; i++)
-                returnMe.add(get(i));
-            return returnMe;
-        }
-        catch (InvalidNameException e)
-        {
-            System.err.println("unexpected error in DN:\n  " + e);
-            return new DN();
-        }
+        if (posn > size)
+            throw new ArrayIndexOutOfBoundsException(posn + " > " + size);
+
+        return new DN(this, Math.max(0, posn));     // shares our RDNs
     }
 
     /*
@@ -803,9 +897,12 @@ public class DN implements Name
     public Name getSuffix(int posn)
     {
         DN returnMe = new DN();
-        for (int i=posn; i<size(); i++)
+        if (posn < size)
         {
-            returnMe.add(new RDN(getRDN(i)));
+            returnMe.RDNs = new RDN[size-posn];
+            for (int i=posn; i<size; i++)
+                returnMe.RDNs[i-posn] = new RDN(RDNs[i]);
+            returnMe.size = size-posn;
         }
         return returnMe;
     }
@@ -827,10 +924,14 @@ public class DN implements Name
 
     public Object remove(int posn)
     {
-        stringVersion = null;  // reset cached string version
-
-          return RDNs.remove(posn);
-
+        RDN removed = RDNs[checkIndex(posn)];
+        if (shared)
+            removed = new RDN(removed);     // (still part of the DNs we share it with)
+        makeWritable(size);
+        System.arraycopy(RDNs, posn+1, RDNs, posn, size-posn-1);
+        RDNs[--size] = null;
+        changed();
+        return removed;
     }
 
    /*
@@ -841,7 +942,7 @@ public class DN implements Name
 
     public int size()
     {
-        return RDNs.size();
+        return size;
     }
 
    /*
@@ -853,7 +954,7 @@ public class DN implements Name
 /*
     public int length()
     {
-        return RDNs.size();
+        return size;
     }
 */
     /*
@@ -0,0 +1,210 @@
+package com.ca.commons.naming;
+
+/**
+ *    <p>A single pass lexer for ldap escaped DN strings (RFC 4514, with the RFC 1779 style
+ *    quoted values NameUtility.next() allows).  It finds the unescaped ',' characters that
+ *    separate the RDNs, and the unescaped '+' characters that separate the elements of
+ *    multi-valued RDNs, in one scan of the string, so that DN(String) doesn't search the
+ *    string once per RDN, and the RDNs don't each search themselves again for '+' signs
+ *    when they are first used.</p>
+ *
+ *    <p>A character is 'unescaped' in exactly the sense of NameUtility.next(): it isn't
+ *    preceded by a '\' escape, and isn't inside a double quoted section.  (As with next(),
+ *    an unterminated quote hides everything after it.)</p>
+ *
+ *    @see NameUtility#next(String, int, char)
+ */
+
+final class DNLexer
+{
+    private DNLexer() {}
+
+    /**
+     *    The element boundaries of any single valued RDN (RDN doesn't use them).
+     */
+
+    private static final int[] SINGLE_VALUED = {-1, 0};
+
+    /**
+     *    Parses an escaped DN string into its RDNs.
+     *
+     *    @param ldapDN the DN (e.g. 'cn=fred+sn=nurk,ou=frog farmers,c=au'); must not be empty.
+     *    @return the RDNs, root RDN first (i.e. the reverse of the string order).
+     */
+
+    static RDN[] parseDN(String ldapDN)
+    {
+        int len = ldapDN.length();
+
+        // the positions of the unescaped separators, each as (position << 1) | (1 if it's a comma)
+        int[] separators = new int[16];
+        int count = 0;
+        int rdnCount = 1;
+
+        int pos = 0;
+        while (pos < len)
+        {
+            char c = ldapDN.charAt(pos);
+            if (c == '\\')
+            {
+                pos += 2;                           // skip the escaped character (or the first of a hex pair)
+                continue;
+            }
+            else if (c == '"')
+            {
+                pos = skipQuotes(ldapDN, pos);
+                if (pos == -1)
+                    break;                          // unterminated quote - no more separators
+            }
+            else if (c == ',' || c == '+')
+            {
+                if (count == separators.length)
+                {
+                    int[] bigger = new int[count * 2];
+                    System.arraycopy(separators, 0, bigger, 0, count);
+                    separators = bigger;
+                }
+                separators[count++] = (pos << 1) | ((c == ',') ? 1 : 0);
+                if (c == ',')
+                    rdnCount++;
+            }
+            pos++;
+        }
+
+        RDN[] rdns = new RDN[rdnCount];
+        int rdn = rdnCount - 1;                     // (the first RDN in the string is the lowest)
+        int start = 0;
+        int firstPlus = 0;                          // index (in separators) of the first separator of the current RDN
+        for (int i = 0; i <= count; i++)
+        {
+            boolean last = (i == count);
+            if (last || (separators[i] & 1) == 1)
+            {
+                int end = last ? len : (separators[i] >> 1);
+                rdns[rdn--] = makeRDN(ldapDN, start, end, last, separators, firstPlus, i);
+                start = end + 1;
+                firstPlus = i + 1;
+            }
+        }
+        return rdns;
+    }
+
+    /**
+     *    Makes an RDN from part of a DN string, passing on the positions of its '+'
+     *    separators (so it needn't find them itself) if the trimmed RDN is a simple
+     *    substring of the DN.  The last (root) RDN is trimmed before it is parsed,
+     *    as DN(String) always has.
+     */
+
+    private static RDN makeRDN(String ldapDN, int start, int end, boolean trim, int[] separators, int from, int to)
+    {
+        if (trim)
+        {
+            while (start < end && ldapDN.charAt(start) <= ' ')
+                start++;
+            while (end > start && ldapDN.charAt(end - 1) <= ' ')
+                end--;
+        }
+
+        String text = ldapDN.substring(start, end);
+        RDN rdn = new RDN(text);
+
+        if (to == from)
+        {
+            rdn.setElements(SINGLE_VALUED);
+            return rdn;
+        }
+
+        String trimmed = rdn.toString();
+        int lead = 0;
+        if (trimmed != text)                        // (i.e. the RDN trimmed the text)
+        {
+            while (lead < text.length() && text.charAt(lead) <= ' ')
+                lead++;
+            if (!text.regionMatches(lead, trimmed, 0, trimmed.length()))
+                return rdn;                         // (the rare escaped final space; let the RDN work it out)
+        }
+
+        int[] elements = new int[to - from + 2];
+        elements[0] = -1;
+        for (int i = from; i < to; i++)
+            elements[i - from + 1] = (separators[i] >> 1) - start - lead;
+        elements[elements.length - 1] = trimmed.length();
+        rdn.setElements(elements);
+        return rdn;
+    }
+
+    /**
+     *    Finds the separators of the elements of an escaped (and trimmed) RDN string.
+     *
+     *    @param rdn the RDN (e.g. 'cn=fred+sn=nurk')
+     *    @return the element boundaries in the form RDN uses: -1, the position of each
+     *            unescaped '+', then the length of the string.
+     */
+
+    static int[] parseRDN(String rdn)
+    {
+        int len = rdn.length();
+        int[] elements = new int[4];
+        int count = 1;
+        elements[0] = -1;
+
+        int pos = 0;
+        while (pos < len)
+        {
+            char c = rdn.charAt(pos);
+            if (c == '\\')
+            {
+                pos += 2;
+                continue;
+            }
+            else if (c == '"')
+            {
+                pos = skipQuotes(rdn, pos);
+                if (pos == -1)
+                    break;
+            }
+            else if (c == '+')
+            {
+                if (count + 1 >= elements.length)
+                {
+                    int[] bigger = new int[elements.length * 2];
+                    System.arraycopy(elements, 0, bigger, 0, count);
+                    elements = bigger;
+                }
+                elements[count++] = pos;
+            }
+            pos++;
+        }
+        elements[count++] = len;
+
+        int[] result = new int[count];
+        System.arraycopy(elements, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     *    Finds the end of a quoted section; quotes preceded by a '\' escape don't count.
+     *
+     *    @param text the string being parsed
+     *    @param quote the position of the opening quote
+     *    @return the position of the closing quote, or -1 if there isn't one.
+     */
+
+    private static int skipQuotes(String text, int quote)
+    {
+        int len = text.length();
+        int pos = quote + 1;
+        while (pos < len)
+        {
+            char c = text.charAt(pos);
+            if (c == '\\')
+                pos += 2;
+            else if (c == '"')
+                return pos;
+            else
+                pos++;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,164 @@
+package com.ca.commons.naming;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.InvalidNameException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *  Checks the single pass DN lexer (and the single pass unescaping) against the
+ *  NameUtility.next() based parsing it replaced, on the DNTest and RDNTest names and
+ *  on random ones.  (DNLexerBenchmark compares the time each takes.)
+ */
+public class DNLexerTest extends TestCase
+{
+    private static final String[] NAMES = {
+            DNTest.bigComplicatedDN, DNTest.anotherComplicatedDN, DNTest.DEbigComplicatedDN, DNTest.strangeDN,
+            RDNTest.SMALL_RDN, RDNTest.TRIPLE_RDN, RDNTest.NASTY_RDN, RDNTest.SMALL_MULTIVALUED_RDN,
+            "cn=\"quoted, with a comma+and a plus\"+sn=x,o=\"un\\\"terminated,c=au",
+            "cn=trailing\\ ,o=x\\\\,c=au\\ ", " cn = spaced , o=x  ", "cn=a\\,b+sn=c\\+d,ou=e\\=f,c=\\E5\\B0\\8F"
+    };
+
+    // mostly the characters that mean something in a DN
+    private static final char[] ALPHABET = {'a', 'B', '3', 'c', 'E', '5', ' ', '=', '=', ',', ',', '+', '\\', '\\', '"', ';', '#', '\u00e9', '\u5c0f'};
+
+    public DNLexerTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DNLexerTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    /**
+     * The old DN(String) parse: the RDN strings, lowest RDN first, found with NameUtility.next().
+     */
+    static ArrayList<String> splitOld(String ldapDN)
+    {
+        ArrayList<String> rdns = new ArrayList<String>();
+        int start = 0;
+        int end = NameUtility.next(ldapDN, 0, ',');
+        while (end != -1)
+        {
+            rdns.add(ldapDN.substring(start, end));
+            start = end + 1;
+            end = NameUtility.next(ldapDN, start, ',');
+        }
+        rdns.add(ldapDN.substring(start).trim());
+        return rdns;
+    }
+
+    /**
+     * The old RDN.parseMultiValued(): the elements of an RDN, found with NameUtility.next().
+     */
+    static ArrayList<String> elementsOld(String rdn)
+    {
+        ArrayList<String> elements = new ArrayList<String>();
+        int start = 0;
+        int pos;
+        while ((pos = NameUtility.next(rdn, start, '+')) > -1)
+        {
+            elements.add(rdn.substring(start, pos));
+            start = pos + 1;
+        }
+        elements.add(rdn.substring(start));
+        return elements;
+    }
+
+    /**
+     * Checks the lexer splits a DN exactly as the old code did.
+     */
+    private static void check(String ldapDN)
+    {
+        ArrayList<String> expected = splitOld(ldapDN);
+        RDN[] rdns = DNLexer.parseDN(ldapDN);
+        assertEquals(ldapDN, expected.size(), rdns.length);
+
+        for (int i = 0; i < rdns.length; i++)
+        {
+            RDN old = new RDN(expected.get(rdns.length - 1 - i));
+            RDN rdn = rdns[i];
+            assertEquals(ldapDN, old.toString(), rdn.toString());
+
+            ArrayList<String> elements = elementsOld(old.toString());
+            assertEquals(ldapDN, elements, Arrays.asList(rdn.getElements()));
+            assertEquals(ldapDN, elements, Arrays.asList(new RDN(old.toString()).getElements()));   // (parsed by the RDN itself)
+            assertEquals(ldapDN, elements.size() > 1, rdn.isMultiValued());
+        }
+    }
+
+    private static String randomName(Random random, int length)
+    {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        return new String(chars);
+    }
+
+    public void testKnownNames()
+    {
+        for (String name : NAMES)
+            check(name);
+
+        assertEquals(new DN(DNTest.bigComplicatedDN).toString(), DNTest.bigComplicatedDN);
+        RDN multi = new DN(DNTest.bigComplicatedDN).getLowestRDN();
+        assertEquals("cn", multi.getAttID(0));
+        assertEquals("bloggs", multi.getRawVal("sn"));
+    }
+
+    public void testFuzz()
+    {
+        Random random = new Random(4514);
+        for (int i = 0; i < 20000; i++)
+        {
+            String name = randomName(random, 1 + random.nextInt(40));
+            if (name.trim().length() > 0)
+                check(name);
+        }
+    }
+
+    public void testUnescape()
+        throws Exception
+    {
+        assertEquals("Sue,Grabbit+Run", NameUtility.unescape("Sue\\,Grabbit\\+Run"));
+        assertEquals("\u5c0f\u7b20", NameUtility.unescape("\\E5\\B0\\8F\\E7\\AC\\A0"));
+        assertEquals("caf\u00e9 \u5c0f, bar\r", NameUtility.unescape("caf\u00e9 \\e5\\b0\\8f\\, bar\\0D"));
+        assertEquals("a\\41", NameUtility.unescape("a\\\\41"));       // an escaped slash is not the start of a hex pair
+        assertEquals("space ", NameUtility.unescape("space\\"));      // (the jndi trailing space bug)
+
+        String[] bad = {"x\\4", "x\\4g", "x\\q"};
+        for (String value : bad)
+        {
+            try
+            {
+                NameUtility.unescape(value);
+                fail("expected an InvalidNameException for " + value);
+            }
+            catch (InvalidNameException e) {}
+        }
+
+        // escaped, and hex escaped, random values come back as they went in
+        Random random = new Random(2253);
+        for (int i = 0; i < 5000; i++)
+        {
+            String value = randomName(random, 1 + random.nextInt(20));
+            assertEquals(value, NameUtility.unescape(NameUtility.escape(value)));
+
+            StringBuffer hex = new StringBuffer();
+            for (byte b : value.getBytes("UTF-8"))
+                hex.append('\\').append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+            assertEquals(value, NameUtility.unescape(hex.toString()));
+        }
+    }
+}
@@ -13,6 +13,7 @@ import javax.naming.InvalidNameException;
 import javax.naming.NamingException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 
 
 /**
@@ -301,5 +302,94 @@ public class DNTest extends TestCase
         assertEquals("fifth element should be c=us", list.get(5).toString(), "c=us");
     }
 
+    public void testHashCode()
+    {
+        DN dn = new DN("cn=Fred,ou=Legal,o=pegacat,c=au");
+        DN same = new DN("CN=fred, OU=legal,o=Pegacat,c=AU");
+        assertEquals(dn, same);
+        assertEquals(dn.hashCode(), same.hashCode());
+
+        HashMap<DN, String> map = new HashMap<DN, String>();
+        map.put(dn, "fred");
+        assertEquals("fred", map.get(same));
+        assertEquals("fred", map.get(new DN("cn=nigel," + dn).getParent()));
+        assertNull(map.get(dn.getParent()));
+
+        DN changed = new DN(same);
+        changed.setLowestRDNRawValue("nigel");
+        assertFalse(dn.equals(changed));
+        assertFalse(dn.hashCode() == changed.hashCode());
+        assertEquals(dn, same);                              // the copy we changed doesn't affect the original
+        assertEquals(new DN("cn=nigel,ou=legal,o=pegacat,c=au").hashCode(), changed.hashCode());
+    }
+
+    public void testSharedRDNs()
+        throws InvalidNameException
+    {
+        DN dn = new DN(bigComplicatedDN);
+        DN parent = dn.getParent();
+        DN grandParent = parent.getParent();
+        DN prefix = (DN) dn.getPrefix(2);
+        assertEquals(grandParent, prefix);
+        assertEquals(new DN(RDN1 + ',' + RDN0), prefix);
+
+        // changing a parent doesn't affect the child, or vice versa
+        parent.add("cn=other");
+        dn.remove(0);
+        grandParent.setRDN(new RDN("o=changed"), 1);
+        prefix.reverse();
+
+        assertEquals(new DN(RDN3 + ',' + RDN2 + ',' + RDN1), dn);
+        assertEquals(new DN("cn=other," + RDN2 + ',' + RDN1 + ',' + RDN0), parent);
+        assertEquals(new DN("o=changed," + RDN0), grandParent);
+        assertEquals(new DN(RDN0 + ',' + RDN1), prefix);
+        assertTrue(parent.startsWith(prefix) == false);
+        assertTrue(parent.startsWith(grandParent.getParent()));
+
+        DN copy = new DN(dn);
+        copy.add(0, "c=au");
+        copy.clear();
+        assertEquals(3, dn.size());
+        assertEquals(bigComplicatedDN.substring(0, bigComplicatedDN.lastIndexOf(',')), dn.toString());
 
+        try
+        {
+            dn.get(3);
+            fail("expected an ArrayIndexOutOfBoundsException");
+        }
+        catch (ArrayIndexOutOfBoundsException e) {}
+    }
+
+    /**
+     * RDNs handed out by a DN, and RDNs given to it, can be changed without changing the
+     * DN (or the DNs it shares its RDNs with), or leaving its cached string and hash stale.
+     */
+    public void testRDNsNotChangedByCallers()
+        throws InvalidNameException
+    {
+        DN dn = new DN("cn=fred,ou=legal,o=pegacat,c=au");
+        DN copy = new DN(dn);
+        DN parent = dn.getParent();
+        int hash = dn.hashCode();
+        String string = dn.toString();
+
+        dn.getLowestRDN().setRawVal("nigel");
+        dn.getRDN(1).setRawVal("illegal");
+        ((RDN) dn.remove(0)).setRawVal("nz");
+        assertEquals(new DN("cn=fred,ou=legal,o=pegacat"), dn);
+        assertEquals(string, copy.toString());
+        assertEquals(hash, copy.hashCode());
+        assertEquals(new DN("ou=legal,o=pegacat,c=au"), parent);
+
+        RDN rdn = new RDN("cn=erik");          // e.g. a tree node's RDN, later edited in place
+        DN child = new DN(parent);
+        child.add(rdn);
+        DN renamed = new DN(child);
+        renamed.setRDN(rdn, 3);
+        hash = child.hashCode();
+        rdn.setRawVal("nigel");
+        assertEquals("cn=erik,ou=legal,o=pegacat,c=au", child.toString());
+        assertEquals(child, renamed);
+        assertEquals(hash, new DN("cn=erik,ou=legal,o=pegacat,c=au").hashCode());
+    }
 }
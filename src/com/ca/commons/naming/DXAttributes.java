@@ -2,6 +2,7 @@
 package com.ca.commons.naming;
 
 import com.ca.commons.cbutil.*;
+import com.ca.commons.jndi.SchemaIndex;
 import com.ca.commons.jndi.SchemaOps;
 
 import javax.naming.*;
@@ -9,6 +10,8 @@ import javax.naming.directory.*;
 
 import java.text.Collator;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -50,21 +53,31 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
 
     boolean schemaChecked = false;      // indicates a schema search has been made, and a full list of objectclass(s) attribute obtained
 
-    DXAttribute allObjectClasses;         // a list of allObjectClasses, including parents.
+    DXAttribute allObjectClasses;         // a list of allObjectClasses, including parents (reset when the attributes change).
 
     Vector orderedSOCs = new Vector();  // structural object classes, in deepest-first order
 
     static SchemaOps schema;            // the schema context
 
     static Hashtable knownParents = new Hashtable(30);      // hash of DXAttributes containing the known object class parents for a particular object class subset (e.g. 'inetorgperson' -> 'orgperson','person','top')
-    static Hashtable knownSubSets = new Hashtable(30);      // hash of known object class subsets
     static Hashtable objectClassDepths = new Hashtable(30); // hash of known object class 'depths' in object class inheritance tree
 
+    // the object class closures worked out so far, keyed by the signature of the object class values they were worked out from.
+    private static final ConcurrentHashMap<String, ObjectClassClosure> closures = new ConcurrentHashMap<String, ObjectClassClosure>(64);
+    private static long closureSchemaVersion = -1;     // the version of the schema the closures (and the hashtables above) were worked out from
+    private static final AtomicLong closureHits = new AtomicLong();
+    private static final AtomicLong closureMisses = new AtomicLong();
+
     public static final String STRUCTURAL_NODE = "structuralTreeNode";  // a synthetic node used only for tree display
 
     private final static Logger log = Logger.getLogger(DXAttributes.class.getName());
 
     static
+    {
+        setSyntheticObjectClassDepths();
+    }
+
+    private static void setSyntheticObjectClassDepths()
     {
         objectClassDepths.put("top", new Integer(0));
 
@@ -409,6 +422,7 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
 
         Attribute old = get(attr.getID().toLowerCase());
         schemaChecked = false;
+        allObjectClasses = null;
 
         if (old!=null)
         {
@@ -471,6 +485,7 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
     public Attribute remove(java.lang.String attrID)
     {
         schemaChecked = false;
+        allObjectClasses = null;
         return (Attribute) atts.remove(attrID.toLowerCase());
     }
 
@@ -523,15 +538,22 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
         if (allObjectClasses != null) // cache for reuse
             return allObjectClasses;
 
+        allObjectClasses = getAllObjectClasses(getObjectClassAttribute());
+
+	    return allObjectClasses; // null if there is no object class attribute
+    }
+
+    /**
+     * @return the object class attribute as it is (i.e. without any parent classes the directory may have left out), or null.
+     */
+    private DXAttribute getObjectClassAttribute()
+    {
 		DXAttribute att = get("objectclass");
         if (att == null)
             att = get("objectClass");  // try both forms for good luck.
         if (att == null)
             att = get("oc");  // backward compatibility for eTrust directory which uses 'oc' as a synonym.
-
-        allObjectClasses = att;
-
-	    return getAllObjectClasses(att); // returns null if att is null
+        return att;
     }
 
     /**
@@ -550,13 +572,92 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
     {
         if (oc==null) return null; // no object classes (may be virtual entry such as DSA prefix)
 
-        if (knownSubSets.containsKey(oc))
-            return(DXAttribute) knownSubSets.get(oc);
+        return getObjectClassClosure(oc).toAttribute(oc.getID());
+    }
 
-        try
+    /**
+     *    Returns the complete, ordered set of object classes (and the attributes they allow) for
+     *    a set of object class values.  These are cached for each distinct set of values, so that
+     *    displaying another entry with the same object classes costs a hash lookup.  The cache
+     *    is thrown away when the schema changes.
+     *
+     *    @param oc an object class attribute (possibly missing some parent classes)
+     *    @return the closure of the object classes
+     */
+    public static ObjectClassClosure getObjectClassClosure(Attribute oc)
+    {
+        String signature = getSignature(oc);
+
+        SchemaOps currentSchema = schema;
+        checkClosureSchemaVersion(currentSchema == null ? 0 : currentSchema.getSchemaVersion());
+
+        ObjectClassClosure closure = closures.get(signature);
+        if (closure != null)
         {
-            DXAttribute orig = new DXAttribute(oc);
+            closureHits.incrementAndGet();
+            return closure;
+        }
 
+        closureMisses.incrementAndGet();
+        synchronized (DXAttributes.class)   // the hashtables used to work it out are shared
+        {
+            closure = makeObjectClassClosure(oc, currentSchema);
+        }
+        ObjectClassClosure existing = closures.putIfAbsent(signature, closure);
+        return (existing == null) ? closure : existing;
+    }
+
+    /**
+     * Discards the cached object class closures (and the inheritance tables they are
+     * worked out from) if they were worked out from a different schema.
+     */
+    private static synchronized void checkClosureSchemaVersion(long schemaVersion)
+    {
+        if (schemaVersion == closureSchemaVersion)
+            return;
+
+        closures.clear();
+        knownParents.clear();
+        objectClassDepths.clear();
+        setSyntheticObjectClassDepths();
+        attributeNames.clear();
+        closureSchemaVersion = schemaVersion;
+    }
+
+    /**
+     * The cache key for a set of object class values; the same whatever order the values are in.
+     */
+    private static String getSignature(Attribute oc)
+    {
+        int size = oc.size();
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++)
+        {
+            try
+            {
+                values[i] = String.valueOf(oc.get(i));
+            }
+            catch (NamingException e)   // can't happen with BasicAttributes
+            {
+                values[i] = "";
+            }
+        }
+        Arrays.sort(values);
+
+        StringBuilder signature = new StringBuilder(size * 16);
+        for (String value : values)
+            signature.append(value).append('\u0000');
+        return signature.toString();
+    }
+
+    /**
+     * Works out the closure of a set of object classes from the schema.
+     */
+    private static ObjectClassClosure makeObjectClassClosure(Attribute oc, SchemaOps currentSchema)
+    {
+        DXAttribute fullOC = new DXAttribute(oc);        // (leave the entry's own attribute alone)
+        try
+        {
             Enumeration vals = oc.getAll();
             while (vals.hasMoreElements())
             {
@@ -567,23 +668,99 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
                     while (parentVals.hasMoreElements())
                     {
                         String parent = (String) parentVals.nextElement();
-                        if (oc.contains(parent) == false)
+                        if (fullOC.contains(parent) == false)
                         {
-                            oc.add(parent);
+                            fullOC.add(parent);
                         }
                     }
                 }
             }
 
-            DXAttribute fullOC = sortOCByDepth(oc);
-            knownSubSets.put(orig, fullOC);
-            return fullOC;
+            fullOC = sortOCByDepth(fullOC);
         }
         catch (NamingException e)
         {
             log.log(Level.WARNING, "NamingException in getAllObjectClasses ", e);
-            return oc;
         }
+
+        String[] objectClasses = new String[fullOC.size()];
+        for (int i = 0; i < objectClasses.length; i++)
+        {
+            try
+            {
+                objectClasses[i] = String.valueOf(fullOC.get(i));
+            }
+            catch (NamingException e)   // can't happen with BasicAttributes
+            {
+                objectClasses[i] = "";
+            }
+        }
+
+        // merge the MUST and MAY lists of all the classes, using consistent ldap names
+        LinkedHashMap<String, String> mandatory = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, String> optional = new LinkedHashMap<String, String>();
+        if (currentSchema != null && fullOC.contains(SchemaOps.SCHEMA_FAKE_OBJECT_CLASS_NAME) == false)
+        {
+            SchemaIndex index = currentSchema.getSchemaIndex();
+            for (String objectClass : objectClasses)
+            {
+                SchemaIndex.ObjectClass definition = index.getObjectClass(objectClass);
+                if (definition == null)
+                {
+                    log.warning("Possible Schema Error: class definition for " + objectClass + " could not be found");
+                    continue;
+                }
+                addLdapNames(definition.getMust(), mandatory);
+                addLdapNames(definition.getMay(), optional);
+            }
+        }
+        for (String id : mandatory.keySet())
+            optional.remove(id);
+
+        return new ObjectClassClosure(objectClasses,
+                mandatory.values().toArray(new String[mandatory.size()]),
+                optional.values().toArray(new String[optional.size()]));
+    }
+
+    /**
+     * Adds the consistent ldap names of a list of attribute names or OIDs, keyed by lower case name.
+     */
+    private static void addLdapNames(String[] attributeNames, LinkedHashMap<String, String> names)
+    {
+        for (String attributeName : attributeNames)
+        {
+            //XXX ;binary hack.  Note attributeName is usually a string 'cn' but is sometimes an OID 1.4.0.88.whatever
+            if (attributeName.indexOf(";binary")>0) attributeName = attributeName.substring(0,attributeName.indexOf(";binary"));
+
+            String ldapName = ldapName(attributeName);
+            String key = ldapName.toLowerCase();
+            if (names.containsKey(key) == false)
+                names.put(key, ldapName);
+        }
+    }
+
+    /**
+     * @return the number of times an object class closure has been found in the cache.
+     */
+    public static long getObjectClassCacheHits()
+    {
+        return closureHits.get();
+    }
+
+    /**
+     * @return the number of times an object class closure has had to be worked out from the schema.
+     */
+    public static long getObjectClassCacheMisses()
+    {
+        return closureMisses.get();
+    }
+
+    /**
+     * @return the number of object class closures currently cached.
+     */
+    public static int getObjectClassCacheSize()
+    {
+        return closures.size();
     }
 
     /**
@@ -592,7 +769,7 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
      *    to be set (which is done by getParentObjectClasses() ).
      */
 
-    protected static DXAttribute sortOCByDepth(Attribute oc)
+    protected static synchronized DXAttribute sortOCByDepth(Attribute oc)
     {
         DXAttribute ret = new DXAttribute("objectClass");
         ret.setOrdered(true);
@@ -645,7 +822,7 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
      *    @return an attribute containing the child class and all parents
      */
 
-    public static DXAttribute getParentObjectClasses(String childOC)
+    public static synchronized DXAttribute getParentObjectClasses(String childOC)
         throws NamingException
     {
         if (schema == null) // in the absence of a schema, everything is at level '1', just below 'top'
@@ -666,14 +843,12 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
         String schemaParent = null;
         try
         {
-            //schemaParents = schema.getAttributes("ClassDefinition/" + childOC, new String[] {"SUP"});
-            Attributes schemaDef = schema.getAttributes("ClassDefinition/" + childOC);
-            if (schemaDef!=null)
-            {
-                Attribute sup = schemaDef.get("SUP");
-                if (sup!=null)
-                    schemaParent = (String)sup.get();
-            }
+            if (schema.getSchemaIndex().hasGroup("objectClasses") == false)
+                throw new NameNotFoundException("no object classes in schema");
+
+            SchemaIndex.ObjectClass schemaDef = schema.getSchemaIndex().getObjectClass(childOC);
+            if (schemaDef!=null && schemaDef.getSuperiors().length > 0)
+                schemaParent = schemaDef.getSuperiors()[0];
         }
         catch (NamingException e) // easily throws a name-not-found exception
         {
@@ -790,90 +965,31 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
         if (get(STRUCTURAL_NODE)!=null)
             return;
 
-        Attribute oc = getAllObjectClasses();
-
-        try
+        DXAttribute oc = getObjectClassAttribute();
+        if (oc == null)
         {
-        // Quick Hack to eliminate 'fake attributes' used for top level of syntaxes...
-        //XXX Might want to redo if efficiency is ever a concern :-)
-
-            if (oc.contains(SchemaOps.SCHEMA_FAKE_OBJECT_CLASS_NAME) )
-                return;  // ignore the synthetic 'schema' object classes...
-
-            NamingEnumeration ocs = oc.getAll();
-
-            // cycle through all object classes, finding attributes for each
-            while (ocs.hasMore())
-            {
-                String objectClass = (String)ocs.next();
-                Attributes ocAttrs = schema.getAttributes("ClassDefinition/" + objectClass);
-//FIXSCHEMA                
-                Attribute mustAtt = ocAttrs.get("MUST");  // get mandatory attribute IDs
-                Attribute mayAtt  = ocAttrs.get("MAY");   // get optional attribute IDs
-
-                if (mustAtt != null)
-                {
-                    NamingEnumeration musts = mustAtt.getAll();
-                    while (musts.hasMore())
-                    {
-                        String attributeName = (String) musts.next();
-
-                        //XXX ;binary hack.  Note attributeName is usually a string 'cn' but is sometimes an OID 1.4.0.88.whatever
-                        if (attributeName.indexOf(";binary")>0) attributeName = attributeName.substring(0,attributeName.indexOf(";binary"));
-
-                        String ldapName = getldapName(attributeName);
-
-                        //registerOID(attributeName, ldapName);
-                        if (get(ldapName)==null)                                  // if we don't already have this attribute...
-                        {
-                            put(new DXAttribute(ldapName));   // ... add it to the list
-                            //CB empty atts now. put(new DXAttribute(getldapName(attributeName), null));   // ... add it to the list
-                        }
-
-                        if (must.contains(ldapName.toLowerCase())==false)            // and if it isn't already mandatory
-                        {
-                            must.add(ldapName.toLowerCase());                        // ... add it to the mandatory list as well
-                        }
-                    }
-                }
+            log.warning("ERROR: unable to read list of object classes from schema - some functionality will not be available");
+            return;
+        }
 
-                if (mayAtt != null)
-                {
-                    NamingEnumeration mays = mayAtt.getAll();
-                    while (mays.hasMore())
-                    {
-                        String attOID = (String) mays.next();
-                        //XXX isNonString hack
-                        if (attOID.indexOf(";binary")>0) attOID = attOID.substring(0,attOID.indexOf(";binary"));
+        // Quick Hack to eliminate 'fake attributes' used for top level of syntaxes...
+        if (oc.contains(SchemaOps.SCHEMA_FAKE_OBJECT_CLASS_NAME) )
+            return;  // ignore the synthetic 'schema' object classes...
 
-                        String ldapName = getldapName(attOID);
-                        //registerOID(attOID, ldapName);
+        ObjectClassClosure closure = getObjectClassClosure(oc);   // usually already known, from another entry with the same object classes.
 
-                        if (get(ldapName)==null)   // if we don't already have this one...
-                        {
-                            put(new DXAttribute(ldapName));   // ... add it to the list
-                            //put(new DXAttribute(getldapName(attOID), null));   // ... add it to the list
-                        }
-                    }
-                }
-            }
-        }
-        catch (NamingException e)
+        for (String ldapName : closure.getMandatoryIDs())
         {
-            log.log(Level.WARNING, "unable to read attribute list for object classes: ", e);
-            try
-            {
-                CBUtility.printEnumeration(oc.getAll());
-            }
-            catch (NamingException e2)
-            {
-                log.warning("...(further error: can't print object class list)...");
-            }
-            return;
+            if (get(ldapName)==null)                                  // if we don't already have this attribute...
+                put(new DXAttribute(ldapName));                       // ... add it to the list
+
+            must.add(ldapName.toLowerCase());                         // ... and add it to the mandatory list as well
         }
-        catch (NullPointerException e)
+
+        for (String ldapName : closure.getOptionalIDs())
         {
-            log.log(Level.WARNING, "ERROR: unable to read list of object classes from schema - some functionality will not be available", e);
+            if (get(ldapName)==null)                                  // if we don't already have this one...
+                put(new DXAttribute(ldapName));                       // ... add it to the list
         }
     }
 
@@ -892,6 +1008,11 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
      */
 
     public String getConsistentAttributeName(String attributeName)
+    {
+        return consistentAttributeName(attributeName);
+    }
+
+    private static String consistentAttributeName(String attributeName)
     {
         if (attributeNames.containsKey(attributeName))
             return (String) attributeNames.get(attributeName);
@@ -928,6 +1049,11 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
      */
 
     public String getldapName(String attOID)
+    {
+        return ldapName(attOID);
+    }
+
+    private static String ldapName(String attOID)
     {
         if (schema == null)  // if we don't have a functioning 'schema' link, give up.
             return attOID;
@@ -935,7 +1061,7 @@ public class DXAttributes implements Attributes, Iterable<DXAttribute>
         if (schema.knownOID(attOID)) // if this works, we have an old fashioned numeric OID to translate
             return schema.translateOID(attOID);
 
-        return getConsistentAttributeName(attOID); // if we're here, make sure we return a 'consistent' attribute name
+        return consistentAttributeName(attOID); // if we're here, make sure we return a 'consistent' attribute name
     }
 
     public String toString()
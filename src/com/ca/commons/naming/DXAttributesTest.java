@@ -8,6 +8,7 @@ package com.ca.commons.naming;
 
 import junit.framework.*;
 import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.ldap.LdapContext;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.Attribute;
@@ -220,4 +221,107 @@ public class DXAttributesTest extends TestCase
             fail("Getting the deletion set shouldn't fail.");
         }
     }
+
+    private static BasicAttribute schemaAttribute(String name, String[] values)
+    {
+        BasicAttribute att = new BasicAttribute(name);
+        for (String value : values)
+            att.add(value);
+        return att;
+    }
+
+    private static SchemaOps makeSchema()
+    {
+        BasicAttributes rawSchema = new BasicAttributes();
+        rawSchema.put(schemaAttribute("objectClasses", new String[] {
+                "( 2.5.6.0 NAME 'top' ABSTRACT MUST objectClass )",
+                "( 2.5.6.6 NAME 'person' SUP top STRUCTURAL MUST ( sn $ cn ) MAY ( userPassword $ telephoneNumber $ description ) )",
+                "( 2.5.6.7 NAME 'organizationalPerson' SUP person STRUCTURAL MAY ( title $ ou ) )",
+                "( 2.16.840.1.113730.3.2.2 NAME 'inetOrgPerson' SUP organizationalPerson STRUCTURAL MAY ( mail $ uid $ jpegPhoto;binary ) )",
+                "( 1.1.1 NAME 'extra' SUP top AUXILIARY MUST ( mail ) MAY ( 2.5.4.13 ) )"}));
+        rawSchema.put(schemaAttribute("attributeTypes", new String[] {
+                "( 2.5.4.0 NAME 'objectClass' SYNTAX 1.3.6.1.4.1.1466.115.121.1.38 )",
+                "( 2.5.4.3 NAME ( 'cn' 'commonName' ) SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )",
+                "( 2.5.4.4 NAME ( 'sn' 'surname' ) SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )",
+                "( 2.5.4.13 NAME 'description' SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )",
+                "( 2.5.4.11 NAME 'ou' SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )",
+                "( 2.5.4.12 NAME 'title' SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )",
+                "( 2.5.4.20 NAME 'telephoneNumber' SYNTAX 1.3.6.1.4.1.1466.115.121.1.50 )",
+                "( 2.5.4.35 NAME 'userPassword' SYNTAX 1.3.6.1.4.1.1466.115.121.1.40 )",
+                "( 0.9.2342.19200300.100.1.1 NAME 'uid' SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )",
+                "( 0.9.2342.19200300.100.1.3 NAME 'mail' SYNTAX 1.3.6.1.4.1.1466.115.121.1.26 )",
+                "( 0.9.2342.19200300.100.1.60 NAME 'jpegPhoto' SYNTAX 1.3.6.1.4.1.1466.115.121.1.28 )"}));
+        return new SchemaOps(rawSchema);
+    }
+
+    private static DXAttributes person(String cn, String[] objectClasses)
+    {
+        DXAttributes atts = new DXAttributes();
+        atts.put(schemaAttribute("objectClass", objectClasses));
+        atts.put(new BasicAttribute("cn", cn));
+        return atts;
+    }
+
+    public void testObjectClassClosure()
+        throws NamingException
+    {
+        DXAttributes.setDefaultSchema(makeSchema());
+        try
+        {
+            DXAttributes fred = person("fred", new String[] {"inetOrgPerson", "extra"});
+            Attribute oc = fred.getAllObjectClasses();
+            assertEquals(5, oc.size());
+            assertEquals("inetOrgPerson", oc.get(0));
+            assertEquals("organizationalPerson", oc.get(1));
+            assertTrue(oc.contains("person") && oc.contains("extra"));     // (both one below top)
+            assertEquals("top", oc.get(4));
+            assertEquals(2, fred.get("objectClass").size());   // the entry's own object classes are left alone
+
+            fred.expandAllAttributes();
+            assertTrue(fred.getMandatoryIDs().contains("sn"));
+            assertTrue(fred.getMandatoryIDs().contains("mail"));
+            assertTrue(fred.getMandatoryIDs().contains("objectclass"));
+            assertFalse(fred.getMandatoryIDs().contains("uid"));
+            assertNotNull(fred.get("uid"));
+            assertNotNull(fred.get("jpegPhoto"));
+            assertNotNull(fred.get("description"));     // listed by OID
+
+            ObjectClassClosure closure = DXAttributes.getObjectClassClosure(fred.get("objectClass"));
+            for (String id : closure.getOptionalIDs())
+                assertFalse(id, "mail".equals(id));     // mandatory for one class, optional for another -> mandatory
+        }
+        finally
+        {
+            DXAttributes.setDefaultSchema(null);
+        }
+    }
+
+    public void testObjectClassCache()
+        throws NamingException
+    {
+        SchemaOps schema = makeSchema();
+        DXAttributes.setDefaultSchema(schema);
+        try
+        {
+            person("first", new String[] {"person", "organizationalPerson"}).expandAllAttributes();
+
+            long hits = DXAttributes.getObjectClassCacheHits();
+            long misses = DXAttributes.getObjectClassCacheMisses();
+
+            DXAttributes second = person("second", new String[] {"organizationalPerson", "person"});   // same classes; different order
+            second.expandAllAttributes();
+            assertEquals("person", second.getAllObjectClasses().get(1));
+            assertEquals(misses, DXAttributes.getObjectClassCacheMisses());
+            assertTrue(DXAttributes.getObjectClassCacheHits() > hits);
+
+            schema.reloadSchema();      // a new schema version throws the cache away
+            person("third", new String[] {"person", "organizationalPerson"}).expandAllAttributes();
+            assertEquals(misses + 1, DXAttributes.getObjectClassCacheMisses());
+            assertEquals(1, DXAttributes.getObjectClassCacheSize());
+        }
+        finally
+        {
+            DXAttributes.setDefaultSchema(null);
+        }
+    }
 }
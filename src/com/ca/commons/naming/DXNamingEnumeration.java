@@ -31,12 +31,18 @@ import javax.naming.*;
  *     (Since it's not a 'dynamic' enumeration as a normal naming enumeration
  *     would be, but uses a vector base object), and also allows the enumeration
  *     to be dumped out as a vector or a string array :-) .
+ *
+ *     It can also be created in 'streaming' mode, wrapping a live NamingEnumeration
+ *     (such as a paged search) which is only read as the enumeration is consumed.  Any
+ *     of the 'whole list' methods (size(), sort(), toArray() etc.) will read the rest of
+ *     the live enumeration into memory first, after which it behaves as normal.
  */
  
 public class DXNamingEnumeration implements NamingEnumeration
 {
     private int pointer = 0;
     private ArrayList data;
+    private NamingEnumeration source = null;   // a live enumeration still being read in streaming mode (null otherwise)
 
         // get a single platform specific language collator for use in sorting.
     private static Collator myCollator = Collator.getInstance();
@@ -96,6 +102,49 @@ public class DXNamingEnumeration implements NamingEnumeration
                 add(ne.nextElement());
     }
 
+    /**
+     *    Wraps another NamingEnumeration, optionally without reading it.  In
+     *    streaming mode the wrapped enumeration is only read as this enumeration
+     *    is consumed, and elements are not kept once they have been returned,
+     *    so large results (e.g. paged searches) need not be held in memory.
+     *    @param ne the enumeration to wrap.
+     *    @param streaming whether to read the wrapped enumeration lazily.
+     */
+
+    public DXNamingEnumeration(NamingEnumeration ne, boolean streaming)
+    {
+        data = new ArrayList();
+        if (streaming)
+            source = ne;
+        else if (ne!=null)
+            while (ne.hasMoreElements())
+                add(ne.nextElement());
+    }
+
+    /**
+     *    Returns whether this enumeration is still reading from a live
+     *    enumeration (i.e. was created in streaming mode and has not
+     *    yet been fully read).
+     *    @return true if there is an unread live enumeration.
+     */
+    public boolean isStreaming() { return source != null; }
+
+    /**
+     *    Reads any remaining elements from a live (streaming) enumeration
+     *    into memory.  Does nothing if the enumeration is not streaming.
+     *    @return itself, fully read.
+     */
+    public DXNamingEnumeration readAll()
+    {
+        if (source != null)
+        {
+            while (source.hasMoreElements())
+                data.add(source.nextElement());
+            close();
+        }
+        return this;
+    }
+
     /**
      *    A convenience constructor to wrap an existing ArrayList.
      *    Note that since the enumeration is supposed to be read-only,
@@ -111,13 +160,13 @@ public class DXNamingEnumeration implements NamingEnumeration
      *    Adds an object to the enumeration.
      *    @param o object to be added.
      */        
-    public void add(Object o)        { data.add(o); }
+    public void add(Object o)        { readAll(); data.add(o); }
 
     /**
      *    Removes an object from the enumeration.
      *    @param o the object to be removed.
      */        
-    public void remove(Object o)        { data.remove(o); }
+    public void remove(Object o)        { readAll(); data.remove(o); }
     
     
     /** 
@@ -125,21 +174,33 @@ public class DXNamingEnumeration implements NamingEnumeration
      *    nice though... this resets the enumeration so you can reread it,
      *    which is useful for debugging (i.e. you can print it before use...)
      */
-    public void reset()              { pointer = 0; }
+    public void reset()              { readAll(); pointer = 0; }
     
     /**
      *    Not really necessary, this returns the number of elements in the
      *    enumeration.
      *    @return number of objects in enumeration
      */
-    public int size()                { return data.size(); }
+    public int size()                { readAll(); return data.size(); }
     
     /* 
      *    identical in ftn to hasMoreElements().  In future, this may
      *    throw NamingEnumerationExceptions.
      *    @return true if more elements are available.
      */
-    public boolean hasMore()         { return (pointer < data.size()); }
+    public boolean hasMore()
+    {
+        if (pointer < data.size())
+            return true;
+
+        if (source != null)
+        {
+            if (source.hasMoreElements())
+                return true;
+            close();      // live enumeration finished
+        }
+        return false;
+    }
     
     /*
      *    standard enumeration ftn.
@@ -154,10 +215,13 @@ public class DXNamingEnumeration implements NamingEnumeration
      */        
     public Object next() throws NoSuchElementException
     {
-        try
-        { return data.get(pointer++); }
-        catch (ArrayIndexOutOfBoundsException e)
-        { throw new NoSuchElementException(); }
+        if (pointer < data.size())
+            return data.get(pointer++);
+
+        if (hasMore())
+            return source.nextElement();   // streaming - not retained
+
+        throw new NoSuchElementException();
     }    
     
     /*
@@ -166,8 +230,54 @@ public class DXNamingEnumeration implements NamingEnumeration
      *    @return returns the next element in the enumeration.
      */        
     public Object nextElement() throws NoSuchElementException { return next(); }
-    
-    
+
+    /**
+     *    As hasMore(), but reads a streaming source with its own hasMore(), so that an error
+     *    part way through (e.g. reading a later page of a paged search) is thrown rather than
+     *    looking like the end of the results.  The source is closed either way.
+     *
+     *    @return true if more elements are available.
+     *    @throws NamingException if the streaming source could not be read.
+     */
+    public boolean hasMoreChecked() throws NamingException
+    {
+        if (pointer < data.size())
+            return true;
+
+        if (source != null)
+        {
+            try
+            {
+                if (source.hasMore())
+                    return true;
+            }
+            catch (NamingException e)
+            {
+                close();
+                throw e;
+            }
+            close();      // live enumeration finished
+        }
+        return false;
+    }
+
+    /**
+     *    As next(), but throws any error reading a streaming source; see hasMoreChecked().
+     *
+     *    @return returns the next element in the enumeration.
+     */
+    public Object nextChecked() throws NamingException
+    {
+        if (pointer < data.size())
+            return data.get(pointer++);
+
+        if (hasMoreChecked())
+            return source.next();   // streaming - not retained
+
+        throw new NoSuchElementException();
+    }
+
+
     /**
      *    <p>This method attempts to order the components of the
      *    SimpleEnumeration using their intrinsic 'toString()'
@@ -177,6 +287,7 @@ public class DXNamingEnumeration implements NamingEnumeration
      
     public DXNamingEnumeration sort()
     {
+        readAll();
         Collections.sort(data, new SimpleComparator());
 
         return this;
@@ -192,6 +303,7 @@ public class DXNamingEnumeration implements NamingEnumeration
 
     public DXNamingEnumeration fastSort()
     {
+        readAll();
         Collections.sort(data);
 
         return this;
@@ -204,18 +316,30 @@ public class DXNamingEnumeration implements NamingEnumeration
       
     public boolean contains(Object test)
     {
+        readAll();
         return data.contains(test);
     }
     
     /** 
     *    Included for Naming Enumeration compatibility... does nothing,
     *    'cause DXNamingEnumeration isn't really an enumeration, and
-    *    has already slurped all the data... :-)
+    *    has already slurped all the data... :-)  (Unless it is streaming,
+    *    in which case the unread remainder of the live enumeration is abandoned.)
     */
-    public void close() {;} 
+    public void close()
+    {
+        if (source == null) return;
+        try
+        {
+            source.close();
+        }
+        catch (NamingException e) {;}   // nothing useful to do; we're finished with it anyway
+        source = null;
+    }
     
     public String toString()  // mainly used for debugging
     {
+        readAll();
         StringBuffer ret = new StringBuffer();
         for (int i=0; i<data.size(); i++)
         {
@@ -227,12 +351,14 @@ public class DXNamingEnumeration implements NamingEnumeration
     
     public Object[] toArray()
     {
+        readAll();
         return data.toArray();
     } 
      
     
     public String[] toStringArray()
     {
+        readAll();
         String[] ret = new String[data.size()];
         for (int i=0; i<data.size(); i++)
         {
@@ -242,5 +368,5 @@ public class DXNamingEnumeration implements NamingEnumeration
         return ret; 
     } 
  
-    public ArrayList getArrayList() { return data; }
+    public ArrayList getArrayList() { readAll(); return data; }
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +42,16 @@ public class DXOps extends AdvancedOps
         super(cData);
     }
 
+    /**
+     * Tree workers use DXOps as well, so that names are parsed the same way.
+     */
+
+    protected AdvancedOps createTreeWorker(LdapContext workerCtx)
+            throws NamingException
+    {
+        return new DXOps(workerCtx);
+    }
+
 
     /**
      * This preparses a name, preparitory to passing to the jndi operation.
@@ -194,48 +205,113 @@ public class DXOps extends AdvancedOps
     public NamingEnumeration postParseNameClassPairs(NamingEnumeration names, Name base)
     {
         log.finer("parsing with base :" + base.toString());
-        DXNamingEnumeration dxe = new DXNamingEnumeration();
 
         String baseString = null;
 
         if (base != null && base.isEmpty() == false)
             baseString = base.toString();
 
-        try
+        return new PostParsedEnumeration(names, baseString);
+    }
+
+    /**
+     * Re-formats the names of an enumeration as they are read, so that large (e.g. paged)
+     * searches are passed on as they arrive rather than being read into memory first.  If the
+     * underlying enumeration fails part way through, hasMore() throws the error; hasMoreElements(),
+     * which can't, reports it and ends the enumeration, leaving the caller with the entries read so far.
+     */
+    private class PostParsedEnumeration implements NamingEnumeration
+    {
+        private final NamingEnumeration names;
+        private final String baseString;
+        private int count = 0;
+        private NamingException failure = null;
+
+        PostParsedEnumeration(NamingEnumeration names, String baseString)
         {
-            while (names.hasMore())
-            {
-                NameClassPair ncp = (NameClassPair) names.next();
+            this.names = names;
+            this.baseString = baseString;
+        }
 
-                String rawName = postParseString(ncp.getName()).toString();
+        public boolean hasMore()
+                throws NamingException
+        {
+            if (failure != null)
+                throw failure;
 
-                // IMPORTANT!
-                // This appends the 'base' DN to the enumerated DNs in order to get absolute DNs...
+            try
+            {
+                return names.hasMore();
+            }
+            catch (NamingException ex)
+            {
+                failure = ex;
+                throw ex;
+            }
+        }
+
+        public boolean hasMoreElements()
+        {
+            if (failure != null)
+                return false;
 
-                if (ncp.isRelative() && baseString != null)
+            try
+            {
+                return hasMore();
+            }
+            catch (NamingException ex)
+            {
+                String msg = CBIntText.get("Search partially failed! - only {0} entries returned.", new Integer[]{new Integer(count)});
+                if (ex instanceof SizeLimitExceededException)
                 {
-                    if (rawName.length() != 0)
-                        rawName = rawName + "," + baseString;
-                    else
-                        rawName = baseString;
+                    msg = msg + "\n" +  CBIntText.get("(Consider using paged results; see 'Advanced Options -> Ldap Limits.)");
                 }
+                CBUtility.error(msg, ex);
+                return false;
+            }
+        }
+
+        public Object next()
+                throws NamingException
+        {
+            NameClassPair ncp = (NameClassPair) names.next();
 
-                log.finer("ended up with: '" + rawName + "'");
-                ncp.setName(rawName);
-                dxe.add(ncp);
+            String rawName = postParseString(ncp.getName()).toString();
+
+            // IMPORTANT!
+            // This appends the 'base' DN to the enumerated DNs in order to get absolute DNs...
+
+            if (ncp.isRelative() && baseString != null)
+            {
+                if (rawName.length() != 0)
+                    rawName = rawName + "," + baseString;
+                else
+                    rawName = baseString;
             }
+
+            log.finer("ended up with: '" + rawName + "'");
+            ncp.setName(rawName);
+            count++;
+            return ncp;
         }
-        catch (NamingException ex)
+
+        public Object nextElement()
         {
-            String msg = CBIntText.get("Search partially failed! - only {0} entries returned.", new Integer[]{new Integer(dxe.size())});
-            if (ex instanceof SizeLimitExceededException)
+            try
             {
-                msg = msg + "\n" +  CBIntText.get("(Consider using paged results; see 'Advanced Options -> Ldap Limits.)");
+                return next();
+            }
+            catch (NamingException e)
+            {
+                throw new NoSuchElementException(e.getMessage());
             }
-            CBUtility.error(msg, ex);
         }
 
-        return dxe;
+        public void close()
+                throws NamingException
+        {
+            names.close();
+        }
     }
 
 
@@ -344,6 +420,67 @@ System.out.println("ended up with: '" + rawName + "'");
         return postParseNameClassPairs(super.rawSearchSubTree(searchbase, filter, limit, timeout, returnAttributes), searchbase);
     }
 
+    /**
+     * Overload the corresponding method in JNDIOps to return full DNs, as the other searches do.
+     *
+     * @param searchbase the search base
+     * @param filter the search filter
+     * @param returnAttributes the attributes to return in the search
+     * @param pageSize the number of entries per page, or NO_PAGING
+     *
+     * @return the search result
+     *
+     * @throws NamingException if unable to perform the search
+     */
+    public NamingEnumeration pagedSearchSubTree(Name searchbase, String filter, String[] returnAttributes, int pageSize)
+            throws NamingException
+    {
+        return postParseNameClassPairs(super.pagedSearchSubTree(searchbase, filter, returnAttributes, pageSize), searchbase);
+    }
+
+    /**
+     * Overload the corresponding method in JNDIOps to return full DNs, as the other searches do.
+     *
+     * @param searchbase the node in the tree to expand
+     * @param pageSize the number of entries per page, or NO_PAGING
+     *
+     * @return the children of the search base
+     *
+     * @throws NamingException if unable to perform the search
+     */
+    public NamingEnumeration pagedList(Name searchbase, int pageSize)
+            throws NamingException
+    {
+        return postParseNameClassPairs(super.pagedList(searchbase, pageSize), searchbase);
+    }
+
+    /**
+     * Overload the corresponding method in JNDIOps to return full DNs, as the other searches do.
+     *
+     * @param searchbase the node in the tree to expand
+     * @param sortAttribute the attribute to sort the children by
+     * @param pageSize the number of entries per page
+     *
+     * @return the children of the search base
+     *
+     * @throws NamingException if unable to perform the search
+     */
+    public NamingEnumeration sortedList(Name searchbase, String sortAttribute, int pageSize)
+            throws NamingException
+    {
+        NamingEnumeration sorted = super.sortedList(searchbase, sortAttribute, pageSize);
+        try
+        {
+            sorted.hasMore();   // so that a server that can't sort by the attribute fails here, and the caller can list the children unsorted
+        }
+        catch (NamingException e)
+        {
+            sorted.close();
+            throw e;
+        }
+        return postParseNameClassPairs(sorted, searchbase);
+    }
+
     /**
      * Update a new entry with the designated DN with the values of the old entry.
      * If the old entry is null, this becomes an 'add'; if the new entry is null, this becomes a 'delete',
@@ -148,7 +148,7 @@ public class LdifEntry extends DXEntry
                         return "objectclass:  error - no object class found";
 
                     for (String ocValue: objectClasses )
-                        ldifData.append(LdifUtility.ldifEncode(this.getAllObjectClasses().getID(), ocValue));
+                        LdifUtility.ldifEncode(ldifData, this.getAllObjectClasses().getID(), ocValue);
 
                     // write out the other attributes
                     for (DXAttribute att: getAttArrayList())
@@ -156,7 +156,7 @@ public class LdifEntry extends DXEntry
                         if (!att.isObjectClass())     // skip the object class
                             if (!att.getID().equals(CHANGE_TYPE_ATTRIBUTE)) // skip the change type attribute (handled implicitly above)
                                 for (Object value: att.getValues())  // empty attributes will be skipped
-                                    ldifData.append(LdifUtility.ldifEncode(att.getID(), value));
+                                    LdifUtility.ldifEncode(ldifData, att.getID(), value);
                     }
 
                     break;
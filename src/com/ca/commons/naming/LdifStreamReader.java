@@ -8,14 +8,19 @@ import java.io.*;
  * We overload buffered reader / line number reader to create a reader that returns pre-joined lines from
  * the LDIF file (e.g. splices together all those multi-line attribute values...).
  *
+ * The lines are joined in a single buffer that is reused from line to line, so that long folded values
+ * (e.g. base64 encoded photos and certificates) are copied once, rather than once per continuation line.
+ *
  * (c) Chris Betts; Pegacat Software (http://pegacat.com)
  */
 public class LdifStreamReader extends LineNumberReader
 {
     String nextLine;
-    String currentLine = "";
+    CharSequence currentLine = "";
     boolean firstLine = true;
 
+    private final StringBuilder buffer = new StringBuilder(256);  // the joined line being read; reused for each line
+
     public LdifStreamReader(Reader reader)
             throws IOException
     {
@@ -30,45 +35,48 @@ public class LdifStreamReader extends LineNumberReader
      */
     public String readLine()
                 throws IOException
+    {
+        CharSequence line = readJoinedLine();
+        return (line == null) ? null : line.toString();
+    }
+
+    /**
+     * Returns the next full attribute text of an LDIF file, as readLine() does, but without copying it
+     * into a new String.  The returned text is only valid until the next line is read; after that the
+     * buffer holding it is reused.
+     * @return the joined line, or null at the end of the stream.
+     * @throws IOException
+     */
+    public CharSequence readJoinedLine()
+                throws IOException
     {
         if (nextLine == null)  // stream ended
             return null;
 
-        String current = "";
-
-        do
-        {
-            current = current + nextLine;
-            nextLine = super.readLine();
+        buffer.setLength(0);
+        buffer.append(nextLine);
 
-        }
-        while (nextLineContinues()); // modifies nextLine
+        while ((nextLine = super.readLine()) != null && nextLine.length() > 0 && nextLine.charAt(0) == ' ')
+            appendContinuation(nextLine);
 
-        return current;
+        currentLine = buffer;
+        return buffer;
     }
 
     /**
-     * This checks whether the 'nextLine' instance variable is a line continuation (e.g. has a leading space as per RFC 2849)
-     * @return
+     * Adds a line continuation (e.g. a line with a leading space as per RFC 2849) to the buffer,
+     * without the leading space.
+     * @param continuation
      */
-    private boolean nextLineContinues()
+    private void appendContinuation(String continuation)
     {
-        if (nextLine == null)
-            return false;
-
-        int len = nextLine.length();
-        if (len>0 && nextLine.charAt(0)==' ')
-        {
-            nextLine = nextLine.substring(1);
-
-            //XXX A special (and inefficient) hack for a private project - allow an initial '>' to represent a line feed for readability of multi line text
-            //XXX in an LDIF file.  Note - this is *not* standard LDIF!
-            if (len>1 && nextLine.charAt(0) == '>')  // hack for user-readible line wraps... non-standard, but allowable in groupmind application.
-                nextLine = "\n" + ((len>2)?nextLine.substring(1):"");
+        int len = continuation.length();
 
-            return true;
-        }
+        //XXX A special hack for a private project - allow an initial '>' to represent a line feed for readability of multi line text
+        //XXX in an LDIF file.  Note - this is *not* standard LDIF!
+        if (len>1 && continuation.charAt(1) == '>')  // hack for user-readible line wraps... non-standard, but allowable in groupmind application.
+            buffer.append('\n').append(continuation, 2, len);
         else
-            return false;
+            buffer.append(continuation, 1, len);
     }
 }
@@ -1,10 +1,13 @@
 package com.ca.commons.naming;
 
+import com.ca.commons.cbutil.CBBase64;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * (c) Chris Betts; Pegacat Software (http://pegacat.com)
@@ -91,4 +94,37 @@ public class LdifStreamReaderTest extends TestCase
 
            assertEquals(expectedOutput, fileData.toString());
        }
+
+       public void testLineFeedHack()
+               throws Exception
+       {
+           LdifStreamReader reader = new LdifStreamReader(new StringReader("description: first\n >second\n third\nsn: x\n"));
+
+           assertEquals("description: first\nsecondthird", reader.readJoinedLine().toString());
+           assertEquals("sn: x", reader.readLine());
+           assertNull(reader.readJoinedLine());
+       }
+
+       public void testLargeBinaryValue()
+               throws Exception
+       {
+           byte[] photo = new byte[300000];
+           new Random(42).nextBytes(photo);
+           photo[0] = (byte) 0xFF;      // never valid utf-8, so it stays binary
+
+           String ldif = "dn: cn=photo,o=test\n" +
+                   "jpegPhoto:: " + CBBase64.binaryToString(photo, 12) + "\n" +
+                   "\n";
+
+           LdifStreamReader reader = new LdifStreamReader(new StringReader(ldif));
+           LdifEntry entry = new LdifUtility().readLdifEntry(reader);
+
+           assertEquals("cn=photo,o=test", entry.getDN().toString());
+           assertTrue(Arrays.equals(photo, (byte[]) entry.get("jpegPhoto").get()));
+           int lines = 0;
+           for (int i = 0; i < ldif.length(); i++)
+               if (ldif.charAt(i) == '\n')
+                   lines++;
+           assertEquals(lines, reader.getLineNumber());       // every folded line is still counted
+       }
 }
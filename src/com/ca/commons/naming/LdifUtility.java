@@ -121,8 +121,7 @@ public class LdifUtility
             {
                 byte b[] = (byte[]) attributeValue;
 
-
-                ldifData.append(CBBase64.binaryToString(b, offset)).append("\n");
+                CBBase64.encode(b, ldifData, CBBase64.LDIF_LINE_LENGTH, offset).append("\n");
                 return ldifData.toString();
             }
             catch (ClassCastException e)
@@ -137,7 +136,7 @@ public class LdifUtility
         // already; e.g. a gif file should (probably) be translated to a 
         // byte array before being passed to this ftn.    
 
-        ldifData.append(CBBase64.binaryToString(attributeValue.toString().getBytes(), offset)).append("\n");
+        CBBase64.encode(attributeValue.toString().getBytes(), ldifData, CBBase64.LDIF_LINE_LENGTH, offset).append("\n");
         return ldifData.toString();
     }
 
@@ -157,14 +156,35 @@ public class LdifUtility
      */
     public static String ldifEncode(String attributeID, Object attributeValue)
     {
-        StringBuffer ldifData = new StringBuffer();
-        String val = ldifEncode(attributeValue, attributeID.length());
-        if (val == null || val.length() == 0)
+        StringBuffer ldifData = new StringBuffer(attributeID.length() + 40);
+        if (!ldifEncode(ldifData, attributeID, attributeValue))
             return "";
-        ldifData.append(attributeID).append(val).append("\n");
         return ldifData.toString();
     }
 
+    /**
+     * As ldifEncode(String, Object), but appends the encoded attribute value pair straight
+     * on to the end of a buffer (e.g. the text of a whole entry), so that large binary
+     * values are base64 encoded into place without any intermediate strings.
+     *
+     * @param ldifData       the buffer to append to
+     * @param attributeID
+     * @param attributeValue
+     * @return false (and nothing is appended) if the value is not valid.
+     */
+    public static boolean ldifEncode(StringBuffer ldifData, String attributeID, Object attributeValue)
+    {
+        int start = ldifData.length();
+        ldifData.append(attributeID);
+        if (!ldifEncode(attributeValue, attributeID.length(), ldifData))
+        {
+            ldifData.setLength(start);
+            return false;
+        }
+        ldifData.append("\n");
+        return true;
+    }
+
     /**
      * This is used to write a value that is *probably* normal
      * string encoded, but *may* need to be base64 encoded or xml encoded.  It
@@ -184,6 +204,20 @@ public class LdifUtility
 
 
     public static String ldifEncode(Object o, int offset)
+    {
+        StringBuffer ldifData = new StringBuffer();
+        return ldifEncode(o, offset, ldifData) ? ldifData.toString() : null;
+    }
+
+    /**
+     * As ldifEncode(Object, int), but appends the encoding (with its colons) to a buffer.
+     *
+     * @param o        the object to be ldif encoded
+     * @param offset   the length of the attribute name at the start of the line.
+     * @param ldifData the buffer to append the encoding to
+     * @return false (and nothing is appended) if the object is an array, but not a byte array.
+     */
+    public static boolean ldifEncode(Object o, int offset, StringBuffer ldifData)
     {
         boolean base64Encode = false;
 
@@ -196,13 +230,13 @@ public class LdifUtility
                 try
                 {
                     byte b[] = (byte[]) o;
-                    String ret = ":: " + CBBase64.binaryToString(b, offset + 3);
-                    return ret;
+                    CBBase64.encode(b, ldifData.append(":: "), CBBase64.LDIF_LINE_LENGTH, offset + 3);
+                    return true;
                 }
                 catch (ClassCastException e)
                 {
                     log.warning("unable to cast array to byte array.");
-                    return null;
+                    return false;
                 }
             }
             // treat as a string anyway
@@ -211,7 +245,10 @@ public class LdifUtility
         int len = s.length();
 
         if (len == 0)
-            return ": ";  // this shouldn't really happen; null attributes should be culled before we get here...
+        {
+            ldifData.append(": ");  // this shouldn't really happen; null attributes should be culled before we get here...
+            return true;
+        }
 
 
         // run the rfc tests to see if this is a good and virtuous string
@@ -244,11 +281,13 @@ public class LdifUtility
             base64Encode = true;
 
         if (base64Encode)
-            return ":: " + translateToLdifBase64(s, offset);
+            translateToLdifBase64(s, offset, ldifData.append(":: "));
         else if (xmlEncode)
-            return ": " + translateToLdifXML(s);
+            ldifData.append(": ").append(translateToLdifXML(s));
         else
-            return ": " + s;                        // return unmodified string.
+            ldifData.append(": ").append(s);        // return unmodified string.
+
+        return true;
 
     }
 
@@ -257,21 +296,22 @@ public class LdifUtility
      *
      * @param s
      * @param offset
-     * @return base64 value of string.
+     * @param ldifData the buffer to append the base64 value of the string to.
      */
 
-    private static String translateToLdifBase64(String s, int offset)
+    private static void translateToLdifBase64(String s, int offset, StringBuffer ldifData)
     {
+        byte[] b;
         try
         {
-            s = CBBase64.binaryToString(s.getBytes("UTF8"), offset + 3);
+            b = s.getBytes("UTF8");
         }
         catch (UnsupportedEncodingException e) // why would we get this when utf8 is mandatory across all java platforms?
         {
             log.log(Level.WARNING, "error utf8 encoding strings...", e);
-            s = CBBase64.binaryToString(s.getBytes(), offset + 3);
+            b = s.getBytes();
         }
-        return s;
+        CBBase64.encode(b, ldifData, CBBase64.LDIF_LINE_LENGTH, offset + 3);
     }
 
 
@@ -315,7 +355,7 @@ public class LdifUtility
      * @param replacementPrefix an optional replacement for a portion of the dn
      */
 
-    public void writeLdifEntry(DXEntry entry, FileWriter saveFile, String originalPrefix, String replacementPrefix)
+    public void writeLdifEntry(DXEntry entry, Writer saveFile, String originalPrefix, String replacementPrefix)
             throws NamingException, IOException
     {
 
@@ -348,8 +388,7 @@ public class LdifUtility
             System.out.println(ldifData);
         else
         {
-            saveFile.write(ldifData);
-            saveFile.flush();
+            saveFile.write(ldifData);     // (the caller flushes the writer when it is finished; buffered writers save much faster)
         }
     }
 
@@ -364,10 +403,10 @@ public class LdifUtility
      */
 
 
-    public void ldifDecode(String attributeText, LdifEntry newEntry)
+    public void ldifDecode(CharSequence attributeText, LdifEntry newEntry)
             throws NamingException
     {
-        if (attributeText.startsWith("-"))  // this is the separator for changetype:modify attribute operations... I don't think we actually need to handle it though?
+        if (attributeText.length() > 0 && attributeText.charAt(0) == '-')  // this is the separator for changetype:modify attribute operations... I don't think we actually need to handle it though?
             return;
 
         Object[] attributeValuePair = ldifDecodeAttribute(attributeText);
@@ -430,14 +469,24 @@ public class LdifUtility
     }
 
 
-    public Object[] ldifDecodeAttribute(String attributeText)
+    /**
+     * Splits a (joined) line of LDIF text into its attribute name and value, decoding
+     * base64 values.  The text may be the reused line buffer of an LdifStreamReader;
+     * nothing returned refers to it.
+     *
+     * @param attributeText the ldif text line
+     * @return a two element array of the attribute name and its value (a String, or a
+     * byte array for binary values).
+     * @throws NamingException if the line has no ':' separator
+     */
+    public Object[] ldifDecodeAttribute(CharSequence attributeText)
             throws NamingException
     {
-        int breakpos = attributeText.indexOf(':');
+        int breakpos = indexOf(attributeText, ':');
         if (breakpos < 0)
             throw new NamingException("Error - no ':' separator found in attribute text");
 
-        String attributeID = attributeText.substring(0, breakpos);
+        String attributeID = attributeText.subSequence(0, breakpos).toString();
         Object value = null;
 
         int attLen = attributeID.length();
@@ -459,7 +508,7 @@ public class LdifUtility
         {
             if (attributeText.charAt(attLen + 1) != ' ') // again, may be a leading space, or may not...
                 startpos = 1;
-            value = attributeText.substring(attLen + startpos);
+            value = attributeText.subSequence(attLen + startpos, attributeText.length()).toString();
 
             // expand the value parameters, including the urls
             value = expandValueParams(value);
@@ -469,28 +518,44 @@ public class LdifUtility
         return new Object[]{attributeID, value};
     }
 
+    private static int indexOf(CharSequence text, char c)
+    {
+        int len = text.length();
+        for (int i = 0; i < len; i++)
+            if (text.charAt(i) == c)
+                return i;
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix)
+    {
+        int len = prefix.length();
+        if (text.length() < len)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (text.charAt(i) != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
     /**
      * rewrite to kick off explicitly from the start of the base64 text.
      */
-    private Object getBase64Value(String parseableLine, int startpos)
+    private Object getBase64Value(CharSequence parseableLine, int startpos)
     {
         if (parseableLine == null)
             throw new NullPointerException("null 'parseableLine' passed to getBase64Value");
 
         byte[] rawBinaryData;
 
-        String base64text = "";
-
-        if (parseableLine.charAt(startpos) == ' ') // may be ::XXXX or :: XXXX -> so must adjust for possible space
+        if (startpos < parseableLine.length() && parseableLine.charAt(startpos) == ' ') // may be ::XXXX or :: XXXX -> so must adjust for possible space
             startpos++;
 
-        base64text = parseableLine.substring(startpos);
-
-        rawBinaryData = CBBase64.stringToBinary(base64text);
+        rawBinaryData = CBBase64.decode(parseableLine, startpos, parseableLine.length());   // straight from the line to bytes; no intermediate strings
 
         if (rawBinaryData == null)
             //throw new NullPointerException("Unable to parse base64text:\n" + base64text);
-            throw new NullPointerException("Null Pointer exception parsing line (" + lineNumber + ") in LDIF file: + " + fileName + "\n line: " + base64text);
+            throw new NullPointerException("Null Pointer exception parsing line (" + lineNumber + ") in LDIF file: + " + fileName + "\n line: " + parseableLine.subSequence(startpos, parseableLine.length()));
 
         // a bit dodgy - we try to guess whether the isNonString data is UTF-8, or is really isNonString...
         // we should probably do some schema checking here, but instead we'll try to make an educated
@@ -556,12 +621,12 @@ public class LdifUtility
         {
             LdifEntry ldifEntry = new LdifEntry();
 
-            String line;
-            
-            while ((line = textReader.readLine()) != null)
+            CharSequence line;
+
+            while ((line = textReader.readJoinedLine()) != null)
             {
-                if (line.startsWith("version")) {}    // ignore
-                else if (line.startsWith("#"))  {}    // comment - ignore
+                if (startsWith(line, "version")) {}    // ignore
+                else if (startsWith(line, "#"))  {}    // comment - ignore
                 else if (line.length()==0)            // end of current LDIF entry (there may be more)
                 {
                     return ldifEntry;                 // usual exit point for function
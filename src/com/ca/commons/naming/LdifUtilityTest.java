@@ -1,6 +1,7 @@
 package com.ca.commons.naming;
 
 import com.ca.commons.cbutil.CBBase64;
+import com.ca.commons.cbutil.CBBase64EncodingException;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -9,7 +10,12 @@ import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.BasicAttribute;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
 
 
 public class LdifUtilityTest extends TestCase
@@ -89,6 +95,120 @@ public class LdifUtilityTest extends TestCase
     }
 
 
+    public void testBase64Folding()
+            throws Exception
+    {
+        byte[] zeros = new byte[60];     // 80 base64 characters
+        assertEquals(repeat('A', 64) + "\n " + repeat('A', 16), CBBase64.binaryToString(zeros, 12));
+        assertEquals(repeat('A', 76) + "\n " + repeat('A', 4), CBBase64.binaryToString(zeros));
+        assertEquals(repeat('A', 80), CBBase64.toBase64(zeros));
+
+        // every line fits in 76 columns, and unfolds to the unbroken encoding
+        byte[] data = randomBytes(1000);
+        for (int offset = 0; offset <= 76; offset += 7)
+        {
+            String folded = CBBase64.binaryToString(data, offset);
+            String[] lines = folded.split("\n");
+            assertTrue(lines[0].length() + offset <= 76);
+            for (int i = 1; i < lines.length; i++)
+            {
+                assertTrue(lines[i].length() <= 76);
+                assertEquals(' ', lines[i].charAt(0));
+            }
+            assertEquals(CBBase64.toBase64(data), folded.replace("\n ", ""));
+            assertEquals(folded, CBBase64.format(CBBase64.encode(data), offset));
+            assertTrue(Arrays.equals(data, CBBase64.decode(folded)));
+        }
+    }
+
+    public void testBase64Streams()
+            throws Exception
+    {
+        byte[] data = randomBytes(20000);
+
+        // write in awkward sized pieces, split across triplets
+        StringWriter base64 = new StringWriter();
+        CBBase64.EncoderStream encoder = new CBBase64.EncoderStream(base64, 76, 12);
+        for (int i = 0, len = 1; i < data.length; i += len, len = (len * 7) % 101 + 1)
+            encoder.write(data, i, Math.min(len, data.length - i));
+        encoder.close();
+        assertEquals(CBBase64.binaryToString(data, 12), base64.toString());
+
+        // and decode it again the same way, with windows line ends
+        String text = base64.toString().replace("\n", "\r\n");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CBBase64.DecoderWriter decoder = new CBBase64.DecoderWriter(bytes);
+        for (int i = 0, len = 1; i < text.length(); i += len, len = (len * 5) % 97 + 1)
+            decoder.write(text, i, Math.min(len, text.length() - i));
+        decoder.close();
+        assertTrue(Arrays.equals(data, bytes.toByteArray()));
+
+        for (int length = 0; length < 5; length++)    // padding
+        {
+            byte[] small = randomBytes(length);
+            StringBuffer buffer = new StringBuffer("jpegPhoto:: ");
+            assertEquals("jpegPhoto:: " + CBBase64.toBase64(small), CBBase64.encode(small, buffer, 76, 12).toString());
+            assertTrue(Arrays.equals(small, CBBase64.decode(buffer, 12, buffer.length())));
+        }
+    }
+
+    public void testBase64DecodingErrors()
+            throws Exception
+    {
+        assertEquals("ab", new String(CBBase64.stringToBinary(" Y\n W\r\n\tI=\f"), "US-ASCII"));
+        assertEquals("aa", new String(CBBase64.stringToBinary("YQ==YQ=="), "US-ASCII"));
+
+        assertNull(CBBase64.stringToBinary("YWJj*"));        // bad character
+        assertNull(CBBase64.stringToBinary("YWJ\u00e9"));
+        assertNull(CBBase64.stringToBinary("YWJ"));          // incomplete quad
+        assertNull(CBBase64.stringToBinary("Y==="));         // misplaced padding
+        assertNull(CBBase64.stringToBinary("YW=j"));
+        assertNull(CBBase64.stringToBinary("YR=="));         // trailing bits
+        assertNull(CBBase64.decode("YWJ*".getBytes("US-ASCII")));
+
+        try
+        {
+            CBBase64.decode("YWJj YW");
+            fail("expected exception decoding incomplete base64");
+        }
+        catch (CBBase64EncodingException e) {}   // expected
+
+        CBBase64.DecoderWriter decoder = new CBBase64.DecoderWriter(new ByteArrayOutputStream());
+        decoder.write("YWJj YW");
+        try
+        {
+            decoder.close();
+            fail("expected exception closing incomplete base64");
+        }
+        catch (IOException e) {}   // expected
+    }
+
+    public void testLdifEncodeBinaryIntoBuffer()
+    {
+        byte[] photo = randomBytes(300);
+        StringBuffer ldif = new StringBuffer("dn: cn=Fred,o=pegacat,c=au\n");
+        assertTrue(LdifUtility.ldifEncode(ldif, "jpegPhoto", photo));
+        assertEquals("dn: cn=Fred,o=pegacat,c=au\n" + LdifUtility.ldifEncode("jpegPhoto", photo), ldif.toString());
+        assertTrue(ldif.toString().startsWith("dn: cn=Fred,o=pegacat,c=au\njpegPhoto:: " + CBBase64.toBase64(photo).substring(0, 64) + "\n "));
+
+        assertFalse(LdifUtility.ldifEncode(ldif, "bloop", new int[] {1, 2}));
+        assertEquals("dn: cn=Fred,o=pegacat,c=au\n" + LdifUtility.ldifEncode("jpegPhoto", photo), ldif.toString());
+    }
+
+    private static String repeat(char c, int count)
+    {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] randomBytes(int length)
+    {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
     public void testLdifEncoding()
     {
         String attVal1 = "fnord";
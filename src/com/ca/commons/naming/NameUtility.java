@@ -177,63 +177,102 @@ public class NameUtility
 
 
 	/**
-	 *   handle ldap escaped characters as per rfc 2253
+	 *   handle ldap escaped characters as per rfc 2253 (and 4514)
 	 *   In short - ',', '+', '=', '<', '>', '#', ';', '"' are escaped with
-	 *   a backslash, and utf8 can be escaped as a hexpair backslash
+	 *   a backslash, and utf8 can be escaped as a hexpair backslash.
+	 *   This is done in a single pass; each run of hex pairs is decoded
+	 *   as utf8 as soon as it ends.
 	 *
 	 */
 	 
     private static String handleEscapedCharacters(String string)
 		throws InvalidNameException
     {
-		if (string.indexOf('\\') == -1)
+        int pos = string.indexOf('\\');
+		if (pos == -1)
 			return string;
 
-		boolean hasUTF8 = false; // whether a utf8 string has been found...
-		int pos;  // position of most recently found slash
-			
-		StringBuffer buffy = new StringBuffer(string);			
-			
-	    try
-	    {
-	        pos = string.indexOf("\\");
-	        while ( pos > -1)
-	        {  
-		        if (pos == buffy.length()-1) // XXX trailing escaped ' ' bug!
-		        {
-		            buffy.setCharAt(pos, ' '); //put the space back 
-		        }
-		        else
-				{
-					
-			        char c = buffy.charAt(pos+1);
+        int len = string.length();
+		StringBuilder buffy = new StringBuilder(len);
+        buffy.append(string, 0, pos);
+
+        byte[] utf8 = null;     // the current run of escaped hex pairs
+        int utf8Len = 0;
+
+        while (pos < len)
+        {
+            char c = string.charAt(pos);
+            int hex;
+            if (c != '\\')
+            {
+                utf8Len = flushUTF8(utf8, utf8Len, buffy);
+                buffy.append(c);
+                pos++;
+            }
+            else if (pos == len-1) // XXX trailing escaped ' ' bug!
+            {
+                utf8Len = flushUTF8(utf8, utf8Len, buffy);
+                buffy.append(' ');  //put the space back
+                pos++;
+            }
+            else if ((hex = hexValue(string.charAt(pos+1))) != -1)
+            {
+                int lo = (pos+2 < len) ? hexValue(string.charAt(pos+2)) : -1;
+                if (lo == -1)
+                    throw new InvalidNameException("second char of escaped hex couplet wasn't hex in name: '" + string + "' (NameUtility:handleEscapedCharacters() ).");
+
+                if (utf8 == null)
+                    utf8 = new byte[(len - pos) / 3 + 1];
+                utf8[utf8Len++] = (byte)((hex << 4) | lo);
+                pos += 3;
+            }
+            else if (("\",=+<>#;\\ ".indexOf(string.charAt(pos+1))) >= 0)
+            {
+                utf8Len = flushUTF8(utf8, utf8Len, buffy);
+                buffy.append(string.charAt(pos+1));   // remove leading slashes
+                pos += 2;
+            }
+            else
+            {
+                throw new InvalidNameException("illegal escaped character '" + string.charAt(pos+1) + "' in name: '" + string + "' (NameUtility:handleEscapedCharacters() ).");
+            }
+        }
+        flushUTF8(utf8, utf8Len, buffy);
+
+   		return buffy.toString();
+    }
 
-			        if (("\",=+<>#;\\ ".indexOf(c)) >= 0)   
-			        {
-						buffy.deleteCharAt(pos);   // remove leading slashes
-				    }
-					else if (("0123456789abcdefABCDEF").indexOf(c) >= 0)
-					{
-						hasUTF8 = true; // we'll cope with this seperately below...
-						pos += 2; // skip past the two hex digits and keep going...					
-					}
-					else
-					{
-						throw new InvalidNameException("illegal escaped character '" + c + "' in name: '" + string + "' (NameUtility:handleEscapedCharacters() ).");
-					}
-				}					
-				pos = buffy.toString().indexOf("\\",pos+1);  // try to find next slash to work on.
-	        }
-	    }
-	    catch (StringIndexOutOfBoundsException e)
-	    {
-	        throw new InvalidNameException("unparsable string '" + string + "' in NameUtility");
-	    }                
-			
-		if (hasUTF8)
-			return removeEscapedUTF(buffy.toString());
-		else			
-    		return buffy.toString();
+    /**
+     *   @return the value of a hex digit, or -1 if the character isn't one.
+     */
+
+    private static int hexValue(char c)
+    {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     *   Decodes a run of escaped utf8 bytes onto the end of a buffer.
+     *   @return 0 (the new length of the run)
+     */
+
+    private static int flushUTF8(byte[] utf8, int utf8Len, StringBuilder buffy)
+    {
+        if (utf8Len > 0)
+        {
+            try
+            {
+                buffy.append(new String(utf8, 0, utf8Len, "UTF8"));
+            }
+            catch (java.io.UnsupportedEncodingException e)  // can't happen; utf8 is always supported.
+            {
+                throw new IllegalStateException(e.toString());
+            }
+        }
+        return 0;
     }
 
 
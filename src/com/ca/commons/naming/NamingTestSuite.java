@@ -32,6 +32,7 @@ public class NamingTestSuite extends TestCase {
 		// The tests...
         suite.addTest(DNTest.suite());
         suite.addTest(RDNTest.suite());
+        suite.addTest(DNLexerTest.suite());
         suite.addTest(DXAttributesTest.suite());
         suite.addTest(DXAttributeTest.suite());
 		suite.addTest(NameUtilityTest.suite());
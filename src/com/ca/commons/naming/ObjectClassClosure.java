@@ -0,0 +1,71 @@
+package com.ca.commons.naming;
+
+/**
+ * The complete set of object classes implied by an entry's object class values (i.e. the
+ * values plus all their superior classes), ordered deepest first, along with the merged
+ * list of mandatory and optional attribute IDs of all those classes.  These are worked out
+ * once for each distinct set of object class values, and cached by DXAttributes for as
+ * long as the schema doesn't change.
+ *
+ * Closures are shared between entries and threads, and are never modified once made.
+ */
+public final class ObjectClassClosure
+{
+    private final String[] objectClasses;
+    private final String[] mandatoryIDs;
+    private final String[] optionalIDs;
+
+    ObjectClassClosure(String[] objectClasses, String[] mandatoryIDs, String[] optionalIDs)
+    {
+        this.objectClasses = objectClasses;
+        this.mandatoryIDs = mandatoryIDs;
+        this.optionalIDs = optionalIDs;
+    }
+
+    /**
+     * @return the number of object classes in the closure
+     */
+    public int size()
+    {
+        return objectClasses.length;
+    }
+
+    /**
+     * @param i the position of the object class; 0 is the deepest class, size()-1 is usually 'top'
+     * @return the object class
+     */
+    public String getObjectClass(int i)
+    {
+        return objectClasses[i];
+    }
+
+    /**
+     * @return a new, ordered, 'objectClass' attribute holding all the object classes, deepest first.
+     * @param id the ID to give the attribute (e.g. 'objectClass', or 'oc')
+     */
+    public DXAttribute toAttribute(String id)
+    {
+        DXAttribute ret = new DXAttribute(id);
+        ret.setOrdered(true);
+        for (String objectClass : objectClasses)
+            ret.add(objectClass);
+        return ret;
+    }
+
+    /**
+     * @return the (consistent) ldap names of the attributes the object classes MUST have.  The array is shared; don't modify it.
+     */
+    public String[] getMandatoryIDs()
+    {
+        return mandatoryIDs;
+    }
+
+    /**
+     * @return the (consistent) ldap names of the attributes the object classes MAY have, other than mandatory ones.
+     * The array is shared; don't modify it.
+     */
+    public String[] getOptionalIDs()
+    {
+        return optionalIDs;
+    }
+}
@@ -87,12 +87,13 @@ public class RDN
 
     private int status = UNTESTED;
 
+
     /**
-     *  Default number of allowable elements (before a manual array resize
-     *  must be done).
+     *  The cached normalised form of the RDN (see getNormalised()), or null if it
+     *  hasn't been worked out yet, or the RDN has changed since.
      */
 
-    private static int MAXELEMENTS = 16;  // maximum number of multi-valued attributes...
+    private String normalised = null;
 
     /**
      *    Empty constructor - creates an RDN with no values.
@@ -142,7 +143,10 @@ public class RDN
 
     public RDN(RDN copyMe)
     {
-        this(copyMe.ldapEscapedRDN);
+        ldapEscapedRDN = copyMe.ldapEscapedRDN;     // (already cleaned up by the constructor)
+        elements = copyMe.elements;                 // (replaced, never changed in place, so can be shared)
+        status = copyMe.status;
+        normalised = copyMe.normalised;
     }
 
     /**
@@ -162,7 +166,7 @@ public class RDN
 
         // work backwards from the second last position, deleting slashes
 
-        while (rdn.charAt(pos) == '\\')  // remember '\\' is a *single* slash!
+        while (pos >= 0 && rdn.charAt(pos) == '\\')  // remember '\\' is a *single* slash!
         {
             pos--;
         }
@@ -217,6 +221,8 @@ public class RDN
         else
             ldapEscapedRDN = rdnfragment;
 
+        normalised = null;
+
     }
 
     /**
@@ -336,6 +342,8 @@ public class RDN
     {
         validate();
 
+        normalised = null;
+
         if (status == SINGLEVALUED)
         {
             if (i==0)
@@ -611,34 +619,94 @@ if (debug)
     {
         if (test == null)
             return false;
-        else if (test.size() != size()) return false;
+        else if (test == this)
+            return true;
+
+        // XXX complex equality test for multi valued RDNs
+        // should be made here - e.g. ordering of RDN subelements
+        // shouldn't be important... in the meantime, we'll cheat.
+        //TE: Eventually this will come up as a bug...to do: sort the arrays
+        //TE: so that we avoid saying that two multivalued RDNs are different if in fact they are
+        //TE: the same but just ordered differently. [e.g cn=A+sn=B == sn=B+cn=A but this method will
+        //TE: return false].
+
+        return getNormalised().equals(test.getNormalised());   // the same as elementsEqual() on each element
+    }
+
+    /**
+     *   A hash code consistent with equals(RDN); i.e. of the normalised RDN.
+     */
 
-        if (isMultiValued())
+    public int hashCode()
+    {
+        return getNormalised().hashCode();
+    }
+
+    /**
+     *   Returns a normalised form of the RDN: each element as 'att=value', using the
+     *   unescaped value, with both folded to a single case (in the same way as
+     *   String.equalsIgnoreCase()), and the elements separated by a zero character.
+     *   Two RDNs are equal if, and only if, their normalised forms are the same.  The
+     *   normalised form is worked out once, and kept until the RDN is changed.
+     *   @return the normalised RDN
+     */
+
+    public String getNormalised()
+    {
+        String norm = normalised;
+        if (norm == null)
         {
-            // XXX complex equality test for multi valued RDNs
-            // should be made here - e.g. ordering of RDN subelements
-            // shouldn't be important... in the meantime, we'll cheat.
-            //TE: Eventually this will come up as a bug...to do: sort the arrays
-            //TE: so that we avoid saying that two multivalued RDNs are different if in fact they are
-            //TE: the same but just ordered differently. [e.g cn=A+sn=B == sn=B+cn=A but this method will
-            //TE: return false].
-
-            // el hack.
-
-            String[] atts = getAttIDs();
-            String[] vals = getRawVals();               // get unescaped unicode value
-            String[] testAtts = test.getAttIDs();
-            String[] testVals = test.getRawVals();      // get unescaped unicode value
-
-            for (int i=0; i<size(); i++)
-                if (!elementsEqual(atts[i], testAtts[i], vals[i], testVals[i]) )
-                    return false;
+            int noElements = size();
+            StringBuilder buffer = new StringBuilder(ldapEscapedRDN.length());
+            for (int i=0; i<noElements; i++)
+            {
+                if (i > 0)
+                    buffer.append('\u0000');
 
-            return true;
+                String element = getElement(i);
+                int pos = element.indexOf('=');
+                if (pos == -1)
+                {
+                    foldCase(getAttID(i), buffer);              // (i.e. the error strings)
+                    buffer.append('=');
+                    foldCase(getRawVal(i), buffer);
+                    continue;
+                }
+
+                foldCase(element.substring(0, pos), buffer);
+                buffer.append('=');
+                String raw = element.substring(pos+1);     // (as getRawVal(), without finding the element again)
+                try
+                {
+                    foldCase(NameUtility.unescape(raw), buffer);   // use unescaped unicode value
+                }
+                catch (Exception e)
+                {
+                    foldCase(getRawVal(i), buffer);
+                }
+            }
+            normalised = norm = buffer.toString();
         }
-        else
+        return norm;
+    }
+
+    /**
+     *   Appends a string to a buffer, folding each character to the case that
+     *   String.equalsIgnoreCase() effectively compares on.
+     */
+
+    private static void foldCase(String text, StringBuilder buffer)
+    {
+        int len = text.length();
+        int start = buffer.length();
+        buffer.append(text);
+        for (int i=0; i<len; i++)
         {
-            return elementsEqual(getAttID(), test.getAttID(), getRawVal(), test.getRawVal());  // use unescaped unicode value
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z')
+                buffer.setCharAt(start+i, (char)(c + ('a' - 'A')));
+            else if (c >= 128)
+                buffer.setCharAt(start+i, Character.toLowerCase(Character.toUpperCase(c)));
         }
     }
 
@@ -711,14 +779,25 @@ System.out.println(">>"+val2+"<<");
     {
         if (status != UNTESTED) return;  // nothing to do
 
-        if (NameUtility.next(ldapEscapedRDN, 0, '+') == -1)  // test for simplest case
+        setElements(DNLexer.parseRDN(ldapEscapedRDN));
+    }
+
+    /**
+     *    Sets the element boundaries of the RDN (see 'elements'), as found by DNLexer.
+     *    @param elements -1, the position of each unescaped '+', and the length of the rdn.
+     */
+
+    void setElements(int[] elements)
+    {
+        if (elements.length <= 2)
         {
             status = SINGLEVALUED;
+            this.elements = null;
         }
-        else  // things now get complicated and slow...
+        else
         {
             status = MULTIVALUED;
-            parseMultiValued(MAXELEMENTS);
+            this.elements = elements;
         }
     }
 
@@ -728,72 +807,10 @@ System.out.println(">>"+val2+"<<");
 
     private void parseMultiValued()
     {
-        parseMultiValued(MAXELEMENTS);
+        setElements(DNLexer.parseRDN(ldapEscapedRDN));
     }
 
 
-    private void parseMultiValued(int max)
-    {
-        if (max > 512)
-        {
-            System.err.println("wierd error in RDN - attempt to parse RDN with more than 512 sub units???");
-            return;
-        }
-
-        try
-        {
-            int[] temp = new int[max];
-
-            temp[0] = -1;  // each element is one *before* the next attval pair, including the first
-
-            int numElements = 0;
-            int pos = 0;
-
-if (debug) System.out.println("\n*** parsing multi valued rdn");
-if (debug) System.out.println("parsing " + ldapEscapedRDN);
-            while ((pos = NameUtility.next(ldapEscapedRDN, pos, '+'))>-1)
-            {
-                numElements++;
-                temp[numElements] = pos;
-
-if (debug) System.out.println("found " + numElements + " -th element at " + pos);
-
-                int pos1, pos2;
-                pos1 = temp[numElements-1] + 1;
-                pos2 = temp[numElements];
-if (debug) System.out.println(" = string " + pos1 + " -> " + pos2 + " = ");
-if (debug) System.out.println(ldapEscapedRDN.substring(pos1, pos2));
-
-                pos++;
-            }
-
-            numElements++;
-            temp[numElements] = ldapEscapedRDN.length();
-
-            int pos1, pos2;
-            pos1 = temp[numElements-1] + 1;
-            pos2 = temp[numElements];
-
-if (debug) System.out.println("found " + numElements + " -th element at " + pos + " = string " +
-             pos1 + " -> " + pos2 + " final len: " + ldapEscapedRDN.length());
-if (debug) System.out.println(" = '" + ldapEscapedRDN.substring(pos1, pos2) + "'");
-
-
-
-if (debug) System.out.println("found total of " + numElements + " elements...\n*****\n");
-
-            elements = new int[numElements+1];
-            System.arraycopy(temp, 0, elements, 0, numElements+1);
-        }
-        catch (IndexOutOfBoundsException e)
-        {
-if (debug) e.printStackTrace();
-            System.err.println("huge number of multi-valued RDN units - increasing to: " + max*2);
-            parseMultiValued(max*2);
-
-        }
-    }
-
     /**
      *    Checks whether the RDN is valid (i.e. has non null, correctly escaped elements).
      *    A (relatively) expensive operation.
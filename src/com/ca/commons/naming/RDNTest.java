@@ -106,5 +106,23 @@ public class RDNTest extends TestCase
         }
     }
 
-
+    public void testEqualsAndHashCode()
+        throws InvalidNameException
+    {
+        RDN rdn = new RDN("CN=Fred\\2c Nurk");
+        RDN same = new RDN("cn=fred\\, NURK");
+        assertEquals(rdn, same);
+        assertEquals(rdn.hashCode(), same.hashCode());
+        assertEquals(rdn.getNormalised(), same.getNormalised());
+
+        assertFalse(new RDN(TRIPLE_RDN).equals(new RDN("cn=fred+l=a")));
+        assertFalse(new RDN("cn=a\\+sn\\=b").equals(new RDN("cn=a+sn=b")));   // one value with a '+' isn't two values
+        assertEquals(new RDN(NASTY_RDN), new RDN(NASTY_RDN.toUpperCase()));
+
+        // the normalised form follows changes to the rdn
+        same.setRawVal("Nurk");
+        assertFalse(rdn.equals(same));
+        assertEquals(new RDN("cn=nurk"), same);
+        assertEquals(new RDN("cn=nurk").hashCode(), same.hashCode());
+    }
 }
@@ -7,7 +7,9 @@ import com.ca.commons.naming.DXAttribute;
 import com.ca.commons.naming.LdifUtility;
 import com.ca.commons.security.cert.CertViewer;
 import com.ca.directory.BuildNumber;
+import com.ca.directory.jxplorer.broker.DataBroker;
 import com.ca.directory.jxplorer.broker.JNDIDataBroker;
+import com.ca.directory.jxplorer.tree.SmartTree;
 
 import javax.swing.*;
 import java.io.File;
@@ -328,6 +330,27 @@ public class JXConfig
 
         setDefaultProperty("option.ldap.pageSize", "-1", "Sets the page size for paged results, if paged results are used.  (Generally 1000 is a good size)");
 
+        setDefaultProperty("option.ldap.listPageSize", "0", "the number of children read at a time when a node is expanded in the browse tree; the rest are read as 'next...' is clicked.  '0' reads them all at once (e.g. set 1000 for very large directories)");
+
+        setDefaultProperty("option.ldap.serverSort", "false", "set this to true to have nodes with more than a page of children listed in order by the server, if it supports server side sorting (and virtual list views)");
+
+        setDefaultProperty("option.ldap.brokerThreads", String.valueOf(DataBroker.DEFAULT_WORKERS), "the number of threads used to run directory operations concurrently; '1' runs operations one at a time, in order");
+
+        setDefaultProperty("option.ldap.pool.max", "4", "the maximum number of extra connections opened to the directory for concurrent operations; '0' uses a single connection");
+
+        setDefaultProperty("option.ldap.pool.min", "1", "the number of extra connections kept open while the directory is idle");
+
+        setDefaultProperty("option.ldap.pool.idleTimeout", "300", "the time (in seconds) after which unused extra connections are closed");
+
+        setDefaultProperty("option.ldap.treeThreads", "4", "the number of concurrent operations used to copy, move or delete a subtree; '1' walks the tree one entry at a time");
+
+        setDefaultProperty("option.ldif.importThreads", "3", "the number of LDIF entries written to the directory at once during an import; '1' imports entries one at a time, in order");
+        setDefaultProperty("option.ldif.exportPageSize", "500", "the number of entries read from the directory at a time when exporting a subtree to an LDIF file (if paging isn't otherwise on)");
+
+        setDefaultProperty("option.search.batchSize", "500", "the number of search results added to the search tree at a time, as they are read");
+        setDefaultProperty("option.search.expandLimit", "2000", "search result nodes are expanded as they are displayed until this many rows are showing; the rest are left closed");
+        setDefaultProperty("option.search.nodeLimit", String.valueOf(SmartTree.DEFAULT_SEARCH_NODE_LIMIT), "the number of search results shown in the search tree at first; the rest are added, this many at a time, by clicking on 'next n...'.  '0' shows them all");
+
         setDefaultProperty("option.ldap.browseAliasBehaviour", JNDIOps.DEFAULT_ALIAS_HANDLING, "jndi variable setting how aliases are handled while browsing: 'always','never','finding','searching'");        // behaviour when browsing tree (= 'finding')
 
         setDefaultProperty("option.ldap.searchAliasBehaviour", "searching", "jndi variable setting how aliases are handled while searching: 'always','never','finding','searching'");      // behaviour when making search request
@@ -183,9 +183,10 @@ public class JXplorerBrowser extends JFrame                     // Applet
         jndiBroker.setTimeout(JXConfig.getIntProperty("option.ldap.timeout", 0));
         jndiBroker.setLimit(JXConfig.getIntProperty("option.ldap.limit", 0));
         jndiBroker.setPaging(Boolean.parseBoolean(JXConfig.getProperty("option.ldap.pagedResults", "false")), JXConfig.getIntProperty("option.ldap.pageSize", 1000));
+        jndiBroker.setListPageSize(JXConfig.getIntProperty("option.ldap.listPageSize", 0));
+        jndiBroker.setServerSort(Boolean.parseBoolean(JXConfig.getProperty("option.ldap.serverSort", "false")));
 
-        jndiThread = new Thread(jndiBroker, "jndiBroker Thread");
-        jndiThread.start();
+        jndiThread = jndiBroker.startWorkers("jndiBroker Thread", JXConfig.getIntProperty("option.ldap.brokerThreads", DataBroker.DEFAULT_WORKERS));
     }
 
     public void initSearchBroker()
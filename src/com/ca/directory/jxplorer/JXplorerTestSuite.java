@@ -2,6 +2,9 @@ package com.ca.directory.jxplorer;
 
 import com.ca.commons.jndi.JndiTestSuite;
 import com.ca.commons.naming.NamingTestSuite;
+import com.ca.directory.jxplorer.broker.DataBrokerTest;
+import com.ca.directory.jxplorer.tree.SearchResultLoaderTest;
+import com.ca.directory.jxplorer.tree.SmartNodeTest;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -33,9 +36,15 @@ public class JXplorerTestSuite extends TestCase
 
         // Tests for this package
         suite.addTest(LdifImportTest.suite());
+        suite.addTest(LdifImportPipelineTest.suite());
+        suite.addTest(LdifBatchImportTest.suite());
+        suite.addTest(LdifTreeExporterTest.suite());
 
 
 		// Tests from other packages
+        suite.addTest(DataBrokerTest.suite());
+        suite.addTest(SearchResultLoaderTest.suite());
+        suite.addTest(SmartNodeTest.suite());
         suite.addTest(NamingTestSuite.suite());
         suite.addTest(JndiTestSuite.suite());
 
@@ -0,0 +1,272 @@
+package com.ca.directory.jxplorer;
+
+import com.ca.commons.cbutil.CBIntText;
+import com.ca.commons.jndi.BatchContext;
+import com.ca.commons.naming.*;
+import com.ca.directory.jxplorer.broker.DataBroker;
+import com.ca.directory.jxplorer.broker.DataQuery;
+
+import javax.naming.NamingException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Imports an LDIF file through a context that can send operations in batches (e.g. DSML),
+ * rather than writing each entry with a request of its own.
+ *
+ * Entries are read on the calling thread and collected into a sequential batch - so they
+ * are still written in the order of the file - which is sent every ENTRIES_PER_BATCH
+ * entries.  Normal entries and 'add', 'delete' and 'modify' change entries are batched;
+ * 'moddn' and 'modrdn' entries are written on their own once everything before them has
+ * been sent.  As with the LdifImportPipeline, failed entries are recorded with their line
+ * number, and the import carries on with the rest of the file.
+ */
+public class LdifBatchImport
+{
+    private static Logger log = Logger.getLogger(LdifBatchImport.class.getName());
+
+    /**
+     * The number of entries read before the batch is sent.  (The provider may split
+     * these into several requests.)
+     */
+    public static final int ENTRIES_PER_BATCH = 500;
+
+    private final LdifImport importer;
+    private final LdifUtility ldifutil;
+    private final DataBroker broker;
+    private final BatchContext batchContext;
+    private final DataQuery query;
+
+    private BatchContext.Batch batch = null;
+    private final ArrayList<LdifEntry> batched = new ArrayList<LdifEntry>();   // the entries in the batch, in order
+    private final ArrayList<Integer> lines = new ArrayList<Integer>();         // and the lines they were read from
+
+    private int entriesRead = 0;
+    private int entriesDone = 0;
+    private int errorCount = 0;
+    private final ArrayList<LdifEntry> errors = new ArrayList<LdifEntry>();
+    private DXEntry apex = null;
+
+    /**
+     * @param importer the LdifImport whose entry handling is used for entries that can't be batched
+     * @param ldifutil the utility used to parse the file
+     * @param broker the broker to write unbatched entries to
+     * @param batchContext the context to create batches from
+     * @param query the query running the import, checked for cancellation
+     */
+    public LdifBatchImport(LdifImport importer, LdifUtility ldifutil, DataBroker broker, BatchContext batchContext, DataQuery query)
+    {
+        this.importer = importer;
+        this.ldifutil = ldifutil;
+        this.broker = broker;
+        this.batchContext = batchContext;
+        this.query = query;
+    }
+
+    /**
+     * Imports the file, returning when every entry has been written, or the import has
+     * been cancelled.
+     *
+     * @param reader the LDIF file
+     * @return false if the import was cancelled.
+     * @throws IOException if the file couldn't be read to the end (InterruptedIOException
+     * if the user cancelled the progress monitor).
+     * @throws NamingException if the file couldn't be parsed, or a batch couldn't be created.
+     */
+    public boolean run(LdifStreamReader reader)
+            throws IOException, NamingException
+    {
+        batch = batchContext.createBatch(true);
+
+        LdifEntry entry;
+        int line = reader.getLineNumber();     // (the reader is a line ahead, so this is the first line of the next entry)
+        while ((entry = ldifutil.readLdifEntry(reader)) != null)
+        {
+            if (query != null && query.isCancelled())
+                return false;                  // (anything still in the batch is dropped)
+
+            int start = line;
+            line = reader.getLineNumber();
+            DN dn = entry.getDN();
+            if (dn.size() == 0)
+            {
+                log.fine("skipping ldif data at line: " + start);
+                continue;
+            }
+
+            entriesRead++;
+            if (apex == null || apex.getDN().size() > dn.size())
+                apex = entry;
+
+            LdifEntryType type = entry.getChangeType();
+            if (type == LdifEntryType.moddn || type == LdifEntryType.modrdn)
+            {
+                flush();                       // the rename may move entries in the batch
+                try
+                {
+                    importEntry(entry);
+                    if (entry.contains(LdifEntry.ERROR))
+                        error(entry, start, new NamingException(entry.getString(LdifEntry.ERROR)));
+                }
+                catch (NamingException e)
+                {
+                    error(entry, start, e);
+                }
+                entriesDone++;
+                progress(entriesDone);
+            }
+            else
+            {
+                addToBatch(entry, start);
+                if (batch.size() >= ENTRIES_PER_BATCH)
+                    flush();
+            }
+        }
+
+        flush();
+        return true;
+    }
+
+    /**
+     * Adds the operation for an entry to the batch.
+     */
+    private void addToBatch(LdifEntry entry, int line)
+    {
+        String dn = entry.getDN().toString();
+        try
+        {
+            if (entry.getChangeType() != LdifEntryType.normal)
+                entry.remove(LdifEntry.CHANGE_TYPE_ATTRIBUTE);      // strip out fake 'changetype' attribute
+
+            switch (entry.getChangeType())
+            {
+                case normal:
+                case add:
+                    batch.add(dn, entry);
+                    break;
+
+                case delete:
+                    batch.delete(dn);
+                    break;
+
+                case modify:
+                    batch.modify(dn, LdifImport.getModificationItems(entry));
+                    break;
+
+                default:
+                    throw new NamingException("unexpected LDIF change type: " + entry.getChangeType());
+            }
+        }
+        catch (NamingException e)
+        {
+            error(entry, line, e);
+            entriesDone++;
+            return;
+        }
+        catch (ClassCastException e)   // shouldn't happen
+        {
+            error(entry, line, new NamingException(CBIntText.get("unexpected internal error parsing modify attributes")));
+            entriesDone++;
+            return;
+        }
+
+        batched.add(entry);
+        lines.add(line);
+    }
+
+    /**
+     * Sends the batch, and records the entries that failed.
+     */
+    private void flush()
+    {
+        if (batch.size() == 0)
+            return;
+
+        NamingException[] results = batch.execute();
+        for (int i = 0; i < results.length; i++)
+            if (results[i] != null)
+                error(batched.get(i), lines.get(i), results[i]);
+
+        entriesDone += results.length;
+        batched.clear();
+        lines.clear();
+        progress(entriesDone);
+    }
+
+    /**
+     * Writes a single (unbatched) entry to the directory.
+     */
+    protected void importEntry(LdifEntry entry)
+            throws NamingException
+    {
+        importer.importEntry(entry, broker);
+    }
+
+    /**
+     * Reports progress.
+     */
+    protected void progress(int entriesDone)
+    {
+        if (importer != null)
+            importer.showProgress(entriesDone);
+    }
+
+    private void error(LdifEntry entry, int line, Exception e)
+    {
+        errorCount++;
+        String message = e.getMessage();
+        if (message == null)
+            message = e.toString();
+        log.warning("error importing LDIF entry '" + entry.getDN() + "' at line " + line + ": " + message);
+
+        if (errors.size() < LdifImportPipeline.MAX_REPORTED_ERRORS)
+        {
+            LdifEntry error = new LdifEntry(entry.getDN());
+            error.put(LdifEntry.ERROR, message);
+            error.put(LdifEntry.LINENO, String.valueOf(line));
+            errors.add(error);
+        }
+    }
+
+    /**
+     * @return the entries that failed (up to LdifImportPipeline.MAX_REPORTED_ERRORS), each
+     * with the LdifEntry.ERROR and LdifEntry.LINENO attributes set.
+     */
+    public ArrayList<LdifEntry> getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * @return the number of entries that failed.
+     */
+    public int getErrorCount()
+    {
+        return errorCount;
+    }
+
+    /**
+     * @return the number of entries read from the file.
+     */
+    public int getEntriesRead()
+    {
+        return entriesRead;
+    }
+
+    /**
+     * @return the number of entries written (or that failed).
+     */
+    public int getEntriesDone()
+    {
+        return entriesDone;
+    }
+
+    /**
+     * @return the entry closest to the root of the directory that was read from the file.
+     */
+    public DXEntry getApex()
+    {
+        return apex;
+    }
+}
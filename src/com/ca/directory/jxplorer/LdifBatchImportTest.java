@@ -0,0 +1,161 @@
+package com.ca.directory.jxplorer;
+
+import com.ca.commons.jndi.BatchContext;
+import com.ca.commons.naming.LdifEntry;
+import com.ca.commons.naming.LdifStreamReader;
+import com.ca.commons.naming.LdifUtility;
+import com.ca.directory.jxplorer.broker.DataQuery;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+/**
+ * Checks how the LdifBatchImport batches entries, using a fake batch in place of a directory.
+ */
+public class LdifBatchImportTest extends TestCase
+{
+    /**
+     * A batch context whose batches record the operations sent, rather than carrying them out.
+     */
+    private static class RecordingContext implements BatchContext
+    {
+        final ArrayList<String> sent = new ArrayList<String>();     // "operation dn", in the order written
+        final ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+        boolean sequential = false;
+        String failOn = null;
+
+        public Batch createBatch(boolean sequential)
+        {
+            this.sequential = sequential;
+            return new Batch()
+            {
+                final ArrayList<String> operations = new ArrayList<String>();
+
+                public void add(String name, Attributes atts) { operations.add("add " + name); }
+                public void delete(String name) { operations.add("delete " + name); }
+                public void modify(String name, ModificationItem[] mods) { operations.add("modify " + name); }
+                public int size() { return operations.size(); }
+
+                public NamingException[] execute()
+                {
+                    NamingException[] results = new NamingException[operations.size()];
+                    for (int i = 0; i < results.length; i++)
+                    {
+                        String operation = operations.get(i);
+                        if (failOn != null && operation.indexOf(failOn) > -1)
+                            results[i] = new NamingException("test failure: " + operation);
+                        sent.add(operation);
+                    }
+                    batchSizes.add(results.length);
+                    operations.clear();
+                    return results;
+                }
+            };
+        }
+    }
+
+    /**
+     * A batch import that records the entries written on their own.
+     */
+    private static class RecordingImport extends LdifBatchImport
+    {
+        final RecordingContext ctx;
+
+        RecordingImport(RecordingContext ctx)
+        {
+            super(null, new LdifUtility(), null, ctx, new DataQuery(DataQuery.EXTENDED));
+            this.ctx = ctx;
+        }
+
+        protected void importEntry(LdifEntry entry)
+        {
+            ctx.sent.add("rename " + entry.getDN());
+        }
+    }
+
+    public LdifBatchImportTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(LdifBatchImportTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private static String entry(String dn)
+    {
+        return "dn: " + dn + "\nobjectClass: top\nobjectClass: organizationalUnit\n\n";
+    }
+
+    private static LdifStreamReader reader(String ldif)
+            throws Exception
+    {
+        return new LdifStreamReader(new StringReader(ldif));
+    }
+
+    public void testChangesBatchedInOrder()
+            throws Exception
+    {
+        String ldif = "version: 1\n\n" +
+                entry("o=test,c=au") +
+                entry("ou=one,o=test,c=au") +
+                "dn: ou=one,o=test,c=au\nchangetype: modify\nreplace: description\ndescription: first\n-\n\n" +
+                "dn: ou=two,o=test,c=au\nchangetype: add\nobjectClass: top\nobjectClass: organizationalUnit\n\n" +
+                "dn: ou=two,o=test,c=au\nchangetype: moddn\nnewrdn: ou=three\ndeleteoldrdn: 1\nnewsuperior: o=test,c=au\n\n" +
+                "dn: ou=one,o=test,c=au\nchangetype: delete\n\n";
+
+        RecordingContext ctx = new RecordingContext();
+        RecordingImport batchImport = new RecordingImport(ctx);
+        assertTrue(batchImport.run(reader(ldif)));
+
+        assertTrue(ctx.sequential);
+        assertEquals(6, batchImport.getEntriesRead());
+        assertEquals(6, batchImport.getEntriesDone());
+        assertEquals(0, batchImport.getErrorCount());
+        assertEquals("o=test,c=au", batchImport.getApex().getDN().toString());
+
+        String[] expected = {"add o=test,c=au", "add ou=one,o=test,c=au", "modify ou=one,o=test,c=au",
+                             "add ou=two,o=test,c=au", "rename ou=two,o=test,c=au", "delete ou=one,o=test,c=au"};
+        assertEquals(expected.length, ctx.sent.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], ctx.sent.get(i));
+
+        assertEquals(2, ctx.batchSizes.size());          // sent before and after the rename
+        assertEquals(4, ctx.batchSizes.get(0).intValue());
+    }
+
+    public void testErrorsReportedByLine()
+            throws Exception
+    {
+        StringBuffer ldif = new StringBuffer("version: 1\n\n").append(entry("o=test,c=au"));
+        for (int i = 0; i < LdifBatchImport.ENTRIES_PER_BATCH + 10; i++)
+            ldif.append(entry("ou=unit" + i + ",o=test,c=au"));
+
+        RecordingContext ctx = new RecordingContext();
+        ctx.failOn = "ou=unit7,";
+        RecordingImport batchImport = new RecordingImport(ctx);
+        assertTrue(batchImport.run(reader(ldif.toString())));
+
+        assertEquals(LdifBatchImport.ENTRIES_PER_BATCH + 11, batchImport.getEntriesDone());   // the import carries on past the error
+        assertEquals(2, ctx.batchSizes.size());
+        assertEquals(LdifBatchImport.ENTRIES_PER_BATCH, ctx.batchSizes.get(0).intValue());
+        assertEquals(1, batchImport.getErrorCount());
+
+        LdifEntry error = batchImport.getErrors().get(0);
+        assertEquals("ou=unit7,o=test,c=au", error.getDN().toString());
+        assertTrue(error.getString(LdifEntry.ERROR).indexOf("test failure") > -1);
+        assertEquals("35", error.getString(LdifEntry.LINENO));
+    }
+}
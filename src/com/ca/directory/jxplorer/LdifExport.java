@@ -148,6 +148,7 @@ public class LdifExport extends CBDialog
 
         JFileChooser chooser = new JFileChooser(JXConfig.getProperty("ldif.homeDir"));
 
+        chooser.addChoosableFileFilter(new CBFileFilter(new String[] {"gz"},"Compressed Ldif Files (*.ldif.gz)"));
         chooser.addChoosableFileFilter(new CBFileFilter(new String[] {"ldif", "ldi"},"Ldif Files (*.ldif, *.ldi)"));
 
         int option = chooser.showSaveDialog(this);
@@ -239,7 +240,7 @@ public class LdifExport extends CBDialog
             {
                 try
                 {
-                    FileWriter myFileWriter = new FileWriter(myFile);
+                    Writer myFileWriter = LdifTreeExporter.openWriter(myFile);    // buffered; gzipped for '.gz' files
 
                     pbar = new CBpbar(LdifExport.this, CBIntText.get("Saving LDIF file"), CBIntText.get("Saving Data"));
 
@@ -255,7 +256,11 @@ public class LdifExport extends CBDialog
                     }
                     else
                     {   // read the entries from the directory - we don't know if the tree has done a complete read.
-                        saveLdifTree(oldRoot, myFileWriter, oldRoot.toString(), newRoot.toString(), b);
+                        DXNamingEnumeration subtree = b.unthreadedReadSubtree(oldRoot, JXConfig.getIntProperty("option.ldif.exportPageSize", LdifTreeExporter.DEFAULT_PAGE_SIZE));
+                        if (subtree != null)
+                            saveLdifSubtree(oldRoot, subtree, myFileWriter, oldRoot.toString(), newRoot.toString());
+                        else
+                            saveLdifTree(oldRoot, myFileWriter, oldRoot.toString(), newRoot.toString(), b);
                     }
 
 					//TE: this seems to resolve the problem of no being able to access the ldif file until
@@ -279,6 +284,44 @@ public class LdifExport extends CBDialog
 
 
 
+    /**
+     *    Write a subtree to an ldif file from a single subtree search, writing
+     *    each entry as it is read.  Since we don't know how big the tree is, the
+     *    progress bar just counts the entries written.
+     *
+     *    @param treeApex the root node of the sub tree to be written out.
+     *    @param subtree the entries of the subtree, as read by DataBroker.unthreadedReadSubtree()
+     *    @param saveFile the file being written to...
+     *    @param origPrefix the original DN prefix, that may be modified
+     *                           on write to be replacementPrefix.  This may be
+     *                           null if no action is to be taken.
+     *    @param newPrefix another DN to replace the originalPrefix.
+     *    @return false if the user cancelled the export
+     */
+
+    public boolean saveLdifSubtree(DN treeApex, DXNamingEnumeration subtree, Writer saveFile, String origPrefix, String newPrefix)
+            throws NamingException, IOException
+    {
+        if (pbar == null) return false;
+
+        final ProgressMonitor monitor = pbar.getBaseMonitor();
+
+        LdifTreeExporter exporter = new LdifTreeExporter(ldifutil)
+        {
+            protected void progress(int entriesWritten)
+            {
+                monitor.setNote(CBIntText.get("Saving Data") + " " + entriesWritten);
+            }
+
+            protected boolean isCancelled()
+            {
+                return pbar.isCanceled();
+            }
+        };
+
+        return exporter.export(treeApex, subtree, saveFile, origPrefix, newPrefix);
+    }
+
     /**
      *    Write a subtree to an ldif file by recursing through the
      *    tree, calling saveLdifEntry as it goes...
@@ -292,7 +335,7 @@ public class LdifExport extends CBDialog
      *    @return number of entries written
      */
 
-    public boolean saveLdifTree(DN treeApex, FileWriter saveFile, String origPrefix, String newPrefix, DataBroker broker)
+    public boolean saveLdifTree(DN treeApex, Writer saveFile, String origPrefix, String newPrefix, DataBroker broker)
     {
         // sanity checks...
         if (treeApex==null) return false;
@@ -364,7 +407,7 @@ public class LdifExport extends CBDialog
      *    @param replacementPrefix another DN to replace the originalPrefix.
      */
 
-    public void saveLdifList(ArrayList<DN> dns, FileWriter saveFile, String originalPrefix, String replacementPrefix, DataBroker broker)
+    public void saveLdifList(ArrayList<DN> dns, Writer saveFile, String originalPrefix, String replacementPrefix, DataBroker broker)
     {
         if (replacementPrefix==null) originalPrefix = null;                        // sanity check.
         if ((originalPrefix!=null)&&(originalPrefix.equals(replacementPrefix)))   // sanity check.
@@ -1,6 +1,7 @@
 package com.ca.directory.jxplorer;
 
 import com.ca.commons.cbutil.*;
+import com.ca.commons.jndi.BatchContext;
 import com.ca.commons.naming.*;
 import com.ca.directory.jxplorer.broker.*;
 import com.ca.directory.jxplorer.broker.DataQuery;
@@ -14,7 +15,9 @@ import java.awt.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
 public class LdifImport //extends JDialog implements ActionListener
@@ -95,9 +98,9 @@ public class LdifImport //extends JDialog implements ActionListener
 
         try
         {
-            ArrayList<DN> list = new ArrayList<DN>();		    //TE: stores the root DN('s ).
-
-            String progressNote = CBIntText.get("reading entry #");
+            LinkedHashMap<String, DN> list = new LinkedHashMap<String, DN>();   //TE: stores the root DN('s ), by lower case name.
+            HashMap<String, DN> rootsByParent = new HashMap<String, DN>();   // the root found above each parent, so siblings don't repeat the search
+            boolean findRoots = tree.isEmpty();                 // the roots are only needed to set up an empty tree
 
             if (preview)
             {
@@ -107,53 +110,92 @@ public class LdifImport //extends JDialog implements ActionListener
 
             try
             {
-                while (((newEntry = ldifutil.readLdifEntry(readText))!=null))
+                BatchContext batchContext = (!preview && !offline) ? getBatchContext(broker) : null;
+                if (batchContext != null)
+                {
+                    LdifBatchImport batchImport = new LdifBatchImport(this, ldifutil, broker, batchContext, query);
+                    try
+                    {
+                        if (!batchImport.run(readText))
+                            return false;
+                    }
+                    finally
+                    {
+                        if (batchImport.getErrorCount() > 0)
+                            showImportErrors(batchImport.getErrors(), batchImport.getErrorCount());
+                    }
+                    apex = batchImport.getApex();
+                }
+                else if (!preview && !offline && !(broker instanceof OfflineDataBroker))
                 {
-                    if (query.isCancelled()) return false;            // check whether the user has cancelled this query.
+                    LdifImportPipeline pipeline = new LdifImportPipeline(this, ldifutil, broker, query, JXConfig.getIntProperty("option.ldif.importThreads", 3));
+                    try
+                    {
+                        if (!pipeline.run(readText))
+                            return false;
+                    }
+                    finally
+                    {
+                        if (pipeline.getErrorCount() > 0)
+                            showImportErrors(pipeline.getErrors(), pipeline.getErrorCount());
+                    }
+                    apex = pipeline.getApex();
+                }
+                else
+                {
+                    while (((newEntry = ldifutil.readLdifEntry(readText))!=null))
+                    {
+                        if (query.isCancelled()) return false;            // check whether the user has cancelled this query.
 
-                    int size = newEntry.getDN().size();
+                        int size = newEntry.getDN().size();
 
-                    if (size != 0)
-                    {
-                        DN newDN = newEntry.getDN();
+                        if (size != 0)
+                        {
+                            DN newDN = newEntry.getDN();
 
-                        if (apex == null || apex.getDN().size() > size)
-                            apex = newEntry;                    // keep track of top entry...
+                            if (apex == null || apex.getDN().size() > size)
+                                apex = newEntry;                    // keep track of top entry...
 
-                        if (offline)
-                            translateToUnicode(newEntry);       // text magic for standalone offline viewing
+                            if (offline)
+                                translateToUnicode(newEntry);       // text magic for standalone offline viewing
 
-                        if (preview)
-                        {
-                            int lineNumber = readText.getLineNumber();
-                            if (newEntry.getChangeType() == LdifEntryType.normal)
-                                testResults.add(testNormalLdifImpact(newEntry, broker, addedDNs, lineNumber));
-                            else
-                                testResults.add(testLdifChangeEntryImpact(newEntry, broker, addedDNs, deletedDNs, lineNumber));
-                        }
-                        else
-                        {
-                            if (newEntry.getChangeType() == LdifEntryType.normal)
-                                addLdifNormalEntry(newEntry, broker);
+                            if (preview)
+                            {
+                                int lineNumber = readText.getLineNumber();
+                                if (newEntry.getChangeType() == LdifEntryType.normal)
+                                    testResults.add(testNormalLdifImpact(newEntry, broker, addedDNs, lineNumber));
+                                else
+                                    testResults.add(testLdifChangeEntryImpact(newEntry, broker, addedDNs, deletedDNs, lineNumber));
+                            }
                             else
                             {
-                                if (broker instanceof OfflineDataBroker)
+                                if (broker instanceof OfflineDataBroker && newEntry.getChangeType() != LdifEntryType.normal)
                                     addLdifChangeTypeEntry(newEntry, broker);  // special hack to allow 'viewing' of LDIF change files?
                                 else
-                                    executeLdifChangeTypeEntry(newEntry, broker);
+                                    importEntry(newEntry, broker);
+                            }
+
+                            if (findRoots)
+                            {
+                                String parent = (size > 1) ? newDN.getParent().toString().toLowerCase() : null;
+                                DN root = (parent == null) ? null : rootsByParent.get(parent);
+                                if (root == null)
+                                {
+                                    root = getRoot(broker, newDN);
+                                    if (parent != null && root != null && root != newDN)   // the parent exists, so its siblings share the root
+                                        rootsByParent.put(parent, root);
+                                }
+                                if (root != null && !list.containsKey(root.toString().toLowerCase()))
+                                    list.put(root.toString().toLowerCase(), root);
                             }
                         }
+                        else
+                        {
+                            log.warning("skipping ldif data at line: " + ldifutil.getCurrentLineNumber());
+                        }
 
-                        if (!list.contains(getRoot(broker, newDN)))
-                            list.add(getRoot(broker, newDN));
+                        showProgress(++numEntriesRead);
                     }
-                    else
-                    {
-                        log.warning("skipping ldif data at line: " + ldifutil.getCurrentLineNumber());
-                    }
-
-                    if (pmonitor!=null)   // unit tests do not always set up the progress monitor
-                        pmonitor.getProgressMonitor().setNote(progressNote + " " + (++numEntriesRead));  // XXX I'm not translating this to the MessageFormat version of CBIntText.get because I'm worried about performance - CB
                 }
             }
             catch (InterruptedIOException e)    // almost certainly the user hitting 'cancel' on the progress bar
@@ -185,10 +227,8 @@ public class LdifImport //extends JDialog implements ActionListener
                     //    what at this stage because this only keeps account of the last root DN (e.g. o=CA2)
                     //	  whereas there may be several...
                     //CB: TODO: sort this out; the tree model doesn't really allow for multiple roots, so this is working by accident :-)
-                    for(int i=0;i<list.size();i++)
+                    for (DN root : list.values())
                     {
-                        DN root = (list.get(i));
-
                         tree.setRootDN(root);  // bit of a hack; pass the last known real DN
                         tree.expandRootDN();
                         tree.getRootNode().setStructural(true);
@@ -209,6 +249,28 @@ public class LdifImport //extends JDialog implements ActionListener
         return false;
     }
 
+    /**
+     * Returns the context to import through in batches, if the broker's connection can send
+     * operations in batches (e.g. DSML) - which is much quicker than a request per entry.
+     * @param broker the broker being imported into
+     * @return the broker's context, or null if entries must be written one at a time.
+     */
+    protected BatchContext getBatchContext(DataBroker broker)
+    {
+        if (broker instanceof OfflineDataBroker)
+            return null;
+
+        try
+        {
+            LdapContext ctx = broker.getLdapContext();
+            return (ctx instanceof BatchContext) ? (BatchContext) ctx : null;
+        }
+        catch (NamingException e)   // e.g. read only; the normal import reports the error for each entry
+        {
+            return null;
+        }
+    }
+
     protected LdifStreamReader getLdifStreamReader(InputStream textStream) throws NamingException
     {
         LdifStreamReader readText;
@@ -261,6 +323,53 @@ public class LdifImport //extends JDialog implements ActionListener
         return false;  // usually we do not immediately import the file...
     }
 
+    /**
+     * Shows the number of entries imported so far in the progress monitor.
+     * @param numEntries
+     */
+    protected void showProgress(int numEntries)
+    {
+        if (pmonitor!=null)   // unit tests do not always set up the progress monitor
+            pmonitor.getProgressMonitor().setNote(progressNote + " " + numEntries);  // XXX I'm not translating this to the MessageFormat version of CBIntText.get because I'm worried about performance - CB
+    }
+
+    /**
+     * Displays the entries that couldn't be imported, with the line of the LDIF file each was read from.
+     * @param errors the failed entries, with the LdifEntry.ERROR and LdifEntry.LINENO attributes set
+     * @param errorCount the total number of failures (there may be more than are listed)
+     */
+    public void showImportErrors(ArrayList<LdifEntry> errors, int errorCount)
+    {
+        StringBuffer text = new StringBuffer(CBIntText.get("The following LDIF entries could not be imported:")).append("\n\n");
+
+        for (LdifEntry entry:errors)
+            text.append(" [" + entry.getString(LdifEntry.LINENO) + "] " + entry.getDN() + " -> " + entry.getString(LdifEntry.ERROR) + "\n");
+
+        if (errorCount > errors.size())
+            text.append("\n ... " + (errorCount - errors.size()) + " " + CBIntText.get("more (see the log for details)") + "\n");
+
+        JTextArea area = new JTextArea(text.toString(), 20, 80);
+        area.setEditable(false);
+        JOptionPane.showMessageDialog(owner, new JScrollPane(area), CBIntText.get("Errors found!"), JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Writes an entry read from an LDIF file to the directory, either adding it, or
+     * carrying out the changes it lists.  This may be called from several threads at once
+     * by the LdifImportPipeline.
+     * @param newEntry
+     * @param broker
+     * @throws NamingException
+     */
+    protected void importEntry(LdifEntry newEntry, DataBroker broker)
+            throws NamingException
+    {
+        if (newEntry.getChangeType() == LdifEntryType.normal)
+            addLdifNormalEntry(newEntry, broker);
+        else
+            executeLdifChangeTypeEntry(newEntry, broker);
+    }
+
     /**
      * Adds the entry to the directory
      * @param newEntry
@@ -337,57 +446,67 @@ public class LdifImport //extends JDialog implements ActionListener
              // check that modifications are valid (i.e. we're deleting attributes that exist, and adding ones that don't.
              case modify:
 
-                 /*  Just a reminder  :-)
-                  public ModificationItem(int mod_op, Attribute attr)
-                  Creates a new instance of ModificationItem.
-                  Parameters:
-                  mod_op - Modification to apply. It must be one of: DirContext.ADD_ATTRIBUTE DirContext.REPLACE_ATTRIBUTE DirContext.REMOVE_ATTRIBUTE
-                  attr - The non-null attribute to use for modification.
-                 */
-
-                 // SEE ALSO: DXOps.ModifyEntry()
-
                  ctx = broker.getLdapContext();  // we have to go down to direct LDAP mod ops to make this work, but it's pretty basic...
 
                  try
                  {
-                     ArrayList<ModificationItem> mods = new ArrayList<ModificationItem>();
+                     ctx.modifyAttributes(newEntry.getDN(), getModificationItems(newEntry));
+                 }
+                 catch (ClassCastException e)   // shouldn't happen
+                 {
+                     newEntry.put(LdifEntry.ERROR, CBIntText.get("unexpected internal error parsing modify attributes"));
+                 }
+         }
+     }
 
-                     for (DXAttribute att: newEntry.getAttArrayList())
-                     {
-                         LdifModifyAttribute modifyAtt = (LdifModifyAttribute)att;
+    /**
+     * Turns the attributes of an LDIF 'modify' change entry into the list of modifications to make.
+     *
+     * @param newEntry a modify change entry, whose attributes are all LdifModifyAttributes
+     * @return the modifications, in the order they are listed in the entry.
+     * @throws ClassCastException if the entry isn't a modify change entry.
+     */
+    static ModificationItem[] getModificationItems(LdifEntry newEntry)
+    {
+        /*  Just a reminder  :-)
+         public ModificationItem(int mod_op, Attribute attr)
+         Creates a new instance of ModificationItem.
+         Parameters:
+         mod_op - Modification to apply. It must be one of: DirContext.ADD_ATTRIBUTE DirContext.REPLACE_ATTRIBUTE DirContext.REMOVE_ATTRIBUTE
+         attr - The non-null attribute to use for modification.
+        */
 
-                         Attribute cleanAtt = modifyAtt.getCleanAttribute();
+        // SEE ALSO: DXOps.ModifyEntry()
 
-                         switch (modifyAtt.modifyType)
-                         {
-                             case add:
+        ArrayList<ModificationItem> mods = new ArrayList<ModificationItem>();
 
-                                 mods.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, cleanAtt));
-                                 break;
+        for (DXAttribute att: newEntry.getAttArrayList())
+        {
+            LdifModifyAttribute modifyAtt = (LdifModifyAttribute)att;
+
+            Attribute cleanAtt = modifyAtt.getCleanAttribute();
 
-                             case replace:
+            switch (modifyAtt.modifyType)
+            {
+                case add:
 
-                                 mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, cleanAtt));
-                                 break;
+                    mods.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, cleanAtt));
+                    break;
 
-                             case delete:
+                case replace:
 
-                                 mods.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, cleanAtt));
-                                 break;
-                         }
+                    mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, cleanAtt));
+                    break;
 
-                     }
-                     ctx.modifyAttributes(newEntry.getDN(), mods.toArray(new ModificationItem[mods.size()]));
+                case delete:
 
+                    mods.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, cleanAtt));
+                    break;
+            }
 
-                 }
-                 catch (ClassCastException e)   // shouldn't happen
-                 {
-                     newEntry.put(LdifEntry.ERROR, CBIntText.get("unexpected internal error parsing modify attributes"));
-                 }
-         }
-     }
+        }
+        return mods.toArray(new ModificationItem[mods.size()]);
+    }
 
     /**
      * Evaluates the difference between the changes listed in the newEntry and the
@@ -705,6 +824,8 @@ public class LdifImport //extends JDialog implements ActionListener
 
     static ProgressMonitorInputStream pmonitor;
 
+    private final String progressNote = CBIntText.get("reading entry #");
+
     private static Logger log = Logger.getLogger(LdifImport.class.getName());
 
     public void selectAndImportFile()
@@ -0,0 +1,557 @@
+package com.ca.directory.jxplorer;
+
+import com.ca.commons.naming.*;
+import com.ca.directory.jxplorer.broker.DataBroker;
+import com.ca.directory.jxplorer.broker.DataQuery;
+
+import javax.naming.NamingException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Imports an LDIF file into a directory over several connections at once.
+ *
+ * A reader thread parses the file a limited number of entries ahead of the writers (so
+ * a large file is never held in memory), and the calling thread hands each entry to a
+ * pool of worker threads as soon as the entries it depends on have been written:
+ * <ul>
+ * <li>normal entries, and 'add' and 'modify' change entries, wait for their parent (if
+ * the parent is still being imported) and for any earlier change to the same entry.</li>
+ * <li>'delete', 'moddn' and 'modrdn' change entries can affect whole subtrees, so they
+ * wait until everything before them has finished, and run on their own.</li>
+ * </ul>
+ * Failed entries are recorded with their line number, and the import carries on with
+ * the rest of the file; the errors are available from getErrors() afterwards.
+ */
+public class LdifImportPipeline
+{
+    private static Logger log = Logger.getLogger(LdifImportPipeline.class.getName());
+
+    /**
+     * The number of entries each worker may have parsed but not yet written.
+     */
+    public static final int ENTRIES_PER_WORKER = 64;
+
+    /**
+     * The most errors kept for reporting; later errors are only counted.
+     */
+    public static final int MAX_REPORTED_ERRORS = 1000;
+
+    private static final long CANCEL_CHECK = 250;   // how often (ms) the scheduler checks for cancellation
+
+    private final LdifImport importer;
+    private final LdifUtility ldifutil;
+    private final DataBroker broker;
+    private final DataQuery query;
+    private final int workerCount;
+
+    private final Semaphore permits;                                            // limits the entries held in memory
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();   // parsed and written entries, for the scheduler
+    private final BlockingQueue<Item> work = new LinkedBlockingQueue<Item>();       // entries ready to write, for the workers
+
+    private final HashMap<String, Item> pending = new HashMap<String, Item>();                 // the last unfinished change to each DN
+    private final HashMap<String, ArrayList<Item>> waiting = new HashMap<String, ArrayList<Item>>();  // entries waiting for a DN to finish
+    private final LinkedList<Item> held = new LinkedList<Item>();               // a subtree change, and everything read after it
+    private int scheduled = 0;              // entries scheduled (waiting or written) but not finished
+    private int running = 0;                // entries handed to the workers but not finished
+
+    private volatile boolean stopped = false;
+    private int entriesRead = 0;
+    private int entriesDone = 0;
+    private int errorCount = 0;
+    private final ArrayList<LdifEntry> errors = new ArrayList<LdifEntry>();
+    private DXEntry apex = null;
+
+    /**
+     * An entry from the file, and what it depends on.
+     */
+    private static class Item
+    {
+        final LdifEntry entry;
+        final int line;
+        final String key;
+        final String parentKey;
+        final boolean subtreeChange;
+        Item previous = null;          // an earlier, unfinished change to the same entry
+        boolean scheduled = false;
+        boolean finished = false;
+        Exception error = null;
+
+        Item(LdifEntry entry, int line)
+        {
+            this.entry = entry;
+            this.line = line;
+            DN dn = entry.getDN();
+            key = key(dn);
+            parentKey = (dn.size() > 1) ? key(dn.getParent()) : null;
+            LdifEntryType type = entry.getChangeType();
+            subtreeChange = (type == LdifEntryType.delete || type == LdifEntryType.moddn || type == LdifEntryType.modrdn);
+        }
+    }
+
+    /**
+     * Something for the scheduler to deal with: a newly parsed entry, a written
+     * entry, or the end of the file.
+     */
+    private static class Event
+    {
+        static final int PARSED = 0;
+        static final int DONE = 1;
+        static final int END = 2;
+
+        final int type;
+        final Item item;
+        final Exception error;       // for END, the reason the file couldn't be finished (if any)
+
+        Event(int type, Item item, Exception error)
+        {
+            this.type = type;
+            this.item = item;
+            this.error = error;
+        }
+    }
+
+    private static final Item STOP = new Item(new LdifEntry(new DN("cn=stop")), 0);  // tells a worker to finish
+
+    /**
+     * @param importer the LdifImport whose entry handling is used to write the entries
+     * @param ldifutil the utility used to parse the file
+     * @param broker the broker to write to; each worker asks it for a connection of its own.
+     * @param query the query running the import, checked for cancellation
+     * @param workerCount the number of entries to write at once
+     */
+    public LdifImportPipeline(LdifImport importer, LdifUtility ldifutil, DataBroker broker, DataQuery query, int workerCount)
+    {
+        this.importer = importer;
+        this.ldifutil = ldifutil;
+        this.broker = broker;
+        this.query = query;
+        this.workerCount = Math.max(1, workerCount);
+        permits = new Semaphore(this.workerCount * ENTRIES_PER_WORKER);
+    }
+
+    /**
+     * Imports the file, returning when every entry has been written, the import has been
+     * cancelled, or the file can no longer be read.
+     *
+     * @param reader the LDIF file
+     * @return false if the import was cancelled.
+     * @throws IOException if the file couldn't be read to the end (InterruptedIOException
+     * if the user cancelled the progress monitor).
+     * @throws NamingException if the file couldn't be parsed.
+     */
+    public boolean run(final LdifStreamReader reader)
+            throws IOException, NamingException
+    {
+        Thread parser = new Thread("LDIF import reader")
+        {
+            public void run()
+            {
+                parse(reader);
+            }
+        };
+        parser.setDaemon(true);
+        parser.start();
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < workerCount; i++)
+        {
+            final int index = i;
+            Thread worker = new Thread("LDIF import worker " + i)
+            {
+                public void run()
+                {
+                    write(index);
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        Exception failure = null;
+        boolean ended = false;
+        try
+        {
+            while (!(ended && scheduled == 0 && held.isEmpty()) && !(stopped && running == 0))
+            {
+                if (!stopped && query != null && query.isCancelled())
+                    cancel(parser);
+
+                Event event = events.poll(CANCEL_CHECK, TimeUnit.MILLISECONDS);
+                if (event == null)
+                    continue;
+
+                switch (event.type)
+                {
+                    case Event.PARSED:
+                        if (!stopped)
+                            add(event.item);
+                        break;
+
+                    case Event.DONE:
+                        finished(event.item);
+                        break;
+
+                    case Event.END:
+                        ended = true;
+                        if (event.error != null)
+                        {
+                            failure = event.error;
+                            cancel(parser);
+                        }
+                        break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            cancel(parser);
+        }
+        finally
+        {
+            for (int i = 0; i < workerCount; i++)
+                work.add(STOP);
+            for (Thread worker : workers)
+                join(worker);
+        }
+
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof NamingException)
+            throw (NamingException) failure;
+        if (failure != null)
+            throw new IOException(failure.getMessage(), failure);
+
+        return !stopped;
+    }
+
+    /**
+     * Reads entries from the file until it ends, or the import is stopped.
+     */
+    private void parse(LdifStreamReader reader)
+    {
+        Exception failure = null;
+        try
+        {
+            LdifEntry entry;
+            int line = reader.getLineNumber();     // (the reader is a line ahead, so this is the first line of the next entry)
+            while (!stopped && (entry = ldifutil.readLdifEntry(reader)) != null)
+            {
+                int start = line;
+                line = reader.getLineNumber();
+                if (entry.getDN().size() == 0)
+                {
+                    log.fine("skipping ldif data at line: " + start);
+                    continue;
+                }
+                Item item = new Item(entry, start);
+                permits.acquire();
+                events.put(new Event(Event.PARSED, item, null));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // stopped by the scheduler
+        }
+        catch (Exception e)
+        {
+            failure = e;
+        }
+        events.add(new Event(Event.END, null, failure));
+    }
+
+    /**
+     * Takes entries from the work queue and writes them, until told to stop.
+     */
+    private void write(int index)
+    {
+        if (!openConnection(index))
+        {
+            log.fine("LDIF import worker " + index + " has no connection of its own; leaving the import to the others");
+            return;
+        }
+
+        try
+        {
+            Item item;
+            while ((item = work.take()) != STOP)
+            {
+                try
+                {
+                    importEntry(item.entry);
+                }
+                catch (Exception e)
+                {
+                    item.error = e;
+                }
+                events.add(new Event(Event.DONE, item, null));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // nothing left to do
+        }
+        finally
+        {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Sets up the connection used by the calling worker.  The first worker always
+     * runs, using the broker's own connection if it can't have its own; the others only
+     * run if they have a connection of their own.
+     *
+     * @param index the worker number, from zero.
+     * @return whether the worker should run.
+     */
+    protected boolean openConnection(int index)
+    {
+        return broker.openWorkerConnection() || index == 0;
+    }
+
+    /**
+     * Releases the connection used by the calling worker.
+     */
+    protected void closeConnection()
+    {
+        broker.closeWorkerConnection();
+    }
+
+    /**
+     * Writes a single entry to the directory.  Called from the worker threads.
+     */
+    protected void importEntry(LdifEntry entry)
+            throws NamingException
+    {
+        importer.importEntry(entry, broker);
+    }
+
+    /**
+     * Reports progress; called from the thread running the import.
+     */
+    protected void progress(int entriesDone)
+    {
+        if (importer != null)
+            importer.showProgress(entriesDone);
+    }
+
+    /**
+     * Schedules a newly read entry.
+     */
+    private void add(Item item)
+    {
+        entriesRead++;
+        DN dn = item.entry.getDN();
+        if (apex == null || apex.getDN().size() > dn.size())
+            apex = item.entry;
+
+        if (item.subtreeChange || !held.isEmpty())
+        {
+            held.add(item);
+            release();
+        }
+        else
+        {
+            schedule(item);
+        }
+    }
+
+    /**
+     * Hands the entry to the workers, unless it must wait for an earlier entry to finish.
+     * Called again for a waiting entry each time the entry it waits for finishes.
+     */
+    private void schedule(Item item)
+    {
+        if (!item.scheduled)
+        {
+            item.scheduled = true;
+            scheduled++;
+            item.previous = pending.put(item.key, item);
+        }
+
+        if (item.previous != null && !item.previous.finished)
+            waitFor(item.key, item);           // an earlier change to the same entry
+        else if (item.parentKey != null && pending.containsKey(item.parentKey))
+            waitFor(item.parentKey, item);     // the parent hasn't been written yet
+        else
+        {
+            item.previous = null;
+            running++;
+            work.add(item);
+        }
+    }
+
+    private void waitFor(String key, Item item)
+    {
+        ArrayList<Item> list = waiting.get(key);
+        if (list == null)
+            waiting.put(key, list = new ArrayList<Item>());
+        list.add(item);
+    }
+
+    /**
+     * Records a written entry, and schedules anything that was waiting for it.
+     */
+    private void finished(Item item)
+    {
+        running--;
+        scheduled--;
+        entriesDone++;
+        item.finished = true;
+        permits.release();
+
+        if (item.error == null && item.entry.contains(LdifEntry.ERROR))
+            item.error = new NamingException(item.entry.getString(LdifEntry.ERROR));
+
+        if (item.error != null)
+            error(item);
+
+        if (pending.get(item.key) == item)
+            pending.remove(item.key);
+
+        if (!stopped)
+        {
+            ArrayList<Item> woken = waiting.remove(item.key);
+            if (woken != null)
+                for (Item next : woken)
+                    schedule(next);
+        }
+
+        release();
+        progress(entriesDone);
+    }
+
+    /**
+     * Once everything scheduled has finished, moves held entries to the workers; a
+     * subtree change runs on its own, and the entries after it are scheduled as normal,
+     * up to the next subtree change.
+     */
+    private void release()
+    {
+        if (stopped)
+            return;
+
+        while (!held.isEmpty() && scheduled == 0)
+        {
+            Item next = held.removeFirst();
+            if (next.subtreeChange)
+            {
+                scheduled++;
+                running++;
+                work.add(next);
+                return;
+            }
+
+            schedule(next);
+            while (!held.isEmpty() && !held.getFirst().subtreeChange)
+                schedule(held.removeFirst());
+        }
+    }
+
+    private void error(Item item)
+    {
+        errorCount++;
+        String message = item.error.getMessage();
+        if (message == null)
+            message = item.error.toString();
+        log.warning("error importing LDIF entry '" + item.entry.getDN() + "' at line " + item.line + ": " + message);
+
+        if (errors.size() < MAX_REPORTED_ERRORS)
+        {
+            LdifEntry error = new LdifEntry(item.entry.getDN());
+            error.put(LdifEntry.ERROR, message);
+            error.put(LdifEntry.LINENO, String.valueOf(item.line));
+            errors.add(error);
+        }
+    }
+
+    /**
+     * Stops reading and scheduling entries; entries already with the workers are finished.
+     */
+    private void cancel(Thread parser)
+    {
+        if (stopped)
+            return;
+
+        stopped = true;
+        parser.interrupt();
+
+        ArrayList<Item> dropped = new ArrayList<Item>();
+        work.drainTo(dropped);          // (entries the workers have already taken are left to finish)
+        running -= dropped.size();
+        scheduled = running;
+        held.clear();
+        waiting.clear();
+        pending.clear();
+    }
+
+    private static void join(Thread thread)
+    {
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            log.warning("interrupted waiting for " + thread.getName());
+        }
+    }
+
+    /**
+     * Makes a key that identifies an entry's DN, ignoring case.
+     */
+    private static String key(DN dn)
+    {
+        return dn.toString().toLowerCase();
+    }
+
+    /**
+     * @return the entries that failed (up to MAX_REPORTED_ERRORS), each with the
+     * LdifEntry.ERROR and LdifEntry.LINENO attributes set.
+     */
+    public ArrayList<LdifEntry> getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * @return the number of entries that failed.
+     */
+    public int getErrorCount()
+    {
+        return errorCount;
+    }
+
+    /**
+     * @return the number of entries read from the file.
+     */
+    public int getEntriesRead()
+    {
+        return entriesRead;
+    }
+
+    /**
+     * @return the number of entries written (or that failed).
+     */
+    public int getEntriesDone()
+    {
+        return entriesDone;
+    }
+
+    /**
+     * @return the entry closest to the root of the directory that was read from the file.
+     */
+    public DXEntry getApex()
+    {
+        return apex;
+    }
+}
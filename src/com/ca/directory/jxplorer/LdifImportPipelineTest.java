@@ -0,0 +1,198 @@
+package com.ca.directory.jxplorer;
+
+import com.ca.commons.naming.LdifEntry;
+import com.ca.commons.naming.LdifEntryType;
+import com.ca.commons.naming.LdifStreamReader;
+import com.ca.commons.naming.LdifUtility;
+import com.ca.directory.jxplorer.broker.DataQuery;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.NamingException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the order in which the LdifImportPipeline writes entries, using a fake writer
+ * in place of a directory.
+ */
+public class LdifImportPipelineTest extends TestCase
+{
+    /**
+     * A pipeline that records the entries it is asked to write, rather than writing them.
+     */
+    private static class RecordingPipeline extends LdifImportPipeline
+    {
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, Integer> startedAt = new HashMap<String, Integer>();
+        final Map<String, Integer> finishedAt = new HashMap<String, Integer>();
+        int clock = 0;
+        String failOn = null;
+        int active = 0;
+        int maxActive = 0;
+        boolean overlapped = false;     // whether anything ran beside a subtree change
+
+        RecordingPipeline(int workers)
+        {
+            this(new DataQuery(DataQuery.EXTENDED), workers);
+        }
+
+        RecordingPipeline(DataQuery query, int workers)
+        {
+            super(null, new LdifUtility(), null, query, workers);
+        }
+
+        protected boolean openConnection(int index) { return true; }
+        protected void closeConnection() {}
+
+        protected void importEntry(LdifEntry entry)
+                throws NamingException
+        {
+            String dn = entry.getDN().toString();
+            boolean alone = (entry.getChangeType() == LdifEntryType.delete);
+            synchronized (this)
+            {
+                startedAt.put(dn, clock++);
+                active++;
+                maxActive = Math.max(maxActive, active);
+                if (active > 1 && alone)
+                    overlapped = true;
+            }
+            started.add(dn);
+            try
+            {
+                Thread.sleep(5);
+                if (failOn != null && dn.startsWith(failOn))
+                    throw new NamingException("test failure adding " + dn);
+            }
+            catch (InterruptedException e) {}
+            finally
+            {
+                synchronized (this)
+                {
+                    finishedAt.put(dn, clock++);
+                    if (active > 1 && alone)
+                        overlapped = true;
+                    active--;
+                }
+            }
+        }
+    }
+
+    public LdifImportPipelineTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(LdifImportPipelineTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private static String entry(String dn)
+    {
+        return "dn: " + dn + "\nobjectClass: top\nobjectClass: organizationalUnit\n\n";
+    }
+
+    /**
+     * A small tree: an apex, some branches, and some leaves under each branch.
+     */
+    private static String tree()
+    {
+        StringBuffer ldif = new StringBuffer("version: 1\n\n").append(entry("o=test,c=au"));
+        for (int i = 0; i < 5; i++)
+        {
+            ldif.append(entry("ou=branch" + i + ",o=test,c=au"));
+            for (int j = 0; j < 4; j++)
+                ldif.append(entry("ou=leaf" + j + ",ou=branch" + i + ",o=test,c=au"));
+        }
+        return ldif.toString();
+    }
+
+    private static LdifStreamReader reader(String ldif)
+            throws Exception
+    {
+        return new LdifStreamReader(new StringReader(ldif));
+    }
+
+    public void testParentsBeforeChildren()
+            throws Exception
+    {
+        RecordingPipeline pipeline = new RecordingPipeline(4);
+        assertTrue(pipeline.run(reader(tree())));
+
+        assertEquals(26, pipeline.getEntriesRead());
+        assertEquals(26, pipeline.getEntriesDone());
+        assertEquals(0, pipeline.getErrorCount());
+        assertEquals("o=test,c=au", pipeline.getApex().getDN().toString());
+        assertTrue(pipeline.maxActive > 1);      // siblings are written at the same time
+
+        // every child starts after its parent has finished
+        for (String dn : pipeline.started)
+        {
+            String parent = dn.substring(dn.indexOf(',') + 1);
+            if (pipeline.finishedAt.containsKey(parent))
+                assertTrue(dn + " started before its parent finished", pipeline.startedAt.get(dn) > pipeline.finishedAt.get(parent));
+        }
+    }
+
+    public void testSubtreeChangeRunsAlone()
+            throws Exception
+    {
+        String ldif = tree() +
+                "dn: ou=leaf0,ou=branch0,o=test,c=au\nchangetype: delete\n\n" +
+                entry("ou=after,o=test,c=au");
+
+        RecordingPipeline pipeline = new RecordingPipeline(4);
+        assertTrue(pipeline.run(reader(ldif)));
+
+        assertFalse(pipeline.overlapped);
+        assertEquals(28, pipeline.getEntriesDone());
+        assertEquals("ou=after,o=test,c=au", pipeline.started.get(27));   // nothing overtakes the delete
+        assertTrue(pipeline.startedAt.get("ou=leaf0,ou=branch0,o=test,c=au") > pipeline.finishedAt.get("ou=leaf3,ou=branch4,o=test,c=au"));
+    }
+
+    public void testErrorsReportedByLine()
+            throws Exception
+    {
+        RecordingPipeline pipeline = new RecordingPipeline(3);
+        pipeline.failOn = "ou=leaf2,ou=branch3";
+        assertTrue(pipeline.run(reader(tree())));
+
+        assertEquals(26, pipeline.getEntriesDone());    // the import carries on past the error
+        assertEquals(1, pipeline.getErrorCount());
+
+        LdifEntry error = pipeline.getErrors().get(0);
+        assertEquals("ou=leaf2,ou=branch3,o=test,c=au", error.getDN().toString());
+        assertTrue(error.getString(LdifEntry.ERROR).indexOf("test failure") > -1);
+        assertEquals("79", error.getString(LdifEntry.LINENO));
+    }
+
+    public void testCancel()
+            throws Exception
+    {
+        final DataQuery query = new DataQuery(DataQuery.EXTENDED);
+        RecordingPipeline pipeline = new RecordingPipeline(query, 2)
+        {
+            protected void progress(int entriesDone)
+            {
+                if (entriesDone == 3)
+                    query.cancel();
+            }
+        };
+
+        assertFalse(pipeline.run(reader(tree())));
+        assertTrue(pipeline.getEntriesDone() < 26);
+        assertEquals(pipeline.startedAt.size(), pipeline.finishedAt.size());   // nothing is left half done
+    }
+}
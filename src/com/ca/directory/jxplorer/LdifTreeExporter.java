@@ -0,0 +1,310 @@
+package com.ca.directory.jxplorer;
+
+import com.ca.commons.naming.*;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the results of a subtree search to an LDIF file as they are read, rather than
+ * walking the tree with a list and a read for every entry.  The directory doesn't promise
+ * to return parents before their children, but an LDIF file has to have them in that order
+ * to be re-imported, so any entry that arrives before its parent is held back until the
+ * parent has been written.  (An entry whose parent never arrives - e.g. because it can't be
+ * read - is written at the end.)  Only a 64 bit hash of each written DN is kept, so the
+ * memory used by a large export is a few bytes an entry, plus any held back entries.
+ *
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class LdifTreeExporter
+{
+    /**
+     * How many entries are read from the directory at a time, unless the user has set a
+     * page size of their own.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * How often (in entries) progress() is called.
+     */
+    public static final int PROGRESS_INTERVAL = 100;
+
+    private final LdifUtility ldifutil;
+
+    private int entriesWritten = 0;
+
+    private LongSet written;                                 // the hashes of the DNs written so far (and of skipped structural nodes)
+    private LinkedHashMap<Long, List<DXEntry>> heldBack;     // entries waiting on their parent, keyed by the parent's hash
+
+    public LdifTreeExporter(LdifUtility ldifutil)
+    {
+        this.ldifutil = ldifutil;
+    }
+
+    /**
+     * Opens a buffered, UTF-8 writer on a file, compressing the output with gzip if the file
+     * name ends in '.gz'.
+     * @param file the file to write to
+     * @return a writer for the file; the caller must close it when finished.
+     * @throws IOException
+     */
+    public static Writer openWriter(File file)
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            if (file.getName().toLowerCase().endsWith(".gz"))
+                out = new GZIPOutputStream(out, 64 * 1024);
+            else
+                out = new BufferedOutputStream(out, 64 * 1024);
+
+            return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024);
+        }
+        catch (IOException e)
+        {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes every entry of a subtree search to an LDIF file.  The 'version: 1' header must have
+     * already been written.
+     *
+     * @param apex the base of the subtree search
+     * @param results the results of the search, as SearchResults with full DNs and all attributes
+     * @param out the writer to write the LDIF to
+     * @param origPrefix the original DN prefix, that may be modified on write to be
+     *                   newPrefix.  This may be null if no action is to be taken.
+     * @param newPrefix another DN to replace the origPrefix.
+     * @return false if the export was cancelled, true otherwise.
+     * @throws NamingException if the results could not all be read (e.g. a later page of a paged
+     *         search failed); nothing more is written.
+     */
+    public boolean export(DN apex, NamingEnumeration results, Writer out, String origPrefix, String newPrefix)
+            throws NamingException, IOException
+    {
+        if (newPrefix == null) origPrefix = null;                   // sanity check
+        if ((origPrefix != null) && (origPrefix.equals(newPrefix))) // sanity check
+            { origPrefix = null; newPrefix = null; }
+
+        written = new LongSet();
+        heldBack = new LinkedHashMap<Long, List<DXEntry>>();
+        entriesWritten = 0;
+
+        int apexSize = (apex == null) ? 0 : apex.size();
+        if (apexSize == 0)
+            written.add(hash(new DN()));      // exporting the whole tree; the naming contexts have no parent to wait for
+
+        try
+        {
+            while (hasMore(results))
+            {
+                if (isCancelled())
+                    return false;
+
+                SearchResult result = (SearchResult) next(results);
+                DN dn = new DN(result.getName());
+                DXEntry entry = new DXEntry(new DXAttributes(result.getAttributes()), dn);
+
+                if (dn.size() <= apexSize || written.contains(hash(dn.getParent())))
+                    write(entry, out, origPrefix, newPrefix);
+                else
+                    holdBack(entry);
+            }
+
+            // anything left has no parent in the export; write it anyway, in the order it arrived.
+            while (heldBack.isEmpty() == false)
+            {
+                Iterator<List<DXEntry>> orphans = heldBack.values().iterator();
+                List<DXEntry> siblings = orphans.next();
+                orphans.remove();
+                for (DXEntry orphan : siblings)
+                    write(orphan, out, origPrefix, newPrefix);
+            }
+        }
+        finally
+        {
+            results.close();
+            out.flush();
+            written = null;
+            heldBack = null;
+        }
+
+        progress(entriesWritten);
+        return true;
+    }
+
+    /**
+     * Writes an entry, and then any entries that were waiting for it (and any waiting
+     * for them...).
+     */
+    private void write(DXEntry entry, Writer out, String origPrefix, String newPrefix)
+            throws NamingException, IOException
+    {
+        ArrayList<DXEntry> pending = new ArrayList<DXEntry>();
+        pending.add(entry);
+
+        while (pending.isEmpty() == false)
+        {
+            DXEntry next = pending.remove(pending.size() - 1);
+            long hash = hash(next.getDN());         // before writeLdifEntry() changes the prefix
+
+            // skip fake tree node entries (but write their children).
+            if ((next.contains(DXAttributes.STRUCTURAL_NODE) == false) && (next.contains(DXAttributes.STRUCTURAL_NODE.toLowerCase()) == false))
+            {
+                ldifutil.writeLdifEntry(next, out, origPrefix, newPrefix);
+                entriesWritten++;
+                if (entriesWritten % PROGRESS_INTERVAL == 0)
+                    progress(entriesWritten);
+            }
+
+            written.add(hash);
+
+            List<DXEntry> children = heldBack.remove(hash);
+            if (children != null)
+                for (int i = children.size() - 1; i >= 0; i--)     // reversed, so they come off the stack in order
+                    pending.add(children.get(i));
+        }
+    }
+
+    /**
+     * Reads a (possibly streaming) DXNamingEnumeration so that an error part way through is
+     * thrown, rather than looking like the end of the results (see DXNamingEnumeration.hasMoreChecked()).
+     */
+    private static boolean hasMore(NamingEnumeration results)
+            throws NamingException
+    {
+        return (results instanceof DXNamingEnumeration) ? ((DXNamingEnumeration) results).hasMoreChecked() : results.hasMore();
+    }
+
+    private static Object next(NamingEnumeration results)
+            throws NamingException
+    {
+        return (results instanceof DXNamingEnumeration) ? ((DXNamingEnumeration) results).nextChecked() : results.next();
+    }
+
+    private void holdBack(DXEntry entry)
+    {
+        Long parent = hash(entry.getDN().getParent());
+        List<DXEntry> siblings = heldBack.get(parent);
+        if (siblings == null)
+            heldBack.put(parent, siblings = new ArrayList<DXEntry>(4));
+        siblings.add(entry);
+    }
+
+    /**
+     * @return the number of entries written by the last (or current) export.
+     */
+    public int getEntriesWritten()
+    {
+        return entriesWritten;
+    }
+
+    /**
+     * Called every PROGRESS_INTERVAL entries, and at the end of the export, with the number
+     * of entries written so far.  Does nothing by default.
+     * @param entriesWritten
+     */
+    protected void progress(int entriesWritten)
+    {
+    }
+
+    /**
+     * Checked before each entry is read; returning true stops the export.  Returns false by default.
+     */
+    protected boolean isCancelled()
+    {
+        return false;
+    }
+
+    /**
+     * A 64 bit (FNV-1a) hash of a DN, ignoring case.
+     */
+    static long hash(DN dn)
+    {
+        String name = dn.toString();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, len = name.length(); i < len; i++)
+        {
+            hash ^= Character.toLowerCase(name.charAt(i));
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * A minimal open addressing hash set of longs, to avoid boxing a Long for every entry written.
+     */
+    static class LongSet
+    {
+        private long[] table = new long[1024];
+        private boolean hasZero = false;
+        private int size = 0;
+
+        boolean contains(long value)
+        {
+            if (value == 0)
+                return hasZero;
+
+            int mask = table.length - 1;
+            for (int i = spread(value) & mask; table[i] != 0; i = (i + 1) & mask)
+                if (table[i] == value)
+                    return true;
+            return false;
+        }
+
+        void add(long value)
+        {
+            if (value == 0)
+            {
+                hasZero = true;
+                return;
+            }
+
+            if (size * 2 >= table.length)
+                grow();
+
+            if (insert(table, value))
+                size++;
+        }
+
+        int size()
+        {
+            return size + (hasZero ? 1 : 0);
+        }
+
+        private static boolean insert(long[] table, long value)
+        {
+            int mask = table.length - 1;
+            int i = spread(value) & mask;
+            for (; table[i] != 0; i = (i + 1) & mask)
+                if (table[i] == value)
+                    return false;
+            table[i] = value;
+            return true;
+        }
+
+        private void grow()
+        {
+            long[] bigger = new long[table.length * 2];
+            for (long value : table)
+                if (value != 0)
+                    insert(bigger, value);
+            table = bigger;
+        }
+
+        private static int spread(long value)
+        {
+            return (int) (value ^ (value >>> 32)) * 0x9E3779B9;
+        }
+    }
+}
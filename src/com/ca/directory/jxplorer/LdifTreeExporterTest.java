@@ -0,0 +1,208 @@
+package com.ca.directory.jxplorer;
+
+import com.ca.commons.naming.*;
+import com.ca.directory.jxplorer.broker.JNDIDataBroker;
+import com.pegacat.testprovider.TestLdapContextData;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class LdifTreeExporterTest extends TestCase
+{
+    public LdifTreeExporterTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(LdifTreeExporterTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private static SearchResult result(String dn)
+    {
+        BasicAttributes atts = new BasicAttributes();
+        atts.put(new DXAttribute("objectClass", new String[]{"top", "organizationalUnit"}));
+        atts.put(new BasicAttribute("ou", new DN(dn).getLowestRDN().getRawVal()));
+        return new SearchResult(dn, null, atts, false);
+    }
+
+    private static DXNamingEnumeration results(String[] dns)
+    {
+        DXNamingEnumeration results = new DXNamingEnumeration();
+        for (String dn : dns)
+            results.add(result(dn));
+        return results;
+    }
+
+    /**
+     * @return the DNs of the entries in an LDIF file, in order.
+     */
+    private static ArrayList<String> readDNs(String ldif)
+            throws Exception
+    {
+        ArrayList<String> dns = new ArrayList<String>();
+        LdifUtility ldifutil = new LdifUtility();
+        LdifStreamReader reader = new LdifStreamReader(new StringReader(ldif));
+        LdifEntry entry;
+        while ((entry = ldifutil.readLdifEntry(reader)) != null)
+            dns.add(entry.getDN().toString());
+        return dns;
+    }
+
+    public void testBrokerSubtree()
+            throws Exception
+    {
+        JXConfig.setupProperties(new Properties());
+        JNDIDataBroker broker = new JNDIDataBroker();
+        broker.openTestConnection(new TestLdapContextData().setupTestContext());
+
+        DN apex = new DN("o=groupmind,c=au");
+        StringWriter out = new StringWriter();
+        LdifTreeExporter exporter = new LdifTreeExporter(new LdifUtility());
+        assertTrue(exporter.export(apex, broker.unthreadedReadSubtree(apex, 2), out, null, null));
+
+        ArrayList<String> dns = readDNs(out.toString());
+        assertEquals(exporter.getEntriesWritten(), dns.size());
+        assertTrue(dns.size() > 5);
+        assertEquals("o=groupmind,c=au", dns.get(0));
+        assertTrue(dns.contains("cn=Fred,ou=users,o=groupmind,c=au"));
+        for (String dn : dns)
+            if (!dn.equals("o=groupmind,c=au"))
+                assertTrue(dn + " written before its parent", dns.indexOf(new DN(dn).getParent().toString()) < dns.indexOf(dn));
+    }
+
+    public void testChildrenHeldBackForParents()
+            throws Exception
+    {
+        DXNamingEnumeration results = results(new String[] {
+                "ou=leaf,ou=branch,o=test",
+                "ou=twig,ou=leaf,ou=branch,o=test",
+                "o=test",
+                "ou=other,o=test",
+                "ou=Branch,o=test",                     // parents are matched ignoring case
+                "ou=orphan,ou=missing,o=test"});
+
+        StringWriter out = new StringWriter();
+        LdifTreeExporter exporter = new LdifTreeExporter(new LdifUtility());
+        assertTrue(exporter.export(new DN("o=test"), results, out, "o=test", "o=copy"));
+
+        ArrayList<String> dns = readDNs(out.toString());
+        assertEquals(6, exporter.getEntriesWritten());
+        assertEquals("o=copy", dns.get(0));
+        assertEquals("ou=other,o=copy", dns.get(1));
+        assertEquals("ou=Branch,o=copy", dns.get(2));
+        assertEquals("ou=leaf,ou=branch,o=copy", dns.get(3));
+        assertEquals("ou=twig,ou=leaf,ou=branch,o=copy", dns.get(4));
+        assertEquals("ou=orphan,ou=missing,o=copy", dns.get(5));
+    }
+
+    /**
+     * A later page of the search fails after a child has been held back for its parent: the
+     * export must fail, rather than write the child out as an orphan and report success.
+     */
+    public void testLaterPageFails()
+            throws Exception
+    {
+        final DXNamingEnumeration firstPage = results(new String[] {"o=test", "ou=child,ou=parent,o=test"});
+        NamingEnumeration paged = new NamingEnumeration()
+        {
+            public boolean hasMore() throws NamingException
+            {
+                if (firstPage.hasMore())
+                    return true;
+                throw new NamingException("page 2 unavailable");
+            }
+
+            public Object next() throws NamingException
+            {
+                hasMore();
+                return firstPage.next();
+            }
+
+            public boolean hasMoreElements() { return firstPage.hasMore(); }     // as the paged enumerations' hasMoreElements() do
+
+            public Object nextElement() { return firstPage.next(); }
+
+            public void close() {}
+        };
+
+        StringWriter out = new StringWriter();
+        LdifTreeExporter exporter = new LdifTreeExporter(new LdifUtility());
+        try
+        {
+            exporter.export(new DN("o=test"), new DXNamingEnumeration(paged, true), out, null, null);
+            fail("expected the export to fail");
+        }
+        catch (NamingException e)
+        {
+            assertEquals("page 2 unavailable", e.getMessage());
+        }
+        assertEquals(1, exporter.getEntriesWritten());
+        assertEquals(1, readDNs(out.toString()).size());
+    }
+
+    public void testCancel()
+            throws Exception
+    {
+        String[] dns = new String[LdifTreeExporter.PROGRESS_INTERVAL * 3];
+        dns[0] = "o=test";
+        for (int i = 1; i < dns.length; i++)
+            dns[i] = "ou=unit" + i + ",o=test";
+
+        LdifTreeExporter exporter = new LdifTreeExporter(new LdifUtility())
+        {
+            boolean cancelled = false;
+            protected void progress(int entriesWritten) { cancelled = true; }
+            protected boolean isCancelled() { return cancelled; }
+        };
+        assertFalse(exporter.export(new DN("o=test"), results(dns), new StringWriter(), null, null));
+        assertEquals(LdifTreeExporter.PROGRESS_INTERVAL, exporter.getEntriesWritten());
+    }
+
+    public void testGzipWriter()
+            throws Exception
+    {
+        File file = File.createTempFile("jxexport", ".ldif.gz");
+        try
+        {
+            Writer out = LdifTreeExporter.openWriter(file);
+            out.write("version: 1\n");
+            new LdifTreeExporter(new LdifUtility()).export(new DN("o=test"), results(new String[] {"o=test", "ou=\u00e9t\u00e9,o=test"}), out, null, null);
+            out.close();
+
+            Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+            StringBuffer ldif = new StringBuffer();
+            char[] buffer = new char[1024];
+            for (int read; (read = in.read(buffer)) > 0;)
+                ldif.append(buffer, 0, read);
+            in.close();
+
+            ArrayList<String> dns = readDNs(ldif.toString());
+            assertEquals(2, dns.size());
+            assertEquals("ou=\u00e9t\u00e9,o=test", dns.get(1));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class CBGraphicsOps extends DXOps
         throws NamingException
     {
         super(ctx);
+        setTreeConcurrency(JXConfig.getIntProperty("option.ldap.treeThreads", 4));
     }
 
     /**
@@ -44,6 +45,7 @@ public class CBGraphicsOps extends DXOps
         throws NamingException
     {
         super(addSSLFactoryToConnectionData(cData));
+        setTreeConcurrency(JXConfig.getIntProperty("option.ldap.treeThreads", 4));
     }
 
     /**
@@ -17,6 +17,9 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.ldap.LdapContext;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Vector;
 
 
@@ -46,7 +49,13 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
 
     public int id;
 
-    protected DataQuery current = null;
+    protected Vector running = new Vector(4);        // the queries currently being processed by worker threads
+
+    public static final int DEFAULT_WORKERS = 1;     // the default number of worker threads: queries are run one at a time, in order
+
+    protected int workerCount = DEFAULT_WORKERS;     // the number of worker threads started by startWorkers()
+
+    private static Set brokerThreads = Collections.synchronizedSet(new HashSet());  // all threads currently running broker queues
 
     StopMonitor stopMonitor = null;
 
@@ -83,9 +92,45 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
             System.out.println("----------");
         }
 
+        addListeners(request);
+
+        return queue(request);
+    }
+
+    /**
+     * Adds this broker's data listeners to a query.
+     */
+
+    protected void addListeners(DataQuery request)
+    {
         for (int i = 0; i < listeners.size(); i++)
             request.addDataListener(new SwingDataListener((DataListener) listeners.get(i)));
+    }
+
+    /**
+     * Queues a group of read queries to be run together; the data listeners are told about
+     * each query as soon as it is finished (rather than about the group).  Brokers that can run
+     * several queries at once (see doPipelineQuery()) send them all to the directory without
+     * waiting for the answers, so the group takes little longer than its slowest query.
+     *
+     * @param queries the list, read entry and existance check queries to run.
+     * @return the pipeline query, which finishes when all of the queries have.
+     */
+
+    public DataQuery pushPipeline(DataQuery[] queries)
+    {
+        for (int i = 0; i < queries.length; i++)
+            addListeners(queries[i]);
 
+        return queue(new DataQuery(queries));
+    }
+
+    /**
+     * Adds a query (which already has its listeners) to the request queue, and wakes a worker thread.
+     */
+
+    protected DataQuery queue(DataQuery request)
+    {
         synchronized (requestQueue)
         {
             requestQueue.add(request);
@@ -114,17 +159,147 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
 
         synchronized (requestQueue)
         {
-            if (requestQueue.isEmpty()) return null;
-            request = (DataQuery) requestQueue.firstElement();
+            int index = nextRunnableIndex();
+            if (index == -1) return null;        // nothing queued, or nothing that can run yet
+            request = (DataQuery) requestQueue.get(index);
             if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " popping request: " + request.getTypeString() + ": " + request.toString() + " in broker " + this.id());
 
-            requestQueue.removeElementAt(0);
+            requestQueue.removeElementAt(index);
+            running.add(request);
             request.setRunning();                // set the running flag (for use by StopMonitor)
         }
 
         return request;
     }
 
+    /**
+     * Finds the queued query that should be run next: the first query of the most urgent
+     * priority that does not have to wait for another query.  A query must wait if:
+     * <ul>
+     * <li>an extended query is running (or queued ahead of it) - extended queries, such as
+     * connecting or LDIF import, always run on their own, in order.
+     * <li>it, or a query running or queued ahead of it, changes the directory, and both queries
+     * affect the same part of the tree (e.g. a list of an entry modified just before).
+     * </ul>
+     * Cancelled queries are ignored: their threads may have hung, and are abandoned (see
+     * StopMonitor), so nothing should wait for them.
+     * Must be called while synchronized on the requestQueue.
+     *
+     * @return the index of the query in the requestQueue, or -1 if there is no query that can run now.
+     */
+
+    protected int nextRunnableIndex()
+    {
+        boolean idle = true;      // whether no (uncancelled) query is running
+        for (int i = 0; i < running.size(); i++)
+        {
+            DataQuery query = (DataQuery) running.get(i);
+            if (query.isCancelled())
+                continue;
+            if (query.getType() == DataQuery.EXTENDED)
+                return -1;
+            idle = false;
+        }
+
+        int best = -1;
+        int bestPriority = Integer.MAX_VALUE;
+
+        for (int i = 0; i < requestQueue.size(); i++)
+        {
+            DataQuery query = (DataQuery) requestQueue.get(i);
+
+            if (query.getType() == DataQuery.EXTENDED)
+            {
+                if (i == 0 && best == -1 && idle)
+                    return 0;   // extended queries run only when they're first in line, and nothing else is running
+                break;          // ... and nothing queued after them may overtake them
+            }
+
+            if (query.getPriority() < bestPriority && mustWait(query, i) == false)
+            {
+                best = i;
+                bestPriority = query.getPriority();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Checks whether a queued query must wait for a query that is either currently running,
+     * or that was queued before it (ignoring cancelled queries).
+     *
+     * @param query the query to check.
+     * @param index the position of the query in the requestQueue.
+     * @return true if the query should not be run yet.
+     */
+
+    protected boolean mustWait(DataQuery query, int index)
+    {
+        for (int i = 0; i < running.size(); i++)
+        {
+            DataQuery other = (DataQuery) running.get(i);
+            if (other.isCancelled() == false && conflicts(query, other))
+                return true;
+        }
+
+        for (int i = 0; i < index; i++)
+        {
+            DataQuery other = (DataQuery) requestQueue.get(i);
+            if (other.isCancelled() == false && conflicts(query, other))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Two queries conflict (and must run in the order they were made) if at least one of them
+     * changes the directory, and the parts of the tree they affect overlap.
+     */
+
+    protected boolean conflicts(DataQuery a, DataQuery b)
+    {
+        if (a.isWrite() == false && b.isWrite() == false)
+            return false;   // reads can always be reordered with respect to one another
+
+        DN[] aDNs = affectedDNs(a);
+        DN[] bDNs = affectedDNs(b);
+
+        for (int i = 0; i < aDNs.length; i++)
+            for (int j = 0; j < bDNs.length; j++)
+            {
+                if (aDNs[i] == null || bDNs[j] == null)
+                    return true;     // can't tell - play safe
+                if (aDNs[i].startsWith(bDNs[j]) || bDNs[j].startsWith(aDNs[i]))
+                    return true;     // same entry, or one is in the subtree of the other
+            }
+
+        return false;
+    }
+
+    /**
+     * Returns the DNs read or changed by a query (the roots of the subtrees for tree operations).
+     */
+
+    protected DN[] affectedDNs(DataQuery query)
+    {
+        switch (query.getType())
+        {
+            case DataQuery.MODIFY:
+                DN oldDN = (query.oldEntry == null) ? null : query.oldEntry.getDN();
+                DN newDN = (query.newEntry == null) ? null : query.newEntry.getDN();
+                if (oldDN == null) return new DN[]{newDN};
+                if (newDN == null) return new DN[]{oldDN};
+                return new DN[]{oldDN, newDN};
+
+            case DataQuery.COPY:
+                return new DN[]{query.oldDN, query.requestDN};
+
+            default:
+                return new DN[]{query.requestDN};
+        }
+    }
+
     /**
      * Removes a particular query from the pending query list...
      */
@@ -149,6 +324,47 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
         }
     }
 
+    /**
+     * Starts the worker threads that process this broker's queue.  With a single
+     * worker, queries are run one at a time; with more, independent queries (e.g.
+     * a list of one part of the tree while a slow search runs) are run concurrently,
+     * subject to the ordering rules in nextRunnableIndex().
+     *
+     * @param name the thread name (additional workers have a number appended).
+     * @param count the number of worker threads to start (at least one is always started).
+     * @return the first worker thread.
+     */
+
+    public Thread startWorkers(String name, int count)
+    {
+        workerCount = Math.max(1, count);
+
+        Thread first = null;
+        for (int i = 0; i < workerCount; i++)
+        {
+            Thread worker = new Thread(this, (i == 0) ? name : name + " " + (i + 1));
+            worker.start();
+            if (first == null) first = worker;
+        }
+        return first;
+    }
+
+    /**
+     * Returns the number of worker threads this broker was started with.
+     */
+
+    public int getWorkerCount() { return workerCount; }
+
+    /**
+     * Returns whether the calling thread is one of the threads processing a broker queue.
+     * (Such threads must not block waiting on the results of other queries.)
+     */
+
+    public static boolean isBrokerThread()
+    {
+        return brokerThreads.contains(Thread.currentThread());
+    }
+
     /**
      * Wait until notified that something (presumably
      * an addition to the queue) has occured.  When woken,
@@ -158,30 +374,39 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
 
     public void run()
     {
-        while (true)
+        brokerThreads.add(Thread.currentThread());
+        try
         {
-            if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " processing Queue of length: " + requestQueue.size() + " in broker " + id);
-
-            if (processQueue() == false)
+            while (true)
             {
-                if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " ending." + requestQueue.size());
-                return;
-            }
+                if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " processing Queue of length: " + requestQueue.size() + " in broker " + id);
 
-            try
-            {
-                if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " waiting in run() loop");
-                synchronized (requestQueue)
+                if (processQueue() == false)
                 {
-                    requestQueue.wait();
+                    if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " ending." + requestQueue.size());
+                    return;
+                }
+
+                try
+                {
+                    if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " waiting in run() loop");
+                    synchronized (requestQueue)
+                    {
+                        if (nextRunnableIndex() == -1)   // don't wait if something became runnable meanwhile
+                            requestQueue.wait();
+                    }
+                    if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " notified in run() loop");
+                }
+                catch (Exception e)
+                {
+                    if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " interrupted in run() loop \n    " + e);
                 }
-                if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " notified in run() loop");
-            }
-            catch (Exception e)
-            {
-                if (debug) System.out.println("Thread: " + Thread.currentThread().getName() + " interrupted in run() loop \n    " + e);
             }
         }
+        finally
+        {
+            brokerThreads.remove(Thread.currentThread());
+        }
     }
 
     /**
@@ -192,23 +417,30 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
     {
         while (hasRequests())
         {
-            current = pop();            // keep track of the current query for reporting
+            DataQuery current = pop();
 
             if (current == null)
-                return true;  // sanity check: fantastically small (?) chance of thread magic causing a null return?
+                return true;  // nothing that can run right now; wait for a running query to finish.
 
-            processRequest(current);
+            try
+            {
+                processRequest(current);
+            }
+            finally
+            {
+                synchronized (requestQueue)
+                {
+                    running.remove(current);
+                    requestQueue.notifyAll();    // queries waiting on this one may now be able to run
+                }
+            }
 
             if (stopMonitor != null) stopMonitor.updateWatchers();
 
-            if (current != null && current.isCancelled())    // if the request was cancelled by the user, then
+            if (current.isCancelled())    // if the request was cancelled by the user, then
             {                             // it had probably hung, and another broker thread
                 return false;             // will have been started - so kill this thread off.
             }
-            else
-            {
-                current = null;
-            }
         }
 
         return true;                      // completed queue without any cancellations
@@ -273,6 +505,10 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
                     doExtendedQuery(request);
                     break;
 
+                case DataQuery.PIPELINE:
+                    doPipelineQuery(request);
+                    break;
+
                 case DataQuery.UNKNOWN:
 
                 default:
@@ -301,6 +537,22 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
         return push(new DataQuery(DataQuery.LIST, nodeDN));
     }
 
+    public DataQuery getMoreChildren(DN nodeDN)
+    {
+        return push(new DataQuery(DataQuery.LIST, nodeDN).setContinuation(true));
+    }
+
+    public DataQuery[] getChildrenAndEntry(DN[] nodeDNs, DN entryDN)
+    {
+        DataQuery[] queries = new DataQuery[nodeDNs.length + 1];
+        for (int i = 0; i < nodeDNs.length; i++)
+            queries[i] = new DataQuery(DataQuery.LIST, nodeDNs[i]);
+        queries[nodeDNs.length] = new DataQuery(DataQuery.READENTRY, entryDN);
+
+        pushPipeline(queries);
+        return queries;
+    }
+
     public DataQuery getEntry(DN nodeDN)
     {
         return push(new DataQuery(DataQuery.READENTRY, nodeDN));
@@ -404,12 +656,31 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
     // Methods for the stop monitor - return a list of outstanding tasks
 
     /**
-     * Returns the DataQuery currently being processed (if any).
+     * Returns a DataQuery currently being processed (if any).  If there are several
+     * worker threads, use getRunningQueries() to get them all.
      *
      * @return the current DataQuery (may be null if there is none).
      */
     public DataQuery getCurrent()
-    { return current; }
+    {
+        synchronized (requestQueue)
+        {
+            return running.isEmpty() ? null : (DataQuery) running.firstElement();
+        }
+    }
+
+    /**
+     * Returns the DataQuerys currently being processed by the broker's worker threads.
+     *
+     * @return a copy of the list of running queries (may be empty).
+     */
+    public Vector getRunningQueries()
+    {
+        synchronized (requestQueue)
+        {
+            return new Vector(running);
+        }
+    }
 
     /**
      * Returns the vector of outstanding queries.
@@ -421,6 +692,62 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
         return requestQueue;
     }
 
+    /**
+     * Gives the calling thread its own connection to the data source for unthreaded
+     * operations, so that helper threads started by an extended query (e.g. parallel
+     * LDIF import workers) can write at the same time.  Call closeWorkerConnection()
+     * from the same thread when finished.  The base implementation has no separate
+     * connections to give out.
+     *
+     * @return true if the thread has its own connection; false if it would share
+     * the broker's connection with other threads.
+     */
+    public boolean openWorkerConnection()
+    {
+        return false;
+    }
+
+    /**
+     * Releases the connection obtained by openWorkerConnection() on the calling thread.
+     */
+    public void closeWorkerConnection()
+    {
+    }
+
+    /**
+     * Reads every entry in a subtree (including the base entry), with all their attributes,
+     * for bulk operations such as LDIF export.  The results are read from the data source as
+     * the enumeration is consumed, and are not subject to the interactive search limits.
+     * The base implementation can't do this, and returns null; callers should then walk the
+     * tree with unthreadedList() and unthreadedReadEntry().
+     *
+     * @param base the top of the subtree
+     * @param pageSize the number of entries to read at a time (where the data source supports it)
+     * @return the entries as 'SearchResult's with full DNs, or null if not supported.
+     */
+    public DXNamingEnumeration unthreadedReadSubtree(DN base, int pageSize)
+            throws NamingException
+    {
+        return null;
+    }
+
+    /**
+     * Runs the queries of a pipeline.  The base implementation simply runs them one after
+     * another, finishing each in turn; brokers that can run queries concurrently should
+     * override this.
+     *
+     * @param request the pipeline query.
+     */
+
+    protected DataQuery doPipelineQuery(DataQuery request)
+    {
+        DataQuery[] queries = request.getPipelinedQueries();
+        for (int i = 0; i < queries.length; i++)
+            processRequest(queries[i]);
+
+        return finish(request);
+    }
+
     // this one doesn't need to be abstract...
 
     protected DataQuery doExtendedQuery(DataQuery request)
@@ -458,10 +785,39 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
     protected DataQuery doListQuery(DataQuery request)
             throws NamingException
     {
-        request.setEnumeration(unthreadedList(request.requestDN()));
+        DN dn = request.requestDN();
+        request.setEnumeration(unthreadedListPage(dn, request.isContinuation()));
+        request.setPartial(hasMoreChildren(dn));
         return finish(request);
     }
 
+    /**
+     * Reads the children of an entry for display, a page at a time where the data source
+     * supports it, so that very large containers can be browsed without reading every
+     * child at once.  The base implementation reads them all with unthreadedList().
+     *
+     * @param searchbase the node in the tree to expand
+     * @param more false to read the first page, true to read the page after the last one read.
+     * @return list of results (NameClassPair); a page of the next layer of the tree.
+     */
+    public DXNamingEnumeration unthreadedListPage(DN searchbase, boolean more)
+            throws NamingException
+    {
+        return (more) ? new DXNamingEnumeration() : unthreadedList(searchbase);
+    }
+
+    /**
+     * Returns whether there are children of an entry still to be read by unthreadedListPage().
+     * The base implementation always reads all of them, and returns false.
+     *
+     * @param searchbase the node in the tree being expanded
+     * @return true if unthreadedListPage(searchbase, true) would return more children.
+     */
+    public boolean hasMoreChildren(DN searchbase)
+    {
+        return false;
+    }
+
     /**
      * Method for the DataBroker interface - chains to
      * dirOp.read().
@@ -483,10 +839,48 @@ public abstract class DataBroker implements Runnable, DataBrokerQueryInterface,
             throws NamingException
     {
         DXNamingEnumeration en = unthreadedSearch(request.requestDN(), request.filter(), request.searchLevel(), request.returnAttributes());
-        request.setEnumeration(en);
+        request.setEnumeration(readSearchResults(request, en));
         return finish(request);
     }
 
+    /**
+     * Search results may be 'streaming' (i.e. still being read from the directory page by page).
+     * Since query results are handed to the GUI thread, we read them here on the broker thread,
+     * checking between results whether the user has cancelled the query, in which case the rest
+     * of the search (and any remaining pages) is abandoned.  If the directory fails part way
+     * through (e.g. while reading a later page), the error is set on the request, which keeps
+     * the results read before it.
+     *
+     * @param request the search query being processed.
+     * @param en the (possibly streaming) search results.
+     * @return the search results read.
+     */
+
+    protected DXNamingEnumeration readSearchResults(DataQuery request, DXNamingEnumeration en)
+    {
+        if (en == null || en.isStreaming() == false)
+            return en;
+
+        DXNamingEnumeration results = new DXNamingEnumeration();
+        try
+        {
+            while (en.hasMoreChecked())
+            {
+                if (request.isCancelled())
+                {
+                    en.close();
+                    break;
+                }
+                results.add(en.nextChecked());
+            }
+        }
+        catch (NamingException e)
+        {
+            request.setException(e);     // the enumeration has already been closed
+        }
+        return results;
+    }
+
     /**
      * Method for the DataBroker interface - chains to
      * modifyEntry().
@@ -33,6 +33,29 @@ public interface DataBrokerQueryInterface
      */
     public DataQuery getChildren(DN nodeDN);
 
+    /**
+     * gets the next page of the children of a particular DN, when a previous
+     * getChildren() (or getMoreChildren()) query came back partial.
+     *
+     * @param nodeDN the DN to retrieve more children for
+     * @return a DataQuery that may be queried using .getEnumeration() to obtain
+     *         an enumeration of NameClassPair-s to add to the sub-nodes of the
+     *         given node, and .isPartial() to see whether there are still more.
+     */
+    public DataQuery getMoreChildren(DN nodeDN);
+
+    /**
+     * gets the children of several DNs, and the attributes of an entry, all at once (e.g. to
+     * open up the tree down to an entry).  The queries are started together, and each
+     * finishes (and is passed to the data listeners) separately, in whatever order the
+     * directory answers them.
+     *
+     * @param nodeDNs the DNs to retrieve children for
+     * @param entryDN the DN to retrieve attribute data for
+     * @return the DataQuerys; a list for each of the nodeDNs, in order, followed by the entry read.
+     */
+    public DataQuery[] getChildrenAndEntry(DN[] nodeDNs, DN entryDN);
+
     /**
      * gets the attribute types and values for a particular DN
      *
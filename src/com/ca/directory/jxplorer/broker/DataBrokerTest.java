@@ -0,0 +1,266 @@
+package com.ca.directory.jxplorer.broker;
+
+import com.ca.commons.naming.DN;
+import com.ca.commons.naming.DXAttributes;
+import com.ca.commons.naming.DXEntry;
+import com.ca.commons.naming.DXNamingEnumeration;
+import com.ca.directory.jxplorer.JXConfig;
+import com.pegacat.testprovider.TestLdapContextData;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.NameClassPair;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Checks the order in which the DataBroker hands queued queries to its worker threads,
+ * (the queries are popped directly; no worker threads are started) and the paged listing
+ * of large nodes.
+ */
+public class DataBrokerTest extends TestCase
+{
+    private static final DN PARENT = new DN("ou=parent,o=test");
+    private static final DN CHILD = new DN("cn=child,ou=parent,o=test");
+    private static final DN OTHER = new DN("ou=other,o=test");
+
+    protected DataBroker broker;
+
+    public DataBrokerTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DataBrokerTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp()
+    {
+        broker = new JNDIDataBroker();
+    }
+
+    private DataQuery modify(DN dn)
+    {
+        return new DataQuery(DataQuery.MODIFY, null, new DXEntry(new DXAttributes(), dn));
+    }
+
+    public void testInteractiveBeforeBulk()
+    {
+        DataQuery search = broker.push(new DataQuery(DataQuery.SEARCH, PARENT, "(objectClass=*)", 2, null));
+        DataQuery list = broker.push(new DataQuery(DataQuery.LIST, OTHER));
+
+        assertSame(list, broker.pop());
+        assertSame(search, broker.pop());
+        assertNull(broker.pop());
+        assertEquals(2, broker.getRunningQueries().size());
+    }
+
+    public void testWritesKeepOrder()
+    {
+        DataQuery write = broker.push(modify(CHILD));
+        DataQuery list = broker.push(new DataQuery(DataQuery.LIST, PARENT));     // must see the modification
+        DataQuery unrelated = broker.push(new DataQuery(DataQuery.READENTRY, OTHER));
+
+        assertSame(unrelated, broker.pop());     // most urgent query that doesn't depend on the write
+        assertSame(write, broker.pop());
+        assertNull(broker.pop());                // the list must wait for the running write
+
+        broker.running.remove(write);
+        assertSame(list, broker.pop());
+    }
+
+    public void testReadsRunConcurrently()
+    {
+        DataQuery first = broker.push(new DataQuery(DataQuery.LIST, PARENT));
+        DataQuery second = broker.push(new DataQuery(DataQuery.READENTRY, CHILD));
+
+        assertSame(first, broker.pop());
+        assertSame(second, broker.pop());
+    }
+
+    public void testExtendedRunsAlone()
+    {
+        DataQuery list = broker.push(new DataQuery(DataQuery.LIST, PARENT));
+        DataQuery extended = broker.push(new DataQuery(DataQuery.EXTENDED));
+        DataQuery after = broker.push(new DataQuery(DataQuery.LIST, OTHER));
+
+        assertSame(list, broker.pop());
+        assertNull(broker.pop());                // extended waits for the list; nothing may overtake it
+
+        broker.running.remove(list);
+        assertSame(extended, broker.pop());
+        assertNull(broker.pop());                // ... and nothing runs beside it
+
+        broker.running.remove(extended);
+        assertSame(after, broker.pop());
+    }
+
+    public void testCancelledQueriesDontBlock()
+    {
+        DataQuery extended = broker.push(new DataQuery(DataQuery.EXTENDED));
+        DataQuery write = broker.push(modify(CHILD));
+        DataQuery list = broker.push(new DataQuery(DataQuery.LIST, PARENT));
+
+        assertSame(extended, broker.pop());
+        assertNull(broker.pop());
+
+        extended.cancel();                       // the extended query hangs (it stays 'running'), and the user cancels it
+        assertSame(write, broker.pop());
+        assertNull(broker.pop());                // the list must still wait for the (uncancelled) write
+
+        write.cancel();                          // ... which hangs too
+        assertSame(list, broker.pop());
+        assertEquals(3, broker.getRunningQueries().size());
+    }
+
+    private static HashSet<String> names(DXNamingEnumeration list)
+    {
+        HashSet<String> names = new HashSet<String>();
+        while (list.hasMoreElements())
+            names.add(((NameClassPair) list.nextElement()).getName().toLowerCase());
+        return names;
+    }
+
+    public void testPagedList()
+            throws Exception
+    {
+        JXConfig.setupProperties(new Properties());
+        JNDIDataBroker jndiBroker = new JNDIDataBroker();
+        jndiBroker.openTestConnection(new TestLdapContextData().setupTestContext());
+
+        DN users = new DN("ou=users,o=groupmind,c=au");
+        DXNamingEnumeration children = jndiBroker.unthreadedList(users);
+        int count = children.size();
+        HashSet<String> all = names(children);
+        assertTrue(count > 2);
+
+        jndiBroker.setListPageSize(2);
+        jndiBroker.setServerSort(true);         // (the test provider can't sort, so the children come unsorted)
+        HashSet<String> paged = new HashSet<String>();
+        DataQuery list = jndiBroker.doListQuery(new DataQuery(DataQuery.LIST, users));
+        int pages = 1;
+        while (true)
+        {
+            DXNamingEnumeration page = list.getEnumeration();
+            assertTrue(page.size() <= 2);
+            paged.addAll(names(page));
+            if (list.isPartial() == false)
+                break;
+            assertEquals(2, page.size());
+            pages++;
+            list = jndiBroker.doListQuery(new DataQuery(DataQuery.LIST, users).setContinuation(true));
+            assertTrue(list.isContinuation());
+        }
+        assertEquals(all, paged);
+        assertEquals((count + 1) / 2, pages);
+        assertFalse(jndiBroker.hasMoreChildren(users));
+        assertEquals(0, jndiBroker.unthreadedListPage(users, true).size());     // nothing left
+
+        // listing the node again starts from the beginning
+        assertEquals(2, jndiBroker.unthreadedListPage(users, false).size());
+        assertTrue(jndiBroker.hasMoreChildren(users));
+        assertEquals(2, jndiBroker.unthreadedListPage(users, false).size());
+        jndiBroker.disconnect();
+        assertFalse(jndiBroker.hasMoreChildren(users));
+    }
+
+    /**
+     * A streaming search result that returns a couple of entries and then fails, as a paged
+     * search does when a later page can't be read.
+     */
+    private static class FailingEnumeration implements NamingEnumeration
+    {
+        int left = 2;
+
+        public boolean hasMore() throws NamingException
+        {
+            if (left == 0)
+                throw new NamingException("page 2 unavailable");
+            return true;
+        }
+
+        public Object next() throws NamingException
+        {
+            hasMore();
+            return new NameClassPair("cn=entry" + left--, null);
+        }
+
+        public boolean hasMoreElements() { return left > 0; }     // as the paged enumerations' hasMoreElements() do
+
+        public Object nextElement()
+        {
+            if (left == 0)
+                throw new NoSuchElementException();
+            return new NameClassPair("cn=entry" + left--, null);
+        }
+
+        public void close() { left = 0; }
+    }
+
+    public void testSearchFailsPartWay()
+            throws Exception
+    {
+        JNDIDataBroker failingBroker = new JNDIDataBroker()
+        {
+            public DXNamingEnumeration unthreadedSearch(DN dn, String filter, int search_level, String[] returnAttributes)
+            {
+                return new DXNamingEnumeration(new FailingEnumeration(), true);
+            }
+        };
+        failingBroker.openTestConnection(new TestLdapContextData().setupTestContext());
+
+        DataQuery search = failingBroker.doSearchQuery(new DataQuery(DataQuery.SEARCH, PARENT, "(objectClass=*)", 2, null));
+        assertTrue(search.ready());
+        assertTrue(search.hasException());          // not silently truncated...
+        assertEquals("page 2 unavailable", search.getException().getMessage());
+        assertEquals(2, search.getEnumeration().size());    // ... but keeping the entries read before the error
+    }
+
+    public void testPipeline()
+            throws Exception
+    {
+        JXConfig.setupProperties(new Properties());
+        JNDIDataBroker jndiBroker = new JNDIDataBroker();
+        jndiBroker.openTestConnection(new TestLdapContextData().setupTestContext());
+
+        DN base = new DN("o=groupmind,c=au");
+        DN users = new DN("ou=users,o=groupmind,c=au");
+        DN entry = new DN(((NameClassPair) jndiBroker.unthreadedList(users).nextElement()).getName());
+        DataQuery[] queries = jndiBroker.getChildrenAndEntry(new DN[] {base, users}, entry);
+        assertEquals(3, queries.length);
+
+        DataQuery pipeline = jndiBroker.pop();       // the queries are queued together...
+        assertEquals(DataQuery.PIPELINE, pipeline.getType());
+        assertNull(jndiBroker.pop());
+        jndiBroker.processRequest(pipeline);
+
+        assertTrue(pipeline.ready());               // ... and each is answered separately
+        for (int i = 0; i < queries.length; i++)
+        {
+            assertTrue(queries[i].ready());
+            assertFalse(String.valueOf(queries[i].getException()), queries[i].hasException());
+        }
+        assertTrue(names(queries[0].getEnumeration()).contains(users.toString().toLowerCase()));
+        assertEquals(jndiBroker.unthreadedList(users).size(), queries[1].getEnumeration().size());
+        assertEquals(entry, queries[2].getEntry().getDN());
+
+        ExecutorService executor = jndiBroker.getPipelineExecutor();    // the pipeline threads are kept for the next pipeline...
+        jndiBroker.getChildrenAndEntry(new DN[] {base, users}, entry);
+        jndiBroker.processRequest(jndiBroker.pop());
+        assertSame(executor, jndiBroker.getPipelineExecutor());
+        jndiBroker.disconnect();                                        // ... until the broker disconnects
+        assertTrue(executor.isShutdown());
+    }
+}
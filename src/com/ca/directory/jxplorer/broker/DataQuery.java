@@ -37,6 +37,15 @@ public class DataQuery
     public static final int XWINCOPY = 64;   /** copy across windows **/
     public static final int GETRECOC = 128;  /** get recommended object classes request **/
     public static final int EXTENDED = 256;  /** an extended data query: i.e. a user inherited extension class **/
+    public static final int PIPELINE = 512;  /** a group of read queries run together **/
+
+    /**
+     *    Query priorities, used by the broker to decide which waiting query to run next.
+     *    Lower numbers run first; queries of equal priority run in the order they were made.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;  /** quick queries the user is waiting on (tree browsing) **/
+    public static final int PRIORITY_NORMAL = 1;       /** single entry modifications **/
+    public static final int PRIORITY_BULK = 2;         /** searches, tree copies and extended requests **/
 
     protected Vector listeners = new Vector();
 
@@ -95,6 +104,15 @@ public class DataQuery
 
     // For cross-window operations only; whether to overwrite existing entries when doing a copy / move operation across windows
     protected boolean overwriteExistingData = true;
+
+    // For paged lists only; whether this list carries on from the last page read of the same entry's children
+    protected boolean continuation = false;
+
+    // For paged lists only; whether the entry has more children than this list returned
+    protected boolean partial = false;
+
+    // For pipelines only; the read queries run together
+    protected DataQuery[] pipelined = null;
     
     // XXX Break into sub-classes?
 
@@ -117,6 +135,21 @@ public class DataQuery
         id = noRequests++;
     }
 
+    /**
+     *    Constructor for Pipeline requests; a group of read (list, read entry and existance
+     *    check) queries that the broker starts together, rather than each waiting its turn
+     *    in the queue.  Each query is finished separately, as soon as its result arrives.
+     */
+
+    public DataQuery(DataQuery[] queries)
+    {
+        this(PIPELINE);
+        pipelined = queries;
+        for (int i = 0; i < queries.length; i++)
+            if (queries[i].getType() != LIST && queries[i].getType() != READENTRY && queries[i].getType() != EXISTS)
+                setException(new Exception("Bad Constructor call (pipeline) for DataQuery of Type " + queries[i].getTypeString()));
+    }
+
     public DN getRequestDN()
     {
         return requestDN;
@@ -252,6 +285,10 @@ public class DataQuery
     {
         cancelled = true;
         setException(new Exception("Request Cancelled"));
+
+        if (pipelined != null)
+            for (int i = 0; i < pipelined.length; i++)
+                pipelined[i].cancel();
     }
 
     /**
@@ -338,6 +375,7 @@ public class DataQuery
 //            case GETALLOC:  return "Get all objectclasses from schema";
 //            case GETRECOC:  return "Get recommended objectclasses from schema";
             case EXTENDED:  return "Extended request";
+            case PIPELINE:  return "Pipelined reads";
         }
         return "UNDEFINED";
     }
@@ -420,6 +458,10 @@ public class DataQuery
 
     public DataQuery setException(Exception e) { myEx = e; return this;}
 
+    public DataQuery setContinuation(boolean b) { continuation = b; return this;}
+
+    public DataQuery setPartial(boolean b) { partial = b; return this;}
+
     //public void setType(int t) { type = t; }
 
 
@@ -471,7 +513,7 @@ public class DataQuery
 
         String current = Thread.currentThread().getName();
 
-        if ("jndiBroker Thread searchBroker Thread schemaBroker Thread".indexOf(current)>-1)
+        if ("jndiBroker Thread searchBroker Thread schemaBroker Thread".indexOf(current)>-1 || DataBroker.isBrokerThread())
         {
             System.err.println("ERROR - Thread " + current + " possibly blocking on self");
             throw new NamingException("Thread Blockage (?) during Naming operation - attempt to force immediate data read from: " + current + " thread.  Consider using unthreaded DataBroker classes rather than DataQuery.");
@@ -663,6 +705,38 @@ public class DataQuery
 
     public int getType() { return type; }
 
+    /**
+     *    Returns how urgently this query should be run, relative to other waiting
+     *    queries.  Existance checks, entry reads and lists are what the user is
+     *    waiting on when clicking around the tree, so they run ahead of searches
+     *    and bulk copy operations.
+     *    @return one of PRIORITY_INTERACTIVE, PRIORITY_NORMAL or PRIORITY_BULK.
+     */
+
+    public int getPriority()
+    {
+        switch (type)
+        {
+            case EXISTS:
+            case READENTRY:
+            case LIST:
+            case GETRECOC:
+            case PIPELINE:  return PRIORITY_INTERACTIVE;
+            case MODIFY:    return PRIORITY_NORMAL;
+            default:        return PRIORITY_BULK;
+        }
+    }
+
+    /**
+     *    Returns whether this query changes the directory (and hence must not be
+     *    reordered with respect to other queries on the same part of the tree).
+     */
+
+    public boolean isWrite()
+    {
+        return (type == MODIFY || type == COPY || type == XWINCOPY);
+    }
+
 
 
     // Read-only access methods to data variables.
@@ -685,6 +759,26 @@ public class DataQuery
 
     public boolean overwriteExistingData() { return overwriteExistingData; }
 
+    /**
+     *    For paged lists, whether this list reads the next page of an entry's children,
+     *    rather than starting again from the first.
+     */
+
+    public boolean isContinuation() { return continuation; }
+
+    /**
+     *    For paged lists, whether the entry has more children still to be read
+     *    (with a continuation list) than this list returned.
+     */
+
+    public boolean isPartial() { return partial; }
+
+    /**
+     *    For pipelines, the queries run together.
+     */
+
+    public DataQuery[] getPipelinedQueries() { return pipelined; }
+
     /**
      *    This provides a method of returning arbitrary information from
      *    an extended request.
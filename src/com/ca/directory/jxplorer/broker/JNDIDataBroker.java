@@ -6,6 +6,13 @@ import javax.naming.ldap.LdapContext;
 
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.io.*;
@@ -79,11 +86,20 @@ public class JNDIDataBroker extends DataBroker
   	int limit   = SEARCHLIMIT;             			// default number of results returned.
     int timeout = SEARCHTIMEOUT;           			// default timeout.
     boolean pagedResults = false;                   // whether to us LDAP paged results handling for large data sets
+    int listPageSize = 0;                           // how many children are read at a time when expanding a tree node (0 = all of them)
+    boolean serverSort = false;                     // whether to have the server sort (and window) the children of large nodes, if it can
+    private final HashMap<String, NamingEnumeration> openLists = new HashMap<String, NamingEnumeration>();  // partly read lists of children, keyed by lower case DN
 
     static int threadID = 1;               			// debug identifier for thread tracking
     static final boolean DEBUGTHREADS = false; 		// debug flag for threadiness
 
     private CBGraphicsOps dirOps = null;   			// the low level directory operations class.
+    private ContextPool pool = null;                // extra connections borrowed by broker threads for each query
+    private boolean ownPool = false;                // whether the pool was opened by this broker (rather than shared from another)
+    private ThreadLocal borrowedOps = new ThreadLocal();  // the directory operations borrowed by the current broker thread
+    private static final long WORKER_CONNECTION_WAIT = 5000;  // how long (ms) helper threads wait for a pooled connection
+    private ThreadPoolExecutor pipelineExecutor = null;       // runs the queries of pipelines alongside the broker threads (created when first needed)
+    private static final int PIPELINE_THREADS = 4;            // the most pipelined queries sent at once by each pipeline (the rest wait their turn)
     private SchemaOps schemaOps;                    // the low level schemaOps class
 
     private HashSet specialObjectClasses;  			// OS390 hack
@@ -196,8 +212,12 @@ public class JNDIDataBroker extends DataBroker
         limit   = cloneMe.limit;
         timeout = cloneMe.timeout;
         pagedResults = cloneMe.pagedResults;
+        listPageSize = cloneMe.listPageSize;
+        serverSort = cloneMe.serverSort;
 
         dirOps = cloneMe.dirOps;
+        pool = cloneMe.pool;            // shared, like dirOps - the owning broker closes it
+        ownPool = false;
         schemaOps = cloneMe.schemaOps;
 
         readOnly = cloneMe.readOnly;
@@ -394,6 +414,8 @@ public class JNDIDataBroker extends DataBroker
         {
             if (request instanceof DataConnectionQuery)
                 openConnection((DataConnectionQuery) request);
+            else if (pool != null && isBrokerThread())
+                processPooledRequest(request);
             else
                 super.processRequest(request);
         }
@@ -471,6 +493,8 @@ public class JNDIDataBroker extends DataBroker
         connectionError = false;
 
         ctx = null;    // null the current directory context (can't be used again).
+        releasePool();
+        JNDIOps.clearSupportedControls();    // re-read server capabilities for the new connection
 
         //  Try to get a directory context using above info.
 
@@ -480,6 +504,17 @@ public class JNDIDataBroker extends DataBroker
         if (ctx == null)
             throw new NamingException("unable to open connection: unknown condition, no error returned.");
 
+        // pooled connections are opened without the Kerberos login (see JNDIOps.setupKerberosContext()),
+        // so GSSAPI connections use the single connection only.
+        int poolSize = cData.useGSSAPI ? 0 : JXConfig.getIntProperty("option.ldap.pool.max", 4);
+        if (poolSize > 0)   // (the connection data passwords are still available at this point)
+        {
+            pool = ContextPool.getPool(CBGraphicsOps.addSSLFactoryToConnectionData(cData),
+                    JXConfig.getIntProperty("option.ldap.pool.min", 1), poolSize,
+                    JXConfig.getIntProperty("option.ldap.pool.idleTimeout", 300) * 1000L);
+            ownPool = true;
+        }
+
         // make a bogus, fast, directory request to trigger some activity on the context.  Without this the
         // context may *appear* to be open since jndi sometimes won't actually try to use it until a request is made
         // (e.g. with DSML, SSL connections etc.)
@@ -509,7 +544,11 @@ public class JNDIDataBroker extends DataBroker
             {
                 String binaries = schemaOps.getNewBinaryAttributes();
                 if (binaries.trim() != "")
+                {
                     ctx.addToEnvironment("java.naming.ldap.attributes.binary", binaries);
+                    if (pool != null)
+                        pool.addToEnvironment("java.naming.ldap.attributes.binary", binaries);
+                }
                 initAttributeNamesHash();
             }
             catch (NamingException e)    // annoying, but not fatal, error.
@@ -551,7 +590,7 @@ public class JNDIDataBroker extends DataBroker
 			
 		try
 		{
-            NamingEnumeration en = dirOps.searchBaseEntry(new DN(dn), "objectClass=*",0,0, null);
+            NamingEnumeration en = ops().searchBaseEntry(new DN(dn), "objectClass=*",0,0, null);
 			String temp = "";
 			while (en.hasMoreElements())
 			{
@@ -653,7 +692,7 @@ public class JNDIDataBroker extends DataBroker
 
     public int getVersion()
     {
-        return dirOps.getLdapVersion();
+        return ops().getLdapVersion();
     }
 
 
@@ -697,6 +736,10 @@ public class JNDIDataBroker extends DataBroker
         ctx = null;
         schemaOps = null;
 
+        closeLists();
+        releasePool();
+        releasePipelineExecutor();
+
         if (dirOps == null)
             return;   // no context open (not even a BasicOps object in existance!).
          try
@@ -741,6 +784,31 @@ public class JNDIDataBroker extends DataBroker
             JNDIOps.setPageSize(JNDIOps.NO_PAGING); // if we're not using paging, ignore page size
     }
 
+   /**
+	*   Sets how many children are read at a time when a node is expanded in the tree.  The
+	*   rest are read a page at a time as the user asks for them (see unthreadedListPage()),
+	*   so that very large flat containers can be browsed.  Where the server supports it, each
+	*   page is read with the LDAP paged results control.
+	*   @param pageSize the number of children per page, or 0 to read them all at once.
+	*/
+
+    public void setListPageSize(int pageSize) { listPageSize = Math.max(0, pageSize); }
+
+    public int getListPageSize() { return listPageSize; }
+
+   /**
+	*   Sets whether nodes with more than a page of children are listed in order by the server,
+	*   so that each page follows on from the last, where the server advertises the server side
+	*   sort (and preferably virtual list view) controls in its root DSE.  Otherwise the pages
+	*   come in whatever order the server keeps the entries, and are sorted as they are added
+	*   to the tree.
+	*   @param sort true to use server side sorting where available.
+	*/
+
+    public void setServerSort(boolean sort) { serverSort = sort; }
+
+    public boolean isServerSort() { return serverSort; }
+
 
    /**
 	*   returns the next level of a directory tree, returning
@@ -755,7 +823,7 @@ public class JNDIDataBroker extends DataBroker
 
         try
         {
-            return new DXNamingEnumeration(dirOps.list(searchbase));
+            return new DXNamingEnumeration(ops().list(searchbase));
         }
         catch (NamingException e)
         {
@@ -764,6 +832,152 @@ public class JNDIDataBroker extends DataBroker
         }
     }
 
+   /**
+	*   Returns a page of the next level of a directory tree.  The rest of the list is kept
+	*   open (a page ahead, as reading the end of one page fetches the next) until it
+	*   is read with 'more' set, the node is listed again, or the broker disconnects.  If
+	*   there is more than a page, and server sorting is on, the list is restarted in order
+	*   (see openSortedList()).  If the list page size is 0, all the children are returned at once.
+	*   @param searchbase the node in the tree to expand
+	*   @param more false to start from the first page, true to read the next page of the last list of this node.
+	*   @return list of results (NameClassPair); a page of the next layer of the tree.
+	*/
+
+    public DXNamingEnumeration unthreadedListPage(DN searchbase, boolean more)
+    {
+        if (listPageSize <= 0)
+            return (more) ? new DXNamingEnumeration() : unthreadedList(searchbase);
+
+        String key = searchbase.toString().toLowerCase();
+        NamingEnumeration children;
+        synchronized (openLists)
+        {
+            children = openLists.remove(key);
+        }
+
+        if (more == false)
+        {
+            close(children);    // start again...
+            SetContextToBrowsingAliases();
+            try
+            {
+                children = ops().pagedList(searchbase, listPageSize);
+            }
+            catch (NamingException e)
+            {
+                error("unable to list " + searchbase, e);
+                return new DXNamingEnumeration();  // return empty list.
+            }
+        }
+        else if (children == null)
+        {
+            return new DXNamingEnumeration();   // nothing left to read (or the node has been listed again since).
+        }
+
+        DXNamingEnumeration page = new DXNamingEnumeration();
+        try
+        {
+            while (page.size() < listPageSize && children.hasMore())
+                page.add(children.next());
+
+            if (more == false && serverSort && page.size() > 0 && children.hasMore())   // too many to read at once; start again in order
+            {
+                NamingEnumeration sorted = openSortedList(searchbase, page);
+                if (sorted != null)
+                {
+                    close(children);
+                    children = sorted;
+                    page = new DXNamingEnumeration();
+                    while (page.size() < listPageSize && children.hasMore())
+                        page.add(children.next());
+                }
+            }
+
+            if (children.hasMore())
+            {
+                synchronized (openLists)
+                {
+                    close(openLists.put(key, children));
+                }
+                children = null;
+            }
+        }
+        catch (NamingException e)
+        {
+            error("unable to list " + searchbase, e);
+        }
+        finally
+        {
+            close(children);
+        }
+        return page;
+    }
+
+   /**
+	*   Lists the children of a large node again, sorted (and, where the server supports virtual list
+	*   views, windowed) by the server, on the naming attribute of the first child already read.
+	*   @param searchbase the node in the tree to expand
+	*   @param firstPage the first page of the (unsorted) list.
+	*   @return the sorted list, or null if the server can't sort them (so the unsorted list should be used).
+	*/
+
+    protected NamingEnumeration openSortedList(DN searchbase, DXNamingEnumeration firstPage)
+    {
+        if (ops().isServerSortSupported() == false)
+            return null;
+
+        String sortAttribute = new DN(((NameClassPair) firstPage.getArrayList().get(0)).getName()).getLowestRDN().getAttID();
+        try
+        {
+            return ops().sortedList(searchbase, sortAttribute, listPageSize);
+        }
+        catch (NamingException e)
+        {
+            log.info("unable to have the server sort the children of " + searchbase + " by " + sortAttribute + "; using them unsorted: " + e.getMessage());
+            return null;
+        }
+    }
+
+   /**
+	*   Returns whether the last page read by unthreadedListPage() left children still to be read.
+	*/
+
+    public boolean hasMoreChildren(DN searchbase)
+    {
+        synchronized (openLists)
+        {
+            return openLists.containsKey(searchbase.toString().toLowerCase());
+        }
+    }
+
+   /**
+	*   Abandons any partly read lists of children.
+	*/
+
+    protected void closeLists()
+    {
+        synchronized (openLists)
+        {
+            for (NamingEnumeration children : openLists.values())
+                close(children);
+            openLists.clear();
+        }
+    }
+
+    private static void close(NamingEnumeration en)
+    {
+        if (en == null)
+            return;
+        try
+        {
+            en.close();
+        }
+        catch (NamingException e)
+        {
+            log.fine("error closing list: " + e.getMessage());
+        }
+    }
+
 
 
    /**
@@ -773,7 +987,9 @@ public class JNDIDataBroker extends DataBroker
 	*   @param search_level whether to search the base object, the next level or the whole subtree.
 	*   @param returnAttributes - a list of attributes to return.  If set to null,
 	*          only the objectClass is returned.
-	*   @return list of results ('SearchResult's); the next layer of the tree...
+	*   @return list of results ('SearchResult's); the next layer of the tree...  This is a
+	*          'streaming' DXNamingEnumeration: results (and, if paging is on, further pages)
+	*          are only read from the directory as the enumeration is consumed.
 	*/
 
     public DXNamingEnumeration unthreadedSearch(DN dn, String filter, int search_level, String[] returnAttributes)
@@ -787,11 +1003,11 @@ public class JNDIDataBroker extends DataBroker
         try
         {
             if (search_level == SEARCH_BASE_OBJECT)
-                ret = new DXNamingEnumeration(dirOps.searchBaseEntry(dn, filter, limit, timeout, returnAttributes));
+                ret = new DXNamingEnumeration(ops().searchBaseEntry(dn, filter, limit, timeout, returnAttributes), true);
             else if (search_level == SEARCH_ONE_LEVEL)
-                ret = new DXNamingEnumeration(dirOps.searchOneLevel(dn, filter, limit, timeout, returnAttributes));
+                ret = new DXNamingEnumeration(ops().searchOneLevel(dn, filter, limit, timeout, returnAttributes), true);
             else if (search_level == SEARCH_SUB_TREE)
-                ret = new DXNamingEnumeration(dirOps.searchSubTree(dn, filter, limit, timeout, returnAttributes));
+                ret = new DXNamingEnumeration(ops().searchSubTree(dn, filter, limit, timeout, returnAttributes), true);
             else
                 return null;
         }
@@ -808,6 +1024,27 @@ public class JNDIDataBroker extends DataBroker
 
 
 
+   /**
+	*   Reads a whole subtree with a single (paged) subtree search, for bulk operations such
+	*   as LDIF export.  If the user has turned paging on, their page size is used.
+	*   @param base the top of the subtree
+	*   @param pageSize the page size to use if paging isn't otherwise on
+	*   @return a 'streaming' DXNamingEnumeration of SearchResults
+	*/
+
+    public DXNamingEnumeration unthreadedReadSubtree(DN base, int pageSize)
+            throws NamingException
+    {
+        SetContextToBrowsingAliases();     // export aliases as they are, as browsing the tree would
+
+        if (JNDIOps.getPageSize() != JNDIOps.NO_PAGING)
+            pageSize = JNDIOps.getPageSize();
+
+        return new DXNamingEnumeration(ops().pagedSearchSubTree(base, "(objectClass=*)", null, pageSize), true);
+    }
+
+
+
    /**
 	* 	Reads all the attribute type and values for the given entry.
 	* 	Converts utf-8 to unicode if necessary.
@@ -816,12 +1053,12 @@ public class JNDIDataBroker extends DataBroker
 	*   	objects.
 	*/
 
-    public synchronized Attributes read(DN dn)
+    public Attributes read(DN dn)
     {
         Attributes atts = null;
         try
         {
-            atts = dirOps.read(dn);
+            atts = ops().read(dn);
         }
         catch (NamingException e)
         {
@@ -844,7 +1081,7 @@ public class JNDIDataBroker extends DataBroker
         if (readOnly)
             throw new NamingException(CBIntText.get("JXplorer is in read only mode; no directory modifications allowed"));
 
-         dirOps.deleteTree(nodeDN);
+         ops().deleteTree(nodeDN);
     }
 
 
@@ -864,7 +1101,7 @@ public class JNDIDataBroker extends DataBroker
         if (readOnly)
             throw new NamingException(CBIntText.get("JXplorer is in read only mode; no directory modifications allowed"));
 
-        dirOps.moveTree(oldNodeDN, newNodeDN);
+        ops().moveTree(oldNodeDN, newNodeDN);
     }
 
 
@@ -882,7 +1119,7 @@ public class JNDIDataBroker extends DataBroker
     {
         if (readOnly)
             throw new NamingException(CBIntText.get("JXplorer is in read only mode; no directory modifications allowed"));
-        dirOps.copyTree(oldNodeDN, newNodeDN, true);  // TODO: check if we need more sophisticated handling of DN renaming...
+        ops().copyTree(oldNodeDN, newNodeDN, true);  // TODO: check if we need more sophisticated handling of DN renaming...
     }
 
 
@@ -896,10 +1133,285 @@ public class JNDIDataBroker extends DataBroker
     public boolean unthreadedExists(DN checkMe)
            throws NamingException
     {
-        return dirOps.exists(checkMe);
+        return ops().exists(checkMe);
+    }
+
+
+
+   /**
+	*  	Counts the entries in a subtree without changing anything (a 'dry run'
+	*  	used to size a copy, move or delete before starting it).
+	*	@param apex the DN of the top of the subtree.
+	*  	@return the number of entries in the subtree, including the apex.
+	*/
+
+    public int unthreadedCountTree(DN apex)
+           throws NamingException
+    {
+        return ops().countTree(apex);
+    }
+
+
+
+   /**
+    *   Returns the directory operations object to use on the calling thread: the
+    *   connection borrowed from the pool for the query this broker thread is running,
+    *   or otherwise the broker's main connection.
+    *
+    *   @return the directory operations for this thread (may be null if not connected).
+    */
+
+    protected CBGraphicsOps ops()
+    {
+        CBGraphicsOps ops = (CBGraphicsOps) borrowedOps.get();
+        return (ops == null) ? dirOps : ops;
+    }
+
+   /**
+    *   Runs a request on its own connection borrowed from the connection pool (if
+    *   there is one), so that queries running on different broker threads - or on
+    *   the search broker - don't queue up behind each other on a single socket.
+    *   If no pooled connection can be had, the main connection is used.
+    *
+    *   @param request the query to run.
+    */
+
+    protected void processPooledRequest(DataQuery request)
+    {
+        ContextPool pool = this.pool;
+        LdapContext borrowed = null;
+        try
+        {
+            borrowed = pool.borrow(0);
+            CBGraphicsOps ops = new CBGraphicsOps(borrowed);
+            ops.setQuietMode(true);     // (as for the main connection while the queue is processed)
+            borrowedOps.set(ops);
+        }
+        catch (NamingException e)
+        {
+            log.log(Level.WARNING, "unable to get a pooled connection - using main connection", e);
+            if (borrowed != null) pool.invalidate(borrowed);
+            super.processRequest(request);
+            return;
+        }
+
+        try
+        {
+            super.processRequest(request);
+        }
+        finally
+        {
+            borrowedOps.set(null);
+            if (request.getException() instanceof CommunicationException)
+                pool.invalidate(borrowed);
+            else
+                pool.giveBack(borrowed);
+        }
+    }
+
+   /**
+    *   Runs the queries of a pipeline concurrently.  Each runs on its own thread, with its own
+    *   instance of this thread's directory context; the instances share the one connection, so
+    *   the requests are all sent to the directory at once, and each query finishes as soon as
+    *   its answer comes back (rather than waiting for the queries before it).  Providers that
+    *   can't make new context instances run the queries one after another.
+    *
+    *   @param request the pipeline query.
+    */
+
+    protected DataQuery doPipelineQuery(DataQuery request)
+    {
+        DataQuery[] queries = request.getPipelinedQueries();
+        CBGraphicsOps ops = ops();
+        if (queries.length < 2 || ops == null)
+            return super.doPipelineQuery(request);
+
+        LdapContext base = ops.getContext();
+        LdapContext first;
+        try
+        {
+            first = base.newInstance(null);
+        }
+        catch (NamingException e)
+        {
+            first = null;
+        }
+        if (first == null)
+        {
+            return super.doPipelineQuery(request);
+        }
+
+        ExecutorService executor = getPipelineExecutor();
+        try
+        {
+            ArrayList<Future> running = new ArrayList<Future>();
+            for (int i = 1; i < queries.length; i++)
+            {
+                Runnable task = pipelineTask(base, null, queries[i]);
+                try
+                {
+                    running.add(executor.submit(task));
+                }
+                catch (RejectedExecutionException e)     // disconnected meanwhile; the query will fail, but must still finish
+                {
+                    task.run();
+                }
+            }
+
+            pipelineTask(base, first, queries[0]).run();
+
+            for (Future result : running)
+                result.get();
+        }
+        catch (Exception e)      // (the queries catch their own exceptions, so this is only an interruption)
+        {
+            request.setException(e);
+        }
+
+        return finish(request);
     }
 
+   /**
+    *   Returns the threads that run the queries of pipelines, which are shared by all the broker threads.
+    *   The number of threads is bounded, and idle threads are let go, so a jump to a deep entry doesn't
+    *   start a thread for every level of the tree.
+    */
+
+    protected synchronized ExecutorService getPipelineExecutor()
+    {
+        if (pipelineExecutor == null)
+        {
+            pipelineExecutor = new ThreadPoolExecutor(PIPELINE_THREADS, PIPELINE_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "pipeline thread for: " + (threadID++) + " " + JNDIDataBroker.this.getClass());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pipelineExecutor.allowCoreThreadTimeOut(true);
+        }
+        return pipelineExecutor;
+    }
+
+   /**
+    *   Stops the pipeline threads (once any queries they are running have finished).
+    */
+
+    protected synchronized void releasePipelineExecutor()
+    {
+        if (pipelineExecutor != null)
+            pipelineExecutor.shutdown();
+        pipelineExecutor = null;
+    }
+
+   /**
+    *   Makes a task that runs a query of a pipeline with its own instance of a context.
+    *
+    *   @param base the context to make the instance from.
+    *   @param instance the instance to use, or null to make one.
+    *   @param query the query to run.
+    */
+
+    private Runnable pipelineTask(final LdapContext base, final LdapContext instance, final DataQuery query)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                Object previous = borrowedOps.get();
+                LdapContext ctx = instance;
+                try
+                {
+                    if (ctx == null)
+                        ctx = base.newInstance(null);
+                    CBGraphicsOps ops = new CBGraphicsOps(ctx);
+                    ops.setQuietMode(true);     // (as for pooled connections)
+                    borrowedOps.set(ops);
+
+                    JNDIDataBroker.super.processRequest(query);
+                }
+                catch (NamingException e)
+                {
+                    query.setException(e);
+                    query.finish();
+                }
+                finally
+                {
+                    borrowedOps.set(previous);
+                    try
+                    {
+                        if (ctx != null)
+                            ctx.close();     // (only this instance; the connection stays open while the others use it)
+                    }
+                    catch (NamingException e)
+                    {
+                        log.fine("error closing pipeline context: " + e.getMessage());
+                    }
+                }
+            }
+        };
+    }
+
+   /**
+    *   Borrows a pooled connection for the calling thread; until closeWorkerConnection()
+    *   is called, unthreaded operations made by the thread use it.
+    *
+    *   @return true if a pooled connection was obtained.
+    */
+
+    public boolean openWorkerConnection()
+    {
+        ContextPool pool = this.pool;
+        if (pool == null || borrowedOps.get() != null)
+            return false;
+
+        try
+        {
+            LdapContext borrowed = pool.borrow(WORKER_CONNECTION_WAIT);
+            CBGraphicsOps ops = new CBGraphicsOps(borrowed);
+            ops.setQuietMode(true);      // workers report errors through their caller, not with dialogs
+            borrowedOps.set(ops);
+            return true;
+        }
+        catch (NamingException e)
+        {
+            log.fine("no pooled connection available for " + Thread.currentThread().getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+   /**
+    *   Gives the pooled connection borrowed by openWorkerConnection() back to the pool.
+    */
+
+    public void closeWorkerConnection()
+    {
+        CBGraphicsOps ops = (CBGraphicsOps) borrowedOps.get();
+        borrowedOps.set(null);
+        if (ops != null && pool != null)
+            pool.giveBack(ops.getContext());
+    }
+
+   /**
+    *   Releases this broker's hold on the connection pool.
+    */
+
+    private void releasePool()
+    {
+        if (pool != null && ownPool)
+            pool.release();
+        pool = null;
+        ownPool = false;
+    }
+
+   /**
+    *   Returns the connection pool used by this broker's threads (may be null).
+    */
 
+    public ContextPool getContextPool() { return pool; }
 
    /**
     *   Process the queue.
@@ -909,7 +1421,8 @@ public class JNDIDataBroker extends DataBroker
 
     public boolean processQueue()
     {
-        if (dirOps != null) dirOps.setQuietMode(true);
+        CBGraphicsOps ops = ops();
+        if (ops != null) ops.setQuietMode(true);
         boolean ret = super.processQueue();
 
 
@@ -922,7 +1435,7 @@ public class JNDIDataBroker extends DataBroker
         // immediate bail out.
         if (ret == false) return false;
 
-        if (dirOps != null) dirOps.setQuietMode(false);
+        if (ops != null) ops.setQuietMode(false);
         return true;
     }
 
@@ -934,7 +1447,7 @@ public class JNDIDataBroker extends DataBroker
 
     public Exception getException()
     {
-        return dirOps.quietException;
+        return ops().quietException;
     }
 
 
@@ -946,7 +1459,7 @@ public class JNDIDataBroker extends DataBroker
 
     public void clearException()
     {
-        dirOps.quietException = null;
+        ops().quietException = null;
     }
 
 
@@ -958,7 +1471,8 @@ public class JNDIDataBroker extends DataBroker
 
     protected DataQuery finish(DataQuery request)
     {
-        request.setException(dirOps.quietException);  // probably null
+        if (ops().quietException != null)     // (don't hide an error already set, e.g. by readSearchResults())
+            request.setException(ops().quietException);
         request.finish();
         return request;
     }
@@ -993,7 +1507,7 @@ public class JNDIDataBroker extends DataBroker
     public DXEntry unthreadedReadEntry(DN entryDN, String[] returnAttributes)
            throws NamingException
     {
-        DXAttributes atts = new DXAttributes(dirOps.read(entryDN, returnAttributes));
+        DXAttributes atts = new DXAttributes(ops().read(entryDN, returnAttributes));
         return new DXEntry(atts, entryDN);
     }
 
@@ -1011,7 +1525,7 @@ public class JNDIDataBroker extends DataBroker
          if (newEntry.getDN() == null)
             throw new NamingException("Internal Error: Entry with null DN passed to JNDIDataBroker addEntry().  Modify Request Cancelled.");
 
-        dirOps.addEntry(newEntry.getDN(), newEntry);
+        ops().addEntry(newEntry.getDN(), newEntry);
     }
 
 
@@ -1056,7 +1570,7 @@ public class JNDIDataBroker extends DataBroker
         if (useSpecialWriteAllAttsMode()) // do magic for Mitch
             doSpecialWriteAllAttsHandling(oldEntry, newEntry);
         else
-            dirOps.modifyEntry(oldEntry, newEntry);
+            ops().modifyEntry(oldEntry, newEntry);
     }
 
     private void doSpecialWriteAllAttsHandling(DXEntry oldEntry, DXEntry newEntry)
@@ -1065,7 +1579,7 @@ public class JNDIDataBroker extends DataBroker
         // check for cases where handling is the same as normal
         if ( (newEntry == null) || (oldEntry == null && newEntry.getStatus() == DXEntry.NEW) )
         {
-            dirOps.modifyEntry(oldEntry, newEntry);
+            ops().modifyEntry(oldEntry, newEntry);
         }
 
         // do any rename required
@@ -1107,7 +1621,7 @@ public class JNDIDataBroker extends DataBroker
             modIndex = loadMods(mods, adds.getAll(), LdapContext.ADD_ATTRIBUTE, modIndex);
             modIndex = loadMods(mods, reps.getAll(), LdapContext.REPLACE_ATTRIBUTE, modIndex);
 
-            dirOps.modifyAttributes(nodeDN, mods);
+            ops().modifyAttributes(nodeDN, mods);
         }
         catch (Exception e)
         {
@@ -1266,7 +1780,7 @@ public class JNDIDataBroker extends DataBroker
         if (readOnly)
             throw new NamingException(CBIntText.get("JXplorer is in read only mode; no directory modifications allowed"));
 
-        ctx.modifyAttributes(dn, mods);
+        ops().getContext().modifyAttributes(dn, mods);
     }
 
    /**
@@ -1309,7 +1823,8 @@ public class JNDIDataBroker extends DataBroker
         if (readOnly)
             throw new NamingException(CBIntText.get("JXplorer is in read only mode; no directory modifications allowed"));
 
-        return (dirOps==null)?null:dirOps.getContext();
+        CBGraphicsOps ops = ops();
+        return (ops==null)?null:ops.getContext();
     }
 
 
@@ -1405,7 +1920,7 @@ public class JNDIDataBroker extends DataBroker
 
         try
         {
-            if (ctx != null) ctx.addToEnvironment("java.naming.ldap.derefAliases", JXConfig.getProperty("option.ldap.searchAliasBehaviour"));
+            if (ctx != null) ops().getContext().addToEnvironment("java.naming.ldap.derefAliases", JXConfig.getProperty("option.ldap.searchAliasBehaviour"));
         }
         catch( Exception e)
         {
@@ -1425,7 +1940,7 @@ public class JNDIDataBroker extends DataBroker
     {
         try
         {
-            if (ctx != null) ctx.addToEnvironment("java.naming.ldap.derefAliases", JXConfig.getProperty("option.ldap.browseAliasBehaviour"));
+            if (ctx != null) ops().getContext().addToEnvironment("java.naming.ldap.derefAliases", JXConfig.getProperty("option.ldap.browseAliasBehaviour"));
         }
         catch( Exception e)
         {
@@ -96,9 +96,13 @@ public class StopMonitor
         for (i=0; i<noBrokers; i++)
         {
             DataBroker broker = (DataBroker)watchList.get(i);
-            DataQuery query = broker.getCurrent();
-            if (query != null && !query.isCancelled())
-                doublets.add(new QueryBroker(broker, query));
+            Vector running = broker.getRunningQueries();
+            for (int j=0; j<running.size(); j++)
+            {
+                DataQuery query = (DataQuery)running.get(j);
+                if (!query.isCancelled())
+                    doublets.add(new QueryBroker(broker, query));
+            }
         }
         
         // now get all the queries waiting in queues.
@@ -0,0 +1,458 @@
+package com.ca.directory.jxplorer.tree;
+
+import com.ca.commons.naming.DN;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import java.awt.EventQueue;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Loads search results into a search tree a batch at a time.  The results are read, their
+ * DNs parsed and their tree nodes made, on a background thread; each batch is then added to the tree on the swing thread,
+ * with a single 'nodes inserted' event for every parent that gained children (rather than
+ * restructuring the parent once for every result, as SmartTree.addNode() does).  This keeps
+ * the display responsive while a large search is loaded, and shows the first results straight away.</p>
+ *
+ * <p>Nodes are not expanded here; SmartTree decides which (if any) of the parents to expand
+ * in loaded().</p>
+ *
+ * <p>If there is a node limit, only that many results are made into nodes as they arrive.  The
+ * rest are held (as parsed DNs) behind a 'next n...' node at the end of the root's children, and
+ * added to the tree, up to the node limit at a time, each time the user clicks on it (see loadMore()).</p>
+ *
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+class SearchResultLoader implements Runnable
+{
+    private final static Logger log = Logger.getLogger(SearchResultLoader.class.getName());
+
+    /**
+     * The default number of results added to the tree at a time.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * The longest (in milliseconds) a partly filled batch is held back while waiting for slow results.
+     */
+    static final long MAX_BATCH_DELAY = 200;
+
+    private final NamingEnumeration results;
+    private final SmartModel model;
+    private final SmartNode root;
+    private final int batchSize;
+    private final int nodeLimit;                     // the number of results made into nodes before the rest are held back (0 for no limit)
+
+    private final ArrayDeque<Result> held = new ArrayDeque<Result>();    // results read past the node limit, not yet in the tree (guarded by itself)
+    private SmartNode more = null;                   // the 'next n...' node standing in for the held results (swing thread only)
+    private boolean finished = false;                // whether all the results have been read (swing thread only)
+
+    private volatile boolean cancelled = false;
+    private volatile NamingException exception = null;
+
+    private final long started = System.nanoTime();
+    private volatile long firstResultNanos = -1;     // time from start until the first batch was on screen
+    private volatile long uiNanos = 0;               // total time spent adding batches on the swing thread
+    private volatile long finishedNanos = -1;        // time from start until the last batch was on screen
+    private int loaded = 0;                          // the number of results added to the tree so far
+
+    /**
+     * A search result, as prepared on the background thread: its DN, the keys of its RDNs, and a
+     * ready made node for its lowest RDN (most of the cost of a new node is making its sort key).
+     * Results held back by the node limit don't have a node until they are added to the tree.
+     */
+    static class Result
+    {
+        final DN dn;
+        final String[] keys;
+        final SmartNode node;
+
+        Result(DN dn)
+        {
+            this(dn, true);
+        }
+
+        Result(DN dn, boolean makeNode)
+        {
+            this.dn = dn;
+            keys = new String[dn.size()];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = SmartNode.indexKey(dn.getRDN(i));
+            node = (keys.length == 0 || makeNode == false) ? null : new SmartNode(dn.getLowestRDN());
+            if (node != null)
+                node.getIndexKey();
+        }
+    }
+
+    /**
+     * @param results the search results, as SearchResults with full DNs
+     * @param model the model of the tree to load the results into
+     * @param root the node representing the (empty) root DN of the tree
+     * @param batchSize the number of results added to the tree at a time
+     */
+    SearchResultLoader(NamingEnumeration results, SmartModel model, SmartNode root, int batchSize)
+    {
+        this(results, model, root, batchSize, 0);
+    }
+
+    /**
+     * @param results the search results, as SearchResults with full DNs
+     * @param model the model of the tree to load the results into
+     * @param root the node representing the (empty) root DN of the tree
+     * @param batchSize the number of results added to the tree at a time
+     * @param nodeLimit the number of results made into nodes before the rest are held back
+     * behind a 'next n...' node, and the number added each time it is clicked (0 for no limit)
+     */
+    SearchResultLoader(NamingEnumeration results, SmartModel model, SmartNode root, int batchSize, int nodeLimit)
+    {
+        this.results = results;
+        this.model = model;
+        this.root = root;
+        this.batchSize = Math.max(1, batchSize);
+        this.nodeLimit = Math.max(0, nodeLimit);
+    }
+
+    /**
+     * Starts loading the results on a new background thread.
+     */
+    void start()
+    {
+        Thread loader = new Thread(this, "Search Result Loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Reads the results, handing them to deliver() a batch at a time.  Results past the node
+     * limit are held back instead; the (smaller, or empty) batches still go to deliver(), so that
+     * the count on the 'next n...' node keeps up.  Runs on the background thread.
+     */
+    public void run()
+    {
+        ArrayList<Result> batch = new ArrayList<Result>(batchSize);
+        long batchStarted = System.currentTimeMillis();
+        boolean first = true;
+        int read = 0;
+        int unsent = 0;     // results read since the last batch was sent, including any held back
+        try
+        {
+            while (!cancelled && results.hasMore())
+            {
+                SearchResult sr = (SearchResult) results.next();
+                String name = sr.getName();
+                if (name == null || name.length() == 0)
+                {
+                    log.severe("Unexpected problem getting name of search result: " + sr);
+                    continue;
+                }
+
+                if (nodeLimit > 0 && read >= nodeLimit)
+                {
+                    synchronized (held)
+                    {
+                        held.add(new Result(new DN(name), false));
+                    }
+                }
+                else
+                {
+                    batch.add(new Result(new DN(name)));
+                }
+                read++;
+                unsent++;
+
+                // send the first result straight away, and after that send full batches (or whatever we have if the directory is slow)
+                if (first || unsent >= batchSize || System.currentTimeMillis() - batchStarted > MAX_BATCH_DELAY)
+                {
+                    first = false;
+                    deliver(batch, false);
+                    batch = new ArrayList<Result>(batchSize);
+                    batchStarted = System.currentTimeMillis();
+                    unsent = 0;
+                }
+            }
+        }
+        catch (NamingException e)
+        {
+            log.log(Level.WARNING, "Search results only partially read: ", e);
+            exception = e;
+        }
+        finally
+        {
+            try
+            {
+                results.close();
+            }
+            catch (NamingException e) {}
+
+            if (!cancelled)
+                deliver(batch, true);
+        }
+    }
+
+    /**
+     * Passes a batch of results to the swing thread to be added to the tree.
+     * @param batch the results
+     * @param last whether this is the last batch
+     */
+    protected void deliver(final List<Result> batch, final boolean last)
+    {
+        EventQueue.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                batchReady(batch, last);
+            }
+        });
+    }
+
+    /**
+     * Adds a batch of results to the tree.  Runs on the swing thread.
+     */
+    void batchReady(List<Result> batch, boolean last)
+    {
+        if (cancelled)
+            return;
+
+        long start = System.nanoTime();
+
+        List<SmartNode> grown = insert(batch);
+        loaded += batch.size();
+        finished = last;
+        updateMoreNode();
+        loaded(grown, loaded, last);
+
+        long end = System.nanoTime();
+        uiNanos += end - start;
+        if (firstResultNanos == -1 && loaded > 0)
+            firstResultNanos = end - started;
+
+        if (last)
+            finishedNanos = end - started;
+    }
+
+    /**
+     * Adds the next lot (up to the node limit) of the results held back by the node limit to the
+     * tree, after the user clicked on the 'next n...' node.  Runs on the swing thread.
+     */
+    void loadMore()
+    {
+        if (cancelled)
+            return;
+
+        long start = System.nanoTime();
+
+        ArrayList<Result> next = new ArrayList<Result>();
+        synchronized (held)
+        {
+            while (next.size() < nodeLimit && held.isEmpty() == false)
+                next.add(held.poll());
+        }
+
+        List<SmartNode> grown = insert(next);
+        loaded += next.size();
+        updateMoreNode();
+        loaded(grown, loaded, false);
+
+        uiNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Adds, updates or removes the 'next n...' node at the end of the root's children, to match
+     * the number of results being held back.  Runs on the swing thread.
+     */
+    private void updateMoreNode()
+    {
+        int waiting;
+        synchronized (held)
+        {
+            waiting = held.size();
+        }
+
+        if (waiting == 0)
+        {
+            if (more != null && more.getParent() != null)
+                model.removeNodeFromParent(more);
+            more = null;
+        }
+        else if (more == null)
+        {
+            more = SmartNode.makeMoreNode(Math.min(waiting, nodeLimit));
+            root.add(more);                         // (the 'next n...' node sorts last)
+            model.nodesWereInserted(root, new int[] {root.getChildCount() - 1});
+        }
+        else if (more.moreCount != Math.min(waiting, nodeLimit))
+        {
+            more.moreCount = Math.min(waiting, nodeLimit);
+            model.nodeChanged(more);
+        }
+    }
+
+    /**
+     * @param node a node in the tree
+     * @return whether the node is this loader's 'next n...' node.
+     */
+    boolean isMoreNode(SmartNode node)
+    {
+        return node != null && node == more;
+    }
+
+    /**
+     * Called on the swing thread after each batch has been added to the tree.  Does nothing by default.
+     * @param grown the nodes that gained children in the batch, parents before their children
+     * @param loaded the number of results added to the tree so far
+     * @param last whether that was the last batch
+     */
+    protected void loaded(List<SmartNode> grown, int loaded, boolean last)
+    {
+    }
+
+    /**
+     * Adds nodes for a batch of results to the tree, creating (structural) parent nodes as necessary,
+     * and keeping the children of each node sorted.  Each parent that was already in the tree
+     * gets a single nodesWereInserted() event for all its new children.
+     *
+     * @param batch the results to add
+     * @return the nodes that gained children, parents before their children
+     */
+    List<SmartNode> insert(List<Result> batch)
+    {
+        IdentityHashMap<SmartNode, HashMap<String, SmartNode>> newChildren = new IdentityHashMap<SmartNode, HashMap<String, SmartNode>>();
+        IdentityHashMap<SmartNode, Boolean> created = new IdentityHashMap<SmartNode, Boolean>();
+        ArrayList<SmartNode> grown = new ArrayList<SmartNode>();
+        ArrayList<SmartNode> changed = new ArrayList<SmartNode>();
+
+        for (Result result : batch)
+        {
+            SmartNode parent = root;
+            int size = result.keys.length;
+            for (int i = 0; i < size; i++)
+            {
+                String key = result.keys[i];
+                HashMap<String, SmartNode> siblings = newChildren.get(parent);
+                SmartNode child = (siblings == null) ? null : siblings.get(key);     // added earlier in this batch?
+                if (child == null && !created.containsKey(parent))
+                    child = parent.getChildByKey(key);                                // already in the tree?
+
+                if (child == null)
+                {
+                    if (i == size - 1)
+                        child = (result.node != null) ? result.node : new SmartNode(result.dn.getLowestRDN());
+                    else
+                    {
+                        child = new SmartNode(result.dn.getRDN(i));
+                        child.setStructural(true);
+                    }
+                    created.put(child, Boolean.TRUE);
+
+                    if (siblings == null)
+                    {
+                        newChildren.put(parent, siblings = new HashMap<String, SmartNode>());
+                        grown.add(parent);
+                    }
+                    siblings.put(key, child);
+                }
+                else if (i == size - 1 && child.isStructural())
+                {
+                    child.setStructural(false);     // a parent we made up earlier has turned up as a result itself
+                    if (!created.containsKey(child))
+                        changed.add(child);
+                }
+                parent = child;
+            }
+        }
+
+        // strip the dummy nodes of parents already on display, add the new children in one go, then tell the model about them.
+        for (SmartNode parent : grown)
+            if (!created.containsKey(parent))
+                while (parent.hasDummy())
+                    model.removeNodeFromParent((SmartNode) parent.getChildAt(0));
+
+        int[][] indices = new int[grown.size()][];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = grown.get(i).addSorted(new ArrayList<SmartNode>(newChildren.get(grown.get(i)).values()));
+
+        for (int i = 0; i < indices.length; i++)
+            if (!created.containsKey(grown.get(i)))
+                model.nodesWereInserted(grown.get(i), indices[i]);
+
+        for (SmartNode node : changed)
+            model.nodeChanged(node);
+
+        return grown;
+    }
+
+    /**
+     * Stops the loader; any batches not yet added to the tree are thrown away.
+     */
+    void cancel()
+    {
+        cancelled = true;
+    }
+
+    boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return the exception that stopped the results being read, or null if they were all read.
+     */
+    NamingException getException()
+    {
+        return exception;
+    }
+
+    /**
+     * @return the number of results added to the tree so far.
+     */
+    int getNumberLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * @return the number of results read but held back by the node limit.
+     */
+    int getNumberHeld()
+    {
+        synchronized (held)
+        {
+            return held.size();
+        }
+    }
+
+    /**
+     * @return whether all the results have been read (some may still be held back by the node limit).  Swing thread only.
+     */
+    boolean isFinished()
+    {
+        return finished;
+    }
+
+    /**
+     * @return the time (in milliseconds) from the start of the load until the first results were added to the tree, or -1 if they haven't been yet.
+     */
+    long getFirstResultMillis()
+    {
+        return (firstResultNanos == -1) ? -1 : firstResultNanos / 1000000;
+    }
+
+    /**
+     * @return the total time (in milliseconds) spent adding results to the tree on the swing thread.
+     */
+    long getUIMillis()
+    {
+        return uiNanos / 1000000;
+    }
+
+    /**
+     * @return the time (in milliseconds) from the start of the load until the last results were added to the tree, or -1 if the load hasn't finished.
+     */
+    long getTotalMillis()
+    {
+        return (finishedNanos == -1) ? -1 : finishedNanos / 1000000;
+    }
+}
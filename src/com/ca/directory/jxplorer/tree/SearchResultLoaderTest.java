@@ -0,0 +1,256 @@
+package com.ca.directory.jxplorer.tree;
+
+import com.ca.commons.naming.DXNamingEnumeration;
+import com.ca.directory.jxplorer.JXConfig;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class SearchResultLoaderTest extends TestCase
+{
+    public SearchResultLoaderTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(SearchResultLoaderTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp()
+    {
+        JXConfig.setupProperties(new Properties());
+    }
+
+    /**
+     * Counts tree model events.
+     */
+    static class EventCounter implements TreeModelListener
+    {
+        int inserted = 0;
+        int insertedNodes = 0;
+        int changed = 0;
+        int removed = 0;
+        int structureChanged = 0;
+
+        public void treeNodesInserted(TreeModelEvent e)
+        {
+            inserted++;
+            insertedNodes += e.getChildIndices().length;
+
+            int[] indices = e.getChildIndices();
+            for (int i = 1; i < indices.length; i++)
+                assertTrue("child indices out of order", indices[i - 1] < indices[i]);
+            for (int i = 0; i < indices.length; i++)
+                assertSame(e.getChildren()[i], ((SmartNode) e.getTreePath().getLastPathComponent()).getChildAt(indices[i]));
+        }
+
+        public void treeNodesChanged(TreeModelEvent e) { changed++; }
+        public void treeNodesRemoved(TreeModelEvent e) { removed++; }
+        public void treeStructureChanged(TreeModelEvent e) { structureChanged++; }
+    }
+
+    /**
+     * A loader that adds its batches to the tree straight away, on the calling thread,
+     * and remembers the size of each batch.
+     */
+    static class SynchronousLoader extends SearchResultLoader
+    {
+        ArrayList<Integer> batches = new ArrayList<Integer>();
+        boolean finished = false;
+
+        SynchronousLoader(DXNamingEnumeration results, SmartModel model, SmartNode root, int batchSize)
+        {
+            super(results, model, root, batchSize);
+        }
+
+        SynchronousLoader(DXNamingEnumeration results, SmartModel model, SmartNode root, int batchSize, int nodeLimit)
+        {
+            super(results, model, root, batchSize, nodeLimit);
+        }
+
+        protected void deliver(List<Result> batch, boolean last)
+        {
+            batches.add(batch.size());
+            batchReady(batch, last);
+        }
+
+        protected void loaded(List<SmartNode> grown, int loaded, boolean last)
+        {
+            finished = last;
+        }
+    }
+
+    private static DXNamingEnumeration results(String[] dns)
+    {
+        DXNamingEnumeration results = new DXNamingEnumeration();
+        for (String dn : dns)
+            results.add(new SearchResult(dn, null, new BasicAttributes(), false));
+        return results;
+    }
+
+    private static SmartNode root()
+    {
+        SmartNode root = new SmartNode("");
+        root.setRoot(true);
+        root.setStructural(true);
+        return root;
+    }
+
+    private static SmartNode child(SmartNode parent, String rdn)
+    {
+        for (int i = 0; i < parent.getChildCount(); i++)
+            if (parent.getChildAt(i).toString().equalsIgnoreCase(rdn))
+                return (SmartNode) parent.getChildAt(i);
+        return null;
+    }
+
+    public void testTreeBuilt()
+    {
+        SmartNode root = root();
+        SmartModel model = new SmartModel(root);
+        SynchronousLoader loader = new SynchronousLoader(results(new String[]{
+                "cn=Fred,ou=users,o=test",
+                "ou=users,o=test",
+                "cn=Alice,ou=Users,o=test",      // matched ignoring case
+                "cn=Zed,ou=admins,o=test"}), model, root, 2);
+        loader.run();
+
+        assertTrue(loader.finished);
+        assertEquals(4, loader.getNumberLoaded());
+
+        SmartNode o = child(root, "o=test");
+        assertNotNull(o);
+        assertTrue(o.isStructural());
+        assertEquals(1, root.getChildCount());
+        assertEquals(2, o.getChildCount());
+        assertEquals("ou=admins", o.getChildAt(0).toString());        // sorted
+
+        SmartNode users = child(o, "ou=users");
+        assertFalse(users.isStructural());                            // turned up as a result in its own right
+        assertEquals(2, users.getChildCount());
+        assertEquals("cn=Alice", users.getChildAt(0).toString());
+        assertEquals("cn=Fred", users.getChildAt(1).toString());
+        assertTrue(child(o, "ou=admins").isStructural());
+    }
+
+    public void testEventsCoalesced()
+    {
+        SmartNode root = root();
+        SmartNode base = new SmartNode("o=test");
+        base.setStructural(true);
+        root.add(base);
+        base.add(new SmartNode());      // a dummy node, as SmartTree.setRootDN() adds
+
+        SmartModel model = new SmartModel(root);
+        EventCounter events = new EventCounter();
+        model.addTreeModelListener(events);
+
+        int count = 1000;
+        String[] dns = new String[count];
+        for (int i = 0; i < count; i++)
+            dns[i] = "cn=person" + ((i * 7919) % count) + ",ou=people,o=test";
+
+        SynchronousLoader loader = new SynchronousLoader(results(dns), model, root, 300);
+        loader.run();
+
+        // the first result is sent on its own, then full batches...
+        assertEquals(Integer.valueOf(1), loader.batches.get(0));
+        assertEquals(Integer.valueOf(300), loader.batches.get(1));
+
+        SmartNode people = child(base, "ou=people");
+        assertEquals(1, base.getChildCount());              // dummy removed
+        assertEquals(1, events.removed);
+        assertEquals(count, people.getChildCount());
+        for (int i = 1; i < count; i++)
+            assertTrue(((SmartNode) people.getChildAt(i - 1)).compareTo(people.getChildAt(i)) <= 0);
+
+        // one event per batch: 'ou=people' arriving under the base, then the new people in each later batch
+        assertEquals(loader.batches.size(), events.inserted);
+        assertEquals(1 + count - 1, events.insertedNodes);
+        assertEquals(0, events.structureChanged);
+
+        assertTrue(loader.getFirstResultMillis() >= 0);
+        assertTrue(loader.getUIMillis() >= 0);
+    }
+
+    public void testNodeLimit()
+    {
+        SmartNode root = root();
+        SmartModel model = new SmartModel(root);
+        EventCounter events = new EventCounter();
+        model.addTreeModelListener(events);
+
+        int count = 25;
+        String[] dns = new String[count];
+        for (int i = 0; i < count; i++)
+            dns[i] = "cn=person" + (100 + i) + ",ou=people,o=test";
+
+        SynchronousLoader loader = new SynchronousLoader(results(dns), model, root, 4, 10);
+        loader.run();
+
+        // only the first ten are made into nodes; the rest wait behind a 'next n...' node at the end of the root's children
+        assertTrue(loader.finished);
+        assertTrue(loader.isFinished());
+        assertEquals(10, loader.getNumberLoaded());
+        assertEquals(15, loader.getNumberHeld());
+        SmartNode people = child(child(root, "o=test"), "ou=people");
+        assertEquals(10, people.getChildCount());
+        assertEquals(2, root.getChildCount());
+        SmartNode more = (SmartNode) root.getLastChild();
+        assertTrue(more.isMore());
+        assertTrue(loader.isMoreNode(more));
+        assertEquals("next 10...", more.toString());
+
+        loader.loadMore();
+        assertEquals(20, loader.getNumberLoaded());
+        assertEquals(20, people.getChildCount());
+        assertSame(more, root.getLastChild());
+        assertEquals("next 5...", more.toString());
+
+        loader.loadMore();
+        assertEquals(count, loader.getNumberLoaded());
+        assertEquals(0, loader.getNumberHeld());
+        assertEquals(count, people.getChildCount());
+        assertEquals(1, root.getChildCount());          // 'next n...' node removed
+        assertFalse(loader.isMoreNode(more));
+        for (int i = 0; i < count; i++)
+            assertEquals("cn=person" + (100 + i), people.getChildAt(i).toString());
+    }
+
+    public void testCancel()
+    {
+        SmartNode root = root();
+        SmartModel model = new SmartModel(root);
+        SynchronousLoader loader = new SynchronousLoader(results(new String[]{"o=test", "ou=one,o=test", "ou=two,o=test"}), model, root, 1)
+        {
+            protected void loaded(List<SmartNode> grown, int loaded, boolean last)
+            {
+                cancel();
+            }
+        };
+        loader.run();
+
+        assertTrue(loader.isCancelled());
+        assertEquals(1, loader.getNumberLoaded());
+        assertEquals(0, child(root, "o=test").getChildCount());
+        assertEquals(-1, loader.getTotalMillis());
+    }
+}
@@ -135,29 +135,14 @@ public class SmartModel extends DefaultTreeModel
     
         if (nodeDN.size()==0) return (SmartNode)getRoot();
     
-        SmartNode child = null;
         SmartNode parent = (SmartNode)getRoot();
         
         // for each tree level, grab the current node pointer (parent)
 
         for (int i=0;i< nodeDN.size();i++)
         {
-            RDN rdn = nodeDN.getRDN(i);
-
-            Enumeration children = parent.children();
-            parent = null;
-            
-            // search children trying to find matching RDN
-            while (children.hasMoreElements())
-            {
-                child = (SmartNode)children.nextElement();
-                
-                if (child.rdnEquals(rdn))
-                {
-                    parent = child; // reset parent pointer to current node, prior to next cycle
-                    break;
-                }
-            }
+            // find the child with the matching RDN (a hash lookup for nodes with many children)
+            parent = parent.getChild(nodeDN.getRDN(i));
 
             if (parent == null) // i.e. couldn't find sub-node so...
             {
@@ -1,5 +1,6 @@
 package com.ca.directory.jxplorer.tree;
 
+import com.ca.commons.cbutil.CBIntText;
 import com.ca.commons.cbutil.CBResourceLoader;
 import com.ca.commons.cbutil.CBUtility;
 import com.ca.commons.cbutil.Theme;
@@ -9,6 +10,8 @@ import com.ca.directory.jxplorer.JXConfig;
 import javax.naming.NamingEnumeration;
 import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeNode;
 import java.awt.datatransfer.*;
 import java.io.IOException;
 import java.text.CollationKey;
@@ -55,6 +58,8 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
     boolean blankRoot = false;                       // if root is blank, use ROOTNAME or blank depending on context
     //boolean objectClassSet = false;                  // whether a true object class is known.
     boolean structural = false;                      // whether this is just to fill the tree out, but doesn't represent an entry... (i.e. in a search tree response)
+    int moreCount = 0;                               // for a 'next n...' dummy node, standing in for children not yet read, the number in the next page (otherwise 0)
+    boolean reading = false;                         // whether the children a 'next n...' node stands in for are being read
 
 
     static Hashtable icons = new Hashtable(16);      // the icons displayed in the tree
@@ -79,6 +84,21 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
     // the collation key of the node, used for sorting.
     private CollationKey collationKey;
 
+    /**
+     * Nodes with at least this many children keep a hash index of them, so that
+     * finding a child by RDN doesn't mean walking all of them.
+     */
+    static final int INDEX_THRESHOLD = 16;
+
+    // the (non dummy) children keyed by the normalised form of their RDN (see getIndexKey()); null until there are INDEX_THRESHOLD children.
+    private HashMap<String, SmartNode> childrenByRDN = null;
+
+    // the number of children left out of the index because another child already has the same key (shouldn't happen in a real directory).
+    private int duplicateKeys = 0;
+
+    // the normalised form of this node's RDN, worked out when first needed.
+    private String indexKey = null;
+
     private static Logger log = Logger.getLogger(SmartNode.class.getName());
 
 /**
@@ -172,6 +192,21 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
         //distinguishedValue = "null"; 
     }
     
+    /**
+     *    Makes a dummy node that stands in for the children of a (very large) node
+     *    that haven't been read yet, displayed as 'next n...'.  It sorts after all
+     *    the real children.
+     *
+     *    @param count the number of children that will be read next.
+     */
+
+    static SmartNode makeMoreNode(int count)
+    {
+        SmartNode more = new SmartNode();
+        more.moreCount = Math.max(1, count);
+        return more;
+    }
+
     /**
      * Simple constructor, for when objectClass attributes are not known
      * @param rdnString the relative distinguished name, e.g. 'cn=fnord'
@@ -385,7 +420,7 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
     public String toString() 
     {     
         if (blankRoot==true) return ROOTNAME;
-        if (dummy) return DUMMYMESSAGE;
+        if (dummy) return getDummyMessage();
         //return distinguishedValue; 
         //return rdn.getRawVal(0);
         //return getDistinguishedValue();
@@ -445,6 +480,21 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
 
     public boolean isDummy() { return dummy; }
 
+    /**
+     *    Returns whether this is a 'next n...' dummy node, standing in for
+     *    children that haven't been read because there were too many to read at once.
+     */
+
+    public boolean isMore() { return moreCount > 0; }
+
+    /**
+     *    Flags whether the children a 'next n...' node stands in for are being read.
+     */
+
+    public void setReading(boolean reading) { this.reading = reading; }
+
+    public boolean isReading() { return reading; }
+
     /**
      *    Returns whether this node has a dummy node.
      *    (In a normal tree, the dummy node will be the only node)
@@ -465,6 +515,8 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
      
      public String getDummyMessage() 
      {
+         if (moreCount > 0 && reading == false)
+             return CBIntText.get("next {0}...", new Object[] {Integer.toString(moreCount)});
          return DUMMYMESSAGE;
      }
 
@@ -561,14 +613,14 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
      *    @param n the child node.
      */
      
-    public boolean hasChild(SmartNode n) { return hasChild(n.toString());}
+    public boolean hasChild(SmartNode n) { return (n.isDummy()) ? hasDummy() : hasChild(n.getRDN());}
     
     /**
      *    Returns whether this node has the corresponding node as a child.
      *    @param r the child node's RDN. (Test is case insensitive)
      */
      
-    public boolean hasChild(RDN r) { return hasChild(r.toString());}
+    public boolean hasChild(RDN r) { return getChild(r) != null;}
     
     
     /**
@@ -578,15 +630,161 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
      
     public boolean hasChild(String testRDN)
     {
-        Enumeration children = children();
-        while (children.hasMoreElements())
+        return hasChild(new RDN(testRDN));
+    }
+
+    /**
+     *    Returns the child node with a particular RDN.
+     *    @param r the child node's RDN. (Test is case insensitive)
+     *    @return the child node, or null if there is no such child.
+     */
+
+    public SmartNode getChild(RDN r)
+    {
+        return (r == null) ? null : getChildByKey(indexKey(r));
+    }
+
+    /**
+     *    Returns the child node with a particular normalised RDN.
+     *    @param key the normalised RDN (see indexKey())
+     *    @return the child node, or null if there is no such child.
+     */
+
+    SmartNode getChildByKey(String key)
+    {
+        if (childrenByRDN != null)
+            return childrenByRDN.get(key);
+
+        for (int i = 0, count = getChildCount(); i < count; i++)
+        {
+            SmartNode child = (SmartNode) getChildAt(i);
+            if (child.dummy == false && key.equals(child.getIndexKey()))
+                return child;
+        }
+        return null;
+    }
+
+    /**
+     *    A case insensitive form of an RDN, used to index child nodes.  Two RDNs
+     *    have the same key if RDN.equals() considers them equal.
+     *    @param r the RDN
+     *    @return the normalised RDN (see RDN.getNormalised())
+     */
+
+    static String indexKey(RDN r)
+    {
+        return r.getNormalised();
+    }
+
+    /**
+     *    @return the normalised form of this node's RDN (see indexKey()).
+     */
+
+    String getIndexKey()
+    {
+        if (indexKey == null)
+            indexKey = indexKey(getRDN());
+        return indexKey;
+    }
+
+    /**
+     *    Adds a child node, keeping the child index (if any) up to date.
+     */
+
+    public void insert(MutableTreeNode newChild, int childIndex)
+    {
+        super.insert(newChild, childIndex);
+
+        if (childrenByRDN != null)
+            indexChild((SmartNode) newChild);
+        else if (getChildCount() >= INDEX_THRESHOLD)
+            buildIndex();
+    }
+
+    /**
+     *    Removes a child node, keeping the child index (if any) up to date.
+     */
+
+    public void remove(int childIndex)
+    {
+        SmartNode child = (SmartNode) getChildAt(childIndex);
+        super.remove(childIndex);
+
+        if (childrenByRDN != null)
+            unindexChild(child);
+    }
+
+    public void removeAllChildren()
+    {
+        childrenByRDN = null;       // no point keeping it up to date as the children go one by one.
+        duplicateKeys = 0;
+        super.removeAllChildren();
+    }
+
+    private void buildIndex()
+    {
+        int count = getChildCount();
+        childrenByRDN = new HashMap<String, SmartNode>(count * 2);
+        duplicateKeys = 0;
+        for (int i = 0; i < count; i++)
+            indexChild((SmartNode) getChildAt(i));
+    }
+
+    private void indexChild(SmartNode child)
+    {
+        if (child.dummy)
+            return;
+
+        SmartNode existing = childrenByRDN.get(child.getIndexKey());
+        if (existing == null)
+            childrenByRDN.put(child.getIndexKey(), child);
+        else if (existing != child)
+            duplicateKeys++;
+    }
+
+    private void unindexChild(SmartNode child)
+    {
+        if (child.dummy)
+            return;
+
+        unindexChild(child, child.getIndexKey());
+    }
+
+    private void unindexChild(SmartNode child, String key)
+    {
+        if (childrenByRDN.get(key) != child)
+        {
+            duplicateKeys--;            // it was never in the index
+            return;
+        }
+
+        childrenByRDN.remove(key);
+        if (duplicateKeys > 0)          // look for a left out child with the same key to take its place
         {
-            if (testRDN.equalsIgnoreCase(children.nextElement().toString()))
+            for (int i = 0, count = getChildCount(); i < count; i++)
             {
-                return true;
-            }    
+                SmartNode other = (SmartNode) getChildAt(i);
+                if (other.dummy == false && key.equals(other.getIndexKey()))
+                {
+                    childrenByRDN.put(key, other);
+                    duplicateKeys--;
+                    break;
+                }
+            }
         }
-        return false;
+    }
+
+    /**
+     *    Called by a child node when its RDN has changed, to re-file it in the index.
+     */
+
+    private void childRenamed(SmartNode child, String oldKey)
+    {
+        if (childrenByRDN == null || child.dummy)
+            return;
+
+        unindexChild(child, oldKey);
+        indexChild(child);
     }
     
     public boolean isStructural() { return structural; }
@@ -653,24 +851,99 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
 
     public void sort()
     {
-        TreeSet sortedSet = new TreeSet();
-        Enumeration kids = children();
+        // sorted in place, so the children (and the child index) don't need to be removed and re-added.
+        if (children != null && children.size() > 1)
+            Collections.sort(children, CHILD_ORDER);
+    }
 
-        while (kids.hasMoreElements())
+    /**
+     *  Orders child nodes as compareTo() does.  (Newer JDKs declare the children as a
+     *  Vector&lt;TreeNode&gt;, which can't be sorted by its natural order.)
+     */
+
+    private static final Comparator<TreeNode> CHILD_ORDER = new Comparator<TreeNode>()
+    {
+        public int compare(TreeNode a, TreeNode b)
         {
-            Object kid = kids.nextElement();
-            //System.out.println("add node: '" + kid + "'");
-            sortedSet.add(kid);
+            return ((SmartNode) a).compareTo(b);
         }
-        removeAllChildren();
+    };
 
-        Iterator sortedKids = sortedSet.iterator();
-        while (sortedKids.hasNext())
+    /**
+     *  Adds new children to a node whose children are already sorted, keeping them
+     *  sorted.  This is much quicker than adding them one at a time and sorting the lot
+     *  after each.  A few children are each inserted in place; many are merged with the
+     *  existing children in a single pass.  No events are fired; the caller must tell
+     *  the tree model.
+     *
+     *  @param kids the new children, which must not already have parents (this list gets sorted).
+     *  @return the (ascending) indices of the new children.
+     */
+
+    public int[] addSorted(List<SmartNode> kids)
+    {
+        Collections.sort(kids);
+
+        int[] indices = new int[kids.size()];
+        int existing = getChildCount();
+        if (indices.length == 0)
+            return indices;
+
+        if (existing == 0 || kids.get(0).compareTo(getChildAt(existing - 1)) >= 0)
         {
-            SmartNode newNode = (SmartNode)sortedKids.next();
-            //System.out.println("node: " + newNode.toString() + "'");
-            add(newNode);
+            for (int i = 0; i < indices.length; i++)      // they all go on the end
+            {
+                add(kids.get(i));
+                indices[i] = existing + i;
+            }
+            return indices;
+        }
+
+        if (indices.length * 8 < existing)
+        {
+            int from = 0;
+            for (int i = 0; i < indices.length; i++)      // kids are sorted, so each goes after the last (leaving earlier indices unchanged)
+            {
+                SmartNode kid = kids.get(i);
+                int low = from, high = getChildCount();
+                while (low < high)
+                {
+                    int mid = (low + high) >>> 1;
+                    if (((SmartNode) getChildAt(mid)).compareTo(kid) <= 0)
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+                insert(kid, low);
+                indices[i] = low;
+                from = low + 1;
+            }
+            return indices;
         }
+
+        Vector merged = new Vector(existing + indices.length);
+        int i = 0, j = 0;
+        while (i < existing || j < indices.length)
+        {
+            if (j == indices.length || (i < existing && ((SmartNode) children.get(i)).compareTo(kids.get(j)) <= 0))
+                merged.add(children.get(i++));
+            else
+            {
+                SmartNode kid = kids.get(j);
+                kid.setParent(this);
+                indices[j++] = merged.size();
+                merged.add(kid);
+            }
+        }
+        children = merged;
+
+        if (childrenByRDN != null)
+            for (SmartNode kid : kids)
+                indexChild(kid);
+        else if (getChildCount() >= INDEX_THRESHOLD)
+            buildIndex();
+
+        return indices;
     }
  
  
@@ -753,7 +1026,12 @@ public class SmartNode extends DefaultMutableTreeNode implements  Transferable,
 
     public void setRdn(RDN rdn)
     {
+        String oldKey = indexKey;
         this.rdn = rdn;
+        indexKey = null;
+
+        if (oldKey != null && getParent() instanceof SmartNode)
+            ((SmartNode) getParent()).childRenamed(this, oldKey);
     }
 
 }	
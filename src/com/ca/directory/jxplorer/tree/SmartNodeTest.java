@@ -0,0 +1,186 @@
+package com.ca.directory.jxplorer.tree;
+
+import com.ca.commons.naming.DN;
+import com.ca.commons.naming.RDN;
+import com.ca.directory.jxplorer.JXConfig;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Properties;
+
+/**
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class SmartNodeTest extends TestCase
+{
+    public SmartNodeTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(SmartNodeTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp()
+    {
+        JXConfig.setupProperties(new Properties());
+    }
+
+    /**
+     * Checks a child can be found by RDN, whether or not the parent has an index.
+     */
+    private static void checkChildren(SmartNode parent)
+    {
+        for (int i = 0; i < parent.getChildCount(); i++)
+        {
+            SmartNode child = (SmartNode) parent.getChildAt(i);
+            if (child.isDummy())
+                continue;
+            assertSame(child, parent.getChild(child.getRDN()));
+            assertSame(child, parent.getChild(new RDN(child.getRDN().toString().toUpperCase())));
+            assertTrue(parent.hasChild(child.toString()));
+        }
+    }
+
+    public void testSmallNode()
+    {
+        SmartNode parent = new SmartNode("ou=people");
+        parent.add(new SmartNode());                            // dummy
+        parent.add(new SmartNode("cn=Fred"));
+        parent.add(new SmartNode("cn=Alice+sn=Smith"));
+
+        checkChildren(parent);
+        assertTrue(parent.hasChild(new RDN("CN=fred")));
+        assertTrue(parent.hasChild(new RDN("cn=alice+sn=smith")));
+        assertFalse(parent.hasChild(new RDN("cn=Bob")));
+        assertTrue(parent.hasChild(new SmartNode()));           // a dummy matches a dummy, as before
+    }
+
+    public void testIndexKeptUpToDate()
+    {
+        SmartNode parent = new SmartNode("ou=people");
+        int count = SmartNode.INDEX_THRESHOLD * 4;
+        for (int i = count - 1; i >= 0; i--)
+            parent.add(new SmartNode("cn=person" + i));
+        checkChildren(parent);
+
+        parent.sort();
+        assertEquals("cn=person0", parent.getChildAt(0).toString());
+        checkChildren(parent);
+
+        // remove
+        SmartNode removed = parent.getChild(new RDN("cn=person7"));
+        parent.remove(removed);
+        assertNull(parent.getChild(new RDN("cn=person7")));
+        assertFalse(parent.hasChild("cn=person7"));
+        assertEquals(count - 1, parent.getChildCount());
+
+        // move to another parent
+        SmartNode other = new SmartNode("ou=other");
+        SmartNode moved = parent.getChild(new RDN("cn=person8"));
+        other.add(moved);
+        assertNull(parent.getChild(new RDN("cn=person8")));
+        assertSame(moved, other.getChild(new RDN("cn=person8")));
+
+        // rename
+        SmartNode renamed = parent.getChild(new RDN("cn=person9"));
+        renamed.update(new RDN("cn=renamed"));
+        assertNull(parent.getChild(new RDN("cn=person9")));
+        assertSame(renamed, parent.getChild(new RDN("cn=Renamed")));
+        checkChildren(parent);
+
+        // add sorted
+        ArrayList<SmartNode> kids = new ArrayList<SmartNode>();
+        for (int i = 0; i < count; i++)
+            kids.add(new SmartNode("cn=new" + i));
+        int[] indices = parent.addSorted(kids);
+        assertEquals(count, indices.length);
+        for (int i = 0; i < indices.length; i++)
+            assertSame(kids.get(i), parent.getChildAt(indices[i]));
+        for (int i = 1; i < parent.getChildCount(); i++)
+            assertTrue(((SmartNode) parent.getChildAt(i - 1)).compareTo(parent.getChildAt(i)) <= 0);
+        checkChildren(parent);
+
+        parent.removeAllChildren();
+        assertNull(parent.getChild(new RDN("cn=person1")));
+        parent.add(new SmartNode("cn=person1"));
+        assertNotNull(parent.getChild(new RDN("cn=person1")));
+    }
+
+    public void testDuplicates()
+    {
+        SmartNode parent = new SmartNode("ou=people");
+        for (int i = 0; i < SmartNode.INDEX_THRESHOLD; i++)
+            parent.add(new SmartNode("cn=person" + i));
+
+        SmartNode first = parent.getChild(new RDN("cn=person3"));
+        SmartNode copy = new SmartNode("cn=PERSON3");
+        parent.add(copy);
+        assertSame(first, parent.getChild(new RDN("cn=person3")));
+
+        parent.remove(first);
+        assertSame(copy, parent.getChild(new RDN("cn=person3")));
+        parent.remove(copy);
+        assertNull(parent.getChild(new RDN("cn=person3")));
+    }
+
+    public void testGetNodeForDN()
+    {
+        SmartNode root = new SmartNode("");
+        root.setRoot(true);
+        SmartModel model = new SmartModel(root);
+
+        SmartNode o = new SmartNode("o=test");
+        root.add(o);
+        SmartNode people = new SmartNode("ou=people");
+        o.add(people);
+        for (int i = 0; i < SmartNode.INDEX_THRESHOLD * 2; i++)
+            people.add(new SmartNode("cn=person" + i));
+
+        assertSame(root, model.getNodeForDN(new DN()));
+        assertSame(people, model.getNodeForDN(new DN("ou=People,o=test")));
+        SmartNode person = model.getNodeForDN(new DN("cn=person20,ou=people,o=test"));
+        assertEquals("cn=person20", person.toString());
+        assertEquals(new DN("cn=person20,ou=people,o=test"), model.getDNForPath(model.getPathForDN(new DN("cn=PERSON20,ou=people,o=test"))));
+        assertTrue(model.exists(new DN("cn=person0,ou=people,o=test")));
+        assertFalse(model.exists(new DN("cn=person0,ou=staff,o=test")));
+        assertNull(model.getPathForDN(new DN("cn=nobody,ou=people,o=test")));
+    }
+
+    public void testMoreNode()
+    {
+        SmartNode parent = new SmartNode("ou=people");
+        for (int i = 0; i < 10; i++)
+            parent.add(new SmartNode("cn=person" + (i * 2)));
+        SmartNode more = SmartNode.makeMoreNode(10);
+        parent.add(more);
+        parent.sort();
+        assertSame(more, parent.getLastChild());
+        assertTrue(more.isMore() && more.isDummy());
+        assertFalse(parent.hasDummy());
+        assertNull(parent.getChild(new RDN("cn=next 10...")));
+
+        // the next page goes in order, in front of the 'next n...' node
+        ArrayList<SmartNode> kids = new ArrayList<SmartNode>();
+        for (int i = 0; i < 10; i++)
+            kids.add(new SmartNode("cn=person" + (i * 2 + 1)));
+        parent.addSorted(kids);
+        assertEquals(21, parent.getChildCount());
+        assertSame(more, parent.getLastChild());
+        for (int i = 1; i < parent.getChildCount() - 1; i++)
+            assertTrue(((SmartNode) parent.getChildAt(i - 1)).compareTo(parent.getChildAt(i)) < 0);
+
+        assertFalse(more.getDummyMessage().equals(SmartNode.DUMMYMESSAGE));
+        more.setReading(true);
+        assertEquals(SmartNode.DUMMYMESSAGE, more.toString());
+    }
+}
@@ -23,8 +23,10 @@ import java.awt.dnd.*;
 import java.awt.dnd.peer.DragSourceContextPeer;
 import java.awt.event.*;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -100,6 +102,27 @@ public class SmartTree extends JTree
      */
     public int numOfResults = 0;
 
+    /**
+     * Loads search results into the tree a batch at a time (search trees only).
+     */
+    private SearchResultLoader searchLoader = null;
+
+    // the queries made by the last readAndExpandDN() that haven't been displayed yet, in order, and which of them have arrived.
+    private ArrayList<com.ca.directory.jxplorer.broker.DataQuery> expansionQueries = null;
+    private IdentityHashMap<com.ca.directory.jxplorer.broker.DataQuery, Boolean> expansionArrived = null;
+
+    /**
+     * The default number of rows shown by expanding search result nodes, before
+     * the rest are left collapsed.
+     */
+    public static final int DEFAULT_SEARCH_EXPAND_LIMIT = 2000;
+
+    /**
+     * The default number of search results made into tree nodes before the rest
+     * are held back behind a 'next n...' node.
+     */
+    public static final int DEFAULT_SEARCH_NODE_LIMIT = 10000;
+
     private static Logger log = Logger.getLogger(SmartTree.class.getName());
 
 
@@ -520,6 +543,8 @@ public class SmartTree extends JTree
      */
     public void clearTree()
     {
+        if (searchLoader != null)
+            searchLoader.cancel();      // stop loading any previous search results
         rootNode.removeAllChildren();
         setRootDN(NODATA_DN);
         treeModel.setRoot(rootNode);
@@ -567,38 +592,12 @@ public class SmartTree extends JTree
             // Step 2: Add new children (nb - there may be *zero* children to add, in which case parent is actually a leaf node
             while (children.hasMoreElements())
             {
-                NameClassPair np = (NameClassPair) children.nextElement();
+                SmartNode child = makeChildNode((NameClassPair) children.nextElement());
 
-                SmartNode child;
-
-                // &(*%& pointless bloody jndi; the one time it would be useful for them
-                // to use 'Name' objects they use strings; in 'NameClassPair' no less. What a joke.
-
-                DN temp = new DN(np.getName());
-                child = new SmartNode(temp.getRDN(temp.size() - 1));
-
-                if (parent.hasChild(child.toString()) == false)  // don't add a child twice!
+                if (parent.hasChild(child.getRDN()) == false)  // don't add a child twice!
                 {
                     parent.add(child);
-                    //treeModel.insertNodeInto(child, parent, parent.getChildCount());
-
-                    // Step 3:  try to recover the object class list for the node to use.
-
-                    if (np instanceof SearchResult)
-                    {
-                        doObjectClassSpecificHandling(child, ((SearchResult) np));
-                    }
-
                 }
-
-                //XXX is it more efficient to work on nodes, then call nodeStructureChanged?
-                //XXX i.e. parent.add(child);
-
-                if (child.getAllowsChildren())
-                //    treeModel.insertNodeInto(new SmartNode(), child, 0);
-                    child.add(new SmartNode());
-
-                //parent.add(child);
             }
 
             parent.sort();
@@ -630,6 +629,75 @@ public class SmartTree extends JTree
      * @param ocs   a search result containing the object class attribute (we hope).
      */
 
+    /**
+     * Makes a tree node for a child read from the directory, using its object classes (if we
+     * have them) to set its icon and so on, and giving it a dummy child if it may have children.
+     *
+     * @param np the child, as read from the directory.
+     * @return the new node, which has not yet been added to the tree.
+     */
+
+    protected SmartNode makeChildNode(NameClassPair np)
+    {
+        // &(*%& pointless bloody jndi; the one time it would be useful for them
+        // to use 'Name' objects they use strings; in 'NameClassPair' no less. What a joke.
+
+        DN temp = new DN(np.getName());
+        SmartNode child = new SmartNode(temp.getRDN(temp.size() - 1));
+
+        // try to recover the object class list for the node to use.
+
+        if (np instanceof SearchResult)
+        {
+            doObjectClassSpecificHandling(child, ((SearchResult) np));
+        }
+
+        if (child.getAllowsChildren())
+            child.add(new SmartNode());
+
+        return child;
+    }
+
+    /**
+     * Adds the next page of a very large node's children, read after the user clicked on
+     * its 'next n...' node, in sorted order.  If there are still more to come, the 'next n...'
+     * node stays at the end, otherwise it is removed.
+     *
+     * @param parent the node being expanded.
+     * @param result the continuation list result.
+     */
+
+    protected void addMoreChildren(SmartNode parent, com.ca.directory.jxplorer.broker.DataQuery result)
+            throws NamingException
+    {
+        SmartNode more = (parent.getChildCount() == 0) ? null : (SmartNode) parent.getLastChild();
+        if (more == null || more.isMore() == false)
+            return;   // the node has been listed again (or cleared) since the user asked for more
+
+        ArrayList<SmartNode> kids = new ArrayList<SmartNode>();
+        NamingEnumeration children = result.getEnumeration();
+        while (children.hasMoreElements())
+        {
+            SmartNode child = makeChildNode((NameClassPair) children.nextElement());
+            if (parent.hasChild(child.getRDN()) == false)  // (it may have been added by the user in the meantime)
+                kids.add(child);
+        }
+
+        int[] indices = parent.addSorted(kids);      // (the 'next n...' node sorts last, so stays on the end)
+        treeModel.nodesWereInserted(parent, indices);
+
+        if (result.isPartial())
+        {
+            more.moreCount = Math.max(1, kids.size());
+            more.setReading(false);
+            treeModel.nodeChanged(more);
+        }
+        else
+        {
+            treeModel.removeNodeFromParent(more);
+        }
+    }
+
     protected void doObjectClassSpecificHandling(SmartNode child, SearchResult ocs)
     {
         if (ocs == null) return;                        // can't do anything.
@@ -751,20 +819,11 @@ public class SmartTree extends JTree
         for (int i = 0; i < newDN.size(); i++)
         {
             rdn = newDN.getRDN(i);
-            Enumeration children = parent.children();
-
-            child = null;
-            while (children.hasMoreElements())
-            {
-                child = (SmartNode) children.nextElement();
 
-                if (child.isDummy())                // strip any dummy nodes en passent
-                    parent.remove(child);
-                else if (child.rdnEquals(rdn))      // and check if the node already exists (before overwritting it below)
-                    break;
+            while (parent.hasDummy())               // strip any dummy nodes en passent
+                parent.remove(0);
 
-                child = null;
-            }
+            child = parent.getChild(rdn);           // and check if the node already exists (before overwritting it below)
 
             if (child == null)               // if the node doesn't exist...
             {
@@ -1321,6 +1380,15 @@ public class SmartTree extends JTree
                 }
             }
 
+            // 1c) the next page of a large node's children, which are added to those already displayed
+
+            if (result.isContinuation())
+            {
+                addMoreChildren(node, result);
+                browser.setStatus("   " + node.getDN().toString() + ": (" + countChildren(node) + ")");
+                return;
+            }
+
             // 2) clear old data
 
             node.removeAllChildren();
@@ -1329,6 +1397,14 @@ public class SmartTree extends JTree
 
             addCutting(node, result.getEnumeration());
 
+            // 3b) if there were too many children to read at once, show a 'next n...' node to read the rest.
+
+            if (result.isPartial())
+            {
+                node.add(SmartNode.makeMoreNode(node.getChildCount()));
+                treeModel.nodesWereInserted(node, new int[] {node.getChildCount() - 1});
+            }
+
             // XXX (another) pki hack
 
             if (node == getLowestRootNode() && node.getChildCount() == 0)
@@ -1341,7 +1417,7 @@ public class SmartTree extends JTree
         
             expandPath(treeModel.getPathForDN(result.requestDN()));
 
-            browser.setStatus("   " + node.getDN().toString() + ": (" + node.getChildCount() + ")");
+            browser.setStatus("   " + node.getDN().toString() + ": (" + countChildren(node) + ")");
 
         }
         catch (NamingException e)
@@ -1351,6 +1427,18 @@ public class SmartTree extends JTree
         }
     }
 
+    /**
+     * @return the number of children of a node for the status bar, e.g. '20', or '1000+' if there are more to read.
+     */
+
+    private static String countChildren(SmartNode node)
+    {
+        int count = node.getChildCount();
+        if (count > 0 && ((SmartNode) node.getLastChild()).isMore())
+            return (count - 1) + "+";
+        return Integer.toString(count);
+    }
+
 
     /**
      * Takes a DN and reads and displays the corresponding entry.
@@ -1382,8 +1470,9 @@ public class SmartTree extends JTree
 
         log.warning("Opening '" + dn + "' from root DN '" + getRootDN());	//TE: fixes bug 2540 - don't ask me how!
 
-        // work down the DN, reading children as required...
+        // work down the DN, working out which nodes need listing...
 
+        ArrayList<DN> lists = new ArrayList<DN>();
         for (int level = 1; level <= dn.size(); level++)
         {
             DN ancestor = (DN) dn.getPrefix(level);
@@ -1398,14 +1487,14 @@ public class SmartTree extends JTree
                  */
                 if (node == null)
                 {
-                    treeDataSource.getChildren(ancestor.getParent());
+                    addOnce(lists, ancestor.getParent());
                 }
                 /*
                  *  This check shouldn't be called, if the baseDN is skipped.
                  */
                 else if (node.isStructural())
                 {
-                    treeDataSource.getChildren(ancestor);	//TE: for some unknown reason the structural nodes (root dn) need to be read for the correct behavor to occur.
+                    addOnce(lists, ancestor);	//TE: for some unknown reason the structural nodes (root dn) need to be read for the correct behavor to occur.
                 }
                 /*
                  *	The node hasn't been read yet - read its sibling nodes by 'listing'
@@ -1413,7 +1502,7 @@ public class SmartTree extends JTree
                  */
                 else if (node.isDummy())
                 {
-                    treeDataSource.getChildren(ancestor.getParent());
+                    addOnce(lists, ancestor.getParent());
                 }
                 /*
                  *  The node already exists in the tree - make sure its visible.
@@ -1421,15 +1510,68 @@ public class SmartTree extends JTree
                 else
                 {
                     //was: expandDN(ancestor);
-                    treeDataSource.getChildren(ancestor.getParent());
+                    addOnce(lists, ancestor.getParent());
                 }
             }
         }
 
-        treeDataSource.getEntry(dn);
+        // ... then list them all, and read the entry, at once.  The results are displayed in
+        // order, from the top of the tree down, as they arrive (see dataReady()).
+
+        releaseExpansion();
+        expansionQueries = new ArrayList<com.ca.directory.jxplorer.broker.DataQuery>(Arrays.asList(treeDataSource.getChildrenAndEntry(lists.toArray(new DN[lists.size()]), dn)));
+        expansionArrived = new IdentityHashMap<com.ca.directory.jxplorer.broker.DataQuery, Boolean>();
+    }
 
+    private static void addOnce(ArrayList<DN> dns, DN dn)
+    {
+        if (dns.contains(dn) == false)
+            dns.add(dn);
+    }
 
+    /**
+     * Displays the result of one of the queries made by readAndExpandDN().  Lists further down
+     * the tree may be answered before the lists above them, so each result is held back until
+     * all the results before it have been displayed.
+     *
+     * @return false if the result wasn't part of the last readAndExpandDN() (and should be displayed straight away).
+     */
 
+    private boolean expansionResultReady(com.ca.directory.jxplorer.broker.DataQuery result)
+    {
+        if (expansionQueries == null)
+            return false;
+
+        boolean found = false;
+        for (com.ca.directory.jxplorer.broker.DataQuery query : expansionQueries)
+            if (query == result)
+                found = true;
+        if (found == false)
+            return false;
+
+        expansionArrived.put(result, Boolean.TRUE);
+        while (expansionQueries != null && expansionQueries.size() > 0 && expansionArrived.containsKey(expansionQueries.get(0)))
+            displayResult(expansionQueries.remove(0));
+
+        if (expansionQueries != null && expansionQueries.size() == 0)
+            expansionQueries = null;
+
+        return true;
+    }
+
+    /**
+     * Stops holding back the results of the last readAndExpandDN(); those that have already arrived
+     * are displayed now, and the rest will be displayed as they arrive.
+     */
+
+    private void releaseExpansion()
+    {
+        ArrayList<com.ca.directory.jxplorer.broker.DataQuery> pending = expansionQueries;
+        expansionQueries = null;
+        if (pending != null)
+            for (com.ca.directory.jxplorer.broker.DataQuery query : pending)
+                if (expansionArrived.containsKey(query))
+                    displayResult(query);
     }
 
 
@@ -1697,69 +1839,110 @@ public class SmartTree extends JTree
     }
     /**
      * Displays a search result, triggered from the data listener.
-     * This (should) run from the directory connection thread.
+     * The results are read, and added to the tree, a batch at a time
+     * by a SearchResultLoader, so that the display doesn't freeze while
+     * a large search is loaded.  Parent nodes are expanded as results
+     * arrive, until 'option.search.expandLimit' rows are showing; after
+     * that new nodes are left collapsed until the user opens them.  Only
+     * the first 'option.search.nodeLimit' results are made into nodes; the
+     * rest wait behind a 'next n...' node until the user clicks on it.
      *
-     * @param result the directory copy result.
-     *               be shown.
+     * @param result the directory search result.
      */
 
     protected void displaySearchResult(com.ca.directory.jxplorer.broker.DataQuery result)
     {
         setNumOfResults(0);
         clearTree();
+
+        NamingEnumeration results;
         try
         {
-            NamingEnumeration results = result.getEnumeration();
+            results = result.getEnumeration();
+        }
+        catch (NamingException e)
+        {
+            result.setException(e);  // XXX set the exception on the result object, let someone else handle it.
+            return;
+        }
 
-            if (results.hasMoreElements() == true)
-            {
-                setRootDN(result.getRequestDN());  // reset search tree to use search base as root DN?
+        if (results == null || results.hasMoreElements() == false)
+            return;
 
-                while (results.hasMoreElements())
-                {
-                    SearchResult sr = (SearchResult) results.nextElement();
-                    String search = sr.getName();
-                    if (search == null || search.length() == 0) // I think this is redundant? - CB
-                    {
-                        //addNode(NODATA_DN);
-                        log.severe("Unexpected problem getting name of search result: " + sr);
-                    }
-                    else
-                    {
-                        DN searchDN = new DN(search);
-                        addNode(searchDN);
-                        numOfResults++;
-                    }
-                }
-                //TE: task 4648...
-                browser.setStatus("   " + result.getRequestDN().toString() + ":+ (" + String.valueOf(numOfResults) + ")");
-    
-                expandAllExceptRoot();
+        final DN searchBase = result.getRequestDN();
+        setRootDN(searchBase);  // reset search tree to use search base as root DN?
+
+        final int expandLimit = JXConfig.getIntProperty("option.search.expandLimit", DEFAULT_SEARCH_EXPAND_LIMIT);
+
+        int batchSize = JXConfig.getIntProperty("option.search.batchSize", SearchResultLoader.DEFAULT_BATCH_SIZE);
+        int nodeLimit = JXConfig.getIntProperty("option.search.nodeLimit", DEFAULT_SEARCH_NODE_LIMIT);
+
+        searchLoader = new SearchResultLoader(results, treeModel, rootNode, batchSize, nodeLimit)
+        {
+            protected void loaded(java.util.List<SmartNode> grown, int loaded, boolean last)
+            {
+                searchResultsLoaded(this, searchBase, grown, loaded, last, expandLimit);
             }
+        };
+        searchLoader.start();
+    }
 
-//            this.setSelectionPath(treeModel.getPathForDN(searchRootDN));
+    /**
+     * Called on the swing thread as each batch of search results is added to the tree.
+     * Updates the result count, and expands the nodes that gained children, as long as
+     * doing so keeps the number of rows showing under the expand limit.
+     */
 
+    private void searchResultsLoaded(SearchResultLoader loader, DN searchBase, java.util.List<SmartNode> grown, int loaded, boolean last, int expandLimit)
+    {
+        if (loader != searchLoader)
+            return;     // an old search, since replaced
 
+        setNumOfResults(loaded);
 
-//            DN searchRootDN = result.getRequestDN();
-/*
-            SwingUtilities.invokeLater(new Runnable()
-            {
-                  public void run()
-                  {
-                    expandAll();
-//            this.setSelectionPath(treeModel.getPathForDN(searchRootDN));
+        for (SmartNode node : grown)
+        {
+            TreePath path = treeModel.getPathForNode(node);
+            TreePath parentPath = path.getParentPath();
+            if (isExpanded(path) || (parentPath != null && isExpanded(parentPath) == false))
+                continue;   // already open, or hidden inside a collapsed node
 
-                  }
-            });
-*/
+            if (getRowCount() + node.getChildCount() <= expandLimit)
+                expandPath(path);
         }
-        catch (NamingException e)
+
+        //TE: task 4648...
+        browser.setStatus("   " + searchBase.toString() + ":+ (" + String.valueOf(numOfResults) + ")" + (loader.isFinished() ? "" : "..."));
+
+        if (last)
         {
-            result.setException(e);  // XXX set the exception on the result object, let someone else handle it.
+            log.info("search of '" + searchBase + "' displayed " + loaded + " results (" + loader.getNumberHeld() + " more held back); first results after " + loader.getFirstResultMillis() + " ms, " + loader.getUIMillis() + " ms spent updating the tree");
+
+            if (loader.getException() != null)
+                CBUtility.error("Search results only partially read.\n\n(Error caught by display tree)", loader.getException());
         }
     }
 
+    /**
+     * @return the time (in milliseconds) between the last search result arriving at the tree and
+     * the first of its results being displayed, or -1 if there hasn't been one.
+     */
+
+    public long getLastSearchFirstResultMillis()
+    {
+        return (searchLoader == null) ? -1 : searchLoader.getFirstResultMillis();
+    }
+
+    /**
+     * @return the time (in milliseconds) spent on the swing thread adding the results
+     * of the last search to the tree, or -1 if there hasn't been one.
+     */
+
+    public long getLastSearchUIMillis()
+    {
+        return (searchLoader == null) ? -1 : searchLoader.getUIMillis();
+    }
+
     /**
      * @return the numOfResults.
      */
@@ -2030,6 +2213,21 @@ public class SmartTree extends JTree
             setSelectionPath(null);			  // clear the 'currently selected' data object in popupTreeTool
             displayReadNodeResult(null);          // clear the editor
         }
+        else if (getSelectedNode() != null && getSelectedNode().isMore())  // read the next page of children
+        {
+            SmartNode more = getSelectedNode();
+            if (searchLoader != null && searchLoader.isMoreNode(more))    // (the next lot of held back search results)
+            {
+                searchLoader.loadMore();
+            }
+            else if (more.isReading() == false)
+            {
+                more.setReading(true);
+                treeModel.nodeChanged(more);
+                treeDataSource.getMoreChildren(treeModel.getDNForNode((SmartNode) more.getParent()));
+            }
+            clearSelection();                     // so that it can be clicked again for the page after
+        }
         else // addition occured
         {
             DN addedDN = treeModel.getDNForPath(getSelectionPath());
@@ -2067,6 +2265,16 @@ public class SmartTree extends JTree
      */
 
     public void dataReady(com.ca.directory.jxplorer.broker.DataQuery result)
+    {
+        if (expansionResultReady(result) == false)
+            displayResult(result);
+    }
+
+    /**
+     * Adjusts the tree to reflect the result of a data query.
+     */
+
+    protected void displayResult(com.ca.directory.jxplorer.broker.DataQuery result)
     {
         int type = result.getType();
 
@@ -2082,7 +2290,16 @@ public class SmartTree extends JTree
             if (type == com.ca.directory.jxplorer.broker.DataQuery.LIST)        // clean up failed list result...
             {
                 SmartNode node = treeModel.getNodeForDN(result.requestDN());
-                if (!node.isAlwaysRefresh()) // XXX Hack to avoid losing tree when get error reading non-existant base DN node.
+                if (node != null && result.isContinuation())    // keep the children we have, and let the user try again
+                {
+                    SmartNode more = (node.getChildCount() == 0) ? null : (SmartNode) node.getLastChild();
+                    if (more != null && more.isMore())
+                    {
+                        more.setReading(false);
+                        treeModel.nodeChanged(more);
+                    }
+                }
+                else if (!node.isAlwaysRefresh()) // XXX Hack to avoid losing tree when get error reading non-existant base DN node.
                 {
                     node.removeAllChildren();
                     treeModel.nodeStructureChanged(node);
@@ -0,0 +1,238 @@
+package com.ca.jndiproviders.dsml;
+
+import com.ca.commons.jndi.BatchContext;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/**
+ * <p>A batch of add, delete and modify operations for a DsmlContext (see DsmlContext.createBatch()).
+ * Each operation's request element is written (with a requestID) as it is added; when the batch is
+ * executed the elements are sent in batchRequests of up to batchSize operations each, and the
+ * responses are matched back to the operations by their requestIDs.</p>
+ *
+ * <p>Requests are sent with onError="resume", so one failed operation doesn't stop the others.
+ * Parallel batches are sent with processing="parallel" and responseOrder="unordered"; for servers
+ * that don't echo requestIDs, responses without one are matched to the operations in order.</p>
+ */
+
+class DsmlBatch implements BatchContext.Batch
+{
+    private static Logger log = Logger.getLogger(DsmlBatch.class.getName());
+
+    private static final String PARALLEL = " processing=\"parallel\" responseOrder=\"unordered\" onError=\"resume\">\n";
+
+    private static final String SEQUENTIAL = " processing=\"sequential\" responseOrder=\"sequential\" onError=\"resume\">\n";
+
+    private final DsmlContext ctx;
+
+    private final boolean sequential;
+
+    private final int batchSize;
+
+    private final ArrayList<String> requests = new ArrayList<String>();    // the request elements, in order
+
+    /**
+     * @param ctx the context to send the requests through
+     * @param sequential whether the server must carry out the operations in order
+     * @param batchSize the (maximum) number of operations to send in each batchRequest
+     */
+    DsmlBatch(DsmlContext ctx, boolean sequential, int batchSize)
+    {
+        this.ctx = ctx;
+        this.sequential = sequential;
+        this.batchSize = batchSize;
+    }
+
+    public void add(String name, Attributes atts)
+            throws NamingException
+    {
+        StringBuffer element = new StringBuffer(200);
+        DsmlContext.getAddRequestElement(element, name, atts);
+        addRequest(element);
+    }
+
+    public void delete(String name)
+    {
+        StringBuffer element = new StringBuffer(100);
+        DsmlContext.getDeleteRequestElement(element, name);
+        addRequest(element);
+    }
+
+    public void modify(String name, ModificationItem[] mods)
+            throws NamingException
+    {
+        StringBuffer element = new StringBuffer(200);
+        DsmlContext.getModRequestElement(element, name, mods);
+        addRequest(element);
+    }
+
+    /**
+     * Gives the request element the next requestID (its position in the batch), and adds it.
+     */
+    private void addRequest(StringBuffer element)
+    {
+        element.insert(element.indexOf(" dn=\""), " requestID=\"" + requests.size() + "\"");
+        requests.add(element.toString());
+    }
+
+    public int size()
+    {
+        return requests.size();
+    }
+
+    public NamingException[] execute()
+    {
+        NamingException[] results = new NamingException[requests.size()];
+
+        for (int start = 0; start < results.length; start += batchSize)
+        {
+            int end = Math.min(start + batchSize, results.length);
+            try
+            {
+                send(start, end, results);
+            }
+            catch (NamingException e)
+            {
+                // the request as a whole failed (the server can't be reached, a SOAP fault...), so give
+                // its operations - and the ones not yet sent - the error, rather than trying again and again.
+                log.warning("DSML batch request failed: " + e.getMessage());
+                for (int i = start; i < results.length; i++)
+                    results[i] = e;
+                break;
+            }
+        }
+
+        requests.clear();
+        return results;
+    }
+
+    /**
+     * Sends the operations from start to end (exclusive) as a single batchRequest, and reads
+     * their results.
+     */
+    private void send(int start, int end, NamingException[] results)
+            throws NamingException
+    {
+        StringBuffer message = new StringBuffer((end - start) * 300 + 1000);
+        message.append(DsmlContext.SOAPHEADER);
+        message.append(DsmlContext.TAB3).append("<dsml:batchRequest xmlns:dsml=\"urn:oasis:names:tc:DSML:2:0:core\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        message.append(sequential ? SEQUENTIAL : PARALLEL);
+        for (int i = start; i < end; i++)
+            message.append(requests.get(i));
+        message.append(DsmlContext.DSMLFOOTER);
+        message.append(DsmlContext.SOAPFOOTER);
+
+        log.finest("sending DSML batch of " + (end - start) + " operations");
+
+        readResponses(ctx.openDSMLRequest(message, 0, false), start, end, results);     // (updates, so never resent)
+    }
+
+    /**
+     * Reads a batchResponse, recording the result of each operation from start to end.
+     *
+     * @param in the response stream, which is closed once read
+     * @throws NamingException if the response can't be read, or is an error for the whole request
+     *                         (a SOAP fault, or an errorResponse without a requestID).
+     */
+    static void readResponses(InputStream in, int start, int end, NamingException[] results)
+            throws NamingException
+    {
+        boolean[] answered = new boolean[end - start];
+        int nextInOrder = start;     // for responses without a requestID
+        int current = -1;            // the operation whose response is being read
+
+        XMLStreamReader reader = null;
+        try
+        {
+            reader = DsmlSearchEnumeration.factory.createXMLStreamReader(in);
+            while (reader.hasNext())
+            {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+
+                String element = reader.getLocalName();
+                if (element.equals("addResponse") || element.equals("delResponse") || element.equals("modifyResponse"))
+                {
+                    current = getOperation(reader, start, end, nextInOrder);
+                    if (current == nextInOrder)
+                        nextInOrder++;
+                }
+                else if (element.equals("resultCode") && current != -1)
+                {
+                    results[current] = DsmlSearchEnumeration.readResultCode(reader);
+                    answered[current - start] = true;
+                    current = -1;
+                }
+                else if (element.equals("errorResponse"))
+                {
+                    if (reader.getAttributeValue(null, "requestID") == null)
+                        throw DsmlSearchEnumeration.readErrorResponse(reader);
+
+                    int op = getOperation(reader, start, end, nextInOrder);
+                    results[op] = DsmlSearchEnumeration.readErrorResponse(reader);
+                    answered[op - start] = true;
+                }
+                else if (element.equals("Fault"))
+                {
+                    throw DsmlSearchEnumeration.readSoapFault(reader);
+                }
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw DsmlSearchEnumeration.parseException(e);
+        }
+        finally
+        {
+            try
+            {
+                if (reader != null)
+                    reader.close();
+                in.close();
+            }
+            catch (Exception e)
+            {
+                log.fine("error closing DSML response stream: " + e.getMessage());
+            }
+        }
+
+        for (int i = start; i < end; i++)
+            if (!answered[i - start])
+                results[i] = new NamingException("no result returned by DSML server for batched request " + i);
+    }
+
+    /**
+     * @return the operation a response (or errorResponse) element is for - given by its requestID, or
+     *         if it has none, the next one in order.
+     * @throws NamingException if the requestID isn't one of the operations sent.
+     */
+    private static int getOperation(XMLStreamReader reader, int start, int end, int nextInOrder)
+            throws NamingException
+    {
+        String requestID = reader.getAttributeValue(null, "requestID");
+        if (requestID == null)
+        {
+            if (nextInOrder >= end)
+                throw new NamingException("more results returned by DSML server than requests sent");
+            return nextInOrder;
+        }
+
+        try
+        {
+            int op = Integer.parseInt(requestID.trim());
+            if (op >= start && op < end)
+                return op;
+        }
+        catch (NumberFormatException e) {}   // handled below
+
+        throw new NamingException("unexpected requestID in DSML batch response: " + requestID);
+    }
+}
@@ -4,6 +4,7 @@ import com.ca.commons.naming.DXNamingEnumeration;
 import com.ca.commons.naming.DN;
 import com.ca.commons.cbutil.CBBase64;
 import com.ca.commons.cbutil.CBBase64EncodingException;
+import com.ca.commons.jndi.BatchContext;
 
 import javax.naming.directory.*;
 import javax.naming.*;
@@ -16,8 +17,11 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.logging.Logger;
 import java.util.logging.Level;
-import java.io.UnsupportedEncodingException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 
 /**
  * <p>This is a DSML jndiproviders context, that provides support for all the basic DSML operations.</p>
@@ -51,28 +55,28 @@ import java.io.IOException;
 
 //TODO: makes heavy use of static stuff - may not be thread safe.
 
-public class DsmlContext implements LdapContext
+public class DsmlContext implements LdapContext, BatchContext
 {
 
     // Formatting
     private static int TABLEN = 4;
     private static String TAB = "    ";
     private static String TAB2 = TAB + TAB;
-    private static String TAB3 = TAB2 + TAB;
+    static String TAB3 = TAB2 + TAB;
     private static String TAB4 = TAB3 + TAB;
     private static String TAB5 = TAB4 + TAB;
     private static String TAB6 = TAB5 + TAB;
 
-    private static String SOAPHEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    static String SOAPHEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
             TAB + "<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\">\n" +
             TAB2 + "<soap-env:Body>\n";
 
-    private static String SOAPFOOTER = TAB2 + "</soap-env:Body>\n" +
+    static String SOAPFOOTER = TAB2 + "</soap-env:Body>\n" +
             TAB + "</soap-env:Envelope>";
 
     private static String DSMLHEADER = TAB3 + "<dsml:batchRequest xmlns:dsml=\"urn:oasis:names:tc:DSML:2:0:core\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n";
 
-    private static String DSMLFOOTER = TAB3 + "</dsml:batchRequest>\n";
+    static String DSMLFOOTER = TAB3 + "</dsml:batchRequest>\n";
 
     private static String SEARCHFOOTER = TAB3 + "</dsml:searchRequest>\n";
 
@@ -96,12 +100,23 @@ public class DsmlContext implements LdapContext
     // Default Search Controls
     private static SearchControls DEFAULT_SEARCH_CONTROLS = new SearchControls();
 
+    /**
+     * The environment property for the number of operations sent in each DSML batchRequest
+     * by the batches this context creates (see createBatch()).
+     */
+    public static final String BATCH_SIZE = "com.ca.jndiproviders.dsml.batchSize";
+
+    static final int DEFAULT_BATCH_SIZE = 100;
+
 
     protected Hashtable environment;
 
     // the name of the context (as set by 'createSubcontext' methods
     private String contextName = "";
 
+    // the connection settings for the DSML server; made from the environment when first needed (see getSoapClient())
+    private SoapClient soapClient = null;
+
     private static Logger log = Logger.getLogger(DsmlContext.class.getName());
 
     // Debug
@@ -543,7 +558,8 @@ public class DsmlContext implements LdapContext
     static void getModRequestElement(StringBuffer message, String name, ModificationItem[] mods)
             throws NamingException
     {
-        message.append(TAB4).append("<dsml:modifyRequest dn=\"").append(escapeName(name)).append("\">\n");
+        message.append(TAB4).append("<dsml:modifyRequest dn=\"");
+        escapeName(name, message).append("\">\n");
 
         for (int i = 0; i < mods.length; i++)
         {
@@ -836,12 +852,19 @@ public class DsmlContext implements LdapContext
 
         NamingEnumeration en = doDsmlSearch(name.toString(), BASEOBJECT, SEARCHING, 0, 0, false, "(objectClass=*)", attrIds);
 
-        if (en.hasMoreElements() == false)
-            return new BasicAttributes();  // return empty attributes object for 'virtual' nodes (e.g. router entries, base DN RDNs)
+        try
+        {
+            if (en.hasMore() == false)
+                return new BasicAttributes();  // return empty attributes object for 'virtual' nodes (e.g. router entries, base DN RDNs)
 
-        SearchResult result = (SearchResult) en.next();
+            SearchResult result = (SearchResult) en.next();
 
-        return result.getAttributes();
+            return result.getAttributes();
+        }
+        finally
+        {
+            en.close();     // (releases the connection without reading the rest of the response)
+        }
 //return getTestAttributes(name.toString());  //To change body of implemented methods use File | Settings | File Templates.
 
     }
@@ -903,7 +926,9 @@ public class DsmlContext implements LdapContext
 
 // return new context with new name?
 
-        return new DsmlContext(name, environment);
+        DsmlContext newContext = new DsmlContext(name, environment);
+        newContext.soapClient = soapClient;
+        return newContext;
     }
 
     void parseAddResponse(String response)
@@ -1602,6 +1627,7 @@ public class DsmlContext implements LdapContext
      */
     public Object removeFromEnvironment(String propName) throws NamingException
     {
+        soapClient = null;      // (remade with the new settings when next used)
         return environment.remove(propName);
     }
 
@@ -2020,6 +2046,8 @@ public class DsmlContext implements LdapContext
         if (propName == null)
             return null;
 
+        soapClient = null;      // (remade with the new settings when next used)
+
         if (propVal == null)
             return environment.remove(propName);
         else
@@ -2086,39 +2114,16 @@ public class DsmlContext implements LdapContext
 
         StringBuffer searchRequestBuffer = constructSearchRequest(name, scope, derefAliases, sizeLimit, timeLimit, typesOnly, filter, attributesToReturn);
 
-// send XML to server
-
-        String response = sendDSMLRequest(searchRequestBuffer);
-
-// parse response XML
+// send XML to server, and parse the response XML as it arrives
 
-        return parseSearchResponse(response, name);
+        return new DsmlSearchEnumeration(openDSMLRequest(searchRequestBuffer, timeLimit, true), name);
 
     }
 
-// static patterns for parsing search results.
-//    private static Pattern searchResultEntry = Pattern.compile("<searchResultEntry (.*)</searchResultEntry>");
-
-// nb.  Extreme caution required here to match DNs that may contain '"' and '>' characters.  Note that no legal dn
-//      can contain the sequence '">', since the " and > both need escaping.  There *might* be a requestID in there
-//      as well, but I've never seen this in the wild (what would the point be?)
-
-// need to cope with option namespace prefixes...
-//    private static Pattern searchResultEntry = Pattern.compile("<searchResultEntry.*?dn=\"(.*?)\">(.*?)</searchResultEntry>", Pattern.DOTALL);
-//    private static Pattern searchResultAttribute = Pattern.compile("<attr name=\"(.*?)\">(.*?)</attr>", Pattern.DOTALL);
-//    private static Pattern searchResultAttributeValues = Pattern.compile("<value(.*?)>(.*?)</value>", Pattern.DOTALL);
-
-    private static Pattern searchResultEntry = Pattern.compile("searchResultEntry.*?dn=\"(.*?)\">(.*?)searchResultEntry>", Pattern.DOTALL);
-
-    private static Pattern searchResultAttribute = Pattern.compile("attr name=\"(.*?)\">(.*?)attr>", Pattern.DOTALL);
-
-    private static Pattern searchResultAttributeValues = Pattern.compile("value(.*?)>(.*?)<.*?value>", Pattern.DOTALL);
-
-    private static Pattern searchTestType = Pattern.compile("type=\"(.*?)\"", Pattern.DOTALL);
-
     /**
      * This is one of the central methods of the provider.  It takes the raw XML returned and extracts the
      * DNs and attributes of the returned entries into a standard namingenumeration of SearchResult objects.
+     * (The response is parsed as the enumeration is read - see DsmlSearchEnumeration.)
      *
      * @param response the DSML XML response
      * @param searchBase supply the search base so that this method can check if the DNs returned
@@ -2132,163 +2137,60 @@ public class DsmlContext implements LdapContext
     static NamingEnumeration parseSearchResponse(String response, String searchBase)
             throws NamingException
     {
-        checkForError(response);
-
-        DXNamingEnumeration en = new DXNamingEnumeration();
-
-        Matcher responseMatcher = searchResultEntry.matcher(response);
-
-// cycle through the available entries
-        while (responseMatcher.find())
-        {
-            String dn = responseMatcher.group(1);
-
-            BasicAttributes atts = new BasicAttributes();
-
-            if (dn.indexOf("requestID") > -1) // what numb nut would put a requestID in a searchResultEntry??
-            {
-                int reqPos = dn.indexOf("requestID");
-                int endPos = dn.lastIndexOf('"', reqPos);
-                dn = dn.substring(0, endPos);
-            }
-
-            if (dn.indexOf("&") > -1)
-                dn = unescape(dn);
-
-            log.finest("Parsing DSML: read DN: " + dn);
-
-            // turn pure pristine LDAP DN into un unbelievably screwed up JNDI Composite name, and then
-            // store it as a string SO NO ONE CAN EVER REALLY TELL WHAT THE HELL IT IS.  God JNDI is
-            // broken - what a (*&*^ joke.  Object Oriented?  Yeah, we've heard of that...
-
-            dn = new CompositeName(dn).toString();
-
-            log.finest("converted DN to: " + dn);
-
-            String attribute = responseMatcher.group(2);
-
-            Matcher attributeMatcher = searchResultAttribute.matcher(attribute);
-
-            // cycle through individual attributes
-            while (attributeMatcher.find())
-            {
-                String attributeName = attributeMatcher.group(1);
-
-                BasicAttribute att = new BasicAttribute(attributeName);
-
-
-                String attributeValues = attributeMatcher.group(2);
-
-                log.finest("Parsing DSML: Attribute Name " + attributeName + " length: " + attributeValues.length());
-
-                Matcher valueMatcher = searchResultAttributeValues.matcher(attributeValues);
-
-                while (valueMatcher.find())
-                {
-                    String typeInfo = valueMatcher.group(1);
-
-                    String type = "string"; // the default value is string
-
-                    if (typeInfo != null && typeInfo.length() > 6)
-                    {
-// don't bother using regexp - faster to use string handling (if insanely clever might modify attributeValues regexp??)
-                        int typeInfoStart = typeInfo.indexOf("type=\"");
-                        int typeInfoEnd = typeInfo.indexOf('\"', typeInfoStart + 6);
-                        if (typeInfoStart != -1 && typeInfoEnd > typeInfoStart)
-                        {
-                            type = typeInfo.substring(typeInfoStart + 6, typeInfoEnd);  // extract the type; e.g. xsd:base64Binary
-                            if ((typeInfoStart = type.indexOf(':')) > -1)              // trim any namespace from the type (e.g. 'xsd:')
-                                type = type.substring(typeInfoStart + 1);
-                        }
-                    }
-                    String value = valueMatcher.group(2);
-
-                    if (type.equals("string"))  // this is the usual case, and the default
-                    {
-                        if (value != null && value.indexOf('&') > -1)
-                            value = unescape(value);
-                        att.add(value);
-                    }
-                    else if (type.equals("anyURI"))
-                        throw new NamingException("CA JNDI DSML Provider does not support 'anyURI' values");
-                    else if (type.equals("base64Binary"))
-                    {
-                        try
-                        {
-
-                            System.out.println("PROCESSING BINARY VALUE " + attributeName);
-                            byte[] data = CBBase64.decode(value);
-                            System.out.println("RAW DATA: " + value.length() + " byte data " + data.length);
-                            att.add(CBBase64.decode(value));
-                        }
-                        catch (CBBase64EncodingException e)
-                        {
-                            NamingException ne = new NamingException("unable to parse base64 value in entry: " + dn);
-                            ne.setRootCause(e);
-                            throw ne;
-                        }
-                    }
-                }
-                atts.put(att);
-            }
-
-            SearchResult currentResult = new SearchResult(dn, null, atts);
-
-            // The search result sets 'is relative' to true by default.  Check if the
-            // DN in the search result contains the search base, if so set 'is relative'
-            // to false so that the search base is NOT added to the DN again.  In otherwords
-            // check if the full DN has been returned in the search result...
-            if(dn.endsWith(searchBase))
-                currentResult.setRelative(false);
-
-            en.add(currentResult);
-        }
-
-        log.finest("Parsing DSML: final enumeration - \n" + en.toString());
-
-        return en;
+        return new DsmlSearchEnumeration(new StringReader(response), searchBase);
     }
 
     /**
-     * This converts the string buffer to raw bytes, and passes them to the SoapClient 'sendSoapMsg' method,
-     * returning the response.
+     * This sends the request (see openDSMLRequest()), and reads the whole response.
      *
-     * @param searchRequestBuffer
+     * @param requestBuffer
      * 
      * @return the response from the request
      * 
      * @throws NamingException
      */
-    private String sendDSMLRequest(StringBuffer searchRequestBuffer)
+    private String sendDSMLRequest(StringBuffer requestBuffer)
             throws NamingException
     {
-        String response;
-
+        InputStream in = openDSMLRequest(requestBuffer, 0, false);
         try
         {
-// note for performance junkies - assigning an unshared string buffer to a string is a cheap operation that shares the internal char array.
-            String searchRequest = new String(searchRequestBuffer);
-
-            byte[] rawBytes = searchRequest.getBytes("UTF-8");
-
-            String URL = environment.get(PROVIDER_URL).toString();
-
-            log.finest("----SENDING XML OVER WIRE-----\nURL: " + URL + "\nlength: " + rawBytes.length);
-
-            String usr = null,pwd = null;
+            return SoapClient.readResponse(in);
+        }
+        catch (IOException e)
+        {
+            NamingException ne = new NamingException("error reading response from DSML Server");
+            ne.setRootCause(e);
+            throw ne;
+        }
+    }
 
-            if (environment.get(Context.SECURITY_AUTHENTICATION) == "simple")
-            {
-                usr = (String) environment.get(Context.SECURITY_PRINCIPAL);       
-                pwd = (String) environment.get(Context.SECURITY_CREDENTIALS);
-            }
+    /**
+     * This passes the request to the SoapClient 'open' method, returning the (unread) response stream.
+     *
+     * @param requestBuffer
+     * @param timeLimit the time limit of a search, in milliseconds (or 0), allowed for when waiting for the response.
+     * @param idempotent true if the request only reads, so may be sent again if the connection fails;
+     *                   false for updates, which are sent once only.
+     *
+     * @return the response stream, which the caller must close.
+     *
+     * @throws NamingException
+     */
+    InputStream openDSMLRequest(StringBuffer requestBuffer, int timeLimit, boolean idempotent)
+            throws NamingException
+    {
+        SoapClient client = getSoapClient();
 
-            response = SoapClient.sendSoapMsg(URL, rawBytes, "#batchRequest", usr, pwd);
+        log.finest("----SENDING XML OVER WIRE-----\nURL: " + environment.get(PROVIDER_URL) + "\nlength: " + requestBuffer.length());
 
+        try
+        {
+            return client.open(requestBuffer, "#batchRequest", timeLimit, idempotent);
         }
-        catch (UnsupportedEncodingException e) // should never happen.  really.
+        catch (SocketTimeoutException e)
         {
-            NamingException ne = new NamingException("unexpected exception encoding UTF-8 string for DSML message");
+            NamingException ne = new NamingException("timed out waiting for DSML Server");
             ne.setRootCause(e);
             throw ne;
         }
@@ -2298,7 +2200,85 @@ public class DsmlContext implements LdapContext
             ne.setRootCause(e);
             throw ne;
         }
-        return response;
+    }
+
+    /**
+     * Returns the SoapClient that sends this context's requests, making it from the environment
+     * (the provider url, any simple authentication, the connect and read timeouts and compression
+     * settings) if need be.
+     *
+     * @return the connection settings for the DSML server
+     * @throws NamingException if the environment settings are not valid
+     */
+    private SoapClient getSoapClient()
+            throws NamingException
+    {
+        if (soapClient != null)
+            return soapClient;
+
+        Object URL = environment.get(PROVIDER_URL);
+        if (URL == null)
+            throw new ConfigurationException("no DSML server url (" + PROVIDER_URL + ") given");
+
+        String usr = null,pwd = null;
+
+        if (environment.get(Context.SECURITY_AUTHENTICATION) == "simple")
+        {
+            usr = (String) environment.get(Context.SECURITY_PRINCIPAL);       
+            pwd = (String) environment.get(Context.SECURITY_CREDENTIALS);
+        }
+
+        try
+        {
+            SoapClient client = new SoapClient(URL.toString(), usr, pwd);
+            client.setConnectTimeout(getInt(SoapClient.CONNECT_TIMEOUT, 0));
+            client.setReadTimeout(getInt(SoapClient.READ_TIMEOUT, 0));
+            client.setCompressRequests("true".equalsIgnoreCase(String.valueOf(environment.get(SoapClient.COMPRESS_REQUESTS))));
+            soapClient = client;
+            return client;
+        }
+        catch (MalformedURLException e)
+        {
+            ConfigurationException ce = new ConfigurationException("invalid DSML server url: " + URL);
+            ce.setRootCause(e);
+            throw ce;
+        }
+    }
+
+    /**
+     * Creates a batch of add, delete and modify operations, that are sent to the server in
+     * batchRequests of (up to) BATCH_SIZE operations each.  Parallel batches are sent with
+     * processing="parallel", leaving the server free to carry out the operations in any order;
+     * sequential ones with processing="sequential".  Either way, the server is asked to carry on
+     * past operations that fail, and each operation's result is matched to it by its requestID.
+     *
+     * @param sequential whether the operations must be carried out in the order they are added
+     * @return a new, empty, batch
+     * @throws NamingException if the batch size in the environment is not valid
+     */
+    public Batch createBatch(boolean sequential)
+            throws NamingException
+    {
+        return new DsmlBatch(this, sequential, Math.max(1, getInt(BATCH_SIZE, DEFAULT_BATCH_SIZE)));
+    }
+
+    /**
+     * @return the integer (e.g. millisecond time) environment property, or the default if it isn't set.
+     */
+    private int getInt(String propName, int defaultValue)
+            throws ConfigurationException
+    {
+        Object value = environment.get(propName);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Integer.parseInt(value.toString().trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new ConfigurationException("invalid value for " + propName + ": " + value);
+        }
     }
 
     /**
@@ -2364,7 +2344,8 @@ public class DsmlContext implements LdapContext
     static void getAddRequestElement(StringBuffer message, String name, Attributes atts)
             throws NamingException // doesn't really...
     {
-        message.append(TAB4).append("<dsml:addRequest dn=\"").append(escapeName(name)).append("\">\n");
+        message.append(TAB4).append("<dsml:addRequest dn=\"");
+        escapeName(name, message).append("\">\n");
 
         NamingEnumeration attEnum = atts.getAll();
         while (attEnum.hasMore())
@@ -2398,23 +2379,16 @@ public class DsmlContext implements LdapContext
     {
         if (value instanceof String)  // expensive check, but can't think of any way around it...
         {
-            String stringVal = escape((String) value);
-            message.append(TAB6).append("<dsml:value>").append(stringVal).append("</dsml:value>\n");
+            message.append(TAB6).append("<dsml:value>");
+            escape((String) value, message).append("</dsml:value>\n");
         }
         else
         {
             try
             {
                 byte[] data = (byte[]) value;
-                String base64Data = new String(CBBase64.encode(data), "US-ASCII");
-System.out.println("SENDING BINARY DATA; byte length: " + data.length + " encoded: " + base64Data.length());
-                message.append(TAB6).append("<dsml:value xsi:type=\"xsd:base64Binary\">").append(base64Data).append("</dsml:value>\n");
-            }
-            catch (UnsupportedEncodingException e)
-            {
-                NamingException ne = new NamingException("unexpected encoding exception adding attribute value of type " + value.getClass());
-                ne.setRootCause(e);
-                throw ne;
+                message.append(TAB6).append("<dsml:value xsi:type=\"xsd:base64Binary\">");
+                CBBase64.encode(data, message, 0, 0).append("</dsml:value>\n");     // (straight into the message)
             }
             catch (ClassCastException e)
             {
@@ -2459,7 +2433,8 @@ System.out.println("SENDING BINARY DATA; byte length: " + data.length + " encode
      */
     static void getDeleteRequestElement(StringBuffer message, String name)
     {
-        message.append(TAB4 + "<dsml:delRequest dn=\"").append(escapeName(name)).append("\"/>\n");
+        message.append(TAB4).append("<dsml:delRequest dn=\"");
+        escapeName(name, message).append("\"/>\n");
     }
 
     /**
@@ -2496,80 +2471,152 @@ System.out.println("SENDING BINARY DATA; byte length: " + data.length + " encode
         return message;
     }
 
-    private static Pattern escapeGTPattern = Pattern.compile("(&gt;)", Pattern.DOTALL);
-    private static Pattern escapeLTPattern = Pattern.compile("(&lt;)", Pattern.DOTALL);
-    private static Pattern escapeAMPPattern = Pattern.compile("(&amp;)", Pattern.DOTALL);
-    private static Pattern escapeQUOTPattern = Pattern.compile("(&quot;)", Pattern.DOTALL);
-    private static Pattern escapeAPOSPattern = Pattern.compile("(&apos;)", Pattern.DOTALL);
-    private static Pattern escapeOCTOPattern = Pattern.compile("(&#.*?;)", Pattern.DOTALL);
+    /**
+     * The XML escape for each character that must be escaped (indexed by character; null for
+     * characters that are written as they are).
+     */
+    private static final String[] XML_ESCAPES = new String['>' + 1];
+
+    static
+    {
+        XML_ESCAPES['<'] = "&lt;";
+        XML_ESCAPES['>'] = "&gt;";
+        XML_ESCAPES['&'] = "&amp;";
+        XML_ESCAPES['\"'] = "&quot;";
+        XML_ESCAPES['\''] = "&apos;";
+    }
+
+    /**
+     * The five predefined XML entities, and the characters they stand for.
+     */
+    private static final String[] XML_ENTITIES = new String[]{"lt", "gt", "amp", "quot", "apos"};
+    private static final char[] XML_ENTITY_CHARS = new char[]{'<', '>', '&', '\"', '\''};
 
     /**
      * Translates escaped XML characters as per Extensible Markup Language (XML) 1.0 (Second Edition)
      * section 4.6.
      *
-     * @param value a string containing escaped character sequences such as '&amp;' or '&
+     * @param value a string containing escaped character sequences such as '&amp;' or '&#x3C;'
      * 
      * @return the un-escaped value
      */
-
-// I wonder what the efficiency hit of this is?  Hopefully it won't happen very often,
-// but it could be quite ugly for large strings.  Redo via StringBuffer?
-
     static String unescape(String value)
     {
         if (value.indexOf('&') == -1)  // if we don't need to do anything...
             return value;            // ... then don't.
 
-        value = escapeGTPattern.matcher(value).replaceAll(">");
-        value = escapeLTPattern.matcher(value).replaceAll("<");
-        value = escapeQUOTPattern.matcher(value).replaceAll("\"");
-        value = escapeAPOSPattern.matcher(value).replaceAll("'");
-        value = escapeAMPPattern.matcher(value).replaceAll("&");
-
-        Matcher OCTOMatcher = escapeOCTOPattern.matcher(value);
+        return unescape(value, new StringBuffer(value.length())).toString();
+    }
 
-// cycle through the available entries
-        while (OCTOMatcher.find())
+    /**
+     * Translates escaped XML characters in a single pass, appending the result to a buffer.  The
+     * predefined entities (&amp;lt; &amp;gt; &amp;amp; &amp;quot; &amp;apos;) and character references
+     * (decimal '&amp;#60;' and hex '&amp;#x3C;', of any length) are understood; characters outside the
+     * basic multilingual plane are appended as surrogate pairs, and a pair of references to the two
+     * halves of a surrogate pair (as written by some encoders) is joined back into the character.
+     * Anything else that starts with an '&amp;' is copied as it is.
+     *
+     * @param value the escaped string
+     * @param buffer the buffer to append the un-escaped value to
+     * @return the buffer
+     */
+    static StringBuffer unescape(String value, StringBuffer buffer)
+    {
+        int len = value.length();
+        int start = 0;                      // the start of the text not yet copied
+        int amp = value.indexOf('&');
+        while (amp != -1)
         {
-            String escapeChar = OCTOMatcher.group(1);
-
-// TODO: this does not correctly cope with multiple escape sequence pairs -
-// note that wierd sequences like: &#38;#60; can occur - we only want the last pair
-// (&#38; == '&').  Not sure how to cope with this though, since the pattern match
-// only grabs the first?
+            int end = entityEnd(value, amp);
+            int c = (end == -1) ? -1 : decodeEntity(value, amp + 1, end);
 
-            int len = escapeChar.length();
-            char char1 = 0;
-            char char2 = 0;
-
-            if (len >= 5)
-            {
-                char1 = escapeChar.charAt(len - 3);
-                char2 = escapeChar.charAt(len - 2);
-            }
-            if (Character.isDigit(char1) && Character.isDigit(char2))
+            if (c >= Character.MIN_HIGH_SURROGATE && c <= Character.MAX_HIGH_SURROGATE)
             {
-                int val = Character.digit(char1, 16) * 16 + Character.digit(char2, 16);
-                try
+                int lowEnd = entityEnd(value, end + 1);
+                int low = (lowEnd == -1) ? -1 : decodeEntity(value, end + 2, lowEnd);
+                if (low >= Character.MIN_LOW_SURROGATE && low <= Character.MAX_LOW_SURROGATE)
                 {
-                    String replacement = new String(new byte[]{new Integer(val).byteValue()}, "US-ASCII");
-                    value = OCTOMatcher.replaceFirst(replacement);
-                }
-                catch (UnsupportedEncodingException e) // should never happen.  It's flippin ASCII after all!
-                {
-                    log.log(Level.SEVERE, "Unexpected exception trying to decode escaped value " + OCTOMatcher.group(1), e);
+                    buffer.append(value, start, amp).append((char) c).append((char) low);
+                    start = lowEnd + 1;
                 }
             }
-            else
+            else if (c != -1 && !(c >= Character.MIN_LOW_SURROGATE && c <= Character.MAX_LOW_SURROGATE))
+            {
+                buffer.append(value, start, amp).appendCodePoint(c);
+                start = end + 1;
+            }
+
+            amp = value.indexOf('&', Math.max(start, amp + 1));
+        }
+
+        return buffer.append(value, start, len);
+    }
+
+    /**
+     * @return the position of the ';' ending the entity that starts with the '&' at pos, or -1 if
+     * there isn't an '&' at pos, or it isn't followed by an entity name or number and a ';'.
+     */
+    private static int entityEnd(String value, int pos)
+    {
+        int len = value.length();
+        if (pos >= len || value.charAt(pos) != '&')
+            return -1;
+
+        for (int i = pos + 1; i < len; i++)
+        {
+            char c = value.charAt(i);
+            if (c == ';')
+                return (i > pos + 1) ? i : -1;
+            if (!(c == '#' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')))
+                return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the entity between a '&' and a ';' (exclusive).
+     *
+     * @return the unicode code point of the entity (which may be half of a surrogate pair), or -1
+     * if it isn't a predefined entity, or a character reference to a legal XML character.
+     */
+    private static int decodeEntity(String value, int from, int to)
+    {
+        if (value.charAt(from) != '#')
+        {
+            for (int i = 0; i < XML_ENTITIES.length; i++)
             {
-                log.info("unable to decode escaped value: " + escapeChar);
-                break; // give up (including on any subsequent escape sequences)
+                String entity = XML_ENTITIES[i];
+                if (entity.length() == to - from && value.startsWith(entity, from))
+                    return XML_ENTITY_CHARS[i];
             }
+            return -1;
+        }
 
-            OCTOMatcher = escapeOCTOPattern.matcher(value);
+        int radix = 10;
+        int i = from + 1;
+        if (i < to && value.charAt(i) == 'x')
+        {
+            radix = 16;
+            i++;
+        }
+        if (i == to)
+            return -1;
+
+        int c = 0;
+        for (; i < to; i++)
+        {
+            int digit = Character.digit(value.charAt(i), radix);
+            if (digit == -1)
+                return -1;
+            c = c * radix + digit;
+            if (c > Character.MAX_CODE_POINT)
+                return -1;
         }
 
-        return value;
+        // the legal XML characters (XML 1.0 section 2.2) - plus the surrogates, which are checked by the caller
+        if (c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xFFFD) || c >= 0x10000)
+            return c;
+        return -1;
     }
 
     /**
@@ -2586,6 +2633,18 @@ System.out.println("SENDING BINARY DATA; byte length: " + data.length + " encode
         return escape(value);
     }
 
+    /**
+     * Escapes a name, appending it to a buffer (see escapeName(String)).
+     *
+     * @param value the name
+     * @param buffer the buffer to append the escaped name to
+     * @return the buffer
+     */
+    static StringBuffer escapeName(String value, StringBuffer buffer)
+    {
+        return escape(value, buffer);
+    }
+
 
     /**
      * As per the standard XML rules, we have to escape 'html' like
@@ -2596,64 +2655,58 @@ System.out.println("SENDING BINARY DATA; byte length: " + data.length + " encode
      */
     static String escape(String value)
     {
-        int len = value.length();
+        int first = firstToEscape(value);
+        if (first == -1)
+            return value;   // the usual case; nothing to do.
 
-// quickly check if value needs escaping.
+        StringBuffer buffy = new StringBuffer(value.length() + 16);
+        buffy.append(value, 0, first);
+        return escape(value, first, buffy).toString();
+    }
 
-        boolean needsEscaping = false;
-        for (int i = 0; i < len; i++)
+    /**
+     * Escapes a value in a single pass, appending it to a buffer (e.g. the request being built)
+     * rather than making a new string.
+     *
+     * @param value the value to escape
+     * @param buffer the buffer to append the escaped value to
+     * @return the buffer
+     */
+    static StringBuffer escape(String value, StringBuffer buffer)
+    {
+        return escape(value, 0, buffer);
+    }
+
+    private static StringBuffer escape(String value, int from, StringBuffer buffer)
+    {
+        int len = value.length();
+        int start = from;            // the start of the text not yet copied
+        for (int i = from; i < len; i++)
         {
-            switch (value.charAt(i))
+            char c = value.charAt(i);
+            String escaped;
+            if (c < XML_ESCAPES.length && (escaped = XML_ESCAPES[c]) != null)
             {
-                case '>':
-                    needsEscaping = true;
-                    break;
-                case '<':
-                    needsEscaping = true;
-                    break;
-                case '&':
-                    needsEscaping = true;
-                    break;
-                case '\"':
-                    needsEscaping = true;
-                    break;
-                case '\'':
-                    needsEscaping = true;
-                    break;
+                buffer.append(value, start, i).append(escaped);
+                start = i + 1;
             }
-            if (needsEscaping)
-                i = len;
         }
+        return buffer.append(value, start, len);
+    }
 
-        if (!needsEscaping)
-            return value;
-
-// it does need escaping; so start modifying the string...
-        StringBuffer buffy = new StringBuffer(value);
-
-        for (int i = len - 1; i >= 0; i--)
+    /**
+     * @return the position of the first character of the value that needs escaping, or -1 if none do.
+     */
+    private static int firstToEscape(String value)
+    {
+        int len = value.length();
+        for (int i = 0; i < len; i++)
         {
-            switch (value.charAt(i))
-            {
-                case '>':
-                    buffy.replace(i, i + 1, "&gt;");
-                    break;
-                case '<':
-                    buffy.replace(i, i + 1, "&lt;");
-                    break;
-                case '&':
-                    buffy.replace(i, i + 1, "&amp;");
-                    break;
-                case '\"':
-                    buffy.replace(i, i + 1, "&quot;");
-                    break;
-                case '\'':
-                    buffy.replace(i, i + 1, "&apos;");
-                    break;
-            }
+            char c = value.charAt(i);
+            if (c < XML_ESCAPES.length && XML_ESCAPES[c] != null)
+                return i;
         }
-
-        return buffy.toString();
+        return -1;
     }
 
     /**
@@ -354,6 +354,93 @@ public class DsmlContextTest extends TestCase
 
     }
 
+    private static String searchResponse3 = "" +
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
+            "   <soap-env:Body>\n" +
+            "      <dsml:batchResponse xmlns:dsml=\"urn:oasis:names:tc:DSML:2:0:core\">\n" +
+            "         <dsml:searchResponse requestID=\"1\">\n" +
+            "            <dsml:searchResultEntry dn=\"cn=Fred &amp; Nigel\\, \u5c0f\u7b20,ou=R&amp;D,c=AU\" requestID=\"1\">\n" +
+            "               <dsml:attr name=\"cn\"><dsml:value>Fred &amp; Nigel, \u5c0f\u7b20</dsml:value></dsml:attr>\n" +
+            "               <dsml:attr name=\"description\">\n" +
+            "                  <dsml:value>&lt;b&gt;bold&lt;/b&gt; &#169; &#x1D11E;</dsml:value>\n" +
+            "                  <dsml:value xsi:type=\"xsd:string\"><![CDATA[a <cdata> value]]></dsml:value>\n" +
+            "               </dsml:attr>\n" +
+            "               <dsml:attr name=\"jpegPhoto\"><dsml:value xsi:type=\"xsd:base64Binary\">/9gq\nAA==</dsml:value></dsml:attr>\n" +
+            "            </dsml:searchResultEntry>\n" +
+            "            <dsml:searchResultEntry dn=\"ou=R&amp;D,c=AU\">\n" +
+            "               <dsml:attr name=\"ou\"><dsml:value>R&amp;D</dsml:value></dsml:attr>\n" +
+            "            </dsml:searchResultEntry>\n" +
+            "            <dsml:searchResultDone>\n" +
+            "               <dsml:resultCode code=\"4\" descr=\"sizeLimitExceeded\"/>\n" +
+            "               <dsml:errorMessage>too many entries</dsml:errorMessage>\n" +
+            "            </dsml:searchResultDone>\n" +
+            "         </dsml:searchResponse>\n" +
+            "      </dsml:batchResponse>\n" +
+            "   </soap-env:Body>\n" +
+            "</soap-env:Envelope>";
+
+    /**
+     * Checks search responses are read from a (UTF-8) stream as the results are asked for, with
+     * entities, character references and namespace prefixes handled by the parser, and binary
+     * values decoded.  A failed result code is only thrown when the results before it have been read.
+     */
+    public void testStreamingSearchParse()
+            throws Exception
+    {
+        final boolean[] closed = {false};
+        InputStream in = new ByteArrayInputStream(searchResponse3.getBytes("UTF-8"))
+        {
+            public void close() { closed[0] = true; }
+        };
+
+        NamingEnumeration results = new DsmlSearchEnumeration(in, "c=AU");
+
+        assertTrue(results.hasMore());
+        SearchResult result = (SearchResult) results.next();
+        assertEquals("cn=Fred & Nigel\\, \u5c0f\u7b20,ou=R&D,c=AU", result.getName());
+        assertFalse(result.isRelative());
+
+        Attributes atts = result.getAttributes();
+        assertEquals(3, atts.size());
+        assertEquals("Fred & Nigel, \u5c0f\u7b20", atts.get("cn").get());
+        assertEquals("<b>bold</b> \u00a9 \ud834\udd1e", atts.get("description").get(0));
+        assertEquals("a <cdata> value", atts.get("description").get(1));
+        assertTrue(Arrays.equals(new byte[] {(byte) 0xFF, (byte) 0xD8, 0x2A, 0x00}, (byte[]) atts.get("jpegPhoto").get()));
+
+        result = (SearchResult) results.next();
+        assertEquals("ou=R&D,c=AU", result.getName());
+        assertEquals("R&D", result.getAttributes().get("ou").get());
+        assertFalse(closed[0]);
+
+        try
+        {
+            results.hasMore();
+            fail("no exception thrown for the failed search result code");
+        }
+        catch (NamingException e)
+        {
+            assertEquals("sizeLimitExceeded Exception (LDAP 4)\ntoo many entries", e.getMessage());
+        }
+        assertTrue(closed[0]);
+
+        // a DSML error response, and a successful empty search
+        try
+        {
+            DsmlContext.parseSearchResponse("<batchResponse>" + errorResponse + "</batchResponse>", "").hasMore();
+            fail("no exception thrown when parsing error response");
+        }
+        catch (NamingException e)
+        {
+            assertTrue(e.getMessage().startsWith("Error Processing DSML Request: malformedRequest\nUnknown element "));
+            // (taken from the fixture, so the test doesn't depend on the encoding the source is compiled with)
+            assertTrue(e.getMessage().endsWith(errorResponse.substring(errorResponse.indexOf("bogusRequest"), errorResponse.indexOf("</message>"))));
+        }
+
+        NamingEnumeration empty = DsmlContext.parseSearchResponse("<batchResponse><searchResponse><searchResultDone><resultCode code=\"0\"/></searchResultDone></searchResponse></batchResponse>", "");
+        assertFalse(empty.hasMore());
+    }
+
 
     private static String searchRequestSubTree = "" +
             "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
@@ -564,7 +651,7 @@ public class DsmlContextTest extends TestCase
 
     private static String escapeString = "&lt;&gt;&amp;&apos;&quot;fred";
     private static String rawString = "<>&'\"fred";
-    private static String yuckyEscapeString = "&lt;&gt;&amp;&apos;&quot;&#66;&#72;&#65;&#64;";
+    private static String yuckyEscapeString = "&lt;&gt;&amp;&apos;&quot;&#102;&#x72;&#0101;&#x064;";
 
     public void testEscape()
     {
@@ -577,6 +664,38 @@ public class DsmlContextTest extends TestCase
         assertEquals(rawString, DsmlContext.unescape(yuckyEscapeString));
     }
 
+    public void testEscapeIntoBuffer()
+    {
+        StringBuffer buffy = new StringBuffer("<dsml:value>");
+        assertSame(buffy, DsmlContext.escape(rawString, buffy));
+        assertEquals("<dsml:value>" + escapeString, buffy.toString());
+
+        assertSame("plain", DsmlContext.escape("plain"));
+        assertEquals("a&amp;&amp;b&lt;", DsmlContext.escape("a&&b<"));
+        assertEquals("x\ud83d\ude00&gt;", DsmlContext.escape("x\ud83d\ude00>"));     // surrogate pairs pass straight through
+    }
+
+    /**
+     * Checks the less common entity forms are decoded (and that bad ones are left alone).
+     */
+    public void testUnescapeCharacterReferences()
+    {
+        assertEquals("A", DsmlContext.unescape("&#000000065;"));
+        assertEquals("\u5c0f\u7b20", DsmlContext.unescape("&#x5C0F;&#31520;"));
+        assertEquals("smile \ud83d\ude00!", DsmlContext.unescape("smile &#x1F600;!"));
+        assertEquals("smile \ud83d\ude00!", DsmlContext.unescape("smile &#128512;!"));
+        assertEquals("smile \ud83d\ude00!", DsmlContext.unescape("smile &#xD83D;&#xDE00;!"));   // a pair, escaped a half at a time
+        assertEquals("&lt;", DsmlContext.unescape("&amp;lt;"));                                    // only unescaped once
+
+        String[] bad = {"&#xD83D;", "&#xDE00;x", "&#;", "&#x;", "&#12a;", "&#x110000;", "&#0;", "&nbsp;", "& amp;", "&amp", "fish & chips"};
+        for (int i = 0; i < bad.length; i++)
+            assertEquals(bad[i], DsmlContext.unescape(bad[i]));
+
+        StringBuffer buffy = new StringBuffer("value: ");
+        assertSame(buffy, DsmlContext.unescape("&quot;x&quot;", buffy));
+        assertEquals("value: \"x\"", buffy.toString());
+    }
+
     private static String stringElement = "<dsml:value>organizationalPerson</dsml:value>";
     private static String binaryElement = "<dsml:value xsi:type=\"xsd:base64Binary\">c2VjcmV0IHBhc3N3b3Jk</dsml:value>";
     private static byte[] password = new byte[]{115, 101, 99, 114, 101, 116, 32, 112, 97, 115, 115, 119, 111, 114, 100};  // the password 'secret password'
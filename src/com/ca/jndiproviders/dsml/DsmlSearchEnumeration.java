@@ -0,0 +1,485 @@
+package com.ca.jndiproviders.dsml;
+
+import com.ca.commons.cbutil.CBBase64;
+
+import javax.naming.*;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * <p>Reads a DSML search response as it arrives, returning each searchResultEntry as a SearchResult
+ * when it is asked for, rather than reading (and keeping) the whole response first.  The XML is
+ * read with a StAX pull parser straight from the HTTP stream; entities are resolved by the parser
+ * and base64Binary values are decoded as each value is read.</p>
+ *
+ * <p>Element names are matched without their namespace prefixes (servers use 'dsml:', a default
+ * namespace, or anything else).  Errors (an errorResponse, or a non zero result code in the
+ * searchResultDone) are thrown as NamingExceptions from hasMore() / next() when they are reached,
+ * as the Sun LDAP provider does for its result codes.  The stream is closed when the response has
+ * been read, when an error is found, or when close() is called.</p>
+ */
+
+class DsmlSearchEnumeration implements NamingEnumeration
+{
+    private static Logger log = Logger.getLogger(DsmlSearchEnumeration.class.getName());
+
+    static final XMLInputFactory factory = XMLInputFactory.newInstance();      // (shared with DsmlBatch)
+
+    static
+    {
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);     // no DTDs (or external entities) from the server
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private XMLStreamReader reader;
+
+    private final Object source;      // the InputStream or Reader the XML comes from, closed when we are done
+
+    private final String searchBase;
+
+    private SearchResult nextResult = null;
+
+    private boolean resultCodeFound = false;
+
+    /**
+     * @param in the raw (UTF-8, or as declared) XML of a DSML search response
+     * @param searchBase the base of the search, used to check whether the returned DNs are relative.
+     * @throws NamingException if the response can't be read
+     */
+    DsmlSearchEnumeration(InputStream in, String searchBase)
+            throws NamingException
+    {
+        this.source = in;
+        this.searchBase = searchBase;
+        try
+        {
+            reader = factory.createXMLStreamReader(in);
+        }
+        catch (XMLStreamException e)
+        {
+            throw parseException(e);
+        }
+    }
+
+    /**
+     * @param in the XML of a DSML search response
+     * @param searchBase the base of the search, used to check whether the returned DNs are relative.
+     * @throws NamingException if the response can't be read
+     */
+    DsmlSearchEnumeration(Reader in, String searchBase)
+            throws NamingException
+    {
+        this.source = in;
+        this.searchBase = searchBase;
+        try
+        {
+            reader = factory.createXMLStreamReader(in);
+        }
+        catch (XMLStreamException e)
+        {
+            throw parseException(e);
+        }
+    }
+
+    public boolean hasMore()
+            throws NamingException
+    {
+        if (nextResult == null && reader != null)
+            nextResult = readNextResult();
+
+        return nextResult != null;
+    }
+
+    public Object next()
+            throws NamingException
+    {
+        if (!hasMore())
+            throw new NoSuchElementException("no more DSML search results");
+
+        SearchResult result = nextResult;
+        nextResult = null;
+        return result;
+    }
+
+    public boolean hasMoreElements()
+    {
+        try
+        {
+            return hasMore();
+        }
+        catch (NamingException e)
+        {
+            log.warning("error reading DSML search response: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public Object nextElement()
+    {
+        try
+        {
+            return next();
+        }
+        catch (NamingException e)
+        {
+            NoSuchElementException nse = new NoSuchElementException("error reading DSML search response: " + e.getMessage());
+            nse.initCause(e);
+            throw nse;
+        }
+    }
+
+    /**
+     * Stops reading the response, and closes the underlying stream.
+     */
+    public void close()
+    {
+        if (reader == null)
+            return;
+
+        try
+        {
+            reader.close();
+        }
+        catch (XMLStreamException e) {}   // (we're done with it anyway)
+
+        try
+        {
+            if (source instanceof InputStream)
+                ((InputStream) source).close();
+            else
+                ((Reader) source).close();
+        }
+        catch (IOException e)
+        {
+            log.fine("error closing DSML response stream: " + e.getMessage());
+        }
+        reader = null;
+    }
+
+    /**
+     * Reads on to the next searchResultEntry, checking any responses and result codes on the way.
+     *
+     * @return the next entry, or null if there are no more.
+     * @throws NamingException if the response contains an error, or can't be parsed.
+     */
+    private SearchResult readNextResult()
+            throws NamingException
+    {
+        try
+        {
+            while (reader.hasNext())
+            {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+
+                String element = reader.getLocalName();
+                if (element.equals("searchResultEntry"))
+                    return readEntry();
+                else if (element.equals("errorResponse"))
+                    throw readErrorResponse(reader);
+                else if (element.equals("resultCode"))
+                    checkResultCode();
+                else if (element.equals("Fault"))
+                    throw readSoapFault(reader);
+            }
+
+            if (!resultCodeFound)
+                throw new NamingException("Unable to find result code in DSML Response");
+
+            close();
+            return null;
+        }
+        catch (XMLStreamException e)
+        {
+            close();
+            throw parseException(e);
+        }
+        catch (NamingException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a searchResultEntry, the reader being positioned on its start tag.
+     */
+    private SearchResult readEntry()
+            throws XMLStreamException, NamingException
+    {
+        String dn = reader.getAttributeValue(null, "dn");
+        if (dn == null)
+            throw new NamingException("DSML searchResultEntry with no dn");
+
+        log.finest("Parsing DSML: read DN: " + dn);
+
+        // turn the LDAP DN into a JNDI Composite name string - which is only different if the
+        // DN has characters special to composite names.
+        if (needsCompositeEscaping(dn))
+            dn = new CompositeName(dn).toString();
+
+        BasicAttributes atts = new BasicAttributes();
+        BasicAttribute att = null;
+
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                String element = reader.getLocalName();
+                if (element.equals("attr"))
+                {
+                    att = new BasicAttribute(reader.getAttributeValue(null, "name"));
+                }
+                else if (element.equals("value") && att != null)
+                {
+                    String type = getValueType();
+
+                    if (type.equals("string"))  // this is the usual case, and the default
+                        att.add(reader.getElementText());
+                    else if (type.equals("base64Binary"))
+                        att.add(readBinary(dn));
+                    else if (type.equals("anyURI"))
+                        throw new NamingException("CA JNDI DSML Provider does not support 'anyURI' values");
+                    else
+                        reader.getElementText();    // skip unknown types
+                }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                String element = reader.getLocalName();
+                if (element.equals("attr") && att != null)
+                {
+                    atts.put(att);
+                    att = null;
+                }
+                else if (element.equals("searchResultEntry"))
+                {
+                    break;
+                }
+            }
+        }
+
+        SearchResult result = new SearchResult(dn, null, atts);
+
+        // The search result sets 'is relative' to true by default.  If the full DN has
+        // been returned in the search result, set 'is relative' to false so that the
+        // search base is NOT added to the DN again.
+        if (dn.endsWith(searchBase))
+            result.setRelative(false);
+
+        return result;
+    }
+
+    /**
+     * @return the (xsi:)type of the value element the reader is on, without any namespace prefix
+     * (e.g. 'base64Binary'); 'string' by default.
+     */
+    private String getValueType()
+    {
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+        {
+            if (reader.getAttributeLocalName(i).equals("type"))
+            {
+                String type = reader.getAttributeValue(i);
+                int colon = type.indexOf(':');
+                return (colon > -1) ? type.substring(colon + 1) : type;
+            }
+        }
+        return "string";
+    }
+
+    /**
+     * Reads the text of the base64Binary value element the reader is on, decoding it straight
+     * from the parser's character buffer, rather than making a string of it first.
+     */
+    private byte[] readBinary(String dn)
+            throws XMLStreamException, NamingException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        CBBase64.DecoderWriter decoder = new CBBase64.DecoderWriter(bytes);
+        try
+        {
+            int event;
+            while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT)
+            {
+                switch (event)
+                {
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        decoder.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        decoder.write(reader.getText());
+                        break;
+
+                    case XMLStreamConstants.START_ELEMENT:
+                    case XMLStreamConstants.END_DOCUMENT:
+                        throw new XMLStreamException("unexpected content in base64Binary value", reader.getLocation());
+
+                    default:       // comments, processing instructions
+                        break;
+                }
+            }
+            decoder.finish();
+        }
+        catch (IOException e)
+        {
+            NamingException ne = new NamingException("unable to parse base64 value in entry: " + dn);
+            ne.setRootCause(e);
+            throw ne;
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a resultCode element, throwing an exception if it isn't success.
+     */
+    private void checkResultCode()
+            throws XMLStreamException, NamingException
+    {
+        resultCodeFound = true;
+
+        NamingException error = readResultCode(reader);
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Reads a resultCode element, the reader being positioned on its start tag.  (The message is the
+     * same as DsmlContext.checkForError() produces.)
+     *
+     * @return null if the result code is success, or the error it reports (with the message of any
+     *         following errorMessage element).
+     * @throws NamingException if the result code can't be read.
+     */
+    static NamingException readResultCode(XMLStreamReader reader)
+            throws XMLStreamException, NamingException
+    {
+        String code = reader.getAttributeValue(null, "code");
+        int resultCode;
+        try
+        {
+            resultCode = Integer.parseInt(code);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new NamingException("Unable to parse result code in DSML Response: " + code);
+        }
+
+        if (resultCode == 0)
+            return null;  // all good here.
+
+        String desc = reader.getAttributeValue(null, "descr");
+        if (desc == null)
+            desc = "";
+
+        String msg = "";
+        while (reader.hasNext())         // look for an errorMessage sibling of the result code
+        {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("errorMessage"))
+            {
+                msg = reader.getElementText();
+                break;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && !reader.getLocalName().equals("resultCode"))
+            {
+                break;     // the end of the response
+            }
+        }
+
+        return new NamingException(desc + " Exception (LDAP " + resultCode + ")\n" + msg);
+    }
+
+    /**
+     * Reads an errorResponse element, the reader being positioned on its start tag.
+     *
+     * @return the error, as an exception.
+     */
+    static NamingException readErrorResponse(XMLStreamReader reader)
+            throws XMLStreamException
+    {
+        StringBuffer errorMsg = new StringBuffer("Error Processing DSML Request: ").append(reader.getAttributeValue(null, "type"));
+
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                String element = reader.getLocalName();
+                if (element.equals("message") || element.equals("detail"))
+                    errorMsg.append('\n').append(reader.getElementText());
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("errorResponse"))
+            {
+                break;
+            }
+        }
+
+        return new NamingException(errorMsg.toString());
+    }
+
+    /**
+     * Reads a SOAP Fault element, the reader being positioned on its start tag.
+     *
+     * @return the fault, as an exception.
+     */
+    static NamingException readSoapFault(XMLStreamReader reader)
+            throws XMLStreamException
+    {
+        StringBuffer errorMsg = new StringBuffer("SOAP Fault returned by DSML server");
+
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                String element = reader.getLocalName();
+                if (element.equals("faultcode") || element.equals("faultstring"))
+                    errorMsg.append('\n').append(reader.getElementText());
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("Fault"))
+            {
+                break;
+            }
+        }
+
+        return new NamingException(errorMsg.toString());
+    }
+
+    /**
+     * @return whether the DN contains any characters that are special in a JNDI composite name.
+     */
+    private static boolean needsCompositeEscaping(String dn)
+    {
+        for (int i = 0; i < dn.length(); i++)
+        {
+            char c = dn.charAt(i);
+            if (c == '/' || c == '\\' || c == '"' || c == '\'')
+                return true;
+        }
+        return false;
+    }
+
+    static NamingException parseException(XMLStreamException e)
+    {
+        NamingException ne = new NamingException("unable to parse DSML response: " + e.getMessage());
+        ne.setRootCause(e);
+        return ne;
+    }
+}
@@ -13,6 +13,16 @@ package com.ca.jndiproviders.dsml;
  * article: http://www-128.ibm.com/developerworks/xml/library/x-soapcl/
  * on a 'zero overhead' soap client by Bod duCharme and Michael Brennan.
  *
+ * <p>A SoapClient object holds the settings for talking to one DSML server: the URL, the
+ * (pre encoded) HTTP Basic authorization, the connect and read timeouts, and whether to
+ * compress the messages.  DsmlContext keeps one per context (shared with the contexts made
+ * from it).</p>
+ *
+ * <p>Connections are kept alive, and reused, by the JDK's HTTP keep-alive cache (see the
+ * 'http.maxConnections' system property) - which only happens if each response is read to the
+ * end and closed.  Responses may be gzip or deflate compressed; large requests are only compressed
+ * if asked for, as not all servers accept them.  Large request bodies are streamed to the server
+ * rather than buffered again by the connection.</p>
  */
 
 import com.ca.commons.cbutil.CBBase64;
@@ -20,53 +30,116 @@ import com.ca.commons.cbutil.CBBase64;
 import java.io.*;
 import java.net.*;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 public class SoapClient
 {
     private static Logger log = Logger.getLogger(SoapClient.class.getName());
 
     /**
-     *  Original main method for stand alone operation...
-     *
-     * @param args
-     * @throws Exception
+     * The environment property for the time (in milliseconds) to wait for a connection to the
+     * server; the same property as is used by the Sun LDAP provider.
      */
-    /*
-    public static void main(String[] args) throws Exception
-    {
-        if (args.length < 2)
-        {
-            System.err.println("Usage:  java com.ca.jndiproviders.dsml.SoapClient " +
-                    "http://soapURL soapEnvelopefile.xml" +
-                    " [SOAPAction]");
-            System.err.println("SOAPAction is optional.");
-            System.exit(1);
-        }
+    public static final String CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+
+    /**
+     * The environment property for the time (in milliseconds) to wait for a response from the
+     * server; the same property as is used by the Sun LDAP provider.
+     */
+    public static final String READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+
+    /**
+     * The environment property that, if 'true', gzip compresses the (large) requests sent to the server.
+     */
+    public static final String COMPRESS_REQUESTS = "com.ca.jndiproviders.dsml.compressRequests";
+
+    /**
+     * The time (in milliseconds) a server is allowed to take past a search's time limit, before
+     * we give up on it.
+     */
+    static final int TIME_LIMIT_GRACE = 5000;
 
-        String SOAPUrl = args[0];
-        String xmlFile2Send = args[1];
+    /**
+     * Requests at least this long (in characters) are streamed to the server (and compressed, if asked for);
+     * shorter ones are buffered by the connection and sent as they are.
+     */
+    static final int STREAMING_SIZE = 16384;
+
+    private final URL url;
 
-        String SOAPAction = "";
-        if (args.length > 2)
-            SOAPAction = args[2];
+    private final String authorization;     // the Authorization: header, or null
 
-        // Open the input file. After we copy it to a byte array, we can see
-        // how big it is so that we can set the HTTP Content-Length
-        // property.
+    private int connectTimeout = 0;
 
-        FileInputStream fin = new FileInputStream(xmlFile2Send);
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    private int readTimeout = 0;
 
-        // Copy the SOAP file to the open connection.
-        copy(fin, bout);
-        fin.close();
+    private boolean compressRequests = false;
 
-        byte[] b = bout.toByteArray();
+    private boolean compressResponses = true;
+
+    /**
+     * @param SOAPUrl the url of the DSML server
+     * @param username optional username for HTTPAuth Authorization: header
+     * @param pwd optional password for HTTPAuth Authorization: header
+     * @throws MalformedURLException if the url is not valid
+     */
+    public SoapClient(String SOAPUrl, String username, String pwd)
+            throws MalformedURLException
+    {
+        url = new URL(SOAPUrl);
 
-        sendSoapMsg(SOAPUrl, b, SOAPAction);
+        // if we have a username password, add an HTTP basic authorization header
+        if (username != null && pwd != null)
+        {
+            try
+            {
+                authorization = "Basic " + CBBase64.toBase64((username + ":" + pwd).getBytes("UTF-8"));   // (unfolded; a header is a single line)
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new RuntimeException("no UTF-8 support!", e);   // should never happen.  really.
+            }
+        }
+        else
+        {
+            authorization = null;
+        }
+    }
 
+    /**
+     * @param millis the time to wait for a connection; 0 waits forever.
+     */
+    public void setConnectTimeout(int millis)
+    {
+        connectTimeout = millis;
     }
-    */
+
+    /**
+     * @param millis the time to wait for a response; 0 waits forever (or for a search's time limit).
+     */
+    public void setReadTimeout(int millis)
+    {
+        readTimeout = millis;
+    }
+
+    /**
+     * @param compress whether to gzip (large) requests to the server.
+     */
+    public void setCompressRequests(boolean compress)
+    {
+        compressRequests = compress;
+    }
+
+    /**
+     * @param compress whether to ask for compressed responses from the server (the default).
+     */
+    public void setCompressResponses(boolean compress)
+    {
+        compressResponses = compress;
+    }
+
     /**
      * This takes a byte array and hoofs off the contents to the target URL, adding
      * a bunch of http headers, including an optional 'SOAPaction:' header.  It returns
@@ -83,60 +156,256 @@ public class SoapClient
     public static String sendSoapMsg(String SOAPUrl, byte[] b, String SOAPAction, String username, String pwd)
             throws IOException
     {
-        log.finest("HTTP REQUEST SIZE " + b.length );
+        return readResponse(openSoapStream(SOAPUrl, b, SOAPAction, username, pwd));
+    }
+
+    /**
+     * This sends the message as sendSoapMsg() does, but returns the body of the reply as
+     * an unread stream, so that large replies can be parsed as they arrive.  The caller
+     * must close the stream.
+     *
+     * @param SOAPUrl
+     * @param b
+     * @param SOAPAction
+     * @param username optional username for HTTPAuth Authorization: header
+     * @param pwd optional password for HTTPAuth Authorization: header
+     * @return the response data stream
+     * @throws IOException
+     */
+    public static InputStream openSoapStream(String SOAPUrl, byte[] b, String SOAPAction, String username, String pwd)
+            throws IOException
+    {
+        return new SoapClient(SOAPUrl, username, pwd).open(new String(b, "UTF-8"), SOAPAction, 0);
+    }
+
+    /**
+     * Sends a soap message to the server, returning the body of the reply as an unread (and
+     * uncompressed) stream, so that large replies can be parsed as they arrive.  The caller must
+     * close the stream; reading it to the end first lets the connection be reused.
+     *
+     * <p>A SOAP fault returned with an HTTP 500 status is returned like any other response, so
+     * that it can be parsed; other HTTP errors are thrown.</p>
+     *
+     * @param message the soap message
+     * @param SOAPAction the SOAPAction: header
+     * @param timeLimit the time limit of a search (in milliseconds) or 0; if set, the read timeout
+     * is extended to allow the server this long (plus a grace period) to reply.
+     * @return the response data stream
+     * @throws IOException
+     */
+    public InputStream open(CharSequence message, String SOAPAction, int timeLimit)
+            throws IOException
+    {
+        return open(message, SOAPAction, timeLimit, false);
+    }
+
+    /**
+     * Sends a soap message to the server, as open(message, SOAPAction, timeLimit) does.
+     *
+     * <p>If the request is idempotent (e.g. a search) and fails other than by timing out - such as
+     * when a kept alive connection has been closed by the server while it sat idle - it is sent
+     * again.  Other requests (adds, deletes, modifies...) are sent once only, as the server may
+     * already have carried them out: they are always streamed, as the JDK silently resends a
+     * buffered post if its kept alive connection fails, and the error is thrown to the caller.</p>
+     *
+     * @param message the soap message
+     * @param SOAPAction the SOAPAction: header
+     * @param timeLimit the time limit of a search (in milliseconds) or 0.
+     * @param idempotent whether the request may safely be sent more than once.
+     * @return the response data stream
+     * @throws IOException
+     */
+    public InputStream open(CharSequence message, String SOAPAction, int timeLimit, boolean idempotent)
+            throws IOException
+    {
+        if (!idempotent)
+            return getResponseStream(post(message, SOAPAction, timeLimit, false));
+
+        HttpURLConnection httpConn;
+        try
+        {
+            httpConn = post(message, SOAPAction, timeLimit, true);
+        }
+        catch (SocketTimeoutException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            log.fine("retrying DSML request after: " + e);
+            httpConn = post(message, SOAPAction, timeLimit, true);
+        }
+
+        return getResponseStream(httpConn);
+    }
 
+    /**
+     * Sends the message, and waits for the response status.
+     *
+     * @param buffer whether a small message may be buffered by the connection (and so resent
+     * by it, if the connection fails).
+     */
+    private HttpURLConnection post(CharSequence message, String SOAPAction, int timeLimit, boolean buffer)
+            throws IOException
+    {
         // bracket Soap Action with quotes. *shrug*.
         if (SOAPAction.startsWith("\"") == false)
             SOAPAction = "\"" + SOAPAction + "\"";
 
-        //TODO: reuse connection...
-
-        //TODO: time out connection using ldap time out...
-        // Create the connection where we're going to send the file.
-        URL url = new URL(SOAPUrl);
         HttpURLConnection httpConn = (HttpURLConnection) url.openConnection();
 
+        httpConn.setConnectTimeout(connectTimeout);
+        httpConn.setReadTimeout(getReadTimeout(timeLimit));
+        httpConn.setUseCaches(false);
+
         // Set the appropriate HTTP parameters.
+        httpConn.setRequestMethod("POST");
+        httpConn.setDoOutput(true);
+        httpConn.setDoInput(true);
         httpConn.setRequestProperty("SOAPAction", SOAPAction);
         httpConn.setRequestProperty("Content-Type", "text/xml; charset=\"utf-8\"");
-        httpConn.setRequestProperty("Content-Length",
-                String.valueOf(b.length));
-        httpConn.setRequestProperty("Cache-Control", "no-cache");
-        httpConn.setRequestProperty("Pragma", "no-cache");
 
-        // if we have a username password, add an HTTP basic authorization header
-        if (username != null && pwd != null)
+        if (compressResponses)
+            httpConn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+        if (authorization != null)
+            httpConn.setRequestProperty("Authorization", authorization);
+
+        boolean small = message.length() < STREAMING_SIZE;
+        if (small && buffer)
+        {
+            // small requests are sent with the headers in one piece; sending the body separately can wait on a
+            // delayed ack from the server (as the connection has Nagle's algorithm on, and we can't turn it off)
+            byte[] b = message.toString().getBytes("UTF-8");
+            log.finest("HTTP REQUEST SIZE " + b.length );
+
+            OutputStream out = httpConn.getOutputStream();
+            out.write(b);
+            out.close();
+        }
+        else if (!small && compressRequests)   // (the compressed length isn't known until it's sent, so it's sent in chunks)
         {
-            String authval = username + ":" + pwd;
-            String base64val = CBBase64.binaryToString(authval.getBytes("UTF-8"));
-            httpConn.setRequestProperty("Authorization", "Basic " + base64val);
+            httpConn.setRequestProperty("Content-Encoding", "gzip");
+            httpConn.setChunkedStreamingMode(0);
+            Writer out = new OutputStreamWriter(new GZIPOutputStream(httpConn.getOutputStream(), 8192), "UTF-8");
+            write(message, out);
+            out.close();
         }
+        else        // large, or an update the connection mustn't resend
+        {
+            byte[] b = message.toString().getBytes("UTF-8");
+            log.finest("HTTP REQUEST SIZE " + b.length );
 
-        httpConn.setRequestMethod("POST");
-        httpConn.setDoOutput(true);
-        httpConn.setDoInput(true);
+            httpConn.setFixedLengthStreamingMode(b.length);
+            OutputStream out = httpConn.getOutputStream();
+            out.write(b);
+            out.close();
+        }
+
+        httpConn.getResponseCode();     // wait for the reply
+
+        return httpConn;
+    }
 
-        // Everything's set up; send the XML that was read in to b.
-        OutputStream out = httpConn.getOutputStream();
-        out.write(b);
-        out.close();
+    /**
+     * @return the read timeout to use for a request with the given time limit.
+     */
+    int getReadTimeout(int timeLimit)
+    {
+        if (timeLimit <= 0)
+            return readTimeout;
+
+        int limit = timeLimit + TIME_LIMIT_GRACE;
+        return (readTimeout > 0) ? Math.max(readTimeout, limit) : limit;
+    }
+
+    /**
+     * Writes the characters of the message a block at a time, without copying the whole message.
+     */
+    private static void write(CharSequence message, Writer out)
+            throws IOException
+    {
+        if (!(message instanceof StringBuffer))
+        {
+            out.write(message.toString());
+            return;
+        }
+
+        StringBuffer buffer = (StringBuffer) message;
+        char[] block = new char[8192];
+        for (int pos = 0; pos < buffer.length(); pos += block.length)
+        {
+            int end = Math.min(pos + block.length, buffer.length());
+            buffer.getChars(pos, end, block, 0);
+            out.write(block, 0, end - pos);
+        }
+    }
+
+    /**
+     * @return the (uncompressed) body of the response.
+     * @throws IOException if the server returned an error (other than a SOAP fault)
+     */
+    private InputStream getResponseStream(HttpURLConnection httpConn)
+            throws IOException
+    {
+        int code = httpConn.getResponseCode();
 
-        // Read the response
+        InputStream in;
+        if (code >= 400)
+        {
+            in = httpConn.getErrorStream();
+            String type = httpConn.getContentType();
 
-        InputStreamReader isr = new InputStreamReader(httpConn.getInputStream());
-        BufferedReader in = new BufferedReader(isr);
+            if (in == null || code != HttpURLConnection.HTTP_INTERNAL_ERROR || type == null || type.indexOf("xml") == -1)
+            {
+                if (in != null)
+                    readResponse(in);      // read (and discard) the error page, so the connection can be reused
+
+                throw new IOException("Server returned HTTP response code: " + code + " (" + httpConn.getResponseMessage() + ") for URL: " + url);
+            }
+        }
+        else
+        {
+            in = httpConn.getInputStream();
+        }
 
-        StringBuffer response = new StringBuffer(1024);
+        String encoding = httpConn.getContentEncoding();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+            return new GZIPInputStream(in, 8192);
+        else if ("deflate".equalsIgnoreCase(encoding))
+            return new InflaterInputStream(in);
+        else
+            return in;
+    }
 
-        String inputLine;
-        while ((inputLine = in.readLine()) != null)
-            response.append(inputLine);
+    /**
+     * Reads a whole (UTF-8) response stream (as returned by openSoapStream()) into a string, and closes it.
+     *
+     * @param response the response stream
+     * @return the response data
+     * @throws IOException
+     */
+    public static String readResponse(InputStream response)
+            throws IOException
+    {
+        Reader in = new InputStreamReader(response, "UTF-8");
+        try
+        {
+            StringBuffer buffer = new StringBuffer(1024);
 
-        in.close();
+            char[] block = new char[8192];
+            int len;
+            while ((len = in.read(block)) != -1)
+                buffer.append(block, 0, len);
 
-        log.finest("HTTP RESPONSE SIZE: " + response.length());
+            log.finest("HTTP RESPONSE SIZE: " + buffer.length());
 
-        return response.toString();
+            return buffer.toString();
+        }
+        finally
+        {
+            in.close();
+        }
     }
 
     /*
@@ -0,0 +1,163 @@
+package com.pegacat.testprovider;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * <p>An equality and presence index of one attribute of the entries in a DataTree.  Each
+ * value is indexed in its caseIgnoreMatch form (see TestProviderFilter.normalise()), and
+ * binary values by their bytes, so that looking up the value of an equality filter gives
+ * every entry the filter could match (and usually only those).</p>
+ *
+ * <p>Entries are held by identity (TreeEntry.equals() compares names, and its hashCode() changes
+ * with its attributes), and an entry must be removed, with the same attribute values it was
+ * added with, before its attributes are changed.  As most values belong to only one entry,
+ * a value maps straight to its entry until a second entry shares it.</p>
+ */
+
+class AttributeIndex
+{
+    private final String attribute;
+
+    private final HashMap<String, Object> values = new HashMap<String, Object>();     // value key -> TreeEntry or Set<TreeEntry>
+
+    private final Set<TreeEntry> present = newEntrySet();
+
+    AttributeIndex(String attribute)
+    {
+        this.attribute = attribute;
+    }
+
+    static Set<TreeEntry> newEntrySet()
+    {
+        return Collections.newSetFromMap(new IdentityHashMap<TreeEntry, Boolean>());
+    }
+
+    /**
+     * The index key of a value; binary values are kept apart from strings with a leading nul.
+     */
+    static String key(Object value)
+    {
+        if (value instanceof byte[])
+        {
+            byte[] bytes = (byte[]) value;
+            char[] chars = new char[bytes.length + 1];
+            for (int i = 0; i < bytes.length; i++)
+                chars[i + 1] = (char) (bytes[i] & 0xFF);
+            return new String(chars);
+        }
+        return TestProviderFilter.normalise(value.toString());
+    }
+
+    String getAttribute()
+    {
+        return attribute;
+    }
+
+    void add(TreeEntry entry)
+    {
+        Attribute att = entry.get(attribute);
+        if (att == null)
+            return;
+
+        present.add(entry);
+        try
+        {
+            for (int i = 0; i < att.size(); i++)
+            {
+                Object value = att.get(i);
+                if (value != null)
+                    add(key(value), entry);
+            }
+        }
+        catch (NamingException e) {}   // (can't happen with BasicAttribute)
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(String key, TreeEntry entry)
+    {
+        Object existing = values.get(key);
+        if (existing == null)
+        {
+            values.put(key, entry);
+        }
+        else if (existing instanceof TreeEntry)
+        {
+            if (existing != entry)
+            {
+                Set<TreeEntry> entries = newEntrySet();
+                entries.add((TreeEntry) existing);
+                entries.add(entry);
+                values.put(key, entries);
+            }
+        }
+        else
+        {
+            ((Set<TreeEntry>) existing).add(entry);
+        }
+    }
+
+    void remove(TreeEntry entry)
+    {
+        Attribute att = entry.get(attribute);
+        if (att == null)
+            return;
+
+        present.remove(entry);
+        try
+        {
+            for (int i = 0; i < att.size(); i++)
+            {
+                Object value = att.get(i);
+                if (value != null)
+                    remove(key(value), entry);
+            }
+        }
+        catch (NamingException e) {}
+    }
+
+    @SuppressWarnings("unchecked")
+    private void remove(String key, TreeEntry entry)
+    {
+        Object existing = values.get(key);
+        if (existing == entry)
+        {
+            values.remove(key);
+        }
+        else if (existing instanceof Set)
+        {
+            Set<TreeEntry> entries = (Set<TreeEntry>) existing;
+            entries.remove(entry);
+            if (entries.size() == 1)
+                values.put(key, entries.iterator().next());
+        }
+    }
+
+    /**
+     * @param key a value key (see key())
+     * @return the entries with the value; never null
+     */
+    @SuppressWarnings("unchecked")
+    Collection<TreeEntry> get(String key)
+    {
+        Object existing = values.get(key);
+        if (existing == null)
+            return Collections.emptySet();
+        if (existing instanceof TreeEntry)
+            return Collections.singleton((TreeEntry) existing);
+        return (Set<TreeEntry>) existing;
+    }
+
+    /**
+     * @return the entries that have the attribute at all
+     */
+    Collection<TreeEntry> getPresent()
+    {
+        return present;
+    }
+}
@@ -1,20 +1,41 @@
 package com.pegacat.testprovider;
 
 import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 import javax.naming.ldap.LdapName;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A simple tree data structure containing entries to allow a
  * light weight 'fake' directory to be used for standalone unit tests.
  * NB: always has a "" root node...
+ *
+ * Attributes may optionally be indexed (see addIndex()), so that searches on them
+ * needn't look at every entry in the tree.
+ *
+ * The tree may be shared by many contexts on many threads.  Single entries can be read from
+ * the map at any time, but anything that walks the tree (or reads the child lists or the
+ * indexes) must hold the read lock (see getLock()) to see a consistent snapshot of it; the
+ * methods that change the tree take the write lock themselves, and callers making several
+ * related changes (e.g. to an entry's attributes and its indexes) should hold the write lock
+ * around all of them.
  */
 
 
-public class DataTree extends HashMap <String, TreeEntry>
+public class DataTree extends ConcurrentHashMap <String, TreeEntry>
 {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * the attribute indexes, keyed by lower case attribute name.
+     */
+    private HashMap<String, AttributeIndex> indexes = new HashMap<String, AttributeIndex>();
 
     public DataTree()
     {
@@ -22,13 +43,28 @@ public class DataTree extends HashMap <String, TreeEntry>
     }
 
     /**
-     * over ride base HashMap method to provide type safety.
+     * The lock guarding the structure of the tree (the parent/child links and the indexes).
+     * Searches hold the read lock while they collect their results; changes hold the write lock.
+     * @return the tree's lock
+     */
+    public ReentrantReadWriteLock getLock()
+    {
+        return lock;
+    }
+
+    /**
+     * over ride base map method to provide type safety.
      * @param key
      * @return the unique tree entry described by the key.
      */
     public TreeEntry get(String key)
     {
-        return (TreeEntry) super.get(key);
+        return (key == null) ? null : (TreeEntry) super.get(key);     // (a concurrent map has no null keys; the root's parent name is null)
+    }
+
+    public boolean containsKey(Object key)
+    {
+        return key != null && super.containsKey(key);
     }
     /**
      * Adds an entry to the tree.  Requires entry to be added to the parent,
@@ -44,6 +80,19 @@ public class DataTree extends HashMap <String, TreeEntry>
 
     // XXX need to modify to cope with adding existing entries better (e.g. when overwriting during backup)
     public void addEntry(TreeEntry newEntry)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            add(newEntry);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(TreeEntry newEntry)
     {
         Name entryName = newEntry.getName();
 
@@ -59,6 +108,7 @@ public class DataTree extends HashMap <String, TreeEntry>
         if (this.containsKey(stringEntryName))  // are we replacing a (possibly place holder) node? If so, grab the children of that placeholder
         {
             TreeEntry placeHolder = (TreeEntry)this.get(stringEntryName);
+            unindexEntry(placeHolder);
             newEntry.children = (ArrayList<TreeEntry>)placeHolder.children.clone();
             TreeEntry parent = ((TreeEntry)this.get(parentNameS));
             if (parent != null)  // i.e. make sure we are not the root node..
@@ -74,11 +124,12 @@ public class DataTree extends HashMap <String, TreeEntry>
             {
                 TreeEntry placeHolder = new TreeEntry(parentName, new String[] {"objectclass", "placeHolder"});
                 placeHolder.addChild(newEntry);
-                addEntry(placeHolder);
+                add(placeHolder);
             }
         }
 
         this.put(entryName.toString(), newEntry);
+        indexEntry(newEntry);
     }
 
     /**
@@ -93,6 +144,19 @@ public class DataTree extends HashMap <String, TreeEntry>
     }
 
     public void deleteEntry(TreeEntry deleteMe)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            delete(deleteMe);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void delete(TreeEntry deleteMe)
     {
         if (deleteMe != null)
         {
@@ -100,7 +164,7 @@ public class DataTree extends HashMap <String, TreeEntry>
             // (they delete the parent reference as they go...)
             int size = deleteMe.children.size();
             for (int i=size; i>0; i--)
-                deleteEntry(deleteMe.children.get(i-1));
+                delete(deleteMe.children.get(i-1));
 
             // delete the reference pointer in the parent to the deleteMe node
             if (deleteMe.getName().isEmpty() == false)  // the root node has no parent, so skip it
@@ -110,28 +174,205 @@ public class DataTree extends HashMap <String, TreeEntry>
             }
 
             this.remove(deleteMe.getName().toString());
+            unindexEntry(deleteMe);
         }
     }
 
     /**
-     * WARNING.
-     * this does not modify the entry.
-     * this does not rename questions. (yet).
-     * It simply changes the hash key to the newName, leaving all parent/child relationships as is.
-     * HENCE IT IS HIGHLY DANGEROUS, AND MUST ONLY BE USED FOR LEAF NODE RENAMES!
+     * Renames an entry, along with any children it has.  This does not modify the entry's
+     * attributes.  (See moveEntry().)
      * @param oldName
      * @param newName
      */
     public void renameEntry(String oldName, String newName)
         throws NamingException
     {
-        TreeEntry entry = get(oldName);
+        moveEntry(oldName, new LdapName(newName));
+    }
 
-        entry.setName(new LdapName(newName));
-        this.remove(oldName);
-        this.put(newName, entry);
+    /**
+     * Moves an entry, and the whole subtree under it, to a new name (possibly under a new
+     * parent) in one atomic change - no search sees the subtree half moved.  The entries'
+     * attributes are not changed.
+     * @param oldName the name of the entry to move
+     * @param newName the new name; its parent must already exist, and the name must not be in use.
+     * @throws NamingException if the entry or the new parent doesn't exist, the new name is
+     * already in use, or the entry would be moved under itself.
+     */
+    public void moveEntry(String oldName, Name newName)
+        throws NamingException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            TreeEntry entry = get(oldName);
+            if (entry == null)
+                throw new NameNotFoundException("unable to find entry '" + oldName + "'");
+
+            Name oldEntryName = entry.getName();
+            if (oldEntryName.isEmpty() || newName.isEmpty())
+                throw new NamingException("cannot move the root node of the test provider");
+
+            LdapName target = new LdapName(newName.toString());
+            if (containsKey(target.toString()))
+                throw new NameAlreadyBoundException("entry '" + target + "' already exists");
+            if (target.startsWith(oldEntryName))
+                throw new NamingException("cannot move entry '" + oldName + "' under itself");
+
+            TreeEntry newParent = get(target.getPrefix(target.size() - 1).toString());
+            if (newParent == null)
+                throw new NameNotFoundException("unable to find parent entry: " + target.getPrefix(target.size() - 1));
+
+            ArrayList<TreeEntry> subtree = new ArrayList<TreeEntry>();
+            collectSubtree(entry, subtree);
+
+            get(entry.getParent().toString()).removeChild(entry);
+
+            for (TreeEntry moving : subtree)
+                this.remove(moving.getStringName());
+
+            int depth = oldEntryName.size();
+            for (TreeEntry moving : subtree)
+            {
+                Name movedName = ((Name) target.clone()).addAll(moving.getName().getSuffix(depth));
+                moving.setName(movedName);
+                this.put(movedName.toString(), moving);
+            }
 
+            newParent.addChild(entry);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
 
+    private static void collectSubtree(TreeEntry entry, ArrayList<TreeEntry> subtree)
+    {
+        subtree.add(entry);
+        for (TreeEntry child : entry.getChildren())
+            collectSubtree(child, subtree);
+    }
+
+    /**
+     * Starts keeping an equality and presence index of an attribute, indexing the entries
+     * already in the tree.  Does nothing if the attribute is already indexed.
+     * @param attribute the attribute to index (e.g. 'uid')
+     */
+    public void addIndex(String attribute)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            String key = attribute.toLowerCase();
+            if (indexes.containsKey(key))
+                return;
+
+            AttributeIndex index = new AttributeIndex(attribute);
+            for (TreeEntry entry : values())
+                index.add(entry);
+            indexes.put(key, index);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops indexing an attribute.
+     * @param attribute
+     */
+    public void removeIndex(String attribute)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            indexes.remove(attribute.toLowerCase());
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isIndexed(String attribute)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return indexes.containsKey(attribute.toLowerCase());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param attribute
+     * @return the index of the attribute, or null if it isn't indexed.
+     */
+    AttributeIndex getIndex(String attribute)
+    {
+        return (indexes.isEmpty()) ? null : indexes.get(attribute.toLowerCase());
+    }
+
+    /**
+     * Adds an entry to the attribute indexes.  Must be called after an entry's attributes
+     * are changed (having called unindexEntry() before the change, with the write lock held
+     * throughout).
+     * @param entry
+     */
+    public void indexEntry(TreeEntry entry)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            for (AttributeIndex index : indexes.values())
+                index.add(entry);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an entry from the attribute indexes.  Must be called before an entry's
+     * attributes are changed.
+     * @param entry
+     */
+    public void unindexEntry(TreeEntry entry)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            for (AttributeIndex index : indexes.values())
+                index.remove(entry);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Uses the attribute indexes to find the entries that might match a filter.  (Checking that
+     * a candidate is within the search scope costs more than visiting it in a tree walk, so if
+     * the indexes pick out more than a quarter of the tree, it is quicker to walk it.)
+     * The caller must hold the read lock while it uses the candidates.
+     * @param filter a compiled search filter
+     * @return the candidate entries (from anywhere in the tree, in no particular order), or null if the
+     * indexes can't usefully narrow down the search.
+     */
+    Collection<TreeEntry> getCandidates(TestProviderFilter filter)
+    {
+        if (indexes.isEmpty())
+            return null;
+
+        Collection<TreeEntry> candidates = filter.candidates(this);
+        return (candidates == null || candidates.size() > size() / 4) ? null : candidates;
     }
 
     /**
@@ -139,7 +380,15 @@ public class DataTree extends HashMap <String, TreeEntry>
      */
     public void dump()
     {
-        dumpEntry((TreeEntry)get(""), 0);
+        lock.readLock().lock();
+        try
+        {
+            dumpEntry((TreeEntry)get(""), 0);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     public void dumpEntry(TreeEntry entry, int indent)
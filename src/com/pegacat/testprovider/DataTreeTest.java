@@ -3,7 +3,12 @@ package com.pegacat.testprovider;
 import junit.framework.*;
 
 import javax.naming.ldap.LdapName;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.*;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.TreeSet;
 
 /**
  *  Runs through sanity tests for the fundamental
@@ -189,4 +194,264 @@ public class DataTreeTest extends TestCase
         assertTrue("check tag", "marker".equals(readItBack.get("tag").get()));
 
     }
+
+    public void testIndexes()
+            throws NamingException
+    {
+        DataTree testTree = new DataTree();
+        for (int i=0; i<7; i++)
+            testTree.addEntry(entry[i]);
+
+        entry[4].put("uid", "fred");
+        entry[5].put("uid", "eric");
+        entry[5].put(new BasicAttribute("mail", "eric@pegacat.com"));
+        entry[5].get("mail").add("Eric.Smith@Pegacat.com");
+        entry[6].put("uid", "FRED");
+
+        testTree.addIndex("uid");
+        testTree.addIndex("MAIL");
+        assertTrue(testTree.isIndexed("UID"));
+        assertTrue(testTree.isIndexed("mail"));
+        assertFalse(testTree.isIndexed("cn"));
+
+        assertEquals(2, candidates(testTree, "(uid=fred)").size());       // (case ignored)
+        assertEquals(1, candidates(testTree, "(mail=eric.smith@pegacat.com)").size());
+        assertEquals(3, candidates(testTree, "(uid=*)").size());
+        assertEquals(1, candidates(testTree, "(&(objectClass=*)(mail=*)(uid=fred))").size());  // the smallest
+        assertEquals(3, candidates(testTree, "(|(uid=fred)(uid=eric))").size());
+        assertEquals(0, candidates(testTree, "(uid=nobody)").size());
+        assertNull(candidates(testTree, "(cn=fred)"));
+        assertNull(candidates(testTree, "(|(uid=fred)(cn=fred))"));
+        assertNull(candidates(testTree, "(uid=fr*)"));
+        assertNull(candidates(testTree, "(objectClass=*)"));
+
+        assertNotNull(testTree.getCandidates(TestProviderFilter.compile("(uid=eric)")));
+        assertNull(testTree.getCandidates(TestProviderFilter.compile("(uid=*)")));     // (too many - 3 of 10 - to be worth it)
+
+        testTree.deleteEntry(nameString[4]);
+        assertEquals(1, candidates(testTree, "(uid=fred)").size());
+
+        TreeEntry replacement = new TreeEntry(new LdapName(nameString[3]));   // replace a parent entry
+        replacement.put("uid", "fred");
+        testTree.addEntry(replacement);
+        assertEquals(2, candidates(testTree, "(uid=fred)").size());
+
+        testTree.removeIndex("uid");
+        assertNull(candidates(testTree, "(uid=fred)"));
+    }
+
+    private static Collection<TreeEntry> candidates(DataTree tree, String filter)
+            throws InvalidSearchFilterException
+    {
+        return TestProviderFilter.compile(filter).candidates(tree);
+    }
+
+    /**
+     * Checks searches give the same results with and without indexes, including after modifies and renames.
+     */
+    public void testIndexedSearch()
+            throws NamingException
+    {
+        TestProviderContext plain = makeContext(new Hashtable());
+        Hashtable env = new Hashtable();
+        env.put(TestProviderContext.INDEXES, "objectClass, uid cn,mail");
+        TestProviderContext indexed = makeContext(env);
+        assertTrue(indexed.getEntries().isIndexed("uid"));
+
+        String[] filters = {"(uid=user7)", "(objectClass=person)", "(&(objectClass=person)(cn=User 12))", "(|(uid=user3)(mail=user4@pegacat.com))",
+                            "(&(uid=*)(!(uid=user5)))", "(cn=user 1*)", "(|(uid=user3)(sn=Smith))", "(mail=*)"};
+        String[] bases = {"", "c=au", "ou=research,o=pegacat,c=au", "ou=group 2,ou=research,o=pegacat,c=au", "uid=user7,ou=group 1,ou=research,o=pegacat,c=au"};
+        int[] scopes = {SearchControls.OBJECT_SCOPE, SearchControls.ONELEVEL_SCOPE, SearchControls.SUBTREE_SCOPE};
+
+        for (int round=0; round<2; round++)
+        {
+            for (String filter : filters)
+                for (String base : bases)
+                    for (int scope : scopes)
+                        assertEquals(filter + " from " + base + " scope " + scope, search(plain, base, filter, scope), search(indexed, base, filter, scope));
+
+            if (round == 1)
+                break;
+
+            // change some indexed values, and check again
+            for (TestProviderContext ctx : new TestProviderContext[] {plain, indexed})
+            {
+                ctx.modifyAttributes("uid=user3,ou=group 0,ou=research,o=pegacat,c=au", DirContext.REPLACE_ATTRIBUTE, new BasicAttributes("uid", "user4"));
+                ctx.modifyAttributes("uid=user4,ou=group 1,ou=research,o=pegacat,c=au", new ModificationItem[] {new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("mail"))});
+                ctx.modifyAttributes("uid=user5,ou=group 2,ou=research,o=pegacat,c=au", DirContext.ADD_ATTRIBUTE, new BasicAttributes("mail", "user4@pegacat.com"));
+                ctx.rename(new LdapName("uid=user7,ou=group 1,ou=research,o=pegacat,c=au"), new LdapName("uid=user3"));
+                ctx.destroySubcontext("uid=user12,ou=group 0,ou=research,o=pegacat,c=au");
+            }
+            bases[4] = "uid=user3,ou=group 1,ou=research,o=pegacat,c=au";
+        }
+        assertEquals("[uid=user3]", search(indexed, "ou=group 1,ou=research,o=pegacat,c=au", "(|(uid=user3)(mail=user4@pegacat.com))", SearchControls.ONELEVEL_SCOPE));
+    }
+
+    /**
+     * Checks whole subtrees can be renamed, and moved to a new parent, with their children re-keyed and reindexed.
+     */
+    public void testMoveSubtree()
+            throws NamingException
+    {
+        Hashtable env = new Hashtable();
+        env.put(TestProviderContext.INDEXES, "uid, ou");
+        TestProviderContext ctx = makeContext(env);
+        DataTree tree = ctx.getEntries();
+        int size = tree.size();
+
+        ctx.rename(new LdapName("ou=group 1,ou=research,o=pegacat,c=au"), new LdapName("ou=group 9"));
+        assertNull(tree.get("ou=group 1,ou=research,o=pegacat,c=au"));
+        assertNull(tree.get("uid=user4,ou=group 1,ou=research,o=pegacat,c=au"));
+        TreeEntry moved = tree.get("uid=user4,ou=group 9,ou=research,o=pegacat,c=au");
+        assertNotNull(moved);
+        assertEquals("uid=user4,ou=group 9,ou=research,o=pegacat,c=au", moved.getName().toString());
+        assertEquals("group 9", tree.get("ou=group 9,ou=research,o=pegacat,c=au").get("ou").get());
+        assertEquals(size, tree.size());
+
+        ctx.createSubcontext("ou=sales,o=pegacat,c=au", new BasicAttributes("objectClass", "organizationalUnit"));
+        ctx.rename("ou=group 9,ou=research,o=pegacat,c=au", "ou=group 1,ou=sales,o=pegacat,c=au");
+        assertEquals("[uid=user1, uid=user10, uid=user13, uid=user4, uid=user7]", search(ctx, "ou=group 1,ou=sales,o=pegacat,c=au", "(uid=*)", SearchControls.ONELEVEL_SCOPE));
+        assertEquals("[uid=user4,ou=group 1]", search(ctx, "ou=sales,o=pegacat,c=au", "(uid=user4)", SearchControls.SUBTREE_SCOPE));
+        assertEquals("[]", search(ctx, "ou=research,o=pegacat,c=au", "(|(uid=user4)(ou=group 1)(ou=group 9))", SearchControls.SUBTREE_SCOPE));
+        assertEquals(2, tree.get("ou=research,o=pegacat,c=au").getChildren().size());
+
+        String[][] bad = {{"uid=user0,ou=group 0,ou=research,o=pegacat,c=au", "uid=user3"},                                // already exists
+                          {"ou=research,o=pegacat,c=au", "ou=group 7,ou=group 0,ou=research,o=pegacat,c=au"},            // under itself
+                          {"uid=user0,ou=group 0,ou=research,o=pegacat,c=au", "uid=user0,ou=marketing,o=pegacat,c=au"},  // no parent
+                          {"uid=nobody,ou=group 0,ou=research,o=pegacat,c=au", "uid=somebody"}};                           // no entry
+        for (String[] rename : bad)
+        {
+            try
+            {
+                ctx.rename(rename[0], rename[1]);
+                fail("expected the rename of " + rename[0] + " to " + rename[1] + " to fail");
+            }
+            catch (NamingException e) {}
+        }
+        assertEquals(size + 1, tree.size());
+        assertNotNull(tree.get("uid=user0,ou=group 0,ou=research,o=pegacat,c=au"));
+    }
+
+    /**
+     * Runs searches on several threads while others add, rename and delete entries; every search must see
+     * the whole of each group (the renames move a group's entries together, so no search may see part of one).
+     */
+    public void testConcurrentChanges()
+            throws Exception
+    {
+        Hashtable env = new Hashtable();
+        env.put(TestProviderContext.INDEXES, "uid");
+        final TestProviderContext ctx = makeContext(env);
+        final String research = "ou=research,o=pegacat,c=au";
+        final java.util.List<Throwable> errors = java.util.Collections.synchronizedList(new java.util.ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[6];
+        for (int t=0; t<threads.length; t++)
+        {
+            final int thread = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i=0; i<200; i++)
+                        {
+                            if (thread < 3)     // searchers
+                            {
+                                String found = search(ctx, research, "(uid=*)", SearchControls.SUBTREE_SCOPE);
+                                for (int group = 0; group < 3; group++)
+                                {
+                                    int count = 0;
+                                    for (int user = group; user < 15; user += 3)
+                                        if (found.contains("uid=user" + user + ","))
+                                            count++;
+                                    if (count != 5)
+                                        throw new Exception("search saw " + count + " of group " + group + ": " + found);
+                                }
+                            }
+                            else if (thread == 3)     // renames group 0 back and forth
+                            {
+                                if (i%2 == 0)
+                                    ctx.rename("ou=group 0," + research, "ou=moved");
+                                else
+                                    ctx.rename("ou=moved," + research, "ou=group 0," + research);
+                            }
+                            else     // add and delete entries of their own
+                            {
+                                String name = "uid=temp" + thread + ",ou=temp," + research;
+                                ctx.createSubcontext(name, new BasicAttributes("objectClass", "account"));
+                                ctx.destroySubcontext(name);
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join(60000);
+
+        assertEquals(errors.toString(), 0, errors.size());
+        assertEquals("[uid=user0, uid=user12, uid=user3, uid=user6, uid=user9]", search(ctx, "ou=group 0," + research, "(uid=*)", SearchControls.ONELEVEL_SCOPE));
+        assertNull(ctx.getEntries().get("uid=temp4,ou=temp," + research));
+    }
+
+    /**
+     * Checks the optional latency setting delays operations.
+     */
+    public void testLatency()
+            throws NamingException
+    {
+        Hashtable env = new Hashtable();
+        TestProviderContext ctx = makeContext(env);
+
+        ctx.addToEnvironment(TestProviderContext.LATENCY, "30");
+        ctx.addToEnvironment(TestProviderContext.JITTER, "10");
+        long start = System.currentTimeMillis();
+        search(ctx, "", "(uid=user1)", SearchControls.SUBTREE_SCOPE);
+        long time = System.currentTimeMillis() - start;
+        assertTrue("search took " + time + " ms", time >= 29);
+        assertEquals(40, ctx.getMaxLatency());
+
+        ctx.removeFromEnvironment(TestProviderContext.LATENCY);
+        ctx.addToEnvironment(TestProviderContext.JITTER, "not a number");    // ignored
+        assertEquals(0, ctx.getMaxLatency());
+    }
+
+    private static TestProviderContext makeContext(Hashtable env)
+            throws NamingException
+    {
+        TestProviderContext ctx = new TestProviderContext(env, new DataTree());
+        for (int i=0; i<15; i++)
+        {
+            BasicAttributes atts = new BasicAttributes("objectClass", "person");
+            atts.put("uid", "user" + i);
+            atts.put("cn", "User " + i);
+            atts.put("sn", (i%2 == 0) ? "Smith" : "Jones");
+            if (i%3 != 0)
+                atts.put("mail", "user" + i + "@pegacat.com");
+            ctx.createSubcontext("uid=user" + i + ",ou=group " + (i%3) + ",ou=research,o=pegacat,c=au", atts);
+        }
+        return ctx;
+    }
+
+    /**
+     * @return the (sorted) names of the search results
+     */
+    private static String search(TestProviderContext ctx, String base, String filter, int scope)
+            throws NamingException
+    {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(scope);
+        TreeSet<String> names = new TreeSet<String>();
+        NamingEnumeration results = ctx.search(base, filter, controls);
+        while (results.hasMore())
+            names.add(((SearchResult) results.next()).getName());
+        return names.toString();
+    }
 }
@@ -8,6 +8,7 @@ import javax.naming.ldap.*;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,10 +25,12 @@ import java.util.logging.Logger;
  * <li> no ldap v3 extensions.
  * <li> no composite names spanning multiple namespaces - all names are LDAP names only.  (Composite
  * names are a bloody stupid idea that come close to making jndiproviders unusable, IMNSHO - CB)
- * <li> thread safety; it is intended to be run single threaded during testing, and was not built
- * with thread safety in mind, so you're on your own there...
  * </ul>
  * <p/>
+ * <p>Many contexts (on many threads) may share one DataTree: each search sees a consistent snapshot of it,
+ * and each change (including moving a whole subtree) is atomic.  An artificial latency (and jitter) can
+ * be added to every operation with the LATENCY and JITTER environment properties, to simulate a distant server.</p>
+ * <p/>
  * <p>If you need the above features, you should probably plan to use system tests and a real provider.</p>
  * <p>In Progress:</p>
  * <p>The following are yet to be implemented</p>
@@ -63,6 +66,29 @@ public class TestProviderContext implements LdapContext
 
     private static Logger log = Logger.getLogger(TestProviderContext.class.getName());
 
+    /**
+     * An environment property listing the attributes to index (e.g. "objectClass, uid, cn, mail"),
+     * so that searches for their values needn't test every entry in the search scope.
+     */
+    public static final String INDEXES = "com.pegacat.testprovider.indexes";
+
+    /**
+     * An environment property giving an artificial delay, in milliseconds, added to every
+     * operation (to simulate a distant server).
+     */
+    public static final String LATENCY = "com.pegacat.testprovider.latency";
+
+    /**
+     * An environment property giving the most, in milliseconds, that the delay of each
+     * operation may randomly exceed the LATENCY by.
+     */
+    public static final String JITTER = "com.pegacat.testprovider.jitter";
+
+    private long latency = 0;
+    private int jitter = 0;
+
+    private static final Random random = new Random();
+
     // Debug
     {
         log.setLevel(Level.FINEST);
@@ -114,6 +140,8 @@ public class TestProviderContext implements LdapContext
         contextName = baseDN == null ? "" : baseDN;
 
         environment = env;     // Don't see any reason to clone environment for every entry?
+
+        readLatency();
     }
 
     private void checkSecurity(Hashtable env)
@@ -233,6 +261,61 @@ public class TestProviderContext implements LdapContext
             throw new IOException("internal error encrypting password " + e.getMessage());
         }
     }
+    /**
+     * Reads the (optional) artificial latency and jitter settings from the environment.
+     */
+    private void readLatency()
+    {
+        latency = readMillis(LATENCY);
+        jitter = (int) readMillis(JITTER);
+    }
+
+    /**
+     * Returns the longest artificial delay currently configured (the latency plus the jitter).
+     */
+    long getMaxLatency()
+    {
+        return latency + jitter;
+    }
+
+    private long readMillis(String property)
+    {
+        Object value = (environment == null) ? null : environment.get(property);
+        if (value == null)
+            return 0;
+        try
+        {
+            return Math.max(0, Long.parseLong(value.toString().trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warning("ignoring bad value for " + property + ": " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Waits for the configured latency (plus a random part of the jitter), as a network round trip
+     * to a real server would.  Called outside the tree's lock, so that concurrent operations overlap.
+     * @throws InterruptedNamingException if the thread is interrupted while waiting.
+     */
+    private void simulateLatency()
+            throws InterruptedNamingException
+    {
+        long delay = latency + ((jitter > 0) ? random.nextInt(jitter + 1) : 0);
+        if (delay <= 0)
+            return;
+        try
+        {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("test provider operation interrupted");
+        }
+    }
+
     /**
      * Called by TestProviderFactory / also used for testing
      *
@@ -244,6 +327,15 @@ public class TestProviderContext implements LdapContext
         entries = data;
         checkSecurity(env);
         environment = (env == null) ? new Hashtable() : env;
+
+        readLatency();
+
+        String indexes = (String) environment.get(INDEXES);
+        if (indexes != null)
+            for (String attribute : indexes.split("[\\s,]+"))
+                if (attribute.length() > 0)
+                    entries.addIndex(attribute);
+
         log.fine("Created TestProviderContext");
     }
 
@@ -1256,7 +1348,9 @@ public class TestProviderContext implements LdapContext
      */
     public Object removeFromEnvironment(String propName) throws NamingException
     {
-        return environment.remove(propName);
+        Object old = environment.remove(propName);
+        readLatency();
+        return old;
     }
 
     /**
@@ -1564,10 +1658,14 @@ public class TestProviderContext implements LdapContext
         if (propName == null)
             return null;
 
+        Object old;
         if (propVal == null)
-            return environment.remove(propName);
+            old = environment.remove(propName);
         else
-            return environment.put(propName, propVal);
+            old = environment.put(propName, propVal);
+
+        readLatency();
+        return old;
     }
 
     /**
@@ -1631,11 +1729,35 @@ public class TestProviderContext implements LdapContext
     {
         log.finest("modify Atts of (" + name + ")");
 
-        TreeEntry modifyMe = entries.get(name);
+        simulateLatency();
 
-        if (modifyMe == null)
-            throw new NameNotFoundException("unable to find entry '" + name + "'");
+        Lock writeLock = entries.getLock().writeLock();
+        writeLock.lock();
+        try
+        {
+            TreeEntry modifyMe = entries.get(name);
 
+            if (modifyMe == null)
+                throw new NameNotFoundException("unable to find entry '" + name + "'");
+
+            entries.unindexEntry(modifyMe);     // (reindexed with its new values when we're done)
+            try
+            {
+                modifyAttributes(modifyMe, mods);
+            }
+            finally
+            {
+                entries.indexEntry(modifyMe);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    private void modifyAttributes(TreeEntry modifyMe, ModificationItem[] mods) throws NamingException
+    {
         for (ModificationItem mod : mods)
         {
             Attribute modificationAttribute = mod.getAttribute();
@@ -1743,6 +1865,8 @@ public class TestProviderContext implements LdapContext
 
         checkEntry(name, attrs);
 
+        simulateLatency();
+
         entries.addEntry(new TreeEntry(new LdapName(name), attrs));
 
         return new TestProviderContext(name, environment, entries);
@@ -1806,6 +1930,8 @@ public class TestProviderContext implements LdapContext
 
         checkEntry(newEntry.getName().toString(), newEntry);
 
+        simulateLatency();
+
         entries.addEntry(new TreeEntry(newName, newEntry));
 
         return new TestProviderContext(newName.toString(), environment, entries);
@@ -1833,10 +1959,43 @@ public class TestProviderContext implements LdapContext
     {
         TestProviderEnumeration <SearchResult> returnEnumeration = new TestProviderEnumeration <SearchResult> ();
 
+        TestProviderFilter compiledFilter = TestProviderFilter.compile(filter);  // parsed once, and applied to every entry searched
 
         if (aliasHandling == null)
             aliasHandling = (String) environment.get("java.naming.ldap.derefAliases");
 
+        simulateLatency();
+
+        Lock readLock = entries.getLock().readLock();
+        readLock.lock();        // the results are a snapshot of the tree: nothing changes while they're collected
+        try
+        {
+            searchEntries(name, searchScope, compiledFilter, returnEnumeration);
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+
+        // if we were worried about efficiency we might do this differently; but it's a test provider!
+        if (attributesToReturn != null)  // null == 'return all attributes'
+        {
+            stripExcessAttributes(returnEnumeration, attributesToReturn);
+            addOperationalAttributes(returnEnumeration, attributesToReturn);
+        }
+
+
+        return returnEnumeration;
+
+    }
+
+    /**
+     * Finds the entries in the search scope that match the filter, and adds copies of them to the results.
+     * The caller must hold the tree's read lock.
+     */
+    private void searchEntries(String name, int searchScope, TestProviderFilter compiledFilter, TestProviderEnumeration<SearchResult> returnEnumeration)
+            throws NamingException
+    {
         // find the named entry the search scope is based on
         TreeEntry entry = entries.get(name);
 
@@ -1858,11 +2017,14 @@ public class TestProviderContext implements LdapContext
                 throw new NameNotFoundException(name);  // Mmm... using exceptions for a normally encountered condition... classy design of Context interface by jndi...
         }
 
+        // the entries the attribute indexes say might match, from anywhere in the tree (null if the filter isn't indexed)
+        Collection<TreeEntry> candidates = (searchScope == SearchControls.OBJECT_SCOPE) ? null : entries.getCandidates(compiledFilter);
+
         switch (searchScope)
         {
             case SearchControls.OBJECT_SCOPE:
 
-                if (filterMatches(filter, entry))
+                if (compiledFilter.matches(entry))
                     returnEnumeration.add(new SearchResult("", null, (Attributes)entry.clone()));
                 break;
 
@@ -1870,9 +2032,15 @@ public class TestProviderContext implements LdapContext
 
                 ArrayList<TreeEntry> children = entry.getChildren();
 
+                if (candidates != null && candidates.size() < children.size())
+                {
+                    searchCandidates(entry, candidates, true, compiledFilter, returnEnumeration, baseNameLength);
+                    break;
+                }
+
                 for (TreeEntry child : children)
                 {
-                    if (filterMatches(filter, child))
+                    if (compiledFilter.matches(child))
                     {
                         String childName = child.getStringName();
                         returnEnumeration.add(new SearchResult(childName.substring(0, childName.length() - baseNameLength), null, (Attributes)child.clone()));
@@ -1883,21 +2051,13 @@ public class TestProviderContext implements LdapContext
 
             case SearchControls.SUBTREE_SCOPE:
 
-                getSubTree(entry, filter, returnEnumeration, baseNameLength);
+                if (candidates != null)
+                    searchCandidates(entry, candidates, false, compiledFilter, returnEnumeration, baseNameLength);
+                else
+                    getSubTree(entry, compiledFilter, returnEnumeration, baseNameLength);
 
                 break;
         }
-
-        // if we were worried about efficiency we might do this differently; but it's a test provider!
-        if (attributesToReturn != null)  // null == 'return all attributes'
-        {
-            stripExcessAttributes(returnEnumeration, attributesToReturn);
-            addOperationalAttributes(returnEnumeration, attributesToReturn);
-        }
-
-
-        return returnEnumeration;
-
     }
 
     /**
@@ -1974,67 +2134,80 @@ public class TestProviderContext implements LdapContext
      * recursively walk the entry tree to return the entire sub tree of entries from the given entry, filtering
      * as we go.
      * @param entry
-     * @param filter
+     * @param filter the compiled search filter
      * @param returnEnumeration
      * @param baseNameLength
      */
 
 
-    private void getSubTree(TreeEntry entry, String filter, TestProviderEnumeration<SearchResult> returnEnumeration, int baseNameLength)
+    private void getSubTree(TreeEntry entry, TestProviderFilter filter, TestProviderEnumeration<SearchResult> returnEnumeration, int baseNameLength)
     {
-        if (filterMatches(filter, entry))
-        {
-            String name = entry.getStringName();
-            name = (name.length() <= baseNameLength)?"":name.substring(0, name.length() - baseNameLength);
-            returnEnumeration.add(new SearchResult(name, null, (Attributes)entry.clone()));
-        }
+        if (filter.matches(entry))
+            addResult(entry, returnEnumeration, baseNameLength);
 
         for (TreeEntry child : entry.getChildren())
             getSubTree(child, filter, returnEnumeration, baseNameLength);
     }
 
+    /**
+     * Searches the entries picked out by the attribute indexes (see DataTree.getCandidates()), rather than
+     * walking the tree: each candidate that is within the search scope, and matches the filter, is returned.
+     * @param base the entry the search is based on
+     * @param candidates the candidate entries, from anywhere in the tree
+     * @param oneLevel true for a one level search, false for a subtree search
+     * @param filter the compiled search filter
+     * @param returnEnumeration
+     * @param baseNameLength
+     */
+    private void searchCandidates(TreeEntry base, Collection<TreeEntry> candidates, boolean oneLevel, TestProviderFilter filter, TestProviderEnumeration<SearchResult> returnEnumeration, int baseNameLength)
+    {
+        Name baseName = base.getName();
+        int baseSize = baseName.size();
+
+        for (TreeEntry candidate : candidates)
+        {
+            Name name = candidate.getName();
+            boolean inScope = oneLevel ? (name.size() == baseSize + 1) : (name.size() >= baseSize);
+            if (inScope && name.startsWith(baseName) && filter.matches(candidate))
+                addResult(candidate, returnEnumeration, baseNameLength);
+        }
+    }
+
+    private void addResult(TreeEntry entry, TestProviderEnumeration<SearchResult> returnEnumeration, int baseNameLength)
+    {
+        String name = entry.getStringName();
+        name = (name.length() <= baseNameLength)?"":name.substring(0, name.length() - baseNameLength);
+        returnEnumeration.add(new SearchResult(name, null, (Attributes)entry.clone()));
+    }
+
 
 
     /**
-     * Parse more complex ldap search filter, e.g.
+     * Tests an entry against an ldap search filter, e.g.
      *
-     * (&(cn=Fred)(!objectclass=Topic))
+     * (&(cn=Fred)(!(objectclass=Topic)))
      *
      * (&(!(|(cn=Fred)(cn=Nigel)))(objectClass=Topic))
      *
      * (&(objectClass=Person)(|(sn=Jensen)(cn=Babs J*)))
-
+     *
+     * The filter is compiled each time; searches compile it once (see TestProviderFilter)
+     * and apply the compiled filter to each entry.
      *
      * @param filter
      * @param candidate
-     * @return false, if the filter fails to match, or is too complex to parse with this dodgy parser...
+     * @return false, if the filter fails to match, or can't be parsed.
      */
     public boolean filterMatches(String filter, TreeEntry candidate)
     {
-        if (filter.equalsIgnoreCase("(objectclass=*)"))
-            return true;
-        else if (isSimpleFilter(filter))
-            return evaluateAtomicFilterElement(filter, candidate);
-        else
+        try
         {
-            char operator = filter.charAt(1);
-
-            String residualFilter = filter.substring(2, filter.length()-1);    // trim off enclosing brackets and operator...
-
-            switch (operator)
-            {
-                case '&' :
-                    String[] andComponents = splitFilterComponents(residualFilter);
-                    return filterMatches(andComponents[0], candidate)&filterMatches(andComponents[1], candidate);
-
-                case '|' :
-                    String[] orComponents = splitFilterComponents(residualFilter);
-                    return filterMatches(orComponents[0], candidate)|filterMatches(orComponents[1], candidate);
-
-                case '!' : return !filterMatches(residualFilter, candidate);
-
-                default: return evaluateAtomicFilterElement(residualFilter, candidate);
-            }
+            return TestProviderFilter.compile(filter).matches(candidate);
+        }
+        catch (InvalidSearchFilterException e)
+        {
+            log.severe("Error parsing search filter: " + e.getMessage());
+            return false;
         }
     }
 
@@ -2063,79 +2236,15 @@ public class TestProviderContext implements LdapContext
     }
 
     /**
-     * Figures out the result for a single filter elements e.g. (objectClass=Top*) or (cn=*Betts)
+     * Figures out the result for a single filter elements e.g. (objectClass=Top*) or (cn=*Betts).
+     * (Any filter will do now; an empty filter evaluates to true.)
      * @param filter
      * @param candidate
      * @return
      */
     public boolean evaluateAtomicFilterElement(String filter, TreeEntry candidate)
     {
-        if (filter.length()==0) // empty filter evaluates to true?  (necessary?)
-            return true;
-
-        int equalPos = filter.indexOf('=');
-       String attributeName = filter.substring(1, equalPos);
-       String searchValue = filter.substring(equalPos+1, filter.length()-1);
-       Attribute testAtt = candidate.get(attributeName);
-       if (testAtt == null)
-           return false;
-
-       if (searchValue.equals("*"))
-           return true;
-
-       if (testAtt.contains(searchValue))
-           return true;
-
-       // getting very dodgy here...  only handling single valued attributes - half hearted wild card search
-       try
-       {
-           boolean endsWithStar = searchValue.endsWith("*");
-           boolean startsWithStar = searchValue.startsWith("*");
-           if (endsWithStar || startsWithStar)
-           {
-               String testVal = testAtt.get().toString();
-               if (endsWithStar && searchValue.length()>1)
-                   searchValue = searchValue.substring(0, searchValue.length()-1);
-               if (startsWithStar && searchValue.length()>1)
-                   searchValue = searchValue.substring(1);
-
-               if (startsWithStar && endsWithStar)
-               {
-                   if (testVal.contains(searchValue))
-                       return true;
-               }
-               else if (startsWithStar)
-               {
-                   if (testVal.endsWith(searchValue))
-                       return true;
-               }
-               else
-               {
-                   if (testVal.startsWith(searchValue))
-                       return true;
-               }
-           }
-       }
-       catch (NamingException e)
-       {
-           return false;
-       }
-       return false;
-    }
-
-
-    // we only handle (x=y) style filters in the test provider :-)
-    private boolean isSimpleFilter(String filter)
-    {
-        // a clever person would do this with a regexp...
-        if (filter.indexOf('&')>-1) return false;
-        if (filter.indexOf('|')>-1) return false;
-        if (filter.indexOf('!')>-1) return false;
-
-        if (filter.indexOf('=')>0 && (filter.indexOf('=')==filter.lastIndexOf("=")))
-            return true;
-
-        return true;
+        return filterMatches(filter, candidate);
     }
 
 
@@ -2157,15 +2266,26 @@ public class TestProviderContext implements LdapContext
     {
         log.finest("destroySubcontext (" + name.toString() + ")");
 
-        if (entries.containsKey(name) == false)
+        simulateLatency();
+
+        Lock writeLock = entries.getLock().writeLock();
+        writeLock.lock();
+        try
         {
-            LdapName test = new LdapName(name);
-            test.remove(test.size() - 1);
-            if (entries.containsKey(test.toString()) == false)
-                throw new NameNotFoundException("unable to find parent entry: " + test.toString());
-        }
+            if (entries.containsKey(name) == false)
+            {
+                LdapName test = new LdapName(name);
+                test.remove(test.size() - 1);
+                if (entries.containsKey(test.toString()) == false)
+                    throw new NameNotFoundException("unable to find parent entry: " + test.toString());
+            }
 
-        entries.deleteEntry(name);
+            entries.deleteEntry(name);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
     }
 
 
@@ -2175,41 +2295,62 @@ public class TestProviderContext implements LdapContext
      * Any attributes associated with the old name become associated
      * with the new name.
      * Intermediate contexts of the old name are not changed.
+     * <p/>
+     * The new name may be just the new RDN of the entry, or a full DN (which may move the
+     * entry to a different, existing, parent).  Entries with children are moved along with
+     * their whole subtree, in one atomic change.
      *
      * @param oldName the name of the existing binding; may not be empty
-     * @param rdn     the RDN of the new binding; may not be empty
+     * @param newName the RDN, or the full name, of the new binding; may not be empty
      * @throws	javax.naming.NameAlreadyBoundException if <tt>newName</tt> is already bound
      * @throws	javax.naming.NamingException if a naming exception is encountered
      * @see #rename(String, String)
      * @see #bind(javax.naming.Name, Object)
      * @see #rebind(javax.naming.Name, Object)
      */
-    public void rename(Name oldName, Name rdn) throws NamingException
+    public void rename(Name oldName, Name newName) throws NamingException
     {
-        log.finest("rename (" + oldName + " to " + rdn);
+        log.finest("rename (" + oldName + " to " + newName);
 
         String oldNameString = oldName.toString();
 
-        if (rdn.size() != 1)
-            throw new NamingException("cannot perform rename operation '" + rdn + "' is not an RDN \n");
+        if (newName.size() == 0)
+            throw new NamingException("cannot perform rename operation - no new name given \n");
 
         if (oldName.size()<2)
             throw new NamingException("cannot rename root node in test provider");
 
-        TreeEntry entry = entries.get(oldNameString);
-
-        Rdn myRdn = new Rdn(rdn.get(0));
+        if (newName.size() == 1)    // just a new RDN
+            newName = oldName.getPrefix(oldName.size()-1).add(newName.toString());
 
-        entry.put(myRdn.getType(), myRdn.getValue().toString());
+        Rdn myRdn = new Rdn(newName.get(newName.size()-1));
 
-        if (entry.getChildren().size() != 0)
-            throw new NamingException("renaming non-leaf entries not supported by test provider");
+        simulateLatency();
 
-        String newRDN = rdn.toString();
+        Lock writeLock = entries.getLock().writeLock();
+        writeLock.lock();
+        try
+        {
+            TreeEntry entry = entries.get(oldNameString);
+            if (entry == null)
+                throw new NameNotFoundException("unable to find entry '" + oldNameString + "'");
 
-        Name newName = oldName.getPrefix(oldName.size()-1).add(newRDN);
+            entries.moveEntry(oldNameString, newName);
 
-        entries.renameEntry(oldNameString, newName.toString());
+            entries.unindexEntry(entry);
+            try
+            {
+                entry.put(myRdn.getType(), myRdn.getValue().toString());
+            }
+            finally
+            {
+                entries.indexEntry(entry);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
 
         if (entries.get(newName.toString()) == null)
             throw new NamingException("unable to modify test provider directory"); // should never happen
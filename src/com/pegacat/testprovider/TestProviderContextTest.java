@@ -234,7 +234,8 @@ public class TestProviderContextTest extends TestCase
         assertTrue(ctx.filterMatches("(name=Group Mind Research Department)", entry[3]));
         assertTrue(ctx.filterMatches("(name=Group Mind*)", entry[3]));
         assertTrue(ctx.filterMatches("(name=*Research Department)", entry[3]));
-        assertFalse(ctx.filterMatches("(name>=Group)", entry[3])); // not implemented
+        assertTrue(ctx.filterMatches("(name>=Group)", entry[3]));
+        assertFalse(ctx.filterMatches("(name<=Group)", entry[3]));
 
         assertTrue(ctx.filterMatches("(objectClass=*)", entry[4]));
         assertTrue(ctx.filterMatches("(favouriteDrink=*)", entry[4]));
@@ -0,0 +1,887 @@
+package com.pegacat.testprovider;
+
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.InvalidSearchFilterException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * <p>An ldap search filter (RFC 4515), compiled once into a tree of matching nodes that
+ * can then be applied to every entry a search visits, rather than re-parsing the filter
+ * string for each entry.</p>
+ *
+ * <p>The whole of the RFC 4515 grammar is read: n-ary and (&amp;) and or (|) lists (including
+ * the empty 'absolute true' (&amp;) and 'absolute false' (|) filters of RFC 4526), not (!), equality,
+ * presence, multi-component substrings, >=, &lt;=, ~= and extensible (:=) matches, with
+ * '\XX' hex escaped values.  As in JNDI, a filter without enclosing brackets has them added, an
+ * empty filter is (objectClass=*), and an old RFC 2254 style '\' escape of a single
+ * character (e.g. '\*') is also accepted.</p>
+ *
+ * <p>The test provider has no schema, so all attributes are matched as caseIgnoreMatch
+ * strings (case folded, with leading, trailing and repeated spaces ignored), except that
+ * binary (byte[]) values are compared byte by byte, and ordering matches compare numbers as
+ * numbers.  Approximate matches are equality matches that ignore spaces altogether, and
+ * extensible matches ignore the matching rule.  (objectClass=*) matches everything, as it
+ * does in a real directory.</p>
+ *
+ * <p>Where a DataTree has attribute indexes, equality, presence, and the and/or filters made
+ * from them, can find their candidate entries from the indexes (see candidates()), rather
+ * than being tested against every entry.</p>
+ */
+
+abstract class TestProviderFilter
+{
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * Tests whether an entry satisfies the filter.
+     *
+     * @param entry the entry to test
+     * @return true if the entry matches
+     */
+    abstract boolean matches(TreeEntry entry);
+
+    /**
+     * Writes the filter back out in RFC 4515 form (with values escaped where necessary)
+     */
+    abstract void toString(StringBuilder buffer);
+
+    /**
+     * Finds the entries of a tree that might match the filter, using the tree's attribute
+     * indexes.  Every entry that matches is among the candidates (but not every candidate
+     * need match).
+     *
+     * @param tree the tree to be searched
+     * @return the candidate entries, or null if the indexes can't help (and every entry must be tested).
+     */
+    Collection<TreeEntry> candidates(DataTree tree)
+    {
+        return null;
+    }
+
+    public String toString()
+    {
+        StringBuilder buffer = new StringBuilder();
+        toString(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Compiles a filter string.
+     *
+     * @param filter the filter, e.g. (&amp;(objectClass=person)(|(sn=Jensen)(cn=Babs J*)))
+     * @return the compiled filter
+     * @throws InvalidSearchFilterException if the filter can't be parsed.
+     */
+    static TestProviderFilter compile(String filter)
+            throws InvalidSearchFilterException
+    {
+        if (filter == null)
+            throw new InvalidSearchFilterException("null ldap filter");
+
+        String text = filter.trim();
+        if (text.length() == 0)
+            return new Present("objectClass");
+        if (text.charAt(0) != '(')
+            text = "(" + text + ")";
+
+        Parser parser = new Parser(text);
+        TestProviderFilter compiled = parser.parseFilter();
+        parser.skipSpaces();
+        if (parser.pos != text.length())
+            throw parser.error("unexpected text after the end of the filter");
+        return compiled;
+    }
+
+    /**
+     * Reads a filter string, one character at a time, into a tree of filter nodes.
+     */
+    private static final class Parser
+    {
+        final String text;
+        int pos = 0;
+
+        Parser(String text)
+        {
+            this.text = text;
+        }
+
+        InvalidSearchFilterException error(String message)
+        {
+            return new InvalidSearchFilterException(message + " at position " + pos + " of filter: " + text);
+        }
+
+        void skipSpaces()
+        {
+            while (pos < text.length() && text.charAt(pos) == ' ')
+                pos++;
+        }
+
+        void expect(char c)
+                throws InvalidSearchFilterException
+        {
+            if (pos >= text.length() || text.charAt(pos) != c)
+                throw error("expected '" + c + "'");
+            pos++;
+        }
+
+        /**
+         * filter = "(" ( "&amp;" filterlist / "|" filterlist / "!" filter / item ) ")"
+         */
+        TestProviderFilter parseFilter()
+                throws InvalidSearchFilterException
+        {
+            skipSpaces();
+            expect('(');
+            if (pos >= text.length())
+                throw error("unexpected end of filter");
+
+            TestProviderFilter filter;
+            char c = text.charAt(pos);
+            if (c == '&' || c == '|')
+            {
+                pos++;
+                ArrayList<TestProviderFilter> components = new ArrayList<TestProviderFilter>();
+                skipSpaces();
+                while (pos < text.length() && text.charAt(pos) == '(')
+                {
+                    components.add(parseFilter());
+                    skipSpaces();
+                }
+                TestProviderFilter[] list = components.toArray(new TestProviderFilter[components.size()]);
+                filter = (c == '&') ? new And(list) : new Or(list);
+            }
+            else if (c == '!')
+            {
+                pos++;
+                skipSpaces();
+                if (pos < text.length() && text.charAt(pos) != '(')
+                    filter = new Not(parseItem());       // (an old style (!cn=fred))
+                else
+                    filter = new Not(parseFilter());
+                skipSpaces();
+            }
+            else
+            {
+                filter = parseItem();
+            }
+
+            expect(')');
+            return filter;
+        }
+
+        /**
+         * item = attr ( "=" / "~=" / ">=" / "&lt;=" ) value, a presence or substring match, or
+         * an extensible match: [attr] [":dn"] [":" rule] ":=" value
+         */
+        TestProviderFilter parseItem()
+                throws InvalidSearchFilterException
+        {
+            int start = pos;
+            while (pos < text.length() && "=~<>:()".indexOf(text.charAt(pos)) == -1)
+                pos++;
+            if (pos >= text.length())
+                throw error("unexpected end of filter");
+
+            String attribute = text.substring(start, pos).trim();
+            char c = text.charAt(pos);
+
+            if (c == ':')
+                return parseExtensible(attribute);
+
+            if (attribute.length() == 0)
+                throw error("missing attribute name");
+
+            if (c == '~' || c == '>' || c == '<')
+            {
+                pos++;
+                expect('=');
+                String value = string(parseValue(false).get(0));
+                if (c == '~')
+                    return new Approx(attribute, value);
+                return new Ordering(attribute, value, c == '>');
+            }
+
+            expect('=');
+            ArrayList<byte[]> segments = parseValue(true);
+            if (segments.size() == 1)
+                return new Equality(attribute, segments.get(0));
+
+            if (segments.size() == 2 && segments.get(0).length == 0 && segments.get(1).length == 0)
+                return new Present(attribute);
+
+            String initial = string(segments.get(0));
+            String last = string(segments.get(segments.size() - 1));
+            ArrayList<String> any = new ArrayList<String>();
+            for (int i = 1; i < segments.size() - 1; i++)
+                if (segments.get(i).length > 0)         // (an empty 'any' - i.e. '**' - is strictly an error; let it go)
+                    any.add(string(segments.get(i)));
+
+            return new Substring(attribute, initial, any.toArray(new String[any.size()]), last);
+        }
+
+        /**
+         * Reads the rest of an extensible match, from the first ':' after the (possibly empty) attribute.
+         */
+        TestProviderFilter parseExtensible(String attribute)
+                throws InvalidSearchFilterException
+        {
+            boolean dn = false;
+            String rule = null;
+            while (true)
+            {
+                expect(':');
+                if (pos < text.length() && text.charAt(pos) == '=')
+                    break;
+                int start = pos;
+                while (pos < text.length() && "=:()".indexOf(text.charAt(pos)) == -1)
+                    pos++;
+                String part = text.substring(start, pos).trim();
+                if (part.length() == 0)
+                    throw error("empty extensible match component");
+                if (part.equalsIgnoreCase("dn") && rule == null && !dn)
+                    dn = true;
+                else if (rule == null)
+                    rule = part;
+                else
+                    throw error("unexpected extensible match component '" + part + "'");
+            }
+            expect('=');
+
+            if (attribute.length() == 0 && rule == null)
+                throw error("extensible match needs an attribute or a matching rule");
+
+            return new Extensible((attribute.length() == 0) ? null : attribute, dn, rule, parseValue(false).get(0));
+        }
+
+        /**
+         * Reads an assertion value, up to (but not including) the closing bracket, decoding
+         * escapes.  The value is returned as the UTF-8 bytes of each segment between the
+         * unescaped '*' characters (if wildcards are significant), so a value without any
+         * wildcards is a single segment.
+         */
+        ArrayList<byte[]> parseValue(boolean wildcards)
+                throws InvalidSearchFilterException
+        {
+            ArrayList<byte[]> segments = new ArrayList<byte[]>(2);
+            ByteArrayOutputStream segment = new ByteArrayOutputStream(text.length() - pos);
+            int plain = pos;            // start of the current run of unescaped, non wildcard, characters
+
+            while (true)
+            {
+                if (pos >= text.length())
+                    throw error("missing ')' after value");
+
+                char c = text.charAt(pos);
+                if (c == ')' || c == '\\' || c == '(' || (c == '*' && wildcards))
+                {
+                    write(segment, text.substring(plain, pos));
+
+                    if (c == ')')
+                        break;
+                    else if (c == '(')
+                        throw error("unescaped '(' in value");
+                    else if (c == '*')
+                    {
+                        segments.add(segment.toByteArray());
+                        segment.reset();
+                        pos++;
+                    }
+                    else if (pos + 2 < text.length() && hexValue(text.charAt(pos + 1)) >= 0 && hexValue(text.charAt(pos + 2)) >= 0)
+                    {
+                        segment.write(hexValue(text.charAt(pos + 1)) << 4 | hexValue(text.charAt(pos + 2)));
+                        pos += 3;
+                    }
+                    else if (pos + 1 < text.length() && "*()\\".indexOf(text.charAt(pos + 1)) >= 0)
+                    {
+                        write(segment, text.substring(pos + 1, pos + 2));     // RFC 2254 style escape
+                        pos += 2;
+                    }
+                    else
+                        throw error("bad escape in value");
+
+                    plain = pos;
+                }
+                else
+                    pos++;
+            }
+            segments.add(segment.toByteArray());
+            return segments;
+        }
+    }
+
+    private static int hexValue(char c)
+    {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    private static void write(ByteArrayOutputStream out, String text)
+    {
+        if (text.length() == 0)
+            return;
+        try
+        {
+            byte[] bytes = text.getBytes(UTF8);
+            out.write(bytes, 0, bytes.length);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("no UTF-8 support: " + e);
+        }
+    }
+
+    private static String string(byte[] utf8)
+    {
+        try
+        {
+            return new String(utf8, UTF8);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("no UTF-8 support: " + e);
+        }
+    }
+
+    /**
+     * Writes an assertion value, escaping the characters RFC 4515 requires to be escaped.
+     */
+    private static void escape(String value, StringBuilder buffer)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '*' || c == '(' || c == ')' || c == '\\' || c == 0)
+                buffer.append('\\').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            else
+                buffer.append(c);
+        }
+    }
+
+    /**
+     * Folds the case of a character the way String.equalsIgnoreCase() does, so values that
+     * are equal ignoring case always normalise to the same string.
+     */
+    private static char fold(char c)
+    {
+        return (c < 0x80) ? ((c >= 'A' && c <= 'Z') ? (char) (c + 32) : c) : Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Puts a string value in caseIgnoreMatch form: lower case, without leading or
+     * trailing spaces, and with runs of white space reduced to a single space.  (Most
+     * values are already in this form, and are returned unchanged.)
+     */
+    static String normalise(String value)
+    {
+        int len = value.length();
+        int i = 0;
+        for (; i < len; i++)
+        {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c))
+            {
+                if (c != ' ' || i == 0 || i == len - 1 || value.charAt(i - 1) == ' ')
+                    break;
+            }
+            else if (fold(c) != c)
+                break;
+        }
+        if (i == len)
+            return value;
+
+        StringBuilder buffer = new StringBuilder(len);
+        boolean space = false;
+        for (i = 0; i < len; i++)
+        {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c))
+            {
+                space = buffer.length() > 0;
+            }
+            else
+            {
+                if (space)
+                    buffer.append(' ');
+                space = false;
+                buffer.append(fold(c));
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Tests each value of an attribute (if the entry has it) with a value match.
+     */
+    abstract static class ValueMatch extends TestProviderFilter
+    {
+        final String attribute;
+
+        ValueMatch(String attribute)
+        {
+            this.attribute = attribute;
+        }
+
+        boolean matches(TreeEntry entry)
+        {
+            return matches(entry.get(attribute));
+        }
+
+        boolean matches(Attribute att)
+        {
+            if (att == null)
+                return false;
+            try
+            {
+                for (int i = 0; i < att.size(); i++)
+                {
+                    Object value = att.get(i);
+                    if (value != null && matchesValue(value))
+                        return true;
+                }
+            }
+            catch (NamingException e)     // (can't happen with BasicAttribute)
+            {
+                return false;
+            }
+            return false;
+        }
+
+        abstract boolean matchesValue(Object value);
+    }
+
+    /**
+     * (&amp;(filter)(filter)...) - true if every component is true (and so true if there are none).
+     */
+    static final class And extends TestProviderFilter
+    {
+        final TestProviderFilter[] components;
+
+        And(TestProviderFilter[] components)
+        {
+            this.components = components;
+        }
+
+        boolean matches(TreeEntry entry)
+        {
+            for (TestProviderFilter component : components)
+                if (!component.matches(entry))
+                    return false;
+            return true;
+        }
+
+        /**
+         * The candidates of the most selective indexed component.
+         */
+        Collection<TreeEntry> candidates(DataTree tree)
+        {
+            Collection<TreeEntry> best = null;
+            for (TestProviderFilter component : components)
+            {
+                Collection<TreeEntry> candidates = component.candidates(tree);
+                if (candidates != null && (best == null || candidates.size() < best.size()))
+                    best = candidates;
+            }
+            return best;
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append("(&");
+            for (TestProviderFilter component : components)
+                component.toString(buffer);
+            buffer.append(')');
+        }
+    }
+
+    /**
+     * (|(filter)(filter)...) - true if any component is true (and so false if there are none).
+     */
+    static final class Or extends TestProviderFilter
+    {
+        final TestProviderFilter[] components;
+
+        Or(TestProviderFilter[] components)
+        {
+            this.components = components;
+        }
+
+        boolean matches(TreeEntry entry)
+        {
+            for (TestProviderFilter component : components)
+                if (component.matches(entry))
+                    return true;
+            return false;
+        }
+
+        /**
+         * All the candidates of the components - as long as every one of them is indexed.
+         */
+        Collection<TreeEntry> candidates(DataTree tree)
+        {
+            Set<TreeEntry> all = AttributeIndex.newEntrySet();
+            for (TestProviderFilter component : components)
+            {
+                Collection<TreeEntry> candidates = component.candidates(tree);
+                if (candidates == null)
+                    return null;
+                all.addAll(candidates);
+            }
+            return all;
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append("(|");
+            for (TestProviderFilter component : components)
+                component.toString(buffer);
+            buffer.append(')');
+        }
+    }
+
+    /**
+     * (!(filter))
+     */
+    static final class Not extends TestProviderFilter
+    {
+        final TestProviderFilter component;
+
+        Not(TestProviderFilter component)
+        {
+            this.component = component;
+        }
+
+        boolean matches(TreeEntry entry)
+        {
+            return !component.matches(entry);
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append("(!");
+            component.toString(buffer);
+            buffer.append(')');
+        }
+    }
+
+    /**
+     * (attribute=*)
+     */
+    static final class Present extends TestProviderFilter
+    {
+        final String attribute;
+        final boolean always;       // objectClass is present in every entry
+
+        Present(String attribute)
+        {
+            this.attribute = attribute;
+            always = attribute.equalsIgnoreCase(TreeEntry.OBJECTCLASS);
+        }
+
+        boolean matches(TreeEntry entry)
+        {
+            return always || entry.get(attribute) != null;
+        }
+
+        Collection<TreeEntry> candidates(DataTree tree)
+        {
+            AttributeIndex index = always ? null : tree.getIndex(attribute);
+            return (index == null) ? null : index.getPresent();
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append('(').append(attribute).append("=*)");
+        }
+    }
+
+    /**
+     * (attribute=value)
+     */
+    static final class Equality extends ValueMatch
+    {
+        final byte[] bytes;
+        final String value;
+        final String normalised;
+
+        Equality(String attribute, byte[] bytes)
+        {
+            super(attribute);
+            this.bytes = bytes;
+            value = string(bytes);
+            normalised = normalise(value);
+        }
+
+        boolean matchesValue(Object candidate)
+        {
+            if (candidate instanceof byte[])
+                return Arrays.equals(bytes, (byte[]) candidate);
+
+            String text = candidate.toString();
+            return text.equalsIgnoreCase(value) || normalise(text).equals(normalised);
+        }
+
+        Collection<TreeEntry> candidates(DataTree tree)
+        {
+            AttributeIndex index = tree.getIndex(attribute);
+            if (index == null)
+                return null;
+
+            Collection<TreeEntry> strings = index.get(normalised);
+            Collection<TreeEntry> binaries = index.get(AttributeIndex.key(bytes));
+            if (binaries.isEmpty())
+                return strings;
+            if (strings.isEmpty())
+                return binaries;
+
+            Set<TreeEntry> both = AttributeIndex.newEntrySet();
+            both.addAll(strings);
+            both.addAll(binaries);
+            return both;
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append('(').append(attribute).append('=');
+            escape(value, buffer);
+            buffer.append(')');
+        }
+    }
+
+    /**
+     * (attribute~=value) - matched as an equality match that ignores spaces.
+     */
+    static final class Approx extends ValueMatch
+    {
+        final String value;
+        final String squashed;
+
+        Approx(String attribute, String value)
+        {
+            super(attribute);
+            this.value = value;
+            squashed = squash(value);
+        }
+
+        static String squash(String value)
+        {
+            return normalise(value).replace(" ", "");
+        }
+
+        boolean matchesValue(Object candidate)
+        {
+            return !(candidate instanceof byte[]) && squash(candidate.toString()).equals(squashed);
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append('(').append(attribute).append("~=");
+            escape(value, buffer);
+            buffer.append(')');
+        }
+    }
+
+    /**
+     * (attribute>=value) or (attribute&lt;=value) - integers are compared as numbers, everything
+     * else as case ignored strings.
+     */
+    static final class Ordering extends ValueMatch
+    {
+        final String value;
+        final String normalised;
+        final BigInteger number;      // the value, if it is an integer
+        final boolean greater;
+
+        Ordering(String attribute, String value, boolean greater)
+        {
+            super(attribute);
+            this.value = value;
+            this.greater = greater;
+            normalised = normalise(value);
+            number = toNumber(value);
+        }
+
+        static BigInteger toNumber(String value)
+        {
+            try
+            {
+                return new BigInteger(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        boolean matchesValue(Object candidate)
+        {
+            if (candidate instanceof byte[])
+                return false;
+
+            String text = candidate.toString();
+            int comparison;
+            BigInteger candidateNumber = (number == null) ? null : toNumber(text);
+            if (candidateNumber != null)
+                comparison = candidateNumber.compareTo(number);
+            else
+                comparison = normalise(text).compareTo(normalised);
+
+            return greater ? comparison >= 0 : comparison <= 0;
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append('(').append(attribute).append(greater ? ">=" : "<=");
+            escape(value, buffer);
+            buffer.append(')');
+        }
+    }
+
+    /**
+     * (attribute=initial*any*any*final) - any of the components may be empty.
+     */
+    static final class Substring extends ValueMatch
+    {
+        final String initial;
+        final String[] any;
+        final String last;
+        final String[] normalised;    // initial, any..., final
+
+        Substring(String attribute, String initial, String[] any, String last)
+        {
+            super(attribute);
+            this.initial = initial;
+            this.any = any;
+            this.last = last;
+
+            normalised = new String[any.length + 2];
+            normalised[0] = normalise(initial);
+            for (int i = 0; i < any.length; i++)
+                normalised[i + 1] = normalise(any[i]);
+            normalised[any.length + 1] = normalise(last);
+        }
+
+        boolean matchesValue(Object candidate)
+        {
+            if (candidate instanceof byte[])
+                return false;
+
+            String text = normalise(candidate.toString());
+            if (!text.startsWith(normalised[0]))
+                return false;
+
+            int pos = normalised[0].length();
+            for (int i = 1; i <= any.length; i++)
+            {
+                pos = text.indexOf(normalised[i], pos);
+                if (pos == -1)
+                    return false;
+                pos += normalised[i].length();
+            }
+
+            String end = normalised[any.length + 1];
+            return text.length() - end.length() >= pos && text.endsWith(end);
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append('(').append(attribute).append('=');
+            escape(initial, buffer);
+            for (String component : any)
+            {
+                buffer.append('*');
+                escape(component, buffer);
+            }
+            buffer.append('*');
+            escape(last, buffer);
+            buffer.append(')');
+        }
+    }
+
+    /**
+     * ([attribute][:dn][:rule]:=value) - matched as an equality match on the attribute (or on
+     * every attribute if none is given) and, with ':dn', on the attributes of the entry's name.
+     */
+    static final class Extensible extends TestProviderFilter
+    {
+        final String attribute;
+        final boolean dn;
+        final String rule;
+        final Equality equality;
+
+        Extensible(String attribute, boolean dn, String rule, byte[] value)
+        {
+            this.attribute = attribute;
+            this.dn = dn;
+            this.rule = rule;
+            equality = new Equality(attribute, value);
+        }
+
+        boolean matches(TreeEntry entry)
+        {
+            if (matches((Attributes) entry))
+                return true;
+
+            if (dn)
+            {
+                Name name = entry.getName();
+                try
+                {
+                    LdapName ldapName = (name instanceof LdapName) ? (LdapName) name : new LdapName(name.toString());
+                    for (Rdn rdn : ldapName.getRdns())
+                        if (matches(rdn.toAttributes()))
+                            return true;
+                }
+                catch (NamingException e)
+                {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        Collection<TreeEntry> candidates(DataTree tree)
+        {
+            return (attribute == null || dn) ? null : equality.candidates(tree);
+        }
+
+        private boolean matches(Attributes atts)
+        {
+            if (attribute != null)
+                return equality.matches(atts.get(attribute));
+
+            NamingEnumeration all = atts.getAll();
+            while (all.hasMoreElements())
+                if (equality.matches((Attribute) all.nextElement()))
+                    return true;
+            return false;
+        }
+
+        void toString(StringBuilder buffer)
+        {
+            buffer.append('(');
+            if (attribute != null)
+                buffer.append(attribute);
+            if (dn)
+                buffer.append(":dn");
+            if (rule != null)
+                buffer.append(':').append(rule);
+            buffer.append(":=");
+            escape(equality.value, buffer);
+            buffer.append(')');
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.pegacat.testprovider;
+
+import junit.framework.*;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.InvalidSearchFilterException;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapName;
+import java.util.Hashtable;
+
+/**
+ *  Checks the compiled (RFC 4515) search filters used by the test provider.
+ */
+public class TestProviderFilterTest extends TestCase
+{
+    TreeEntry fred;
+    TreeEntry research;
+
+    public TestProviderFilterTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(TestProviderFilterTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp()
+        throws NamingException
+    {
+        research = new TreeEntry(new LdapName("ou=research,o=pegacat,c=au"), new String[] {"objectClass", "organizationalUnit", "ou", "research"});
+
+        fred = new TreeEntry(new LdapName("cn=Fred Bloggs,ou=research,o=pegacat,c=au"),
+                new String[] {"objectClass", "person", "cn", "Fred Bloggs", "sn", "Bloggs", "uid", "774",
+                              "description", "Likes (round) brackets, * stars and \\ slashes", "favouriteDrink", "Japanese Slipper"});
+        fred.get("objectClass").add("inetOrgPerson");
+        fred.get("cn").add("Freddy  the   Frog");
+        fred.put(new BasicAttribute("jpegPhoto", new byte[] {(byte) 0xFF, (byte) 0xD8, 0x2A, 0x00}));
+    }
+
+    private boolean matches(String filter, TreeEntry entry)
+        throws InvalidSearchFilterException
+    {
+        return TestProviderFilter.compile(filter).matches(entry);
+    }
+
+    public void testParse()
+        throws Exception
+    {
+        String[] filters = {"(cn=Fred)", "(&(objectClass=person)(|(sn=Jensen)(cn=Babs J*)))", "(!(cn=Tim Howes))",
+                            "(&(a=1)(b=2)(c=3)(d=4))", "(|(a=1)(b=2)(c=3))", "(&)", "(|)",
+                            "(o=Parens R Us \\28for all your parenthetical needs\\29)", "(cn=*\\2a*)", "(filename=C:\\5cMyFile)",
+                            "(sn=*)", "(cn=A*)", "(cn=*z)", "(cn=a*b*c*d)", "(uid>=100)", "(uid<=100)", "(sn~=blogs)",
+                            "(cn:caseExactMatch:=Fred Flintstone)", "(cn:=Betty Rubble)", "(sn:dn:2.4.6.8.10:=Barney Rubble)",
+                            "(o:dn:=Ace Industry)", "(:1.2.3:=Wilma Flintstone)", "(:dn:2.4.6.8.10:=Dino)"};
+        for (String filter : filters)
+            assertEquals(filter, filter, TestProviderFilter.compile(filter).toString());
+
+        // the ones that are written back slightly differently
+        assertEquals("(cn=Fred)", TestProviderFilter.compile("cn=Fred").toString());
+        assertEquals("(objectClass=*)", TestProviderFilter.compile("").toString());
+        assertEquals("(!(cn=Fred))", TestProviderFilter.compile("(!cn=Fred)").toString());
+        assertEquals("(:dn:2.4.6.8.10:=Dino)", TestProviderFilter.compile("(:DN:2.4.6.8.10:=Dino)").toString());
+        assertEquals("(&(cn=Fred)(sn=Bloggs))", TestProviderFilter.compile(" (& (cn=Fred) (sn=Bloggs) ) ").toString());
+        assertEquals("(cn=a\\2ab)", TestProviderFilter.compile("(cn=a\\*b)").toString());     // RFC 2254 escape
+        assertEquals("(cn=\u5c0f\u7b20)", TestProviderFilter.compile("(cn=\\e5\\b0\\8f\\E7\\AC\\A0)").toString());
+
+        String[] bad = {"(cn=Fred", "(cn=Fred))", "(=Fred)", "(cn)", "(cn~Fred)", "(cn=Fr(ed)", "(cn=\\4)", "(cn=\\q1)",
+                        "(&(cn=Fred)", "(cn::=Fred)", "(:=Fred)", "(cn:a:b:=Fred)", "cn=Fred)"};
+        for (String filter : bad)
+        {
+            try
+            {
+                TestProviderFilter.compile(filter);
+                fail("expected an InvalidSearchFilterException for " + filter);
+            }
+            catch (InvalidSearchFilterException e) {}
+        }
+    }
+
+    public void testEqualityAndPresence()
+        throws Exception
+    {
+        assertTrue(matches("(cn=Fred Bloggs)", fred));
+        assertTrue(matches("(CN=fred bloggs)", fred));
+        assertTrue(matches("(cn=  fred   BLOGGS )", fred));
+        assertTrue(matches("(cn=freddy the frog)", fred));             // the second value
+        assertTrue(matches("(objectClass=inetorgperson)", fred));
+        assertFalse(matches("(cn=Fred)", fred));
+        assertFalse(matches("(mail=Fred Bloggs)", fred));
+
+        assertTrue(matches("(description=Likes \\28round\\29 brackets, \\2a stars and \\5c slashes)", fred));
+        assertTrue(matches("(jpegPhoto=\\ff\\d8\\2a\\00)", fred));
+        assertFalse(matches("(jpegPhoto=\\ff\\d8\\2a)", fred));
+
+        assertTrue(matches("(sn=*)", fred));
+        assertTrue(matches("(jpegPhoto=*)", fred));
+        assertFalse(matches("(sn=*)", research));
+        assertTrue(matches("(objectClass=*)", new TreeEntry(new LdapName("cn=bare"), new String[0])));
+    }
+
+    public void testSubstrings()
+        throws Exception
+    {
+        assertTrue(matches("(cn=Fred*)", fred));
+        assertTrue(matches("(cn=*bloggs)", fred));
+        assertTrue(matches("(cn=*ed Bl*)", fred));
+        assertTrue(matches("(cn=F*d*B*s)", fred));
+        assertTrue(matches("(cn=f*the*frog)", fred));
+        assertTrue(matches("(cn=fred*bloggs)", fred));
+        assertTrue(matches("(description=*\\2a star*)", fred));
+        assertTrue(matches("(description=*\\28round\\29*)", fred));
+
+        assertFalse(matches("(cn=Bloggs*)", fred));
+        assertFalse(matches("(cn=*Fred)", fred));
+        assertFalse(matches("(cn=F*s*B*d)", fred));           // components must be in order...
+        assertFalse(matches("(cn=fred bl*bloggs)", fred));    // ... and may not overlap
+        assertFalse(matches("(uid=77*74)", fred));
+        assertFalse(matches("(jpegPhoto=*\\2a*)", fred));     // no substrings of binary values
+    }
+
+    public void testOrderingAndApprox()
+        throws Exception
+    {
+        assertTrue(matches("(uid>=774)", fred));
+        assertTrue(matches("(uid<=774)", fred));
+        assertTrue(matches("(uid>=99)", fred));                 // as numbers...
+        assertFalse(matches("(uid<=99)", fred));
+        assertTrue(matches("(uid<=1000)", fred));
+        assertTrue(matches("(sn>=b)", fred));                   // ... and as strings, ignoring case
+        assertTrue(matches("(sn<=BLOGGS)", fred));
+        assertFalse(matches("(sn>=c)", fred));
+        assertFalse(matches("(mail>=a)", fred));
+
+        assertTrue(matches("(favouriteDrink~=japaneseslipper)", fred));
+        assertTrue(matches("(favouriteDrink~= Japanese  Slipper )", fred));
+        assertFalse(matches("(favouriteDrink~=Japanese Slippers)", fred));
+    }
+
+    public void testExtensible()
+        throws Exception
+    {
+        assertTrue(matches("(sn:=Bloggs)", fred));
+        assertTrue(matches("(sn:caseExactMatch:=Bloggs)", fred));    // (the rule is ignored)
+        assertTrue(matches("(:1.2.3:=774)", fred));                  // any attribute
+        assertFalse(matches("(ou:=research)", fred));
+        assertTrue(matches("(ou:dn:=research)", fred));              // the entry's name counts with :dn
+        assertTrue(matches("(:dn:1.2.3:=pegacat)", fred));
+        assertFalse(matches("(o:dn:=apache)", fred));
+    }
+
+    public void testBooleans()
+        throws Exception
+    {
+        assertTrue(matches("(&(objectClass=person)(sn=Bloggs)(uid=774)(cn=Fred*))", fred));
+        assertFalse(matches("(&(objectClass=person)(sn=Bloggs)(uid=775)(cn=Fred*))", fred));
+        assertTrue(matches("(|(sn=Smith)(sn=Jones)(sn=Bloggs))", fred));
+        assertFalse(matches("(|(sn=Smith)(sn=Jones)(sn=Brown))", fred));
+        assertTrue(matches("(&(!(|(cn=Fred)(cn=Nigel)))(objectClass=person))", fred));
+        assertFalse(matches("(!(objectClass=*))", fred));
+        assertTrue(matches("(&)", fred));
+        assertFalse(matches("(|)", fred));
+    }
+
+    /**
+     * Checks the search operations use the compiled filter, and reject bad filters.
+     */
+    public void testSearch()
+        throws Exception
+    {
+        TestProviderContext ctx = (TestProviderContext) new TestProviderContextFactory().getInitialContext(new Hashtable());
+        ctx.createSubcontext(research.getName(), research);
+        ctx.createSubcontext(fred.getName(), fred);
+
+        SearchControls subtree = new SearchControls();
+        subtree.setSearchScope(SearchControls.SUBTREE_SCOPE);
+
+        NamingEnumeration results = ctx.search("o=pegacat,c=au", "(|(ou=research)(&(objectClass=person)(uid>=100)))", subtree);
+        int count = 0;
+        while (results.hasMore())
+        {
+            results.next();
+            count++;
+        }
+        assertEquals(2, count);
+
+        assertFalse(ctx.search("o=pegacat,c=au", "(&(ou=research)(uid>=100))", subtree).hasMore());
+
+        try
+        {
+            ctx.search("o=pegacat,c=au", "(|(ou=research)", subtree);
+            fail("expected an InvalidSearchFilterException");
+        }
+        catch (InvalidSearchFilterException e) {}
+    }
+}
@@ -32,6 +32,7 @@ public class TestProviderTestSuite extends TestCase {
         suite.addTest(TestProviderContextTest.suite());
         suite.addTest(TreeEntryTest.suite());
         suite.addTest(DataTreeTest.suite());
+        suite.addTest(TestProviderFilterTest.suite());
         return suite;
     }
 
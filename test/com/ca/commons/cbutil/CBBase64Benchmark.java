@@ -0,0 +1,284 @@
+package com.ca.commons.cbutil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Times base64 encoding and decoding of large binary values (a jpegPhoto and a userCertificate),
+ * LDIF folded as for an export, and unbroken as for DSML - with the table driven CBBase64 and its
+ * streams, against the CBBase64 code it replaced.  The old LDIF formatting inserted each line
+ * fold into a string buffer, moving the rest of the value every time, so took time proportional
+ * to the square of the value's length; it is timed on smaller samples.
+ *
+ * Run from the command line:
+ * <pre>
+ * java com.ca.commons.cbutil.CBBase64Benchmark [value size in MB] [rounds]
+ * </pre>
+ */
+public class CBBase64Benchmark
+{
+    /**
+     * The original encoder, formatter and decoder, kept for comparison.
+     */
+    static class Old
+    {
+        static String binaryToString(byte[] byteArray, int offset)
+        {
+            byte[] base64Data = encode(byteArray);
+            String data = new String(base64Data);
+            StringBuffer buffer = new StringBuffer(data);
+            int i = 76 - offset;
+            while (i < base64Data.length)
+            {
+                buffer.insert(i, "\n ");
+                i += 77;
+            }
+            return buffer.toString();
+        }
+
+        static byte[] encode(byte[] byteArray)
+        {
+            int arraySize = byteArray.length;
+            byte[] output = new byte[((arraySize + 2) / 3) * 4];
+            int bufferLength = 0;
+            for (int i = 0; i <= (arraySize - 3); i += 3)
+            {
+                convertTriplet(byteArray[i], byteArray[i + 1], byteArray[i + 2], 3, output, bufferLength);
+                bufferLength += 4;
+            }
+            if (arraySize % 3 == 1)
+                convertTriplet(byteArray[arraySize - 1], (byte) 0, (byte) 0, 1, output, bufferLength);
+            else if (arraySize % 3 == 2)
+                convertTriplet(byteArray[arraySize - 2], byteArray[arraySize - 1], (byte) 0, 2, output, bufferLength);
+            return output;
+        }
+
+        static byte[] decode(String chars)
+        {
+            byte[] rawData = chars.getBytes();
+            byte result[] = new byte[(int) (rawData.length * .75)];
+            int noBytesWritten = 0;
+            byte quad[] = new byte[4];
+            int numfound = 0;
+            for (int i = 0; i < rawData.length; i++)
+            {
+                byte c = rawData[i];
+                if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || (c == '+') || (c == '/') || (c == '='))
+                    quad[numfound++] = c;
+                else if (" \r\n\t\f".indexOf((char) c) == -1)
+                    return null;
+
+                if (numfound == 4)
+                {
+                    int bytes = (convertTo6Bit(quad[0]) << 18) + (convertTo6Bit(quad[1]) << 12) + (convertTo6Bit(quad[2]) << 6) + convertTo6Bit(quad[3]);
+                    result[noBytesWritten++] = (byte) ((bytes & 0xFF0000) >> 16);
+                    if (c != '=')
+                    {
+                        result[noBytesWritten++] = (byte) ((bytes & 0xFF00) >> 8);
+                        result[noBytesWritten++] = (byte) (bytes & 0xFF);
+                    }
+                    else if (rawData[i - 1] != '=')
+                        result[noBytesWritten++] = (byte) ((bytes & 0xFF00) >> 8);
+                    numfound = 0;
+                }
+            }
+            byte finalResult[] = new byte[noBytesWritten];
+            System.arraycopy(result, 0, finalResult, 0, noBytesWritten);
+            return finalResult;
+        }
+
+        private static void convertTriplet(byte a, byte b, byte c, int Num, byte[] buff, int buffpos)
+        {
+            int trip = (a << 16) | ((b << 8) & 0xFF00) | (c & 0xFF);
+            buff[buffpos] = convertFrom6Bit((byte) ((trip & 0xFC0000) >> 18));
+            buff[buffpos + 1] = convertFrom6Bit((byte) ((trip & 0x03F000) >> 12));
+            buff[buffpos + 2] = (Num == 1) ? (byte) '=' : convertFrom6Bit((byte) ((trip & 0x000FC0) >> 6));
+            buff[buffpos + 3] = (Num < 3) ? (byte) '=' : convertFrom6Bit((byte) (trip & 0x00003F));
+        }
+
+        private static byte convertFrom6Bit(byte b)
+        {
+            if (b < 26)
+                return (byte) ('A' + b);
+            else if (b < 52)
+                return (byte) (('a' - 26) + b);
+            else if (b < 62)
+                return (byte) (('0' - 52) + b);
+            else
+                return (b == 62) ? (byte) '+' : (byte) '/';
+        }
+
+        private static byte convertTo6Bit(byte c)
+        {
+            if (c == '+')
+                return 62;
+            else if (c == '/')
+                return 63;
+            else if (c == '=')
+                return 0;
+            else if (c <= '9')
+                return (byte) (c - '0' + 52);
+            else if (c <= 'Z')
+                return (byte) (c - 'A');
+            else
+                return (byte) (c - 'a' + 26);
+        }
+    }
+
+    /**
+     * Somewhere to stream encoded characters to (e.g. standing in for an LDIF file).
+     */
+    static class CountingWriter extends Writer
+    {
+        long count = 0;
+
+        public void write(char[] cbuf, int off, int len)
+        {
+            count += len;
+        }
+
+        public void flush() {}
+
+        public void close() {}
+    }
+
+    private static int rounds;
+
+    private static long best;
+
+    private static String report(String name, long bytes)
+    {
+        return name + (best / 1000000) + " ms (" + (bytes * 1000 / Math.max(best, 1)) + " MB/s)";
+    }
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        int size = ((args.length > 0) ? Integer.parseInt(args[0]) : 10) * 1024 * 1024;
+        rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        Random random = new Random(42);
+        byte[] photo = new byte[size];
+        byte[] certificate = new byte[size];
+        random.nextBytes(photo);
+        random.nextBytes(certificate);
+
+        System.out.println("encoding and decoding " + size / (1024 * 1024) + " MB jpegPhoto and userCertificate values, best of " + rounds + " rounds");
+
+        // LDIF: each value folded, on to the end of the entry's text
+
+        best = Long.MAX_VALUE;
+        String folded = null;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            StringBuffer entry = new StringBuffer("dn: cn=Fred,o=pegacat,c=au\n");
+            entry.append("jpegPhoto:: ").append(CBBase64.binaryToString(photo, 12)).append('\n');
+            entry.append("userCertificate;binary:: ").append(CBBase64.binaryToString(certificate, 25)).append('\n');
+            best = Math.min(best, System.nanoTime() - start);
+            folded = entry.toString();
+        }
+        System.out.println(report("binaryToString (LDIF):    ", 2L * size));
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            StringBuffer entry = new StringBuffer("dn: cn=Fred,o=pegacat,c=au\n");
+            CBBase64.encode(photo, entry.append("jpegPhoto:: "), CBBase64.LDIF_LINE_LENGTH, 12).append('\n');
+            CBBase64.encode(certificate, entry.append("userCertificate;binary:: "), CBBase64.LDIF_LINE_LENGTH, 25).append('\n');
+            best = Math.min(best, System.nanoTime() - start);
+            if (!entry.toString().equals(folded))
+                throw new IllegalStateException("encodings differ");
+        }
+        System.out.println(report("encode into buffer:       ", 2L * size));
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            CountingWriter file = new CountingWriter();
+            CBBase64.EncoderStream encoder = new CBBase64.EncoderStream(file, CBBase64.LDIF_LINE_LENGTH, 12);
+            for (int i = 0; i < size; i += 4096)                // as if read from a file
+                encoder.write(photo, i, Math.min(4096, size - i));
+            encoder.finish();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(report("EncoderStream to Writer:  ", size));
+
+        for (int sample = size / 256; sample <= size / 16; sample *= 4)
+        {
+            byte[] part = new byte[sample];
+            System.arraycopy(photo, 0, part, 0, sample);
+            long start = System.nanoTime();
+            Old.binaryToString(part, 12);
+            best = System.nanoTime() - start;
+            System.out.println(report("old binaryToString, " + sample / 1024 + " KB: ", sample));
+        }
+
+        // DSML: unbroken values
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            StringBuffer message = new StringBuffer(100);
+            CBBase64.encode(photo, message, 0, 0);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(report("encode (DSML):            ", size));
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            new StringBuffer(100).append(new String(Old.encode(photo), "US-ASCII"));
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(report("old encode (DSML):        ", size));
+
+        // decoding, folded values
+
+        String photoText = folded.substring(folded.indexOf("jpegPhoto:: ") + 12, folded.indexOf("\nuserCertificate"));
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            byte[] decoded = CBBase64.stringToBinary(photoText);
+            best = Math.min(best, System.nanoTime() - start);
+            if (decoded.length != size)
+                throw new IllegalStateException("decoded " + decoded.length + " bytes");
+        }
+        System.out.println(report("decode:                   ", size));
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+            CBBase64.DecoderWriter decoder = new CBBase64.DecoderWriter(bytes);
+            char[] block = new char[8192];
+            for (int i = 0; i < photoText.length(); i += block.length)     // as if read from a file
+            {
+                int len = Math.min(block.length, photoText.length() - i);
+                photoText.getChars(i, i + len, block, 0);
+                decoder.write(block, 0, len);
+            }
+            decoder.close();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(report("DecoderWriter:            ", size));
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            Old.decode(photoText);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(report("old decode:               ", size));
+    }
+}
@@ -0,0 +1,170 @@
+package com.ca.commons.naming;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Measures the common DN operations - parsing, equals() (the first time, when the normalised
+ * RDNs are worked out, and again), hashCode() (as HashMap lookups),
+ * getParent() and compareTo() - on a set of realistic DNs, and compares parsing, equality and
+ * getParent() with the way DN used to do them (a Vector of RDNs, built by inserting each
+ * parsed RDN at the front; an RDN by RDN, case folding, comparison; and a parent made by
+ * copying the whole DN).
+ *
+ * Run from the command line:
+ * <pre>
+ * java com.ca.commons.naming.DNBenchmark [DNs] [rounds]
+ * </pre>
+ * Each round runs every operation over all the DNs, after a few warm up rounds; the best
+ * time per operation is reported, in nanoseconds per DN.
+ *
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class DNBenchmark
+{
+    static String[] makeDNs(int count)
+    {
+        String[] dns = new String[count];
+        for (int i = 0; i < count; i++)
+            dns[i] = "cn=Person " + ((i * 7919L) % count) + "+uid=p" + i + ",ou=Department " + (i % 50) +
+                     ",ou=Staff\\, Contractors and Visitors,o=Pegacat Software,l=Melbourne,c=AU";
+        return dns;
+    }
+
+    /**
+     * The old DN(String) parse: each RDN inserted at the front of a Vector.
+     */
+    static Vector parseOld(String ldapDN)
+    {
+        Vector rdns = new Vector();
+        int start = 0;
+        int end = NameUtility.next(ldapDN, 0, ',');
+        while (end != -1)
+        {
+            rdns.add(0, new RDN(ldapDN.substring(start, end)));
+            start = end + 1;
+            end = NameUtility.next(ldapDN, start, ',');
+        }
+        rdns.add(0, new RDN(ldapDN.substring(start).trim()));
+        return rdns;
+    }
+
+    /**
+     * The old RDN.equals(RDN): every attribute and (unescaped) value compared, ignoring case, each time.
+     */
+    static boolean equalsOld(DN a, DN b)
+    {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++)
+        {
+            RDN x = a.getRDN(i);
+            RDN y = b.getRDN(i);
+            if (x.size() != y.size())
+                return false;
+            for (int j = 0; j < x.size(); j++)
+                if (!x.getAttID(j).equalsIgnoreCase(y.getAttID(j)) || !x.getRawVal(j).equalsIgnoreCase(y.getRawVal(j)))
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * The old DN.getParent(): a full copy (re-parsing each RDN), less the lowest RDN.
+     */
+    static Vector getParentOld(DN dn)
+    {
+        Vector rdns = new Vector();
+        for (int i = 0; i < dn.size(); i++)
+            rdns.add(new RDN(dn.get(i)));
+        rdns.removeElementAt(rdns.size() - 1);
+        return rdns;
+    }
+
+    static DN[] parse(String[] dns)
+    {
+        DN[] parsed = new DN[dns.length];
+        for (int i = 0; i < dns.length; i++)
+            parsed[i] = new DN(dns[i]);
+        return parsed;
+    }
+
+    public static void main(String[] args)
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        String[] strings = makeDNs(count);
+        String[] upper = new String[count];
+        for (int i = 0; i < count; i++)
+            upper[i] = strings[i].toUpperCase();
+
+        String[] names = {"parse (old)", "parse", "equals (old)", "equals", "equals (again)", "hashCode (map get)", "getParent (old)", "getParent", "compareTo (sort)"};
+        long[] best = new long[names.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+
+        int checks = 0;   // (keeps the results 'used', so the work can't be optimised away)
+        for (int round = -3; round < rounds; round++)
+        {
+            long[] times = new long[names.length];
+            long start = System.nanoTime();
+
+            for (String dn : strings)
+                checks += parseOld(dn).size();
+            times[0] = System.nanoTime();
+
+            DN[] dns = parse(strings);
+            times[1] = System.nanoTime();
+
+            DN[] others = parse(upper);       // (not timed)
+            long mark = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                if (equalsOld(dns[i], others[i]))
+                    checks++;
+            times[2] = System.nanoTime();
+
+            for (int i = 0; i < count; i++)
+                if (dns[i].equals(others[i]))
+                    checks++;
+            times[3] = System.nanoTime();
+
+            for (int i = 0; i < count; i++)
+                if (dns[i].equals(others[i]))
+                    checks++;
+            times[4] = System.nanoTime();
+
+            HashMap<DN, DN> map = new HashMap<DN, DN>();
+            for (DN dn : dns)
+                map.put(dn, dn);
+            for (DN dn : others)
+                if (map.get(dn) != null)
+                    checks++;
+            times[5] = System.nanoTime();
+
+            for (DN dn : dns)
+                checks += getParentOld(dn).size();
+            times[6] = System.nanoTime();
+
+            for (DN dn : dns)
+                checks += dn.getParent().size();
+            times[7] = System.nanoTime();
+
+            Arrays.sort(dns);
+            times[8] = System.nanoTime();
+
+            for (int i = 0; i < names.length; i++)
+            {
+                long from = (i == 0) ? start : (i == 2) ? mark : times[i - 1];
+                if (round >= 0)
+                    best[i] = Math.min(best[i], times[i] - from);
+            }
+        }
+
+        for (int i = 0; i < names.length; i++)
+            System.out.println(names[i] + ": " + (best[i] / count) + " ns per DN");
+
+        if (checks == 0)
+            System.out.println("unexpected: no DNs matched");
+    }
+}
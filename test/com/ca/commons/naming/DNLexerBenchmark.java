@@ -0,0 +1,44 @@
+package com.ca.commons.naming;
+
+/**
+ * Compares the time taken to split DNs into RDNs, and the RDNs into elements, with the
+ * single pass DNLexer and with repeated calls to NameUtility.next() (the parsing it
+ * replaced, as kept by DNLexerTest).
+ *
+ * Run from the command line (with junit.jar on the class path, for DNLexerTest):
+ * <pre>
+ * java com.ca.commons.naming.DNLexerBenchmark [DNs] [rounds]
+ * </pre>
+ * The best time of the rounds is reported.
+ */
+public class DNLexerBenchmark
+{
+    public static void main(String[] args)
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        String[] dns = DNBenchmark.makeDNs(count);
+        long best = Long.MAX_VALUE, bestOld = Long.MAX_VALUE;
+        int elements = 0, elementsOld = 0;
+        for (int round = 0; round < rounds; round++)
+        {
+            long start = System.nanoTime();
+            for (String dn : dns)
+                for (String rdn : DNLexerTest.splitOld(dn))
+                    elementsOld += DNLexerTest.elementsOld(new RDN(rdn).toString()).size();
+            long middle = System.nanoTime();
+            for (String dn : dns)
+                for (RDN rdn : DNLexer.parseDN(dn))
+                    elements += rdn.size();
+            long end = System.nanoTime();
+
+            bestOld = Math.min(bestOld, middle - start);
+            best = Math.min(best, end - middle);
+        }
+        if (elements != elementsOld)
+            throw new IllegalStateException("found " + elements + " elements, expected " + elementsOld);
+
+        System.out.println("split " + dns.length + " DNs: with next() " + bestOld / 1000000 + " ms, with DNLexer " + best / 1000000 + " ms");
+    }
+}
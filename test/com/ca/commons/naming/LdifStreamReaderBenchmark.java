@@ -0,0 +1,172 @@
+package com.ca.commons.naming;
+
+import com.ca.commons.cbutil.CBBase64;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+
+/**
+ * Compares the time taken to read a large, binary-heavy LDIF file, and decode its base64
+ * values, with the LdifStreamReader and with the reader it replaced (which joined folded
+ * lines by string concatenation).
+ *
+ * Run from the command line:
+ * <pre>
+ * java com.ca.commons.naming.LdifStreamReaderBenchmark [entries] [photo size in bytes] [rounds]
+ * </pre>
+ * Each round reads the whole file with each reader, after a few warm up rounds; the best
+ * time per reader is reported.
+ *
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class LdifStreamReaderBenchmark
+{
+    /**
+     * The original line joining code, kept for comparison.
+     */
+    static class ConcatenatingReader extends LineNumberReader
+    {
+        String nextLine;
+
+        ConcatenatingReader(Reader reader)
+                throws IOException
+        {
+            super(reader);
+            nextLine = super.readLine();
+        }
+
+        public String readLine()
+                throws IOException
+        {
+            if (nextLine == null)
+                return null;
+
+            String current = "";
+            do
+            {
+                current = current + nextLine;
+                nextLine = super.readLine();
+            }
+            while (nextLineContinues());
+
+            return current;
+        }
+
+        private boolean nextLineContinues()
+        {
+            if (nextLine == null)
+                return false;
+
+            int len = nextLine.length();
+            if (len>0 && nextLine.charAt(0)==' ')
+            {
+                nextLine = nextLine.substring(1);
+                if (len>1 && nextLine.charAt(0) == '>')
+                    nextLine = "\n" + ((len>2)?nextLine.substring(1):"");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Makes an LDIF file of people with photos and certificates.
+     */
+    static String makeLdif(int entries, int photoSize)
+    {
+        Random random = new Random(42);
+        byte[] photo = new byte[photoSize];
+        byte[] certificate = new byte[photoSize / 4];
+
+        StringBuffer ldif = new StringBuffer("version: 1\n\n");
+        for (int i = 0; i < entries; i++)
+        {
+            random.nextBytes(photo);
+            random.nextBytes(certificate);
+            photo[0] = certificate[0] = (byte) 0xFF;
+            ldif.append("dn: cn=person").append(i).append(",ou=people,o=test\n")
+                .append("objectClass: top\nobjectClass: inetOrgPerson\n")
+                .append("cn: person").append(i).append("\nsn: benchmark\n")
+                .append("jpegPhoto:: ").append(CBBase64.binaryToString(photo, 12)).append('\n')
+                .append("userCertificate;binary:: ").append(CBBase64.binaryToString(certificate, 25)).append("\n\n");
+        }
+        return ldif.toString();
+    }
+
+    /**
+     * Reads the file with the original reader, decoding base64 values the original way
+     * (via a substring of the line).
+     */
+    static long timeConcatenating(String ldif)
+            throws Exception
+    {
+        long start = System.nanoTime();
+        ConcatenatingReader reader = new ConcatenatingReader(new StringReader(ldif));
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            int pos = line.indexOf("::");
+            if (pos > 0 && CBBase64.stringToBinary(line.substring(pos + 3)) == null)
+                throw new IOException("bad base64 data in line: " + reader.getLineNumber());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Reads the file with the LdifStreamReader, decoding base64 values straight from its buffer.
+     */
+    static long timeStreaming(String ldif)
+            throws Exception
+    {
+        long start = System.nanoTime();
+        LdifStreamReader reader = new LdifStreamReader(new StringReader(ldif));
+        CharSequence line;
+        while ((line = reader.readJoinedLine()) != null)
+        {
+            int pos = indexOfBase64(line);
+            if (pos > 0 && CBBase64.decode(line, pos + 3, line.length()) == null)
+                throw new IOException("bad base64 data in line: " + reader.getLineNumber());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int indexOfBase64(CharSequence text)
+    {
+        int end = text.length() - 1;
+        for (int i = 0; i < end; i++)
+            if (text.charAt(i) == ':')
+                return (text.charAt(i + 1) == ':') ? i : -1;
+        return -1;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int photoSize = (args.length > 1) ? Integer.parseInt(args[1]) : 64 * 1024;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+        String ldif = makeLdif(entries, photoSize);
+        System.out.println("reading " + entries + " entries, " + (ldif.length() / 1024) + "KB of LDIF, " + rounds + " rounds");
+
+        for (int i = 0; i < 2; i++)          // warm up
+        {
+            timeConcatenating(ldif);
+            timeStreaming(ldif);
+        }
+
+        long concatenating = Long.MAX_VALUE;
+        long streaming = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++)
+        {
+            concatenating = Math.min(concatenating, timeConcatenating(ldif));
+            streaming = Math.min(streaming, timeStreaming(ldif));
+        }
+
+        System.out.println("concatenating reader: " + (concatenating / 1000000) + " ms");
+        System.out.println("streaming reader:     " + (streaming / 1000000) + " ms");
+    }
+}
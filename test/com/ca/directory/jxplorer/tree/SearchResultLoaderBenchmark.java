@@ -0,0 +1,103 @@
+package com.ca.directory.jxplorer.tree;
+
+import com.ca.commons.naming.DN;
+import com.ca.commons.naming.DXNamingEnumeration;
+import com.ca.commons.naming.RDN;
+import com.ca.directory.jxplorer.JXConfig;
+
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Measures the time taken to display a large search result in a search tree, both the
+ * old way (one SmartTree.addNode() style insert, sort and structure change per result)
+ * and with the batching SearchResultLoader, and for the loader, the time until the first
+ * results were displayed and the total time spent on the swing thread.
+ *
+ * Run from the command line:
+ * <pre>
+ * java com.ca.directory.jxplorer.tree.SearchResultLoaderBenchmark [results] [results loaded the old way] [batch size]
+ * </pre>
+ * The old way takes time proportional to the square of the number of results, so it is only
+ * run on the first few thousand.
+ *
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class SearchResultLoaderBenchmark
+{
+    /**
+     * Makes a search result of people, spread over ten branches of a two level tree.
+     */
+    static DXNamingEnumeration makeResults(int count)
+    {
+        DXNamingEnumeration results = new DXNamingEnumeration();
+        for (int i = 0; i < count; i++)
+            results.add(new SearchResult("cn=person" + i + ",ou=branch" + (i % 10) + ",o=benchmark", null, new BasicAttributes(), false));
+        return results;
+    }
+
+    /**
+     * Adds the results one at a time, as SmartTree.addNode() does.
+     */
+    static long timeOneAtATime(DXNamingEnumeration results)
+    {
+        long start = System.nanoTime();
+        SmartNode root = new SmartNode("");
+        root.setRoot(true);
+        SmartModel model = new SmartModel(root);
+
+        while (results.hasMoreElements())
+        {
+            DN dn = new DN(((SearchResult) results.nextElement()).getName());
+            SmartNode parent = root;
+            for (int i = 0; i < dn.size(); i++)
+            {
+                RDN rdn = dn.getRDN(i);
+                SmartNode child = null;
+                Enumeration children = parent.children();
+                while (children.hasMoreElements() && child == null)
+                {
+                    SmartNode next = (SmartNode) children.nextElement();
+                    if (next.rdnEquals(rdn))
+                        child = next;
+                }
+                if (child == null)
+                {
+                    child = new SmartNode(rdn);
+                    parent.add(child);
+                    parent.sort();
+                    model.nodeStructureChanged(parent);
+                }
+                parent = child;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args)
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int oldCount = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+        int batchSize = (args.length > 2) ? Integer.parseInt(args[2]) : SearchResultLoader.DEFAULT_BATCH_SIZE;
+
+        JXConfig.setupProperties(new Properties());
+
+        System.out.println("one at a time, " + oldCount + " results: " + (timeOneAtATime(makeResults(oldCount)) / 1000000) + " ms");
+
+        SmartNode root = new SmartNode("");
+        root.setRoot(true);
+        SearchResultLoader loader = new SearchResultLoader(makeResults(count), new SmartModel(root), root, batchSize)
+        {
+            protected void deliver(List<Result> batch, boolean last)
+            {
+                batchReady(batch, last);
+            }
+        };
+        loader.run();
+
+        System.out.println("batched, " + count + " results: " + loader.getTotalMillis() + " ms; first results after " + loader.getFirstResultMillis() + " ms, " + loader.getUIMillis() + " ms adding to the tree");
+    }
+}
@@ -0,0 +1,116 @@
+package com.ca.directory.jxplorer.tree;
+
+import com.ca.commons.naming.DN;
+import com.ca.commons.naming.RDN;
+import com.ca.directory.jxplorer.JXConfig;
+
+import java.util.Enumeration;
+import java.util.Properties;
+
+/**
+ * Measures the time taken to expand a large, flat container in the browse tree (i.e. to add
+ * each child after checking it isn't there already, as SmartTree.addCutting() does, then sort
+ * them) and then to find every child by DN, both with the old linear scan of the children
+ * and with the SmartNode child index.
+ *
+ * Run from the command line:
+ * <pre>
+ * java com.ca.directory.jxplorer.tree.SmartNodeBenchmark [children] [children for the linear scan]
+ * </pre>
+ * The linear scan takes time proportional to the square of the number of children, so by
+ * default it is only run on a twentieth of them.
+ *
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class SmartNodeBenchmark
+{
+    static RDN[] makeRDNs(int count)
+    {
+        RDN[] rdns = new RDN[count];
+        for (int i = 0; i < count; i++)
+            rdns[i] = new RDN("cn=person" + ((i * 7919L) % count));
+        return rdns;
+    }
+
+    /**
+     * The old SmartNode.hasChild(String).
+     */
+    static boolean hasChildLinear(SmartNode parent, String testRDN)
+    {
+        Enumeration children = parent.children();
+        while (children.hasMoreElements())
+            if (testRDN.equalsIgnoreCase(children.nextElement().toString()))
+                return true;
+        return false;
+    }
+
+    /**
+     * The old SmartModel.getNodeForDN(), for a single level.
+     */
+    static SmartNode getChildLinear(SmartNode parent, RDN rdn)
+    {
+        Enumeration children = parent.children();
+        while (children.hasMoreElements())
+        {
+            SmartNode child = (SmartNode) children.nextElement();
+            if (child.rdnEquals(rdn))
+                return child;
+        }
+        return null;
+    }
+
+    static SmartModel makeTree()
+    {
+        SmartNode root = new SmartNode("");
+        root.setRoot(true);
+        SmartNode container = new SmartNode("ou=people");
+        root.add(container);
+        return new SmartModel(root);
+    }
+
+    /**
+     * @return the time taken (in ms) to expand the container and find each child in it.
+     */
+    static long[] time(RDN[] rdns, boolean linear)
+    {
+        SmartModel model = makeTree();
+        SmartNode container = (SmartNode) ((SmartNode) model.getRoot()).getChildAt(0);
+
+        long start = System.nanoTime();
+        for (RDN rdn : rdns)
+        {
+            SmartNode child = new SmartNode(rdn);
+            if ((linear ? hasChildLinear(container, child.toString()) : container.hasChild(child.getRDN())) == false)
+                container.add(child);
+        }
+        container.sort();
+        long expanded = System.nanoTime();
+
+        DN dn = new DN("ou=people");
+        for (RDN rdn : rdns)
+        {
+            DN childDN = new DN(dn);
+            childDN.add(rdn);
+            SmartNode child = linear ? getChildLinear(container, rdn) : model.getNodeForDN(childDN);
+            if (child == null)
+                throw new IllegalStateException("lost " + rdn);
+        }
+        long found = System.nanoTime();
+
+        return new long[] {(expanded - start) / 1000000, (found - expanded) / 1000000};
+    }
+
+    public static void main(String[] args)
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int linearCount = (args.length > 1) ? Integer.parseInt(args[1]) : count / 20;
+
+        JXConfig.setupProperties(new Properties());
+
+        long[] linear = time(makeRDNs(linearCount), true);
+        System.out.println("linear scan, " + linearCount + " children: expanded in " + linear[0] + " ms, all found in " + linear[1] + " ms");
+
+        long[] indexed = time(makeRDNs(count), false);
+        System.out.println("indexed,     " + count + " children: expanded in " + indexed[0] + " ms, all found in " + indexed[1] + " ms");
+    }
+}
@@ -0,0 +1,179 @@
+package com.ca.jndiproviders.dsml;
+
+import com.ca.commons.jndi.BatchContext;
+import junit.framework.*;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import java.io.IOException;
+import java.util.Hashtable;
+
+/**
+ * Checks DSML batches are sent as batchRequests of the configured size, and that the results
+ * in the batchResponse are matched back to the right operations.
+ */
+public class DsmlBatchTest extends TestCase
+{
+    private static final String HEADER =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap-env:Body>\n" +
+            "<batchResponse xmlns=\"urn:oasis:names:tc:DSML:2:0:core\">\n";
+
+    private static final String FOOTER = "</batchResponse>\n</soap-env:Body></soap-env:Envelope>";
+
+    // the results of a parallel batch, in a different order to the requests
+    private static final String batchResponse = HEADER +
+            "<modifyResponse requestID=\"2\"><resultCode code=\"0\"/></modifyResponse>\n" +
+            "<addResponse requestID=\"0\"><resultCode code=\"0\"/></addResponse>\n" +
+            "<errorResponse requestID=\"3\" type=\"notAttempted\"><message>server busy</message></errorResponse>\n" +
+            "<delResponse requestID=\"1\"><resultCode code=\"32\" descr=\"noSuchObject\"/><errorMessage>no such entry</errorMessage></delResponse>\n" +
+            FOOTER;
+
+    private SoapStubServer server;
+    private DsmlContext ctx;
+
+    public DsmlBatchTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(DsmlBatchTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp()
+            throws IOException, NamingException
+    {
+        server = new SoapStubServer();
+        Hashtable env = new Hashtable();
+        env.put(DsmlContext.PROVIDER_URL, server.getUrl());
+        ctx = new DsmlContext(env);
+    }
+
+    protected void tearDown()
+    {
+        server.stop();
+    }
+
+    private static BasicAttributes person(String cn)
+    {
+        BasicAttributes atts = new BasicAttributes("objectClass", "person");
+        atts.put("cn", cn);
+        atts.put("sn", "Smith & Jones");
+        return atts;
+    }
+
+    public void testBatchRequest()
+            throws IOException, NamingException
+    {
+        server.setResponse(batchResponse);
+
+        BatchContext.Batch batch = ctx.createBatch(false);
+        batch.add("cn=Fred,o=pegacat,c=au", person("Fred"));
+        batch.delete("cn=Nobody,o=pegacat,c=au");
+        batch.modify("cn=Fred,o=pegacat,c=au", new ModificationItem[]{new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "Bloggs"))});
+        batch.delete("cn=Jim,o=pegacat,c=au");
+        assertEquals(4, batch.size());
+
+        NamingException[] results = batch.execute();
+        assertEquals(0, batch.size());
+        assertEquals(1, server.requestCount.get());
+
+        String request = server.lastRequest;
+        assertTrue(request.indexOf("processing=\"parallel\"") > -1);
+        assertTrue(request.indexOf("onError=\"resume\"") > -1);
+        assertTrue(request.indexOf("<dsml:addRequest requestID=\"0\" dn=\"cn=Fred,o=pegacat,c=au\">") > -1);
+        assertTrue(request.indexOf("<dsml:delRequest requestID=\"1\" dn=\"cn=Nobody,o=pegacat,c=au\"/>") > -1);
+        assertTrue(request.indexOf("<dsml:modifyRequest requestID=\"2\" dn=\"cn=Fred,o=pegacat,c=au\">") > -1);
+        assertTrue(request.indexOf("<dsml:value>Smith &amp; Jones</dsml:value>") > -1);
+
+        assertEquals(4, results.length);
+        assertNull(results[0]);
+        assertEquals("noSuchObject Exception (LDAP 32)\nno such entry", results[1].getMessage());
+        assertNull(results[2]);
+        assertEquals("Error Processing DSML Request: notAttempted\nserver busy", results[3].getMessage());
+
+        BatchContext.Batch sequential = ctx.createBatch(true);
+        sequential.delete("cn=Fred,o=pegacat,c=au");
+        sequential.execute();
+        assertTrue(server.lastRequest.indexOf("processing=\"sequential\"") > -1);
+    }
+
+    /**
+     * Checks large batches are split into several requests, and that responses without
+     * requestIDs are matched in order.
+     */
+    public void testBatchSize()
+            throws IOException, NamingException
+    {
+        server.setResponse(HEADER +
+                "<delResponse><resultCode code=\"0\"/></delResponse>\n" +
+                "<delResponse><resultCode code=\"68\" descr=\"entryAlreadyExists\"/></delResponse>\n" +
+                FOOTER);
+
+        ctx.addToEnvironment(DsmlContext.BATCH_SIZE, "2");
+        BatchContext.Batch batch = ctx.createBatch(true);
+        for (int i = 0; i < 5; i++)
+            batch.delete("cn=user" + i + ",o=pegacat,c=au");
+
+        NamingException[] results = batch.execute();
+        assertEquals(3, server.requestCount.get());
+        assertTrue(server.lastRequest.indexOf("requestID=\"4\"") > -1);
+        assertTrue(server.lastRequest.indexOf("requestID=\"3\"") == -1);
+
+        assertNull(results[0]);
+        assertNotNull(results[1]);
+        assertNull(results[2]);
+        assertNotNull(results[3]);
+        assertEquals("more results returned by DSML server than requests sent", results[4].getMessage());
+
+        ctx.addToEnvironment(DsmlContext.BATCH_SIZE, "lots");
+        try
+        {
+            ctx.createBatch(false);
+            fail("expected a ConfigurationException");
+        }
+        catch (javax.naming.ConfigurationException e) {}
+    }
+
+    /**
+     * Checks operations are given an error if the whole request fails, or no result is returned for them.
+     */
+    public void testBatchErrors()
+            throws IOException, NamingException
+    {
+        server.setResponse(HEADER + "<delResponse requestID=\"0\"><resultCode code=\"0\"/></delResponse>\n" + FOOTER);
+
+        BatchContext.Batch batch = ctx.createBatch(false);
+        batch.delete("cn=Fred,o=pegacat,c=au");
+        batch.delete("cn=Jim,o=pegacat,c=au");
+        NamingException[] results = batch.execute();
+        assertNull(results[0]);
+        assertEquals("no result returned by DSML server for batched request 1", results[1].getMessage());
+
+        server.status = 500;
+        server.setResponse("<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap-env:Body>" +
+                "<soap-env:Fault><faultcode>soap-env:Client</faultcode><faultstring>bad request</faultstring></soap-env:Fault>" +
+                "</soap-env:Body></soap-env:Envelope>");
+        batch.delete("cn=Fred,o=pegacat,c=au");
+        batch.delete("cn=Jim,o=pegacat,c=au");
+        results = batch.execute();
+        assertEquals("SOAP Fault returned by DSML server\nsoap-env:Client\nbad request", results[0].getMessage());
+        assertSame(results[0], results[1]);
+
+        server.status = 200;
+        server.setResponse(HEADER + "<errorResponse type=\"malformedRequest\"><message>bad batch</message></errorResponse>\n" + FOOTER);
+        batch.delete("cn=Fred,o=pegacat,c=au");
+        results = batch.execute();
+        assertEquals("Error Processing DSML Request: malformedRequest\nbad batch", results[0].getMessage());
+    }
+}
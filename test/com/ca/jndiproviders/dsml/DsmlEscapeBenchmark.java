@@ -0,0 +1,113 @@
+package com.ca.jndiproviders.dsml;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times the DsmlContext XML escaping: writing an add request for an entry with a large
+ * multi-valued attribute, escaping values into the request buffer against escaping each to
+ * a new string first, and unescaping text full of character references - against the regular
+ * expression unescaper DsmlContext used to have (which rescanned the value after every
+ * character reference, so took time proportional to the square of the number of references).
+ *
+ * Run from the command line:
+ * <pre>
+ * java com.ca.jndiproviders.dsml.DsmlEscapeBenchmark [values] [references]
+ * </pre>
+ */
+public class DsmlEscapeBenchmark
+{
+    private static final Pattern OCTO = Pattern.compile("(&#.*?;)", Pattern.DOTALL);
+
+    /**
+     * The old unescaper, for comparison (the named entities are left out, as the references
+     * dominate; it only understood two digit references, which it read as hex).
+     */
+    static String regexUnescape(String value)
+    {
+        Matcher matcher = OCTO.matcher(value);
+        while (matcher.find())
+        {
+            String ref = matcher.group(1);
+            int len = ref.length();
+            int val = Character.digit(ref.charAt(len - 3), 16) * 16 + Character.digit(ref.charAt(len - 2), 16);
+            value = matcher.replaceFirst(String.valueOf((char) val));
+            matcher = OCTO.matcher(value);
+        }
+        return value;
+    }
+
+    private static String value(int i)
+    {
+        return "member " + i + ": cn=Smith & Jones <sales>,ou=\"Sales & Marketing\",o=pegacat,c=au - it's a long value " + i;
+    }
+
+    public static void main(String[] args)
+            throws NamingException
+    {
+        int values = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int references = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+        BasicAttribute member = new BasicAttribute("member");
+        for (int i = 0; i < values; i++)
+            member.add(value(i));
+        BasicAttributes atts = new BasicAttributes("objectClass", "groupOfNames");
+        atts.put(member);
+
+        long best = Long.MAX_VALUE;
+        int length = 0;
+        for (int round = 0; round < 10; round++)
+        {
+            long start = System.nanoTime();
+            StringBuffer request = new StringBuffer(200);
+            DsmlContext.getAddRequestElement(request, "cn=big group,o=pegacat,c=au", atts);
+            best = Math.min(best, System.nanoTime() - start);
+            length = request.length();
+        }
+        System.out.println("add request, " + values + " values (" + length / 1024 + " KB): " + best / 1000000 + " ms");
+
+        for (boolean intoBuffer : new boolean[]{false, true, false, true})      // (the first two warm up)
+        {
+            best = Long.MAX_VALUE;
+            for (int round = 0; round < 10; round++)
+            {
+                long start = System.nanoTime();
+                StringBuffer buffer = new StringBuffer(values * 150);
+                for (int i = 0; i < values; i++)
+                {
+                    if (intoBuffer)
+                        DsmlContext.escape(value(i), buffer);
+                    else
+                        buffer.append(DsmlContext.escape(value(i)));
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println((intoBuffer ? "escape into buffer:  " : "escape to string:    ") + values + " values in " + best / 1000000 + " ms");
+        }
+
+        StringBuffer text = new StringBuffer(references * 8);
+        for (int i = 0; i < references; i++)
+            text.append("ab&#41;");
+        String escaped = text.toString();
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++)
+        {
+            long start = System.nanoTime();
+            DsmlContext.unescape(escaped);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println("unescape:            " + references + " references in " + best / 1000 + " us");
+
+        for (int n = references / 16; n <= references; n *= 4)       // (grows with the square of n)
+        {
+            String sample = escaped.substring(0, n * 7);
+            long start = System.nanoTime();
+            regexUnescape(sample);
+            System.out.println("regex unescape:      " + n + " references in " + (System.nanoTime() - start) / 1000 + " us");
+        }
+    }
+}
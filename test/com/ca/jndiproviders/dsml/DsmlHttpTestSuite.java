@@ -0,0 +1,46 @@
+package com.ca.jndiproviders.dsml;
+
+import junit.framework.*;
+
+/**
+ * <p>The DSML tests that send requests over HTTP, to the stub DSML server.  (These
+ * are kept out of the distributed source with the stub server; the other DSML
+ * tests are in DsmlTestSuite.)</p>
+ */
+
+public class DsmlHttpTestSuite extends TestCase {
+
+    public DsmlHttpTestSuite(String name)
+	{
+        super(name);
+    }
+
+
+    /**
+     * Assembles and returns a test suite
+     * containing all known tests.
+     *
+     * New tests should be added here!
+     *
+     * @return A non-null test suite.
+     */
+
+    public static Test suite()
+    {
+        TestSuite suite = new TestSuite();
+
+		// The tests...
+        suite.addTest(SoapClientTest.suite());
+        suite.addTest(DsmlBatchTest.suite());
+        return suite;
+    }
+
+    /**
+     * Runs the test suite.
+     */
+
+    public static void main(String args[])
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+}
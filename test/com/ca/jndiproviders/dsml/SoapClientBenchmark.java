@@ -0,0 +1,99 @@
+package com.ca.jndiproviders.dsml;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.io.IOException;
+
+/**
+ * Times SoapClient requests against a local stub server (see SoapStubServer): small requests
+ * with and without connection reuse, and large search responses with and without compression.
+ *
+ * Run from the command line:
+ * <pre>
+ * java com.ca.jndiproviders.dsml.SoapClientBenchmark [requests] [entries]
+ * </pre>
+ * (The stub server is local, so this shows the cost of making connections and of compressing
+ * and decompressing; over a real network the time saved by sending a quarter of the bytes is
+ * usually much larger.)
+ */
+public class SoapClientBenchmark
+{
+    static final String modifyResponse =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap-env:Body>" +
+            "<batchResponse xmlns=\"urn:oasis:names:tc:DSML:2:0:core\"><modifyResponse><resultCode code=\"0\"/></modifyResponse></batchResponse>" +
+            "</soap-env:Body></soap-env:Envelope>";
+
+    static String searchResponse(int entries)
+    {
+        StringBuffer xml = new StringBuffer(entries * 400);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap-env:Body>\n");
+        xml.append("<dsml:batchResponse xmlns:dsml=\"urn:oasis:names:tc:DSML:2:0:core\"><dsml:searchResponse>\n");
+        for (int i = 0; i < entries; i++)
+        {
+            xml.append("<dsml:searchResultEntry dn=\"uid=user").append(i).append(",ou=staff,o=pegacat,c=au\">\n");
+            xml.append("  <dsml:attr name=\"objectClass\"><dsml:value>top</dsml:value><dsml:value>person</dsml:value><dsml:value>inetOrgPerson</dsml:value></dsml:attr>\n");
+            xml.append("  <dsml:attr name=\"uid\"><dsml:value>user").append(i).append("</dsml:value></dsml:attr>\n");
+            xml.append("  <dsml:attr name=\"cn\"><dsml:value>User ").append(i).append("</dsml:value></dsml:attr>\n");
+            xml.append("  <dsml:attr name=\"mail\"><dsml:value>user").append(i).append("@pegacat.com</dsml:value></dsml:attr>\n");
+            xml.append("  <dsml:attr name=\"description\"><dsml:value>Works in department ").append(i % 100).append(" &amp; likes it</dsml:value></dsml:attr>\n");
+            xml.append("</dsml:searchResultEntry>\n");
+        }
+        xml.append("<dsml:searchResultDone><dsml:resultCode code=\"0\"/></dsml:searchResultDone>\n");
+        xml.append("</dsml:searchResponse></dsml:batchResponse>\n</soap-env:Body></soap-env:Envelope>");
+        return xml.toString();
+    }
+
+    public static void main(String[] args)
+            throws IOException, NamingException
+    {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        int entries = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+        SoapStubServer server = new SoapStubServer();
+        try
+        {
+            SoapClient client = new SoapClient(server.getUrl(), "cn=Manager,o=pegacat,c=au", "secret");
+            String request = DsmlContext.constructDeleteRequest("uid=user1,ou=staff,o=pegacat,c=au").toString();
+
+            server.setResponse(modifyResponse);
+            for (boolean keepAlive : new boolean[] {false, true, false, true})     // (the first two warm up)
+            {
+                server.keepAlive = keepAlive;
+                server.clientPorts.clear();
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++)
+                    SoapClient.readResponse(client.open(request, "#batchRequest", 0));
+                long time = System.nanoTime() - start;
+                System.out.println((keepAlive ? "reused connections: " : "new connections:    ") + requests + " requests on " + server.clientPorts.size() + " connections, " + (requests * 1000000000L / time) + " requests/s");
+            }
+
+            String response = searchResponse(entries);
+            server.setResponse(response);
+            for (boolean compress : new boolean[] {false, true, false, true})
+            {
+                client.setCompressResponses(compress);
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < 5; round++)
+                {
+                    long start = System.nanoTime();
+                    int count = 0;
+                    NamingEnumeration results = new DsmlSearchEnumeration(client.open(request, "#batchRequest", 0, true), "o=pegacat,c=au");
+                    while (results.hasMore())
+                    {
+                        results.next();
+                        count++;
+                    }
+                    if (count != entries)
+                        throw new IllegalStateException("read " + count + " entries");
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.println((compress ? "gzip:     " : "identity: ") + entries + " entries (" + response.length() / 1024 + " KB) parsed in " + best / 1000000 + " ms");
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.ca.jndiproviders.dsml;
+
+import com.ca.commons.cbutil.CBBase64;
+import junit.framework.*;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Hashtable;
+
+/**
+ * Checks the SoapClient against a local stub server - headers, compression, connection
+ * reuse, timeouts and HTTP errors.
+ */
+public class SoapClientTest extends TestCase
+{
+    private static final String searchResponse =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap-env:Body>\n" +
+            "<batchResponse xmlns=\"urn:oasis:names:tc:DSML:2:0:core\"><searchResponse>\n" +
+            "<searchResultEntry dn=\"cn=Fred,o=pegacat,c=au\"><attr name=\"cn\"><value>Fred \u5c0f\u7b20</value></attr></searchResultEntry>\n" +
+            "<searchResultDone><resultCode code=\"0\"/></searchResultDone>\n" +
+            "</searchResponse></batchResponse>\n" +
+            "</soap-env:Body></soap-env:Envelope>";
+
+    private static final String fault =
+            "<soap-env:Envelope xmlns:soap-env=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap-env:Body>" +
+            "<soap-env:Fault><faultcode>soap-env:Client</faultcode><faultstring>bad request</faultstring></soap-env:Fault>" +
+            "</soap-env:Body></soap-env:Envelope>";
+
+    private SoapStubServer server;
+
+    public SoapClientTest(String name)
+    {
+        super(name);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(SoapClientTest.class);
+    }
+
+    public static void main(String[] args)
+    {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    protected void setUp()
+            throws IOException
+    {
+        server = new SoapStubServer();
+        server.setResponse(searchResponse);
+    }
+
+    protected void tearDown()
+    {
+        server.stop();
+    }
+
+    public void testRequest()
+            throws IOException
+    {
+        SoapClient client = new SoapClient(server.getUrl(), "cn=Fred", "secret");
+
+        StringBuffer message = new StringBuffer("<request>\u00e9</request>");
+        assertEquals(searchResponse, SoapClient.readResponse(client.open(message, "#batchRequest", 0)));
+
+        assertEquals("<request>\u00e9</request>", server.lastRequest);
+        assertEquals("\"#batchRequest\"", server.lastHeaders.getFirst("SOAPAction"));
+        assertEquals("Basic Y249RnJlZDpzZWNyZXQ=", server.lastHeaders.getFirst("Authorization"));
+        assertEquals("gzip, deflate", server.lastHeaders.getFirst("Accept-Encoding"));
+        assertNull(server.lastHeaders.getFirst("Content-Encoding"));
+
+        // and the old static methods
+        assertEquals(searchResponse, SoapClient.sendSoapMsg(server.getUrl(), "<old/>".getBytes("UTF-8"), "#batchRequest", null, null));
+        assertEquals("<old/>", server.lastRequest);
+        assertNull(server.lastHeaders.getFirst("Authorization"));
+    }
+
+    public void testLongCredentials()
+            throws IOException
+    {
+        // long enough that LDIF style folding would have broken the header over several lines
+        String user = "cn=Frederick Smithson-Jones,ou=Research and Development,ou=Staff,o=pegacat,c=au";
+        SoapClient client = new SoapClient(server.getUrl(), user, "a rather long and secret passphrase");
+        SoapClient.readResponse(client.open(new StringBuffer("<request/>"), "#batchRequest", 0));
+
+        String authorization = server.lastHeaders.getFirst("Authorization");
+        assertTrue(authorization.startsWith("Basic "));
+        assertEquals(-1, authorization.indexOf('\n'));
+        assertEquals(user + ":a rather long and secret passphrase", new String(CBBase64.stringToBinary(authorization.substring(6)), "UTF-8"));
+    }
+
+    public void testCompression()
+            throws IOException
+    {
+        SoapClient client = new SoapClient(server.getUrl(), null, null);
+
+        StringBuffer message = new StringBuffer();
+        for (int i = 0; i < 5000; i++)
+            message.append("<value>").append(i).append(" \u5c0f\u7b20</value>\n");
+
+        client.setCompressRequests(true);
+        assertEquals(searchResponse, SoapClient.readResponse(client.open(message, "#batchRequest", 0)));
+        assertEquals("gzip", server.lastHeaders.getFirst("Content-Encoding"));
+        assertEquals(message.toString(), server.lastRequest);
+
+        client.setCompressResponses(false);
+        assertEquals(searchResponse, SoapClient.readResponse(client.open("<request/>", "#batchRequest", 0)));
+        assertNull(server.lastHeaders.getFirst("Accept-Encoding"));
+    }
+
+    /**
+     * Checks a connection is kept alive and reused, if the responses are read to the end.
+     */
+    public void testKeepAlive()
+            throws IOException
+    {
+        SoapClient client = new SoapClient(server.getUrl(), null, null);
+        for (int i = 0; i < 5; i++)
+            SoapClient.readResponse(client.open("<request/>", "#batchRequest", 0));
+        assertEquals(1, server.clientPorts.size());
+
+        server.keepAlive = false;
+        for (int i = 0; i < 5; i++)
+            SoapClient.readResponse(client.open("<request/>", "#batchRequest", 0));
+        assertEquals(5, server.clientPorts.size());     // (the first of these still used the kept alive connection)
+    }
+
+    /**
+     * Checks that a request that may have been carried out is not sent again if the connection fails;
+     * only idempotent requests (searches) are retried.
+     */
+    public void testRetry()
+            throws IOException
+    {
+        SoapClient client = new SoapClient(server.getUrl(), null, null);
+        SoapClient.readResponse(client.open("<request/>", "#batchRequest", 0));    // (a kept alive connection, for the JDK to retry on)
+
+        server.requestCount.set(0);
+        server.drop = 1;
+        try
+        {
+            client.open("<delRequest/>", "#batchRequest", 0, false);
+            fail("expected an IOException for a dropped connection");
+        }
+        catch (IOException e) {}
+        assertEquals(1, server.requestCount.get());
+
+        SoapClient.readResponse(client.open("<request/>", "#batchRequest", 0));
+        server.requestCount.set(0);
+        server.drop = 1;
+        assertEquals(searchResponse, SoapClient.readResponse(client.open("<searchRequest/>", "#batchRequest", 0, true)));
+        assertEquals(2, server.requestCount.get());
+    }
+
+    public void testTimeouts()
+            throws IOException
+    {
+        SoapClient client = new SoapClient(server.getUrl(), null, null);
+        assertEquals(0, client.getReadTimeout(0));
+        assertEquals(2000 + SoapClient.TIME_LIMIT_GRACE, client.getReadTimeout(2000));
+        client.setReadTimeout(60000);
+        assertEquals(60000, client.getReadTimeout(0));
+        assertEquals(60000, client.getReadTimeout(2000));
+
+        server.delay = 1000;
+        client.setReadTimeout(200);
+        try
+        {
+            client.open("<request/>", "#batchRequest", 0);
+            fail("expected the request to time out");
+        }
+        catch (SocketTimeoutException e) {}
+    }
+
+    /**
+     * Checks a SOAP fault returned with an HTTP 500 can be read, and that other errors are thrown.
+     */
+    public void testErrors()
+            throws IOException
+    {
+        SoapClient client = new SoapClient(server.getUrl(), null, null);
+
+        server.status = 500;
+        server.setResponse(fault);
+        assertEquals(fault, SoapClient.readResponse(client.open("<request/>", "#batchRequest", 0)));
+
+        server.contentType = "text/html";
+        try
+        {
+            client.open("<request/>", "#batchRequest", 0);
+            fail("expected an IOException for an HTTP 500 error page");
+        }
+        catch (IOException e) {}
+
+        server.status = 404;
+        try
+        {
+            client.open("<request/>", "#batchRequest", 0);
+            fail("expected an IOException for an HTTP 404");
+        }
+        catch (IOException e) {}
+    }
+
+    /**
+     * Checks DsmlContext sends its searches through a SoapClient made from its environment.
+     */
+    public void testContextSearch()
+            throws NamingException, IOException
+    {
+        Hashtable env = new Hashtable();
+        env.put(DsmlContext.PROVIDER_URL, server.getUrl());
+        env.put(SoapClient.READ_TIMEOUT, "10000");
+        DsmlContext ctx = new DsmlContext(env);
+
+        NamingEnumeration results = ctx.search("o=pegacat,c=au", "(cn=Fred)", new SearchControls());
+        SearchResult result = (SearchResult) results.next();
+        assertEquals("cn=Fred,o=pegacat,c=au", result.getName());
+        assertEquals("Fred \u5c0f\u7b20", result.getAttributes().get("cn").get());
+        assertFalse(results.hasMore());
+
+        server.status = 500;
+        server.setResponse(fault);
+        try
+        {
+            ctx.search("o=pegacat,c=au", "(cn=Fred)", new SearchControls()).hasMore();
+            fail("expected the SOAP fault to be thrown");
+        }
+        catch (NamingException e)
+        {
+            assertEquals("SOAP Fault returned by DSML server\nsoap-env:Client\nbad request", e.getMessage());
+        }
+
+        ctx.addToEnvironment(SoapClient.CONNECT_TIMEOUT, "soon");
+        try
+        {
+            ctx.search("o=pegacat,c=au", "(cn=Fred)", new SearchControls());
+            fail("expected a ConfigurationException");
+        }
+        catch (javax.naming.ConfigurationException e) {}
+    }
+}
@@ -0,0 +1,153 @@
+package com.ca.jndiproviders.dsml;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand in DSML server for testing (and timing) SoapClient: a local HTTP server that
+ * returns a canned response to every request, and remembers what the last request looked like.
+ */
+class SoapStubServer implements HttpHandler
+{
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private byte[] response = new byte[0];
+
+    private byte[] gzippedResponse = new byte[0];
+
+    int status = 200;
+
+    String contentType = "text/xml; charset=utf-8";
+
+    boolean keepAlive = true;
+
+    boolean compress = true;    // gzip the response, if the client accepts it
+
+    int delay = 0;              // milliseconds to wait before replying
+
+    volatile int drop = 0;      // the number of requests (after reading them) to close the connection on without replying
+
+    volatile Headers lastHeaders;
+
+    volatile String lastRequest;
+
+    /**
+     * the client ports requests came from - i.e. how many connections were used.
+     */
+    final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    final AtomicInteger requestCount = new AtomicInteger();
+
+    static
+    {
+        // reply without waiting on the client's delayed acks (as real servers do), else reused connections take 40ms a request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    SoapStubServer()
+            throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/dsml";
+    }
+
+    void setResponse(String xml)
+            throws IOException
+    {
+        response = xml.getBytes("UTF-8");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(response);
+        gzip.close();
+        gzippedResponse = bytes.toByteArray();
+    }
+
+    void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public void handle(HttpExchange exchange)
+            throws IOException
+    {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(requestHeaders.getFirst("Content-Encoding")))
+            in = new GZIPInputStream(in);
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        byte[] block = new byte[8192];
+        int len;
+        while ((len = in.read(block)) != -1)
+            request.write(block, 0, len);
+        in.close();
+
+        lastHeaders = requestHeaders;
+        lastRequest = request.toString("UTF-8");
+        requestCount.incrementAndGet();
+
+        if (drop > 0)
+        {
+            drop--;
+            exchange.close();       // (as a server that fails, or times out the connection, after reading the request)
+            return;
+        }
+
+        if (delay > 0)
+        {
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+
+        String accept = requestHeaders.getFirst("Accept-Encoding");
+        boolean gzip = compress && accept != null && accept.indexOf("gzip") > -1;
+        byte[] body = gzip ? gzippedResponse : response;
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("Content-Type", contentType);
+        if (gzip)
+            responseHeaders.set("Content-Encoding", "gzip");
+        if (!keepAlive)
+            responseHeaders.set("Connection", "close");
+
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
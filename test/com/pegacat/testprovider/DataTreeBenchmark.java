@@ -0,0 +1,95 @@
+package com.pegacat.testprovider;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import java.util.Hashtable;
+
+/**
+ * Loads a large generated directory into the test provider, with and without attribute
+ * indexes, and times subtree searches on it - equality searches (which the indexes answer),
+ * and a substring search (which still tests every entry).
+ *
+ * Run from the command line (with plenty of heap for a million entries, e.g. -Xmx3g):
+ * <pre>
+ * java com.pegacat.testprovider.DataTreeBenchmark [entries] [rounds]
+ * </pre>
+ * The best time for each search is reported, in milliseconds.
+ *
+ * (c) Chris Betts; Pegacat Software (http://pegacat.com)
+ */
+public class DataTreeBenchmark
+{
+    static final String BASE = "o=pegacat,c=au";
+
+    static TestProviderContext load(int count, String indexes)
+            throws NamingException
+    {
+        Hashtable env = new Hashtable();
+        if (indexes != null)
+            env.put(TestProviderContext.INDEXES, indexes);
+        TestProviderContext ctx = new TestProviderContext(env, new DataTree());
+
+        for (int i = 0; i < count; i++)
+        {
+            BasicAttributes atts = new BasicAttributes("objectClass", (i % 100 == 0) ? "groupOfNames" : "person");
+            atts.put("uid", "user" + i);
+            atts.put("cn", "User " + i);
+            atts.put("sn", "User");
+            atts.put("mail", "user" + i + "@pegacat.com");
+            atts.put("departmentNumber", String.valueOf(i % 1000));
+            ctx.createSubcontext("uid=user" + i + ",ou=department " + (i % 1000) + ",ou=staff," + BASE, atts);
+        }
+        return ctx;
+    }
+
+    static int search(TestProviderContext ctx, String filter)
+            throws NamingException
+    {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[] {"1.1"});
+
+        int count = 0;
+        NamingEnumeration results = ctx.search(BASE, filter, controls);
+        while (results.hasMore())
+        {
+            results.next();
+            count++;
+        }
+        return count;
+    }
+
+    public static void main(String[] args)
+            throws NamingException
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        String[] filters = {"(uid=user" + (count / 2) + ")", "(&(objectClass=groupOfNames)(mail=user700@pegacat.com))",
+                            "(|(uid=user1)(uid=user2)(cn=User 3))", "(&(objectClass=person)(departmentNumber=7))", "(cn=User 12345*)"};
+
+        for (String indexes : new String[] {"objectClass, uid, cn, mail", null})
+        {
+            long start = System.nanoTime();
+            TestProviderContext ctx = load(count, indexes);
+            System.out.println("loaded " + count + " entries " + ((indexes == null) ? "without indexes" : "indexing " + indexes) + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            for (String filter : filters)
+            {
+                long best = Long.MAX_VALUE;
+                int found = 0;
+                for (int round = 0; round < rounds; round++)
+                {
+                    long begin = System.nanoTime();
+                    found = search(ctx, filter);
+                    best = Math.min(best, System.nanoTime() - begin);
+                }
+                System.out.println("  " + filter + ": " + found + " found, " + (best / 100000) / 10.0 + " ms");
+            }
+            ctx = null;
+            System.gc();
+        }
+    }
+}